@@ -0,0 +1,88 @@
+package nl.tue.ds.benchmark;
+
+import nl.tue.ds.entity.Node;
+import nl.tue.ds.rmi.NodeExecutors;
+import nl.tue.ds.rmi.NodeRemote;
+import nl.tue.ds.transport.InMemoryTransport;
+import nl.tue.ds.transport.NioTransport;
+import nl.tue.ds.transport.RmiTransport;
+import nl.tue.ds.transport.Transport;
+import nl.tue.ds.transport.TransportType;
+import nl.tue.ds.util.RemoteUtil;
+import nl.tue.ds.util.StorageUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Graph of nodes running in the benchmark JVM over the given transport, connected by the overlay of given degree,
+ * calls of MEMORY transport are delayed by the given latency
+ */
+final class BenchmarkNodes {
+
+    static final String HOST = "localhost";
+
+    @NotNull
+    private final NodeExecutors executors;
+
+    @NotNull
+    private final NodeRemote[] nodeRemotes;
+
+    BenchmarkNodes(@NotNull TransportType transportType, int nodeCount) throws Exception {
+        this(transportType, nodeCount, 0);
+    }
+
+    BenchmarkNodes(@NotNull TransportType transportType, int nodeCount, int overlayDegree) throws Exception {
+        this(transportType, nodeCount, overlayDegree, 0, NodeExecutors.create());
+    }
+
+    BenchmarkNodes(@NotNull TransportType transportType, int nodeCount, int overlayDegree, long latencyMicros, @NotNull NodeExecutors executors) throws Exception {
+        this.executors = executors;
+        StorageUtil.init();
+        RemoteUtil.setTransport(createTransport(transportType, latencyMicros));
+        Map<Integer, String> nodes = new HashMap<>();
+        for (int id = 1; id <= nodeCount; id++) {
+            nodes.put(id, HOST);
+        }
+        nodeRemotes = new NodeRemote[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            Node node = new Node(i + 1, HOST, overlayDegree);
+            node.putNodes(nodes);
+            nodeRemotes[i] = new NodeRemote(node, executors);
+            RemoteUtil.bind(node, nodeRemotes[i]);
+        }
+    }
+
+    @NotNull
+    NodeRemote get(int index) {
+        return nodeRemotes[index];
+    }
+
+    int size() {
+        return nodeRemotes.length;
+    }
+
+    void close() throws Exception {
+        for (NodeRemote nodeRemote : nodeRemotes) {
+            nodeRemote.close();
+        }
+        executors.shutdown();
+        for (NodeRemote nodeRemote : nodeRemotes) {
+            RemoteUtil.unbind(nodeRemote.getNode());
+            StorageUtil.removeFile(nodeRemote.getNode().getId());
+        }
+    }
+
+    @NotNull
+    private static Transport createTransport(@NotNull TransportType transportType, long latencyMicros) {
+        switch (transportType) {
+            case RMI:
+                return new RmiTransport();
+            case NIO:
+                return new NioTransport();
+            default:
+                return new InMemoryTransport(latencyMicros, 0);
+        }
+    }
+}
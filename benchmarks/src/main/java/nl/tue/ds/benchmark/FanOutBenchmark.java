@@ -0,0 +1,77 @@
+package nl.tue.ds.benchmark;
+
+import nl.tue.ds.entity.Marker;
+import nl.tue.ds.entity.Node;
+import nl.tue.ds.entity.Snapshot;
+import nl.tue.ds.rmi.NodeExecutors;
+import nl.tue.ds.rmi.NodeRemote;
+import nl.tue.ds.rmi.SnapshotListener;
+import nl.tue.ds.rmi.ThreadMode;
+import nl.tue.ds.transport.TransportType;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Duration of the marker wave over full mesh, where every remote call blocks for the given latency,
+ * so broadcast of markers by dispatcher threads consists of thousands of concurrent blocking calls
+ * <p>
+ * PLATFORM runs them on bounded pools of platform threads, VIRTUAL on virtual thread per call,
+ * which needs JDK 21 at run time (otherwise VIRTUAL falls back to PLATFORM)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmark.xml")
+public class FanOutBenchmark implements SnapshotListener {
+
+    @Param({"PLATFORM", "VIRTUAL"})
+    private ThreadMode threadMode;
+
+    @Param({"16", "64"})
+    private int nodeCount;
+
+    @Param({"1000"})
+    private long latencyMicros;
+
+    private BenchmarkNodes nodes;
+
+    private volatile CountDownLatch completion;
+
+    @Setup
+    public void setUp() throws Exception {
+        NodeExecutors executors = NodeExecutors.create(16, 16, Integer.MAX_VALUE, threadMode);
+        nodes = new BenchmarkNodes(TransportType.MEMORY, nodeCount, 0, latencyMicros, executors);
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.get(i).addSnapshotListener(this);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        nodes.close();
+    }
+
+    @Benchmark
+    public void receiveMarker() throws Exception {
+        NodeRemote initiator = nodes.get(0);
+        Node node = initiator.getNode();
+        Marker marker = node.nextMarker();
+        completion = new CountDownLatch(nodeCount);
+        initiator.receiveMarker(node.getId(), marker);
+        completion.await();
+    }
+
+    @Override
+    public void snapshotStarted(@NotNull Node node, @NotNull Snapshot snapshot) {
+    }
+
+    @Override
+    public void snapshotCompleted(@NotNull Node node, @NotNull Snapshot snapshot) {
+        completion.countDown();
+    }
+}
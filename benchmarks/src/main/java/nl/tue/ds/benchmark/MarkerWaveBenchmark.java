@@ -0,0 +1,74 @@
+package nl.tue.ds.benchmark;
+
+import nl.tue.ds.entity.Marker;
+import nl.tue.ds.entity.Node;
+import nl.tue.ds.entity.Snapshot;
+import nl.tue.ds.rmi.NodeRemote;
+import nl.tue.ds.rmi.SnapshotListener;
+import nl.tue.ds.transport.TransportType;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Duration of the full distributed snapshot: from the initiator receiving its own marker
+ * until every node received markers from all incoming channels, over a loopback transport
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmark.xml")
+public class MarkerWaveBenchmark implements SnapshotListener {
+
+    @Param({"RMI", "NIO", "MEMORY"})
+    private TransportType transport;
+
+    @Param({"4", "16"})
+    private int nodeCount;
+
+    /**
+     * Number of neighbours of every node, 0 -> full mesh
+     */
+    @Param({"0", "4"})
+    private int overlayDegree;
+
+    private BenchmarkNodes nodes;
+
+    private volatile CountDownLatch completion;
+
+    @Setup
+    public void setUp() throws Exception {
+        nodes = new BenchmarkNodes(transport, nodeCount, overlayDegree);
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.get(i).addSnapshotListener(this);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        nodes.close();
+    }
+
+    @Benchmark
+    public void receiveMarker() throws Exception {
+        NodeRemote initiator = nodes.get(0);
+        Node node = initiator.getNode();
+        Marker marker = node.nextMarker();
+        completion = new CountDownLatch(nodeCount);
+        initiator.receiveMarker(node.getId(), marker);
+        completion.await();
+    }
+
+    @Override
+    public void snapshotStarted(@NotNull Node node, @NotNull Snapshot snapshot) {
+    }
+
+    @Override
+    public void snapshotCompleted(@NotNull Node node, @NotNull Snapshot snapshot) {
+        completion.countDown();
+    }
+}
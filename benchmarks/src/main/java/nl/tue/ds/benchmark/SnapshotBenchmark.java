@@ -0,0 +1,62 @@
+package nl.tue.ds.benchmark;
+
+import nl.tue.ds.entity.Node;
+import nl.tue.ds.entity.Snapshot;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording the local state of a snapshot and of recording in-transit money as the graph grows
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmark.xml")
+public class SnapshotBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int nodeCount;
+
+    /**
+     * Number of snapshots being recorded at a same time
+     */
+    @Param({"1", "4"})
+    private int snapshotCount;
+
+    private Node node;
+
+    private Node recordingNode;
+
+    @Setup
+    public void setUp() {
+        Map<Integer, String> nodes = new HashMap<>();
+        for (int id = 1; id <= nodeCount; id++) {
+            nodes.put(id, BenchmarkNodes.HOST);
+        }
+        node = new Node(1, BenchmarkNodes.HOST, 0);
+        node.putNodes(nodes);
+        recordingNode = new Node(1, BenchmarkNodes.HOST, 0);
+        recordingNode.putNodes(nodes);
+        for (int i = 0; i < snapshotCount; i++) {
+            recordingNode.startSnapshotRecording(recordingNode.nextMarker());
+        }
+    }
+
+    @Benchmark
+    public Snapshot startSnapshotRecording() {
+        Snapshot snapshot = node.startSnapshotRecording(node.nextMarker());
+        node.stopSnapshotRecording(snapshot);
+        return snapshot;
+    }
+
+    @Benchmark
+    public void incrementMoneyInTransfer() {
+        recordingNode.incrementMoneyInTransfer(2 + ThreadLocalRandom.current().nextInt(nodeCount - 1), 0, 1);
+    }
+}
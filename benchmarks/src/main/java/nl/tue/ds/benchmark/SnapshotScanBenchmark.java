@@ -0,0 +1,73 @@
+package nl.tue.ds.benchmark;
+
+import nl.tue.ds.storage.ChannelRecord;
+import nl.tue.ds.storage.SnapshotLog;
+import nl.tue.ds.storage.SnapshotRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full scan of snapshot history kept in the binary snapshot log against the same history moved into the columnar archive
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmark.xml")
+public class SnapshotScanBenchmark {
+
+    @Param({"100000"})
+    private int records;
+
+    @Param({"LOG", "ARCHIVE"})
+    private String source;
+
+    private Path folder;
+
+    private SnapshotLog log;
+
+    @Setup
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("scan");
+        log = SnapshotLog.open(folder.resolve("Node.snapshots"), folder.resolve("Node.index"), folder.resolve("Node.archive"), 1 << 24, 16);
+        Random random = new Random(records);
+        long balance = 1000000;
+        long timestamp = System.currentTimeMillis() - records;
+        for (int i = 1; i <= records; i++) {
+            List<ChannelRecord> channels = new ArrayList<>();
+            for (int j = random.nextInt(3); j > 0; j--) {
+                channels.add(new ChannelRecord(random.nextInt(64), 1, random.nextInt(100)));
+            }
+            balance += random.nextInt(200) - 100;
+            log.append(new SnapshotRecord(random.nextInt(8), i, balance, random.nextInt(100), timestamp + i, channels));
+        }
+        if ("ARCHIVE".equals(source)) {
+            log.archive(1);
+        }
+        log.force();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        log.close();
+        for (String file : new String[]{"Node.snapshots", "Node.index", "Node.archive"}) {
+            Files.deleteIfExists(folder.resolve(file));
+        }
+        Files.deleteIfExists(folder);
+    }
+
+    @Benchmark
+    public long scan() throws IOException {
+        long[] balance = new long[1];
+        log.read(record -> balance[0] += record.getLocalBalance());
+        return balance[0];
+    }
+}
@@ -0,0 +1,41 @@
+package nl.tue.ds.benchmark;
+
+import nl.tue.ds.entity.Node;
+import nl.tue.ds.entity.Snapshot;
+import nl.tue.ds.util.StorageUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of persisting one snapshot by StorageUtil.write
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmark.xml")
+public class StorageBenchmark {
+
+    private Node node;
+
+    private Snapshot snapshot;
+
+    @Setup
+    public void setUp() {
+        StorageUtil.init();
+        node = new Node(Integer.MAX_VALUE, BenchmarkNodes.HOST);
+        snapshot = node.startSnapshotRecording(node.nextMarker());
+    }
+
+    @TearDown
+    public void tearDown() {
+        StorageUtil.removeFile(node.getId());
+    }
+
+    @Benchmark
+    public void write() {
+        StorageUtil.write(node, snapshot);
+    }
+}
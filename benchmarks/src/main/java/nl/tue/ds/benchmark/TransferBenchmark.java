@@ -0,0 +1,60 @@
+package nl.tue.ds.benchmark;
+
+import nl.tue.ds.transport.TransportType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of NodeRemote.transferMoney and NodeRemote.acceptMoney under contention
+ * <p>
+ * transferMoney is measured end-to-end: withdrawal, batching and delivery by dispatcher threads over the transport
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmark.xml")
+@Threads(4)
+public class TransferBenchmark {
+
+    @Param({"MEMORY", "NIO", "RMI"})
+    private TransportType transport;
+
+    @Param({"2", "16"})
+    private int nodeCount;
+
+    private BenchmarkNodes nodes;
+
+    @Setup
+    public void setUp() throws Exception {
+        nodes = new BenchmarkNodes(transport, nodeCount);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        nodes.close();
+    }
+
+    /**
+     * Random node transfers to another random node
+     */
+    @Benchmark
+    public void transferMoney() throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int sender = random.nextInt(nodeCount);
+        int recipient = (sender + 1 + random.nextInt(nodeCount - 1)) % nodeCount;
+        nodes.get(sender).transferMoney(0, recipient + 1, 0, 1);
+    }
+
+    /**
+     * First node accepts money from random senders, so accepts of different channels contend
+     */
+    @Benchmark
+    public boolean acceptMoney() throws Exception {
+        int sender = 2 + ThreadLocalRandom.current().nextInt(nodeCount - 1);
+        return nodes.get(0).acceptMoney(sender, 0, 1);
+    }
+}
@@ -10,7 +10,12 @@ package nl.tue.ds;
 public interface BankTransfer {
 
     /**
-     * Initial amount at bank account
+     * Number of accounts of every bank
+     */
+    int ACCOUNTS = ServiceConfiguration.getBankAccounts();
+
+    /**
+     * Initial amount at every bank account
      */
     int INITIAL_BALANCE = ServiceConfiguration.getBankInitialAmount();
 
@@ -33,4 +38,54 @@ public interface BankTransfer {
      * Unit of money transfers
      */
     String TIMEOUT_UNIT = ServiceConfiguration.getBankTransferTimeoutUnit();
+
+    /**
+     * Number of threads making money transfers
+     */
+    int THREADS = ServiceConfiguration.getBankTransferThreads();
+
+    /**
+     * OPEN_LOOP or CLOSED_LOOP generation of money transfers
+     */
+    String MODE = ServiceConfiguration.getBankTransferMode();
+
+    /**
+     * Requested money transfers per second in OPEN_LOOP mode, 0 -> every thread transfers once per TIMEOUT_FREQUENCY
+     */
+    int RATE = ServiceConfiguration.getBankTransferRate();
+
+    /**
+     * UNIFORM or ZIPF distribution of recipients
+     */
+    String DISTRIBUTION = ServiceConfiguration.getBankTransferDistribution();
+
+    /**
+     * Exponent of ZIPF distribution of recipients
+     */
+    double ZIPF_EXPONENT = ServiceConfiguration.getBankTransferZipfExponent();
+
+    /**
+     * Maximal number of transfers to the same bank sent in one batch
+     */
+    int BATCH_SIZE = ServiceConfiguration.getBankTransferBatchSize();
+
+    /**
+     * Maximal time in milliseconds a transfer waits in the batch before being sent
+     */
+    int BATCH_WINDOW = ServiceConfiguration.getBankTransferBatchWindow();
+
+    /**
+     * Attempts to send a batch within one flush, the delay between attempts doubles starting from BATCH_WINDOW
+     */
+    int SEND_ATTEMPTS = ServiceConfiguration.getBankTransferSendAttempts();
+
+    /**
+     * Whether full batches are sent by dispatcher threads instead of the transferring thread
+     */
+    boolean ASYNC = ServiceConfiguration.isBankTransferAsync();
+
+    /**
+     * Number of threads sending batches to other banks
+     */
+    int DISPATCH_THREADS = ServiceConfiguration.getBankTransferDispatchThreads();
 }
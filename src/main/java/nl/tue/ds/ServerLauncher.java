@@ -1,7 +1,13 @@
 package nl.tue.ds;
 
+import nl.tue.ds.entity.GlobalSnapshot;
+import nl.tue.ds.entity.Marker;
+import nl.tue.ds.entity.Membership;
 import nl.tue.ds.entity.Node;
 import nl.tue.ds.rmi.NodeRemote;
+import nl.tue.ds.rmi.NodeServer;
+import nl.tue.ds.rmi.ThreadMode;
+import nl.tue.ds.storage.RecoveredState;
 import nl.tue.ds.util.InputUtil;
 import nl.tue.ds.util.NetworkUtil;
 import nl.tue.ds.util.RemoteUtil;
@@ -11,15 +17,10 @@ import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.rmi.Naming;
+import java.io.IOException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.util.Arrays;
-import java.util.Random;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 /**
  * Simulates server node (bank) in the graph for distributed snapshot
@@ -36,12 +37,22 @@ public final class ServerLauncher {
     @Nullable
     private static Node node;
 
-    private static NodeState nodeState = NodeState.DISCONNECTED;
+    @Nullable
+    private static NodeRemote nodeRemote;
 
     /**
-     * Thread pool scheduler of N threads for money transfer and snapshot taking
+     * Initiates snapshots periodically if snapshot-period is configured
      */
-    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    @Nullable
+    private static SnapshotScheduler snapshotScheduler;
+
+    /**
+     * Makes money transfers of the node
+     */
+    @Nullable
+    private static WorkloadGenerator workloadGenerator;
+
+    private static NodeState nodeState = NodeState.DISCONNECTED;
 
     /**
      * Description: method name,node host,node id,existing node host,existing node id
@@ -52,16 +63,28 @@ public final class ServerLauncher {
      * Example: join,localhost,20,localhost,25
      * Example: view
      * Example: cut
+     * Example: export
+     * Example: workload
+     * Example: restore,10,1
+     * Example: history,10,1
+     * Example: history,60
+     * Example: balance,15,10,1
      */
     public static void main(String[] args) {
         logger.info("You can change service configuration parameters in " + ServiceConfiguration.CONFIGURATION_FILE);
-        logger.info("Service configuration: RMI port=" + RMI_PORT);
-        logger.info("Service configuration: BankTransfer MIN_AMOUNT=" + BankTransfer.MIN_AMOUNT + ", MAX_AMOUNT=" + BankTransfer.MAX_AMOUNT + ", INITIAL_BALANCE=" + BankTransfer.INITIAL_BALANCE);
+        logger.info("Service configuration: transport=" + ServiceConfiguration.getTransport() + ", RMI port=" + RMI_PORT + ", NIO port=" + ServiceConfiguration.getNioPort());
+        logger.info("Service configuration: BankTransfer MIN_AMOUNT=" + BankTransfer.MIN_AMOUNT + ", MAX_AMOUNT=" + BankTransfer.MAX_AMOUNT + ", INITIAL_BALANCE=" + BankTransfer.INITIAL_BALANCE + ", ACCOUNTS=" + BankTransfer.ACCOUNTS);
         logger.info("Service configuration: BankTransfer TIMEOUT_FREQUENCY=" + BankTransfer.TIMEOUT_FREQUENCY + ", TIMEOUT_UNIT=" + BankTransfer.TIMEOUT_UNIT);
+        logger.info("Service configuration: BankTransfer THREADS=" + BankTransfer.THREADS + ", MODE=" + BankTransfer.MODE + ", RATE=" + BankTransfer.RATE + ", DISTRIBUTION=" + BankTransfer.DISTRIBUTION + ", ZIPF_EXPONENT=" + BankTransfer.ZIPF_EXPONENT);
+        logger.info("Service configuration: snapshot period=" + ServiceConfiguration.getSnapshotPeriod() + " ms, max period=" + ServiceConfiguration.getSnapshotMaxPeriod() + " ms, max latency growth=" + ServiceConfiguration.getSnapshotMaxLatencyGrowth() + "%");
         if (BankTransfer.MIN_AMOUNT >= BankTransfer.MAX_AMOUNT || BankTransfer.MAX_AMOUNT >= BankTransfer.INITIAL_BALANCE) {
             logger.warn("Bank transfer properties must maintain formula [ MIN_AMOUNT < MAX_AMOUNT < INITIAL_BALANCE ] !");
             return;
         }
+        if (BankTransfer.ACCOUNTS < 1) {
+            logger.warn("Bank must have at least one account !");
+            return;
+        }
         logger.info("Type in: method name,node host,node id,existing node host,existing node id");
         logger.info("Example: create,localhost,10");
         logger.info("Example: join,localhost,15,localhost,10");
@@ -70,6 +93,12 @@ public final class ServerLauncher {
         logger.info("Example: join,localhost,30,localhost,25");
         logger.info("Example: view");
         logger.info("Example: cut");
+        logger.info("Example: export");
+        logger.info("Example: workload");
+        logger.info("Example: restore,10,1");
+        logger.info("Example: history,10,1");
+        logger.info("Example: history,60");
+        logger.info("Example: balance,15,10,1");
         StorageUtil.init();
         NetworkUtil.printMachineIPv4();
         logger.info("Bank is ready for request >");
@@ -91,17 +120,22 @@ public final class ServerLauncher {
             logger.warn("Node id must be positive integer [ nodeID > 0 ] !");
             return;
         }
-        startRMIRegistry();
         logger.info("NodeId=" + nodeId + " is the first bank in the graph");
-        node = register(nodeId, nodeHost);
+        StorageUtil.reset(nodeId);
+        node = register(nodeId, nodeHost, null);
         logger.info("NodeId=" + nodeId + " is connected as first node=" + node);
         nodeState = NodeState.CONNECTED;
+        nodeRemote.startGossip();
         startMoneyTransferring();
+        startSnapshotScheduling();
     }
 
     /**
      * Signals current node to join the graph:
-     * - accumulate the graph structure of all available banks from the existing node
+     * - bootstrap membership of all available banks from the existing node
+     * - recover balances of the node from its storage, if the node was restarted
+     * - announce itself to the existing node, which spreads it to other nodes by gossip
+     * - resend transfers the node had in transit before the restart
      * - start randomly sending/accepting money transfers
      * <p>
      * Existing node MUST be operational!
@@ -120,23 +154,30 @@ public final class ServerLauncher {
             logger.warn("Node id must be positive integer [ nodeID > 0 ] !");
             return;
         }
-        startRMIRegistry();
         logger.info("NodeId=" + nodeId + " connects to existing nodeId=" + existingNodeId);
-        Node existingNode = RemoteUtil.getRemoteNode(existingNodeId, existingNodeHost).getNode();
-        if (existingNode.getNodes().isEmpty()) {
+        NodeServer existingNode = RemoteUtil.getRemoteNode(existingNodeId, existingNodeHost);
+        Membership membership = existingNode.getMembership();
+        if (membership.isEmpty()) {
             logger.warn("Existing node must be operational!");
             return;
         }
-        if (existingNode.getNodes().containsKey(nodeId)) {
+        RecoveredState recovered = StorageUtil.recover(nodeId);
+        if (membership.contains(nodeId) && recovered == null) {
             logger.warn("Cannot join as nodeId=" + nodeId + " already taken!");
             return;
         }
-        node = register(nodeId, nodeHost);
-        node.putNodes(existingNode.getNodes());
-        announceJoin();
-        logger.info("NodeId=" + nodeId + " connected as node=" + node + " from existingNode=" + existingNode);
+        if (recovered != null) {
+            logger.info("NodeId=" + nodeId + " rejoins with recovered balance=" + recovered.getItem().getBalance() + ", pending transfers=" + recovered.getPendingTransfers().size());
+        }
+        node = register(nodeId, nodeHost, recovered);
+        node.mergeMembership(membership);
+        announceJoin(existingNode);
+        nodeRemote.resendTransfers();
+        logger.info("NodeId=" + nodeId + " connected as node=" + node + " from existingNodeId=" + existingNodeId);
         nodeState = NodeState.CONNECTED;
+        nodeRemote.startGossip();
         startMoneyTransferring();
+        startSnapshotScheduling();
     }
 
     /**
@@ -150,8 +191,9 @@ public final class ServerLauncher {
         logger.info("Viewing topology from node=" + node);
         node.getNodes().entrySet().forEach(n -> {
             try {
-                RemoteUtil.getRemoteNode(n.getKey(), n.getValue()).getNode();
+                logger.info("Viewing node=" + RemoteUtil.getRemoteNode(n.getKey(), n.getValue()).getDescriptor());
             } catch (RemoteException e) {
+                RemoteUtil.evictRemoteNode(n.getKey(), n.getValue());
                 throw new RuntimeException(e);
             }
         });
@@ -165,21 +207,131 @@ public final class ServerLauncher {
             logger.warn("Must be CONNECTED to initiate the distributed snapshot! Current nodeState=" + nodeState);
             return;
         }
-        logger.info("Starting distributed snapshot from node=" + node);
-        RemoteUtil.getRemoteNode(node).receiveMarker(node.getId());
+        Marker marker = node.nextMarker();
+        logger.info("Starting distributed snapshot=" + marker + " from node=" + node);
+        RemoteUtil.getRemoteNode(node).receiveMarker(node.getId(), marker);
+    }
+
+    /**
+     * Export snapshots of current node from the snapshot log into CSV file
+     */
+    public static void export() throws IOException {
+        if (nodeState != NodeState.CONNECTED) {
+            logger.warn("Must be CONNECTED to export snapshots! Current nodeState=" + nodeState);
+            return;
+        }
+        logger.info("Exported snapshots of nodeId=" + node.getId() + " into " + StorageUtil.exportCsv(node.getId()));
+    }
+
+    /**
+     * Roll balances back to the cut of the snapshot, loaded from restore points without replaying transfers,
+     * the initiator of the snapshot rolls back all known nodes, any other node only itself
+     *
+     * @param initiatorId of the snapshot, as the first column of exported CSV
+     * @param sequence    of the snapshot, as the second column of exported CSV
+     */
+    public static void restore(int initiatorId, int sequence) {
+        if (nodeState != NodeState.CONNECTED) {
+            logger.warn("Must be CONNECTED to restore the snapshot! Current nodeState=" + nodeState);
+            return;
+        }
+        Marker marker = new Marker(initiatorId, sequence);
+        if (initiatorId != node.getId()) {
+            logger.warn("Restoring snapshot=" + marker + " on nodeId=" + node.getId() + " only, money is conserved once all nodes restore it");
+        }
+        nodeRemote.restore(marker);
+    }
+
+    /**
+     * Look the snapshot up in snapshot logs of all known nodes in parallel and report its global state
+     *
+     * @param initiatorId of the snapshot
+     * @param sequence    of the snapshot
+     */
+    public static void history(int initiatorId, int sequence) {
+        if (nodeState != NodeState.CONNECTED) {
+            logger.warn("Must be CONNECTED to query snapshot history! Current nodeState=" + nodeState);
+            return;
+        }
+        Marker marker = new Marker(initiatorId, sequence);
+        long startTime = System.nanoTime();
+        GlobalSnapshot globalSnapshot = nodeRemote.querySnapshot(marker);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        if (globalSnapshot == null) {
+            logger.info("No node has snapshot=" + marker + ", queried in " + elapsed + " ms");
+            return;
+        }
+        logger.info("Found global snapshot=" + globalSnapshot + " of nodes=" + node.getNodes().size() + " in " + elapsed + " ms");
+    }
+
+    /**
+     * Report global states of snapshots written by all known nodes during the last seconds
+     *
+     * @param seconds to look back
+     */
+    public static void history(int seconds) {
+        if (nodeState != NodeState.CONNECTED) {
+            logger.warn("Must be CONNECTED to query snapshot history! Current nodeState=" + nodeState);
+            return;
+        }
+        long toTimestamp = System.currentTimeMillis();
+        long startTime = System.nanoTime();
+        List<GlobalSnapshot> globalSnapshots = nodeRemote.querySnapshots(toTimestamp - TimeUnit.SECONDS.toMillis(seconds), toTimestamp);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        globalSnapshots.forEach(globalSnapshot -> logger.info("Found global snapshot=" + globalSnapshot));
+        logger.info("Found snapshots=" + globalSnapshots.size() + " of the last " + seconds + " s on nodes=" + node.getNodes().size() + " in " + elapsed + " ms");
+    }
+
+    /**
+     * Report balance of the node in the snapshot from its snapshot log
+     *
+     * @param nodeId      of the node
+     * @param initiatorId of the snapshot
+     * @param sequence    of the snapshot
+     */
+    public static void balance(int nodeId, int initiatorId, int sequence) {
+        if (nodeState != NodeState.CONNECTED) {
+            logger.warn("Must be CONNECTED to query snapshot history! Current nodeState=" + nodeState);
+            return;
+        }
+        Marker marker = new Marker(initiatorId, sequence);
+        GlobalSnapshot snapshot = nodeRemote.querySnapshot(nodeId, marker);
+        if (snapshot == null) {
+            logger.info("NodeId=" + nodeId + " has no snapshot=" + marker);
+            return;
+        }
+        logger.info("Balance of nodeId=" + nodeId + " in snapshot=" + marker + " is " + snapshot.getBalance() + ", money in transfer=" + snapshot.getMoneyInTransfer());
+    }
+
+    /**
+     * Report achieved rate of money transfers of current node compared to the requested one
+     */
+    public static void workload() {
+        if (nodeState != NodeState.CONNECTED || workloadGenerator == null) {
+            logger.warn("Must be CONNECTED to report workload! Current nodeState=" + nodeState);
+            return;
+        }
+        logger.info("Workload of nodeId=" + node.getId() + ": " + workloadGenerator.getReport());
     }
 
     /**
-     * Registers RMI for new node, initializes node object
+     * Binds new node to the transport, initializes node object and publishes its metrics over JMX
      *
-     * @param id   of the new node
-     * @param host of the new node
+     * @param id        of the new node
+     * @param host      of the new node
+     * @param recovered state of the node recovered from storage, null for the new bank
      */
     @NotNull
-    private static Node register(int id, @NotNull String host) throws Exception {
-        System.setProperty("java.rmi.server.hostname", host);
-        Node node = new Node(id, host);
-        Naming.bind("rmi://" + node.getHost() + "/NodeRemote" + node.getId(), new NodeRemote(node));
+    private static Node register(int id, @NotNull String host, @Nullable RecoveredState recovered) throws Exception {
+        Node node = recovered != null ? new Node(id, host, recovered.getItem()) : new Node(id, host);
+        node.skipSnapshotSequence(StorageUtil.getLastSequence(id));
+        StorageUtil.attachTransferLog(node);
+        nodeRemote = new NodeRemote(node);
+        if (recovered != null) {
+            nodeRemote.recover(recovered);
+        }
+        RemoteUtil.bind(node, nodeRemote);
+        nodeRemote.getMetrics().register(id);
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
                 logger.info("Auto-leaving process initiated...");
@@ -200,61 +352,49 @@ public final class ServerLauncher {
      */
     private static void leave() throws Exception {
         logger.info("NodeId=" + node.getId() + " is disconnecting from the graph...");
-        Naming.unbind("rmi://" + node.getHost() + "/NodeRemote" + node.getId());
-        StorageUtil.removeFile(node.getId());
+        if (snapshotScheduler != null) {
+            snapshotScheduler.close();
+            snapshotScheduler = null;
+        }
+        if (workloadGenerator != null) {
+            workloadGenerator.close();
+            workloadGenerator = null;
+        }
+        nodeRemote.close();
+        RemoteUtil.unbind(node);
+        nodeRemote.getMetrics().unregister();
+        StorageUtil.close(node.getId());
         logger.info("NodeId=" + node.getId() + " disconnected");
         node = null;
+        nodeRemote = null;
         nodeState = NodeState.DISCONNECTED;
     }
 
     /**
-     * Announce JOIN operation to the nodes in the graph
+     * Announce JOIN operation to the existing node, other nodes learn about it by gossip
+     *
+     * @param existingNode the node has bootstrapped from
      */
-    private static void announceJoin() throws RemoteException {
-        logger.debug("Announcing join to nodes=" + Arrays.toString(node.getNodes().entrySet().toArray()));
-        node.getNodes().entrySet().parallelStream().filter(n -> n.getKey() != node.getId()).forEach(n -> {
-            try {
-                RemoteUtil.getRemoteNode(n.getKey(), n.getValue()).addNode(node.getId(), node.getHost());
-                logger.trace("Announced join to nodeId=" + n.getKey());
-            } catch (RemoteException e) {
-                throw new RuntimeException(e);
-            }
-        });
-    }
-
-    private static void startMoneyTransferring() {
-        executor.scheduleAtFixedRate((Runnable) () -> {
-            try {
-                if (node != null && node.getNodes().size() > 1) {
-                    Node randomNode = getRandomNode();
-                    int randomAmount = new Random().nextInt(BankTransfer.MAX_AMOUNT + 1) + BankTransfer.MIN_AMOUNT;
-                    RemoteUtil.getRemoteNode(node).transferMoney(randomNode.getId(), randomAmount);
-                }
-            } catch (RemoteException e) {
-                logger.error("Failed to transfer to random node!", e);
-            }
-        }, 0, BankTransfer.TIMEOUT_FREQUENCY, TimeUnit.valueOf(BankTransfer.TIMEOUT_UNIT));
+    private static void announceJoin(@NotNull NodeServer existingNode) throws RemoteException {
+        logger.debug("Announcing join to existing node of nodes=" + node.getNodes().size());
+        node.mergeMembership(existingNode.gossip(node.getId(), node.getMembership().get(node.getId()), node.getMembership().getDigest()));
     }
 
     /**
-     * Gets node given nodeId
-     *
-     * @return currentNode if nodeId is the same, remote node otherwise
+     * Starts money transfers of the node at the requested rate, derived from TIMEOUT_FREQUENCY if not configured
      */
-    private static Node getRandomNode() {
-        int index = new Random().nextInt(node.getNodes().size() - 1);
-        int nodeId = node.getNodes().keySet().parallelStream().filter(n -> n != node.getId()).collect(Collectors.toList()).get(index);
-        return new Node(nodeId, node.getNodes().get(nodeId));
+    private static void startMoneyTransferring() {
+        double rate = BankTransfer.RATE > 0 ? BankTransfer.RATE
+                : BankTransfer.THREADS * TimeUnit.SECONDS.toNanos(1) / (double) TimeUnit.valueOf(BankTransfer.TIMEOUT_UNIT).toNanos(BankTransfer.TIMEOUT_FREQUENCY);
+        workloadGenerator = new WorkloadGenerator(node, nodeRemote, BankTransfer.THREADS, rate, WorkloadGenerator.Mode.valueOf(BankTransfer.MODE),
+                WorkloadGenerator.Distribution.valueOf(BankTransfer.DISTRIBUTION), BankTransfer.ZIPF_EXPONENT, ThreadMode.valueOf(ServiceConfiguration.getThreadMode()));
+        workloadGenerator.start();
     }
 
-    /**
-     * Starts RMI registry on default port if not started already
-     */
-    private static void startRMIRegistry() {
-        try {
-            LocateRegistry.createRegistry(RMI_PORT);
-        } catch (RemoteException e) {
-            // already started
+    private static void startSnapshotScheduling() {
+        if (ServiceConfiguration.getSnapshotPeriod() > 0) {
+            snapshotScheduler = new SnapshotScheduler(nodeRemote, ServiceConfiguration.getSnapshotPeriod(), ServiceConfiguration.getSnapshotMaxPeriod(), ServiceConfiguration.getSnapshotMaxLatencyGrowth());
+            snapshotScheduler.start();
         }
     }
 }
@@ -16,8 +16,62 @@ public abstract class ServiceConfiguration {
 
     public static final String CONFIGURATION_FILE = "service.properties";
 
+    private static String transport;
+
     private static int rmiPort;
 
+    private static int rmiStubCacheSize;
+
+    private static int rmiCallTimeout;
+
+    private static int nioPort;
+
+    private static int nioHandlerThreads;
+
+    private static int markerDispatchThreads;
+
+    private static String threadMode;
+
+    private static int storageSegmentSize;
+
+    private static int storageForceInterval;
+
+    private static int storageFullInterval;
+
+    private static int storageArchiveRecords;
+
+    private static int storageArchiveInterval;
+
+    private static boolean storageTransferLog;
+
+    private static boolean storageTransferLogForce;
+
+    private static int storageTransferLogSegmentSize;
+
+    private static int storageTransferLogCheckpointInterval;
+
+    private static int storageRestorePoints;
+
+    private static boolean snapshotRecordTransfers;
+
+    private static int overlayDegree;
+
+    private static int gossipInterval;
+
+    private static int gossipFanout;
+
+    private static int gossipRumorRounds;
+
+    private static int snapshotPeriod;
+
+    private static int snapshotMaxPeriod;
+
+    private static int snapshotMaxLatencyGrowth;
+
+    private static int snapshotTimeout;
+
+    private static int bankAccounts;
+
     private static int bankInitialAmount;
 
     private static int bankTransferMinAmount;
@@ -28,25 +82,190 @@ public abstract class ServiceConfiguration {
 
     private static String bankTransferTimeoutUnit;
 
+    private static int bankTransferThreads;
+
+    private static String bankTransferMode;
+
+    private static int bankTransferRate;
+
+    private static String bankTransferDistribution;
+
+    private static double bankTransferZipfExponent;
+
+    private static int bankTransferBatchSize;
+
+    private static int bankTransferBatchWindow;
+
+    private static int bankTransferSendAttempts;
+
+    private static boolean bankTransferAsync;
+
+    private static int bankTransferDispatchThreads;
+
     static {
         try {
             Properties properties = new Properties();
             properties.load(new FileInputStream(CONFIGURATION_FILE));
+            transport = properties.getProperty("transport");
             rmiPort = Integer.parseInt(properties.getProperty("rmi-port"));
+            rmiStubCacheSize = Integer.parseInt(properties.getProperty("rmi-stub-cache-size"));
+            rmiCallTimeout = Integer.parseInt(properties.getProperty("rmi-call-timeout"));
+            nioPort = Integer.parseInt(properties.getProperty("nio-port"));
+            nioHandlerThreads = Integer.parseInt(properties.getProperty("nio-handler-threads"));
+            markerDispatchThreads = Integer.parseInt(properties.getProperty("marker-dispatch-threads"));
+            threadMode = properties.getProperty("thread-mode");
+            storageSegmentSize = Integer.parseInt(properties.getProperty("storage-segment-size"));
+            storageForceInterval = Integer.parseInt(properties.getProperty("storage-force-interval"));
+            storageFullInterval = Integer.parseInt(properties.getProperty("storage-full-interval"));
+            storageArchiveRecords = Integer.parseInt(properties.getProperty("storage-archive-records"));
+            storageArchiveInterval = Integer.parseInt(properties.getProperty("storage-archive-interval"));
+            storageTransferLog = Boolean.parseBoolean(properties.getProperty("storage-transfer-log"));
+            storageTransferLogForce = Boolean.parseBoolean(properties.getProperty("storage-transfer-log-force"));
+            storageTransferLogSegmentSize = Integer.parseInt(properties.getProperty("storage-transfer-log-segment-size"));
+            storageTransferLogCheckpointInterval = Integer.parseInt(properties.getProperty("storage-transfer-log-checkpoint-interval"));
+            storageRestorePoints = Integer.parseInt(properties.getProperty("storage-restore-points"));
+            snapshotRecordTransfers = Boolean.parseBoolean(properties.getProperty("snapshot-record-transfers"));
+            overlayDegree = Integer.parseInt(properties.getProperty("overlay-degree"));
+            gossipInterval = Integer.parseInt(properties.getProperty("gossip-interval"));
+            gossipFanout = Integer.parseInt(properties.getProperty("gossip-fanout"));
+            gossipRumorRounds = Integer.parseInt(properties.getProperty("gossip-rumor-rounds"));
+            snapshotPeriod = Integer.parseInt(properties.getProperty("snapshot-period"));
+            snapshotMaxPeriod = Integer.parseInt(properties.getProperty("snapshot-max-period"));
+            snapshotMaxLatencyGrowth = Integer.parseInt(properties.getProperty("snapshot-max-latency-growth"));
+            snapshotTimeout = Integer.parseInt(properties.getProperty("snapshot-timeout"));
+            bankAccounts = Integer.parseInt(properties.getProperty("bank-accounts"));
             bankInitialAmount = Integer.parseInt(properties.getProperty("bank-initial-amount"));
             bankTransferMinAmount = Integer.parseInt(properties.getProperty("bank-transfer-min-amount"));
             bankTransferMaxAmount = Integer.parseInt(properties.getProperty("bank-transfer-max-amount"));
             bankTransferTimeoutFrequency = Integer.parseInt(properties.getProperty("bank-transfer-timeout-frequency"));
             bankTransferTimeoutUnit = properties.getProperty("bank-transfer-timeout-unit");
+            bankTransferThreads = Integer.parseInt(properties.getProperty("bank-transfer-threads"));
+            bankTransferMode = properties.getProperty("bank-transfer-mode");
+            bankTransferRate = Integer.parseInt(properties.getProperty("bank-transfer-rate"));
+            bankTransferDistribution = properties.getProperty("bank-transfer-distribution");
+            bankTransferZipfExponent = Double.parseDouble(properties.getProperty("bank-transfer-zipf-exponent"));
+            bankTransferBatchSize = Integer.parseInt(properties.getProperty("bank-transfer-batch-size"));
+            bankTransferBatchWindow = Integer.parseInt(properties.getProperty("bank-transfer-batch-window"));
+            bankTransferSendAttempts = Integer.parseInt(properties.getProperty("bank-transfer-send-attempts"));
+            bankTransferAsync = Boolean.parseBoolean(properties.getProperty("bank-transfer-async"));
+            bankTransferDispatchThreads = Integer.parseInt(properties.getProperty("bank-transfer-dispatch-threads"));
         } catch (IOException e) {
             logger.error("Failed to load service configuration!", e);
         }
     }
 
+    public static String getTransport() {
+        return transport;
+    }
+
     public static int getRmiPort() {
         return rmiPort;
     }
 
+    public static int getRmiStubCacheSize() {
+        return rmiStubCacheSize;
+    }
+
+    public static int getRmiCallTimeout() {
+        return rmiCallTimeout;
+    }
+
+    public static int getNioPort() {
+        return nioPort;
+    }
+
+    public static int getNioHandlerThreads() {
+        return nioHandlerThreads;
+    }
+
+    public static int getMarkerDispatchThreads() {
+        return markerDispatchThreads;
+    }
+
+    public static String getThreadMode() {
+        return threadMode;
+    }
+
+    public static int getStorageSegmentSize() {
+        return storageSegmentSize;
+    }
+
+    public static int getStorageForceInterval() {
+        return storageForceInterval;
+    }
+
+    public static int getStorageFullInterval() {
+        return storageFullInterval;
+    }
+
+    public static int getStorageArchiveRecords() {
+        return storageArchiveRecords;
+    }
+
+    public static int getStorageArchiveInterval() {
+        return storageArchiveInterval;
+    }
+
+    public static boolean isStorageTransferLog() {
+        return storageTransferLog;
+    }
+
+    public static boolean isStorageTransferLogForce() {
+        return storageTransferLogForce;
+    }
+
+    public static int getStorageTransferLogSegmentSize() {
+        return storageTransferLogSegmentSize;
+    }
+
+    public static int getStorageTransferLogCheckpointInterval() {
+        return storageTransferLogCheckpointInterval;
+    }
+
+    public static int getStorageRestorePoints() {
+        return storageRestorePoints;
+    }
+
+    public static boolean isSnapshotRecordTransfers() {
+        return snapshotRecordTransfers;
+    }
+
+    public static int getOverlayDegree() {
+        return overlayDegree;
+    }
+
+    public static int getGossipInterval() {
+        return gossipInterval;
+    }
+
+    public static int getGossipFanout() {
+        return gossipFanout;
+    }
+
+    public static int getGossipRumorRounds() {
+        return gossipRumorRounds;
+    }
+
+    public static int getSnapshotPeriod() {
+        return snapshotPeriod;
+    }
+
+    public static int getSnapshotMaxPeriod() {
+        return snapshotMaxPeriod;
+    }
+
+    public static int getSnapshotMaxLatencyGrowth() {
+        return snapshotMaxLatencyGrowth;
+    }
+
+    public static int getSnapshotTimeout() {
+        return snapshotTimeout;
+    }
+
+    public static int getBankAccounts() {
+        return bankAccounts;
+    }
+
     public static int getBankInitialAmount() {
         return bankInitialAmount;
     }
@@ -66,4 +285,44 @@ public abstract class ServiceConfiguration {
     public static String getBankTransferTimeoutUnit() {
         return bankTransferTimeoutUnit;
     }
+
+    public static int getBankTransferThreads() {
+        return bankTransferThreads;
+    }
+
+    public static String getBankTransferMode() {
+        return bankTransferMode;
+    }
+
+    public static int getBankTransferRate() {
+        return bankTransferRate;
+    }
+
+    public static String getBankTransferDistribution() {
+        return bankTransferDistribution;
+    }
+
+    public static double getBankTransferZipfExponent() {
+        return bankTransferZipfExponent;
+    }
+
+    public static int getBankTransferBatchSize() {
+        return bankTransferBatchSize;
+    }
+
+    public static int getBankTransferBatchWindow() {
+        return bankTransferBatchWindow;
+    }
+
+    public static int getBankTransferSendAttempts() {
+        return bankTransferSendAttempts;
+    }
+
+    public static boolean isBankTransferAsync() {
+        return bankTransferAsync;
+    }
+
+    public static int getBankTransferDispatchThreads() {
+        return bankTransferDispatchThreads;
+    }
 }
@@ -0,0 +1,268 @@
+package nl.tue.ds;
+
+import nl.tue.ds.entity.GlobalSnapshot;
+import nl.tue.ds.entity.Marker;
+import nl.tue.ds.entity.Node;
+import nl.tue.ds.entity.NodeDescriptor;
+import nl.tue.ds.entity.Snapshot;
+import nl.tue.ds.rmi.NodeExecutors;
+import nl.tue.ds.metrics.NodeMetrics;
+import nl.tue.ds.rmi.NodeRemote;
+import nl.tue.ds.rmi.NodeServer;
+import nl.tue.ds.rmi.SnapshotListener;
+import nl.tue.ds.transport.InMemoryTransport;
+import nl.tue.ds.util.RemoteUtil;
+import nl.tue.ds.util.StorageUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulates the graph of N nodes (banks) in a single JVM over in-memory transport
+ * <p>
+ * Nodes join one after another through random existing node and learn about each other by gossip
+ * <p>
+ * Nodes keep transferring money to their neighbours in the overlay, while distributed snapshots are initiated one after another by random nodes,
+ * for each snapshot marker propagation time (until the last node recorded its local state),
+ * completion time (until the last node received all markers) and money conservation are reported
+ *
+ * @see InMemoryTransport
+ */
+public final class SimulationLauncher {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final String HOST = "simulation";
+
+    /**
+     * Maximal time to wait for the snapshot completion
+     */
+    private static final long SNAPSHOT_TIMEOUT_SECONDS = 300;
+
+    /**
+     * Maximal time to wait for all nodes to learn about each other
+     */
+    private static final long MEMBERSHIP_TIMEOUT_SECONDS = 300;
+
+    private static final long MEMBERSHIP_POLL_MILLIS = 10;
+
+    /**
+     * Description: number of nodes,number of snapshots,latency in microseconds,jitter in microseconds,overlay degree
+     * Example: 1000 5 100 50 8
+     */
+    public static void main(String[] args) throws Exception {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int snapshotCount = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        long latencyMicros = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        long jitterMicros = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        int overlayDegree = args.length > 4 ? Integer.parseInt(args[4]) : ServiceConfiguration.getOverlayDegree();
+        logger.info("Simulating nodes=" + nodeCount + ", snapshots=" + snapshotCount + ", latency=" + latencyMicros + " us, jitter=" + jitterMicros + " us, overlay degree=" + overlayDegree);
+        if (nodeCount < 2) {
+            logger.warn("Simulation requires at least two nodes!");
+            return;
+        }
+        StorageUtil.init();
+        RemoteUtil.setTransport(new InMemoryTransport(latencyMicros, jitterMicros));
+        NodeExecutors executors = NodeExecutors.create(Runtime.getRuntime().availableProcessors() * 4, Runtime.getRuntime().availableProcessors() * 4, Integer.MAX_VALUE);
+        SnapshotProgress progress = new SnapshotProgress(nodeCount);
+        NodeRemote[] nodeRemotes = new NodeRemote[nodeCount];
+        long joinStartTime = System.nanoTime();
+        for (int i = 0; i < nodeCount; i++) {
+            Node node = new Node(i + 1, HOST, overlayDegree);
+            nodeRemotes[i] = new NodeRemote(node, executors, new NodeMetrics(false));
+            nodeRemotes[i].addSnapshotListener(progress);
+            RemoteUtil.bind(node, nodeRemotes[i]);
+            if (i > 0) {
+                join(node, nodeRemotes[ThreadLocalRandom.current().nextInt(i)].getDescriptor());
+            }
+            nodeRemotes[i].startGossip();
+        }
+        awaitMembership(nodeRemotes, joinStartTime);
+        int[][] neighbourIds = new int[nodeCount][];
+        long markerCount = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            neighbourIds[i] = nodeRemotes[i].getNode().getNeighbourIds();
+            markerCount += neighbourIds[i].length;
+        }
+        logger.info("Overlay has markers (directed edges) per snapshot=" + markerCount);
+        ScheduledExecutorService workload = Executors.newSingleThreadScheduledExecutor();
+        workload.scheduleAtFixedRate(() -> transferMoney(nodeRemotes, neighbourIds), 0, BankTransfer.TIMEOUT_FREQUENCY, TimeUnit.valueOf(BankTransfer.TIMEOUT_UNIT));
+        try {
+            for (int i = 0; i < snapshotCount; i++) {
+                NodeRemote initiator = nodeRemotes[ThreadLocalRandom.current().nextInt(nodeCount)];
+                Node node = initiator.getNode();
+                Marker marker = node.nextMarker();
+                CountDownLatch completion = progress.start(marker);
+                initiator.receiveMarker(node.getId(), marker);
+                if (!completion.await(SNAPSHOT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    logger.warn("Snapshot=" + marker + " did not complete in " + SNAPSHOT_TIMEOUT_SECONDS + " s");
+                }
+                progress.report(marker);
+            }
+        } finally {
+            workload.shutdownNow();
+            for (NodeRemote nodeRemote : nodeRemotes) {
+                nodeRemote.close();
+            }
+            executors.shutdown();
+            for (NodeRemote nodeRemote : nodeRemotes) {
+                RemoteUtil.unbind(nodeRemote.getNode());
+                StorageUtil.removeFile(nodeRemote.getNode().getId());
+            }
+        }
+    }
+
+    /**
+     * Bootstraps membership of the node from the existing node and announces the node to it, the same way as
+     * ServerLauncher.join, other nodes learn about the node by gossip
+     */
+    private static void join(@NotNull Node node, @NotNull NodeDescriptor existingNode) throws RemoteException {
+        NodeServer existingNodeRemote = RemoteUtil.getRemoteNode(existingNode);
+        node.mergeMembership(existingNodeRemote.getMembership());
+        node.mergeMembership(existingNodeRemote.gossip(node.getId(), node.getMembership().get(node.getId()), node.getMembership().getDigest()));
+    }
+
+    /**
+     * Waits until every node knows all nodes
+     */
+    private static void awaitMembership(@NotNull NodeRemote[] nodeRemotes, long startTime) throws Exception {
+        long deadline = startTime + TimeUnit.SECONDS.toNanos(MEMBERSHIP_TIMEOUT_SECONDS);
+        for (NodeRemote nodeRemote : nodeRemotes) {
+            while (nodeRemote.getNode().getNodes().size() < nodeRemotes.length) {
+                if (System.nanoTime() > deadline) {
+                    logger.warn("Membership did not converge in " + MEMBERSHIP_TIMEOUT_SECONDS + " s");
+                    return;
+                }
+                Thread.sleep(MEMBERSHIP_POLL_MILLIS);
+            }
+        }
+        logger.info("Membership of nodes=" + nodeRemotes.length + " converged by gossip in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms");
+    }
+
+    /**
+     * Makes one transfer from random account of every node to random account of its random neighbour
+     */
+    private static void transferMoney(@NotNull NodeRemote[] nodeRemotes, @NotNull int[][] neighbourIds) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < nodeRemotes.length; i++) {
+            int recipientNodeId = neighbourIds[i][random.nextInt(neighbourIds[i].length)];
+            try {
+                nodeRemotes[i].transferMoney(random.nextInt(BankTransfer.ACCOUNTS), recipientNodeId, random.nextInt(BankTransfer.ACCOUNTS), random.nextInt(BankTransfer.MIN_AMOUNT, BankTransfer.MAX_AMOUNT + 1));
+            } catch (Exception e) {
+                logger.error("Failed to transfer from nodeId=" + (i + 1), e);
+            }
+        }
+    }
+
+    /**
+     * Collects timings and recorded states of the snapshots from all nodes
+     */
+    private static final class SnapshotProgress implements SnapshotListener {
+
+        private final int nodeCount;
+
+        @NotNull
+        private final Map<Marker, Progress> progresses = new ConcurrentHashMap<>();
+
+        private SnapshotProgress(int nodeCount) {
+            this.nodeCount = nodeCount;
+        }
+
+        @NotNull
+        private CountDownLatch start(@NotNull Marker marker) {
+            Progress progress = new Progress(nodeCount);
+            progresses.put(marker, progress);
+            return progress.completion;
+        }
+
+        private void report(@NotNull Marker marker) {
+            Progress progress = progresses.remove(marker);
+            GlobalSnapshot globalSnapshot = progress.globalSnapshot;
+            logger.info("Snapshot=" + marker + " nodes=" + nodeCount
+                    + ", marker propagation=" + toMillis(progress.lastStartNanos.get() - progress.startNanos) + " ms"
+                    + ", completion=" + toMillis(progress.lastCompletionNanos.get() - progress.startNanos) + " ms"
+                    + ", collection=" + toMillis(progress.collectionNanos - progress.startNanos) + " ms"
+                    + ", balance=" + progress.totalBalance.get() + ", moneyInTransfer=" + progress.totalMoneyInTransfer.get()
+                    + ", collected=" + globalSnapshot
+                    + ", conserved=" + (globalSnapshot != null && globalSnapshot.getNodeCount() == nodeCount && globalSnapshot.isConserved()
+                    && globalSnapshot.getBalance() == progress.totalBalance.get() && globalSnapshot.getMoneyInTransfer() == progress.totalMoneyInTransfer.get()));
+        }
+
+        @Override
+        public void snapshotStarted(@NotNull Node node, @NotNull Snapshot snapshot) {
+            Progress progress = progresses.get(snapshot.getMarker());
+            if (progress != null) {
+                progress.lastStartNanos.accumulateAndGet(System.nanoTime(), Math::max);
+            }
+        }
+
+        @Override
+        public void snapshotCompleted(@NotNull Node node, @NotNull Snapshot snapshot) {
+            Progress progress = progresses.get(snapshot.getMarker());
+            if (progress != null) {
+                progress.lastCompletionNanos.accumulateAndGet(System.nanoTime(), Math::max);
+                progress.totalBalance.addAndGet(snapshot.getLocalBalance());
+                progress.totalMoneyInTransfer.addAndGet(snapshot.getMoneyInTransfer());
+                progress.completion.countDown();
+            }
+        }
+
+        @Override
+        public void globalSnapshotCollected(@NotNull Node node, @NotNull GlobalSnapshot globalSnapshot) {
+            Progress progress = progresses.get(globalSnapshot.getMarker());
+            if (progress != null) {
+                progress.collectionNanos = System.nanoTime();
+                progress.globalSnapshot = globalSnapshot;
+                progress.completion.countDown();
+            }
+        }
+
+        private static double toMillis(long nanos) {
+            return nanos / 1_000_000.0;
+        }
+    }
+
+    /**
+     * Progress of one snapshot
+     */
+    private static final class Progress {
+
+        private final long startNanos = System.nanoTime();
+
+        @NotNull
+        private final AtomicLong lastStartNanos = new AtomicLong(startNanos);
+
+        @NotNull
+        private final AtomicLong lastCompletionNanos = new AtomicLong(startNanos);
+
+        @NotNull
+        private final AtomicLong totalBalance = new AtomicLong();
+
+        @NotNull
+        private final AtomicLong totalMoneyInTransfer = new AtomicLong();
+
+        private volatile long collectionNanos = startNanos;
+
+        /**
+         * Collected by the initiator along the spanning tree
+         */
+        @Nullable
+        private volatile GlobalSnapshot globalSnapshot;
+
+        /**
+         * Counts down completion of the snapshot on every node and collection of the global snapshot by the initiator
+         */
+        @NotNull
+        private final CountDownLatch completion;
+
+        private Progress(int nodeCount) {
+            completion = new CountDownLatch(nodeCount + 1);
+        }
+    }
+}
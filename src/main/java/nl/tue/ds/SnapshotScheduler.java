@@ -0,0 +1,187 @@
+package nl.tue.ds;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import nl.tue.ds.entity.GlobalSnapshot;
+import nl.tue.ds.entity.Marker;
+import nl.tue.ds.entity.Node;
+import nl.tue.ds.entity.Snapshot;
+import nl.tue.ds.rmi.NodeRemote;
+import nl.tue.ds.rmi.SnapshotListener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically initiates distributed snapshots from the node, if it has the lowest id of all live nodes,
+ * so every node runs the scheduler, but only one of them initiates snapshots and the next one takes over once it fails
+ * <p>
+ * Interval starts at the configured period and is doubled (up to the maximal period) whenever the previous snapshot
+ * is not collected yet, was given up after the maximal period or its completion latency grew by more than allowed
+ * compared to the moving average of latency, otherwise it is halved back towards the period. Latency grows with load of all nodes the snapshot goes over
+ * (queued markers, transfers in transit to record), unlike transfer rate of the node, which is fixed in open loop
+ * <p>
+ * Runs on its own thread, so money transfers of the node are never delayed by the scheduler. Collected snapshots
+ * are reported on threads of the node, so state shared with them is either volatile or guarded by the scheduler itself
+ *
+ * @see ServerLauncher
+ */
+final class SnapshotScheduler implements SnapshotListener {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * Weight of the last snapshot in the moving average of completion latency
+     */
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    @NotNull
+    private final NodeRemote nodeRemote;
+
+    private final long period;
+
+    private final long maxPeriod;
+
+    /**
+     * Allowed growth of completion latency as fraction of its moving average
+     */
+    private final double maxLatencyGrowth;
+
+    @NotNull
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("snapshot-scheduler-%d").setDaemon(true).build());
+
+    /**
+     * Snapshot initiated by the scheduler and not collected yet, set by the scheduler thread and cleared by either
+     * the scheduler thread or the thread collecting the snapshot
+     */
+    @Nullable
+    private volatile Marker pendingMarker;
+
+    /**
+     * Written by the scheduler thread before pendingMarker, so it is visible along with the marker
+     */
+    private volatile long pendingStartNanos;
+
+    /**
+     * Confined to the scheduler thread, start() sets up the first tick before it runs
+     */
+    private long interval;
+
+    /**
+     * Moving average of completion latency of scheduled snapshots in nanoseconds, NaN until the first one is collected,
+     * guarded by the scheduler
+     */
+    private double averageLatency = Double.NaN;
+
+    /**
+     * Whether latency of the last collected snapshot grew by more than allowed, reset by the next tick, guarded by the scheduler
+     */
+    private boolean isLatencyGrown;
+
+    private volatile boolean isClosed;
+
+    SnapshotScheduler(@NotNull NodeRemote nodeRemote, long period, long maxPeriod, int maxLatencyGrowthPercent) {
+        this.nodeRemote = nodeRemote;
+        this.period = period;
+        this.maxPeriod = Math.max(maxPeriod, period);
+        maxLatencyGrowth = maxLatencyGrowthPercent / 100.0;
+        interval = period;
+    }
+
+    void start() {
+        nodeRemote.addSnapshotListener(this);
+        scheduler.schedule(this::tick, interval, TimeUnit.MILLISECONDS);
+        logger.info("Scheduled snapshots every " + period + " ms, up to " + maxPeriod + " ms");
+    }
+
+    void close() {
+        isClosed = true;
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public void snapshotStarted(@NotNull Node node, @NotNull Snapshot snapshot) {
+    }
+
+    @Override
+    public void snapshotCompleted(@NotNull Node node, @NotNull Snapshot snapshot) {
+    }
+
+    @Override
+    public void globalSnapshotCollected(@NotNull Node node, @NotNull GlobalSnapshot globalSnapshot) {
+        if (globalSnapshot.getMarker().equals(pendingMarker)) {
+            long latency = System.nanoTime() - pendingStartNanos;
+            logger.debug("Scheduled snapshot=" + globalSnapshot.getMarker() + " collected in " + TimeUnit.NANOSECONDS.toMillis(latency) + " ms");
+            updateLatency(latency);
+            pendingMarker = null;
+        }
+    }
+
+    private void tick() {
+        try {
+            long now = System.nanoTime();
+            boolean isGivenUp = false;
+            if (pendingMarker != null && TimeUnit.NANOSECONDS.toMillis(now - pendingStartNanos) > maxPeriod) {
+                logger.warn("Scheduled snapshot=" + pendingMarker + " is not collected in " + maxPeriod + " ms, giving up on it");
+                pendingMarker = null;
+                isGivenUp = true;
+            }
+            // given up snapshot counts as grown latency, so the interval doubles before the next snapshot starts
+            boolean isLatencyGrown = takeLatencyGrown() || isGivenUp;
+            if (pendingMarker != null || isLatencyGrown) {
+                interval = Math.min(interval * 2, maxPeriod);
+                logger.debug("Backing off snapshots to interval=" + interval + " ms, isPending=" + (pendingMarker != null) + ", isLatencyGrown=" + isLatencyGrown);
+            } else {
+                interval = Math.max(interval / 2, period);
+            }
+            Node node = nodeRemote.getNode();
+            if (!isGivenUp && pendingMarker == null && isInitiator(node)) {
+                Marker marker = node.nextMarker();
+                pendingStartNanos = now;
+                pendingMarker = marker;
+                logger.info("Starting scheduled distributed snapshot=" + marker + ", next in " + interval + " ms");
+                nodeRemote.receiveMarker(node.getId(), marker);
+            }
+        } catch (Exception e) {
+            logger.error("Failed to start scheduled snapshot", e);
+        } finally {
+            if (!isClosed) {
+                scheduler.schedule(this::tick, interval, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * @return whether the node has the lowest id of all live nodes it knows of
+     */
+    private static boolean isInitiator(@NotNull Node node) {
+        return node.getNodes().isEmpty() || node.getId() <= Collections.min(node.getNodes().keySet());
+    }
+
+    /**
+     * Updates moving average of completion latency with the collected snapshot
+     *
+     * @param latency of the snapshot in nanoseconds
+     */
+    private synchronized void updateLatency(long latency) {
+        if (averageLatency > 0 && latency > averageLatency * (1 + maxLatencyGrowth)) {
+            isLatencyGrown = true;
+        }
+        averageLatency = Double.isNaN(averageLatency) ? latency : averageLatency * (1 - LATENCY_SMOOTHING) + latency * LATENCY_SMOOTHING;
+    }
+
+    /**
+     * @return whether latency grew since the previous call
+     */
+    private synchronized boolean takeLatencyGrown() {
+        boolean isLatencyGrown = this.isLatencyGrown;
+        this.isLatencyGrown = false;
+        return isLatencyGrown;
+    }
+}
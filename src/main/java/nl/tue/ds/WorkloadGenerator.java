@@ -0,0 +1,248 @@
+package nl.tue.ds;
+
+import nl.tue.ds.entity.Node;
+import nl.tue.ds.rmi.NodeExecutors;
+import nl.tue.ds.rmi.NodeRemote;
+import nl.tue.ds.rmi.ThreadMode;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates money transfers of the node to its neighbours by a number of threads
+ * <p>
+ * OPEN_LOOP: every thread sends transfers at its share of the requested rate by a fixed schedule,
+ * which does not wait for slow transfers, so a thread behind the schedule sends the missed transfers immediately
+ * <p>
+ * CLOSED_LOOP: every thread sends the next transfer as soon as the previous one returns, measuring maximal throughput
+ * <p>
+ * Transfers go from a random account of the node to a random account of the recipient
+ * <p>
+ * Recipients are drawn uniformly or by Zipf distribution over ranks of neighbours (lowest id is the most popular)
+ * from arrays precomputed on every change of the overlay, transfers are made on the local node directly
+ * <p>
+ * In VIRTUAL thread mode every thread is virtual, so thousands of threads blocked by synchronous transfers are cheap
+ *
+ * @see ServerLauncher
+ */
+final class WorkloadGenerator {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * Pause of threads while the node has no neighbours
+     */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    enum Mode {
+        OPEN_LOOP,
+        CLOSED_LOOP
+    }
+
+    enum Distribution {
+        UNIFORM,
+        ZIPF
+    }
+
+    @NotNull
+    private final NodeRemote nodeRemote;
+
+    @NotNull
+    private final Node node;
+
+    private final int threadCount;
+
+    /**
+     * Requested transfers per second of all threads, ignored by CLOSED_LOOP
+     */
+    private final double rate;
+
+    @NotNull
+    private final Mode mode;
+
+    @NotNull
+    private final Distribution distribution;
+
+    @NotNull
+    private final ThreadMode threadMode;
+
+    private final double zipfExponent;
+
+    @NotNull
+    private final ExecutorService threads;
+
+    @NotNull
+    private final LongAdder transferCount = new LongAdder();
+
+    @NotNull
+    private final LongAdder failureCount = new LongAdder();
+
+    /**
+     * Transfers sent more than one interval behind the schedule (OPEN_LOOP only)
+     */
+    @NotNull
+    private final LongAdder lateCount = new LongAdder();
+
+    /**
+     * Recipients for the current neighbours of the node
+     */
+    @NotNull
+    private volatile Recipients recipients = new Recipients(new int[0], null);
+
+    private volatile boolean isClosed;
+
+    private long startNanos;
+
+    WorkloadGenerator(@NotNull Node node, @NotNull NodeRemote nodeRemote, int threadCount, double rate, @NotNull Mode mode, @NotNull Distribution distribution, double zipfExponent,
+                      @NotNull ThreadMode threadMode) {
+        this.node = node;
+        this.nodeRemote = nodeRemote;
+        this.threadCount = Math.max(threadCount, 1);
+        this.rate = rate;
+        this.mode = mode;
+        this.distribution = distribution;
+        this.zipfExponent = zipfExponent;
+        this.threadMode = NodeExecutors.getThreadMode(threadMode);
+        threads = NodeExecutors.newExecutor(this.threadMode, this.threadCount, "workload-");
+    }
+
+    void start() {
+        startNanos = System.nanoTime();
+        for (int i = 0; i < threadCount; i++) {
+            int thread = i;
+            threads.execute(() -> run(thread));
+        }
+        logger.info("Started workload of threads=" + threadCount + " (" + threadMode + "), mode=" + mode + ", requested rate=" + getRequestedRate() + ", distribution=" + distribution);
+    }
+
+    void close() {
+        isClosed = true;
+        threads.shutdownNow();
+        logger.info("Stopped workload, " + getReport());
+    }
+
+    /**
+     * @return achieved rate of transfers compared to the requested one since the start
+     */
+    @NotNull
+    String getReport() {
+        long transfers = transferCount.sum();
+        double seconds = Math.max(System.nanoTime() - startNanos, 1) / (double) TimeUnit.SECONDS.toNanos(1);
+        return String.format("achieved rate=%.1f/s of requested rate=%s, transfers=%d, failed=%d, late=%d",
+                transfers / seconds, getRequestedRate(), transfers, failureCount.sum(), lateCount.sum());
+    }
+
+    @NotNull
+    private String getRequestedRate() {
+        return mode == Mode.CLOSED_LOOP ? "unbounded" : String.format("%.1f/s", rate);
+    }
+
+    private void run(int thread) {
+        long interval = (long) (threadCount * TimeUnit.SECONDS.toNanos(1) / rate);
+        long next = System.nanoTime() + interval * thread / threadCount;
+        while (!isStopped()) {
+            if (mode == Mode.OPEN_LOOP) {
+                long delay;
+                while ((delay = next - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(delay);
+                    if (isStopped()) {
+                        return;
+                    }
+                }
+                if (-delay > interval) {
+                    lateCount.increment();
+                }
+                next += interval;
+            }
+            transfer();
+        }
+    }
+
+    private boolean isStopped() {
+        return isClosed || Thread.currentThread().isInterrupted();
+    }
+
+    private void transfer() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Recipients recipients = getRecipients();
+        if (recipients.nodeIds.length == 0) {
+            LockSupport.parkNanos(IDLE_NANOS);
+            return;
+        }
+        int recipientNodeId = recipients.next(random);
+        try {
+            nodeRemote.transferMoney(random.nextInt(BankTransfer.ACCOUNTS), recipientNodeId, random.nextInt(BankTransfer.ACCOUNTS), random.nextInt(BankTransfer.MIN_AMOUNT, BankTransfer.MAX_AMOUNT + 1));
+            transferCount.increment();
+        } catch (Exception e) {
+            failureCount.increment();
+            logger.error("Failed to transfer to recipientNodeId=" + recipientNodeId, e);
+        }
+    }
+
+    /**
+     * Rebuilds recipients once the overlay of the node changed, the node returns the same array until then
+     */
+    @NotNull
+    private Recipients getRecipients() {
+        int[] neighbourIds = node.getNeighbourIds();
+        Recipients current = recipients;
+        if (current.nodeIds != neighbourIds) {
+            current = new Recipients(neighbourIds, distribution == Distribution.ZIPF ? zipf(neighbourIds.length, zipfExponent) : null);
+            recipients = current;
+        }
+        return current;
+    }
+
+    /**
+     * @return cumulative probabilities of ranks from 1 to count, probability of rank k is proportional to 1 / k^exponent
+     */
+    @NotNull
+    private static double[] zipf(int count, double exponent) {
+        double[] cumulative = new double[count];
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < count; i++) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    /**
+     * Neighbours of the node and cumulative probabilities of choosing them, null for uniform choice
+     */
+    private static final class Recipients {
+
+        @NotNull
+        private final int[] nodeIds;
+
+        @Nullable
+        private final double[] cumulative;
+
+        private Recipients(@NotNull int[] nodeIds, @Nullable double[] cumulative) {
+            this.nodeIds = nodeIds;
+            this.cumulative = cumulative;
+        }
+
+        private int next(@NotNull ThreadLocalRandom random) {
+            if (cumulative == null) {
+                return nodeIds[random.nextInt(nodeIds.length)];
+            }
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return nodeIds[Math.min(index, nodeIds.length - 1)];
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package nl.tue.ds.entity;
+
+import com.google.common.base.MoreObjects;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Balances of accounts of the bank: hash map from account id to long balance over primitive arrays (open addressing)
+ * <p>
+ * Accounts are spread over segments of about SEGMENT_ACCOUNTS accounts (up to MAX_SEGMENT_BITS), each of them
+ * is a linear probing table guarded by the segment, so transfers between different accounts rarely contend
+ * <p>
+ * copy() is copy-on-write: the copy shares arrays of all segments with the table, and a segment copies its arrays
+ * before its first change after copy(), so capturing balances of millions of accounts costs O(segments)
+ * and only segments changed afterwards are copied, each by the first transfer changing it
+ */
+public final class AccountTable {
+
+    /**
+     * Expected number of accounts per segment
+     */
+    private static final int SEGMENT_ACCOUNTS = 1024;
+
+    private static final int MAX_SEGMENT_BITS = 10;
+
+    private static final int MIN_CAPACITY = 4;
+
+    /**
+     * Upper bound of account count read from a stream, anything larger is a corrupted count
+     */
+    private static final int MAX_ACCOUNTS = 1 << 26;
+
+    /**
+     * Marks free slot, account ids are non-negative
+     */
+    private static final int FREE = -1;
+
+    @NotNull
+    private final Segment[] segments;
+
+    /**
+     * Higher bits of hash of the account id choose its segment
+     */
+    private final int segmentShift;
+
+    /**
+     * @param expectedAccounts number of accounts to preallocate space for
+     */
+    public AccountTable(int expectedAccounts) {
+        int segmentBits = Math.min(Math.max(Integer.SIZE - Integer.numberOfLeadingZeros(expectedAccounts / SEGMENT_ACCOUNTS), 1), MAX_SEGMENT_BITS);
+        int capacity = ceilingPowerOfTwo(Math.max((expectedAccounts >> segmentBits) * 4 / 3 + 1, MIN_CAPACITY));
+        segments = new Segment[1 << segmentBits];
+        segmentShift = Integer.SIZE - segmentBits;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(capacity);
+        }
+    }
+
+    private AccountTable(@NotNull Segment[] segments, int segmentShift) {
+        this.segments = segments;
+        this.segmentShift = segmentShift;
+    }
+
+    /**
+     * @param accountId of the account
+     * @return balance of the account, 0 if the account does not exist
+     */
+    public long get(int accountId) {
+        int hash = hash(accountId);
+        Segment segment = getSegment(hash);
+        synchronized (segment) {
+            int index = segment.indexOf(accountId, hash);
+            return index >= 0 ? segment.balances[index] : 0;
+        }
+    }
+
+    /**
+     * Adds the amount to the account, creating the account if it does not exist
+     *
+     * @param accountId of the account
+     * @param amount    to add
+     */
+    public void add(int accountId, long amount) {
+        if (accountId < 0) {
+            throw new IllegalArgumentException("Account id must be non-negative, accountId=" + accountId);
+        }
+        int hash = hash(accountId);
+        Segment segment = getSegment(hash);
+        synchronized (segment) {
+            segment.ensureOwned();
+            int index = segment.indexOf(accountId, hash);
+            if (index < 0) {
+                index = segment.insert(accountId, hash, -index - 1);
+            }
+            segment.balances[index] += amount;
+        }
+    }
+
+    /**
+     * Subtracts the amount from the account if its balance is sufficient
+     *
+     * @param accountId of the account
+     * @param amount    to subtract
+     * @return whether the amount was subtracted, false if the account does not exist or its balance is insufficient
+     */
+    public boolean subtract(int accountId, long amount) {
+        int hash = hash(accountId);
+        Segment segment = getSegment(hash);
+        synchronized (segment) {
+            int index = segment.indexOf(accountId, hash);
+            if (index < 0 || segment.balances[index] < amount) {
+                return false;
+            }
+            segment.ensureOwned();
+            segment.balances[index] -= amount;
+            return true;
+        }
+    }
+
+    /**
+     * @return number of accounts
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Captures balances of all accounts, the copy is not affected by later changes of the table and vice versa
+     * <p>
+     * Changes made concurrently with the copy may or may not be captured, callers exclude them if they need a consistent copy
+     *
+     * @return copy sharing arrays of segments with the table until either of them changes
+     */
+    @NotNull
+    public AccountTable copy() {
+        Segment[] copies = new Segment[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            Segment segment = segments[i];
+            synchronized (segment) {
+                segment.isShared = true;
+                copies[i] = new Segment(segment);
+            }
+        }
+        return new AccountTable(copies, segmentShift);
+    }
+
+    /**
+     * Visits all accounts in no particular order
+     * <p>
+     * Accounts of a segment are visited under its lock without sharing its arrays, so visiting does not make
+     * the next change of the segment copy them, the visitor must not change the table
+     *
+     * @param visitor of accounts
+     */
+    public void forEach(@NotNull AccountVisitor visitor) {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (int i = 0; i < segment.ids.length; i++) {
+                    if (segment.ids[i] != FREE) {
+                        visitor.visit(segment.ids[i], segment.balances[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return sum of balances of all accounts
+     */
+    public long sum() {
+        long[] sum = new long[1];
+        forEach((accountId, balance) -> sum[0] += balance);
+        return sum[0];
+    }
+
+    /**
+     * Writes accounts as {account count}({account id}{balance})...
+     *
+     * @param out to write to
+     */
+    public void write(@NotNull DataOutput out) throws IOException {
+        AccountTable copy = copy();
+        out.writeInt(copy.size());
+        for (Segment segment : copy.segments) {
+            for (int i = 0; i < segment.ids.length; i++) {
+                if (segment.ids[i] != FREE) {
+                    out.writeInt(segment.ids[i]);
+                    out.writeLong(segment.balances[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads accounts written by write()
+     *
+     * @param in to read from
+     * @return new table of the accounts
+     */
+    @NotNull
+    public static AccountTable read(@NotNull DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0 || size > MAX_ACCOUNTS) {
+            throw new IOException("Invalid account count=" + size);
+        }
+        AccountTable accounts = new AccountTable(size);
+        for (int i = 0; i < size; i++) {
+            accounts.add(in.readInt(), in.readLong());
+        }
+        return accounts;
+    }
+
+    @NotNull
+    private Segment getSegment(int hash) {
+        return segments[hash >>> segmentShift];
+    }
+
+    /**
+     * Spreads bits of the account id, higher bits choose the segment and lower bits the slot in it
+     */
+    private static int hash(int accountId) {
+        int hash = accountId * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int ceilingPowerOfTwo(int value) {
+        return Integer.highestOneBit(value - 1) << 1;
+    }
+
+    /**
+     * Tables are equal if they have the same accounts with the same balances, regardless of their segments
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        AccountTable object = (AccountTable) o;
+        if (size() != object.size()) {
+            return false;
+        }
+        for (Segment segment : segments) {
+            int[] ids;
+            long[] balances;
+            // compared outside the lock of the segment, so comparisons of two tables in both directions do not deadlock
+            synchronized (segment) {
+                ids = segment.ids.clone();
+                balances = segment.balances.clone();
+            }
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] != FREE && object.get(ids[i]) != balances[i]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int[] hash = new int[1];
+        forEach((accountId, balance) -> hash[0] += accountId ^ Long.hashCode(balance));
+        return hash[0];
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("size", size())
+                .toString();
+    }
+
+    /**
+     * Receives account id and balance of every account
+     */
+    public interface AccountVisitor {
+
+        void visit(int accountId, long balance);
+    }
+
+    /**
+     * Linear probing table, guarded by itself
+     */
+    private static final class Segment {
+
+        @NotNull
+        private int[] ids;
+
+        @NotNull
+        private long[] balances;
+
+        private int size;
+
+        /**
+         * Whether arrays are shared with a copy of the table and must be copied before the next change
+         */
+        private boolean isShared;
+
+        private Segment(int capacity) {
+            ids = new int[capacity];
+            Arrays.fill(ids, FREE);
+            balances = new long[capacity];
+        }
+
+        private Segment(@NotNull Segment segment) {
+            ids = segment.ids;
+            balances = segment.balances;
+            size = segment.size;
+            isShared = true;
+        }
+
+        /**
+         * @return index of the account or (-insertion index - 1) if the account does not exist
+         */
+        private int indexOf(int accountId, int hash) {
+            int mask = ids.length - 1;
+            int index = hash & mask;
+            while (ids[index] != FREE) {
+                if (ids[index] == accountId) {
+                    return index;
+                }
+                index = (index + 1) & mask;
+            }
+            return -index - 1;
+        }
+
+        /**
+         * Copies arrays shared with a copy of the table, positions of accounts stay the same
+         */
+        private void ensureOwned() {
+            if (isShared) {
+                ids = ids.clone();
+                balances = balances.clone();
+                isShared = false;
+            }
+        }
+
+        /**
+         * Inserts the account with zero balance, growing the table at load factor 0.75
+         *
+         * @return index of the inserted account
+         */
+        private int insert(int accountId, int hash, int index) {
+            if ((size + 1) * 4 > ids.length * 3) {
+                grow();
+                index = -indexOf(accountId, hash) - 1;
+            }
+            ids[index] = accountId;
+            size++;
+            return index;
+        }
+
+        private void grow() {
+            int[] oldIds = ids;
+            long[] oldBalances = balances;
+            ids = new int[oldIds.length * 2];
+            Arrays.fill(ids, FREE);
+            balances = new long[ids.length];
+            for (int i = 0; i < oldIds.length; i++) {
+                if (oldIds[i] != FREE) {
+                    int index = -indexOf(oldIds[i], hash(oldIds[i])) - 1;
+                    ids[index] = oldIds[i];
+                    balances[index] = oldBalances[i];
+                }
+            }
+        }
+    }
+}
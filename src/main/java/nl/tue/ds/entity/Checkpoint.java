@@ -0,0 +1,82 @@
+package nl.tue.ds.entity;
+
+import com.google.common.base.MoreObjects;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Objects;
+
+/**
+ * Local state of the bank captured at once: balances of all accounts and position of the journal of balance changes,
+ * so the state after the capture is the checkpoint plus changes in the journal after the position
+ *
+ * @see Item
+ */
+public final class Checkpoint {
+
+    /**
+     * Position of the last change of balances included in the checkpoint, 0 if the bank has no journal
+     */
+    private final long position;
+
+    /**
+     * Sum of balances of all accounts
+     */
+    private final long balance;
+
+    /**
+     * Balances of accounts, never changed
+     */
+    @NotNull
+    private final AccountTable accounts;
+
+    public Checkpoint(long position, long balance, @NotNull AccountTable accounts) {
+        this.position = position;
+        this.balance = balance;
+        this.accounts = accounts;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long getBalance() {
+        return balance;
+    }
+
+    /**
+     * @return balances of accounts, must not be changed
+     */
+    @NotNull
+    public AccountTable getAccounts() {
+        return accounts;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        if (o instanceof Checkpoint) {
+            Checkpoint object = (Checkpoint) o;
+
+            return Objects.equals(position, object.position) &&
+                    Objects.equals(balance, object.balance);
+        }
+
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(position, balance);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("position", position)
+                .add("balance", balance)
+                .add("accounts", accounts.size())
+                .toString();
+    }
+}
@@ -0,0 +1,143 @@
+package nl.tue.ds.entity;
+
+import com.google.common.base.MoreObjects;
+import nl.tue.ds.BankTransfer;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Global state of the distributed snapshot, reduced along the spanning tree of the marker wave
+ * <p>
+ * Each node merges partial states of its subtree with its own local state and reports the result to its parent,
+ * so the initiator ends up with the global state of all nodes
+ * <p>
+ * State is partial if a node of the subtree gave up waiting for markers or reports of the snapshot,
+ * conservation of money cannot be checked then
+ *
+ * @see Snapshot
+ */
+public final class GlobalSnapshot implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    @NotNull
+    private final Marker marker;
+
+    /**
+     * Number of nodes, which local states are merged
+     */
+    private final int nodeCount;
+
+    private final long balance;
+
+    private final long moneyInTransfer;
+
+    /**
+     * Whether local states of some nodes of the subtree are missing
+     */
+    private final boolean isPartial;
+
+    public GlobalSnapshot(@NotNull Marker marker, int nodeCount, long balance, long moneyInTransfer) {
+        this(marker, nodeCount, balance, moneyInTransfer, false);
+    }
+
+    public GlobalSnapshot(@NotNull Marker marker, int nodeCount, long balance, long moneyInTransfer, boolean isPartial) {
+        this.marker = marker;
+        this.nodeCount = nodeCount;
+        this.balance = balance;
+        this.moneyInTransfer = moneyInTransfer;
+        this.isPartial = isPartial;
+    }
+
+    /**
+     * @param snapshot completed local snapshot of the node
+     * @return global state of a single node
+     */
+    @NotNull
+    public static GlobalSnapshot of(@NotNull Snapshot snapshot) {
+        return new GlobalSnapshot(snapshot.getMarker(), 1, snapshot.getLocalBalance(), snapshot.getMoneyInTransfer());
+    }
+
+    /**
+     * @param other partial state of disjoint set of nodes
+     * @return partial state of both sets of nodes
+     */
+    @NotNull
+    public GlobalSnapshot merge(@NotNull GlobalSnapshot other) {
+        return new GlobalSnapshot(marker, nodeCount + other.nodeCount, balance + other.balance, moneyInTransfer + other.moneyInTransfer,
+                isPartial || other.isPartial);
+    }
+
+    /**
+     * @return the same state marked as missing local states of some nodes
+     */
+    @NotNull
+    public GlobalSnapshot toPartial() {
+        return new GlobalSnapshot(marker, nodeCount, balance, moneyInTransfer, true);
+    }
+
+    @NotNull
+    public Marker getMarker() {
+        return marker;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public long getBalance() {
+        return balance;
+    }
+
+    public long getMoneyInTransfer() {
+        return moneyInTransfer;
+    }
+
+    public boolean isPartial() {
+        return isPartial;
+    }
+
+    /**
+     * @return whether no money was created or lost: balances and money in transfer add up to initial balances of all nodes
+     */
+    public boolean isConserved() {
+        return !isPartial && balance + moneyInTransfer == (long) nodeCount * BankTransfer.ACCOUNTS * BankTransfer.INITIAL_BALANCE;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        if (o instanceof GlobalSnapshot) {
+            GlobalSnapshot object = (GlobalSnapshot) o;
+
+            return Objects.equals(marker, object.marker) &&
+                    Objects.equals(nodeCount, object.nodeCount) &&
+                    Objects.equals(balance, object.balance) &&
+                    Objects.equals(moneyInTransfer, object.moneyInTransfer) &&
+                    Objects.equals(isPartial, object.isPartial);
+        }
+
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(marker, nodeCount, balance, moneyInTransfer, isPartial);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("marker", marker)
+                .add("nodeCount", nodeCount)
+                .add("balance", balance)
+                .add("moneyInTransfer", moneyInTransfer)
+                .add("isPartial", isPartial)
+                .add("isConserved", isConserved())
+                .toString();
+    }
+}
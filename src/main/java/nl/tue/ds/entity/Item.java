@@ -2,58 +2,329 @@ package nl.tue.ds.entity;
 
 import com.google.common.base.MoreObjects;
 
-import java.io.Serializable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Items represent an entity hold by the bank (balance in our case) and associated to nodes by one-to-one relation
+ * Items represent an entity hold by the bank (ledger of accounts in our case) and associated to nodes by one-to-one relation
+ * <p>
+ * Balances of accounts are kept in AccountTable, the total balance of the bank is updated along with them,
+ * so it is read without visiting all accounts
+ * <p>
+ * With the journal attached, every change is applied and appended to the journal under the monitor of the journal,
+ * so the journal has changes in the order they were applied and checkpoint() captures balances and the position
+ * of the journal at once
+ * <p>
+ * Withdrawals into transfers, their outcome and batches credited from other nodes are journaled as single records
+ * together with their balance changes, so the journal recovers transfers in progress as well
  *
  * @see Node
+ * @see AccountTable
  */
 public final class Item implements Serializable {
 
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Current amount of money at every account of the bank
+     */
+    @NotNull
+    private final AccountTable accounts;
+
+    /**
+     * Current amount of money at the bank, sum of balances of all accounts
+     */
+    @NotNull
+    private final AtomicLong balance;
+
+    /**
+     * Log of balance changes, null if changes are kept in memory only
+     */
+    @Nullable
+    private volatile Journal journal;
+
+    /**
+     * @param accountCount   number of accounts, ids from 0 to accountCount exclusive
+     * @param accountBalance initial balance of every account
+     */
+    public Item(int accountCount, int accountBalance) {
+        this(new AccountTable(accountCount), (long) accountCount * accountBalance);
+        for (int i = 0; i < accountCount; i++) {
+            accounts.add(i, accountBalance);
+        }
+    }
+
     /**
-     * Current amount of money at the bank
+     * @param accounts balances of accounts, owned by the item afterwards
      */
-    private int balance;
+    public Item(@NotNull AccountTable accounts) {
+        this(accounts, accounts.sum());
+    }
+
+    private Item(@NotNull AccountTable accounts, long balance) {
+        this.accounts = accounts;
+        this.balance = new AtomicLong(balance);
+    }
 
     /**
-     * Temp variable for holding withdraw money amount with possibility to restore
-     * holds under assumption that only one money transfer is done at a time
+     * Attaches the journal, changes made from now on are appended to it
+     *
+     * @param journal of balance changes or null to detach it
      */
-    private int withdrawAmount;
+    public void setJournal(@Nullable Journal journal) {
+        this.journal = journal;
+    }
+
+    private Object writeReplace() {
+        return new SerializedForm(this);
+    }
+
+    private void readObject(ObjectInputStream stream) throws InvalidObjectException {
+        throw new InvalidObjectException("Item is deserialized from its serialized form only");
+    }
 
-    public Item(int balance) {
-        this.balance = balance;
+    /**
+     * @return total balance of all accounts
+     */
+    public long getBalance() {
+        return balance.get();
     }
 
-    public int getBalance() {
-        return balance;
+    /**
+     * @param accountId of the account
+     * @return balance of the account, 0 if the account does not exist
+     */
+    public long getBalance(int accountId) {
+        return accounts.get(accountId);
     }
 
-    public void incrementBalance(int amount) {
-        balance += amount;
+    public int getAccountCount() {
+        return accounts.size();
     }
 
-    public void restoreBalance() {
-        balance += withdrawAmount;
-        withdrawAmount = 0;
+    /**
+     * @param accountId of the account, created if it does not exist
+     * @param amount    to be added
+     */
+    public void incrementBalance(int accountId, int amount) {
+        Journal journal = this.journal;
+        if (journal == null) {
+            accounts.add(accountId, amount);
+            balance.addAndGet(amount);
+            return;
+        }
+        synchronized (journal) {
+            accounts.add(accountId, amount);
+            balance.addAndGet(amount);
+            journal.append(accountId, amount);
+        }
     }
 
     /**
-     * Checks if current balance is over or equal the amount to be deducted
+     * Checks if current balance of the account is over or equal the amount to be deducted
      * if it is -> deducts the money, if not -> balance stay untouched
      *
-     * @param amount to be deducted
+     * @param accountId of the account
+     * @param amount    to be deducted
      * @return whether operation succeed or not
      */
-    public boolean decrementBalance(int amount) {
-        if (balance >= amount) {
-            balance -= amount;
-            withdrawAmount = amount;
+    public boolean decrementBalance(int accountId, int amount) {
+        Journal journal = this.journal;
+        if (journal == null) {
+            return subtract(accountId, amount);
+        }
+        synchronized (journal) {
+            if (!subtract(accountId, amount)) {
+                return false;
+            }
+            journal.append(accountId, -amount);
             return true;
         }
-        return false;
+    }
+
+    /**
+     * Withdraws the amount into the pending transfer, see decrementBalance()
+     *
+     * @param transferId         of the pending transfer
+     * @param accountId          of the account
+     * @param amount             to be deducted
+     * @param recipientNodeId    recipient of the transfer
+     * @param recipientAccountId account of the recipient to be credited
+     * @return whether operation succeed or not
+     */
+    public boolean withdraw(long transferId, int accountId, int amount, int recipientNodeId, int recipientAccountId) {
+        Journal journal = this.journal;
+        if (journal == null) {
+            return subtract(accountId, amount);
+        }
+        synchronized (journal) {
+            if (!subtract(accountId, amount)) {
+                return false;
+            }
+            journal.appendWithdrawal(transferId, accountId, amount, recipientNodeId, recipientAccountId);
+            return true;
+        }
+    }
+
+    /**
+     * Returns amounts of pending transfers back to their accounts
+     *
+     * @param transferIds of the transfers
+     * @param accountIds  of the accounts the amounts were withdrawn from
+     * @param amounts     withdrawn, 0 for transfers which are not pending
+     */
+    public void rollback(@NotNull long[] transferIds, @NotNull int[] accountIds, @NotNull int[] amounts) {
+        Journal journal = this.journal;
+        if (journal == null) {
+            addAll(accountIds, amounts);
+            return;
+        }
+        synchronized (journal) {
+            addAll(accountIds, amounts);
+            journal.appendRolledBack(transferIds);
+        }
+    }
+
+    /**
+     * Credits the batch of transfers from the sender
+     *
+     * @param senderNodeId sender of the batch
+     * @param batchId      of the batch
+     * @param accountIds   of the accounts
+     * @param amounts      to be added
+     */
+    public void credit(int senderNodeId, long batchId, @NotNull int[] accountIds, @NotNull int[] amounts) {
+        Journal journal = this.journal;
+        if (journal == null) {
+            addAll(accountIds, amounts);
+            return;
+        }
+        synchronized (journal) {
+            addAll(accountIds, amounts);
+            journal.appendCredited(senderNodeId, batchId, accountIds, amounts);
+        }
+    }
+
+    /**
+     * Journals pending transfers as sent in the batch, no-op without the journal
+     *
+     * @param batchId     of the batch
+     * @param transferIds of the transfers
+     */
+    public void sent(long batchId, @NotNull long[] transferIds) {
+        Journal journal = this.journal;
+        if (journal != null) {
+            synchronized (journal) {
+                journal.appendSent(batchId, transferIds);
+            }
+        }
+    }
+
+    /**
+     * Journals pending transfers as accepted by the recipient, no-op without the journal
+     *
+     * @param transferIds of the transfers
+     */
+    public void completed(@NotNull long[] transferIds) {
+        Journal journal = this.journal;
+        if (journal != null) {
+            synchronized (journal) {
+                journal.appendCompleted(transferIds);
+            }
+        }
+    }
+
+    private void addAll(@NotNull int[] accountIds, @NotNull int[] amounts) {
+        long sum = 0;
+        for (int i = 0; i < amounts.length; i++) {
+            if (amounts[i] != 0) {
+                accounts.add(accountIds[i], amounts[i]);
+                sum += amounts[i];
+            }
+        }
+        balance.addAndGet(sum);
+    }
+
+    private boolean subtract(int accountId, int amount) {
+        if (!accounts.subtract(accountId, amount)) {
+            return false;
+        }
+        balance.addAndGet(-amount);
+        return true;
+    }
+
+    /**
+     * Sets balances of all accounts to the restored ones, accounts missing in them are emptied,
+     * must not run concurrently with transfers
+     * <p>
+     * Differences are applied and journaled as ordinary changes, so recovery from the journal replays the restored state
+     *
+     * @param restored balances of accounts, not changed
+     * @return number of changed accounts
+     */
+    public int restore(@NotNull AccountTable restored) {
+        AccountTable changes = restored.copy();
+        accounts.forEach((accountId, balance) -> changes.add(accountId, -balance));
+        int[] changed = new int[1];
+        Journal journal = this.journal;
+        changes.forEach((accountId, change) -> {
+            if (change != 0) {
+                add(accountId, change, journal);
+                changed[0]++;
+            }
+        });
+        return changed[0];
+    }
+
+    /**
+     * Adds the change, journaled in chunks of int amounts
+     */
+    private void add(int accountId, long change, @Nullable Journal journal) {
+        if (journal == null) {
+            accounts.add(accountId, change);
+            balance.addAndGet(change);
+            return;
+        }
+        synchronized (journal) {
+            accounts.add(accountId, change);
+            balance.addAndGet(change);
+            while (change != 0) {
+                int amount = (int) Math.max(Math.min(change, Integer.MAX_VALUE), Integer.MIN_VALUE);
+                journal.append(accountId, amount);
+                change -= amount;
+            }
+        }
+    }
+
+    /**
+     * Captures balances of all accounts by copy-on-write, consistent only if no transfers run concurrently
+     *
+     * @return balances of accounts, not affected by later transfers
+     */
+    @NotNull
+    public AccountTable captureAccounts() {
+        return accounts.copy();
+    }
+
+    /**
+     * Captures balances of all accounts by copy-on-write together with the position of the journal,
+     * total balance is consistent with accounts only if no transfers run concurrently
+     *
+     * @return local state of the bank, not affected by later transfers
+     */
+    @NotNull
+    public Checkpoint checkpoint() {
+        Journal journal = this.journal;
+        if (journal == null) {
+            return new Checkpoint(0, balance.get(), accounts.copy());
+        }
+        synchronized (journal) {
+            return new Checkpoint(journal.getPosition(), balance.get(), accounts.copy());
+        }
     }
 
     @Override
@@ -64,7 +335,8 @@ public final class Item implements Serializable {
         if (o instanceof Item) {
             Item object = (Item) o;
 
-            return Objects.equals(balance, object.balance);
+            return Objects.equals(balance.get(), object.balance.get()) &&
+                    Objects.equals(accounts, object.accounts);
         }
 
         return false;
@@ -72,13 +344,101 @@ public final class Item implements Serializable {
 
     @Override
     public int hashCode() {
-        return Objects.hash(balance);
+        return Objects.hash(balance.get(), accounts);
     }
 
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
                 .add("balance", balance)
+                .add("accounts", accounts.size())
                 .toString();
     }
+
+    /**
+     * Log of balance changes and transfers of the item, see TransferLog
+     * <p>
+     * All methods are called under the monitor of the journal
+     */
+    public interface Journal {
+
+        /**
+         * Appends the change of the balance of the account
+         *
+         * @param accountId of the account
+         * @param amount    added to the balance, negative for withdrawals
+         */
+        void append(int accountId, int amount);
+
+        /**
+         * Appends the withdrawal of the amount from the account into the pending transfer
+         */
+        void appendWithdrawal(long transferId, int accountId, int amount, int recipientNodeId, int recipientAccountId);
+
+        /**
+         * Appends pending transfers sent in the batch
+         */
+        void appendSent(long batchId, @NotNull long[] transferIds);
+
+        /**
+         * Appends pending transfers accepted by the recipient
+         */
+        void appendCompleted(@NotNull long[] transferIds);
+
+        /**
+         * Appends pending transfers returned back to their accounts
+         */
+        void appendRolledBack(@NotNull long[] transferIds);
+
+        /**
+         * Appends the batch of transfers credited from the sender
+         */
+        void appendCredited(int senderNodeId, long batchId, @NotNull int[] accountIds, @NotNull int[] amounts);
+
+        /**
+         * @return position of the last appended change
+         */
+        long getPosition();
+    }
+
+    /**
+     * Serialized form of the item, balances are written from a copy of accounts, so the total balance is consistent with them
+     * <p>
+     * Format: {version}{account count}({account id}{balance})...
+     */
+    private static final class SerializedForm implements Externalizable {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final byte VERSION = 2;
+
+        private Item item;
+
+        public SerializedForm() {
+        }
+
+        private SerializedForm(@NotNull Item item) {
+            this.item = item;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeByte(VERSION);
+            item.captureAccounts().write(out);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException {
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new InvalidObjectException("Unsupported version=" + version + " of item");
+            }
+            AccountTable accounts = AccountTable.read(in);
+            item = new Item(accounts, accounts.sum());
+        }
+
+        private Object readResolve() {
+            return item;
+        }
+    }
 }
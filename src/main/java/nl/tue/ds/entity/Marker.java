@@ -0,0 +1,69 @@
+package nl.tue.ds.entity;
+
+import com.google.common.base.MoreObjects;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Marker of the distributed snapshot, which identifies the snapshot it belongs to
+ * <p>
+ * Snapshots initiated by different nodes (or by the same node several times) may be taken at a same time
+ *
+ * @see Snapshot
+ */
+public final class Marker implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Node which initiated the snapshot
+     */
+    private final int initiatorId;
+
+    /**
+     * Sequential number of the snapshot initiated by the initiator node
+     */
+    private final int sequence;
+
+    public Marker(int initiatorId, int sequence) {
+        this.initiatorId = initiatorId;
+        this.sequence = sequence;
+    }
+
+    public int getInitiatorId() {
+        return initiatorId;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        if (o instanceof Marker) {
+            Marker object = (Marker) o;
+
+            return Objects.equals(initiatorId, object.initiatorId) &&
+                    Objects.equals(sequence, object.sequence);
+        }
+
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(initiatorId, sequence);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("initiatorId", initiatorId)
+                .add("sequence", sequence)
+                .toString();
+    }
+}
@@ -0,0 +1,114 @@
+package nl.tue.ds.entity;
+
+import com.google.common.base.MoreObjects;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Compact membership of the graph exchanged between nodes: ids, hosts and incarnations of nodes without their state
+ * <p>
+ * Either the complete membership table of the sender or only its recent changes (delta)
+ *
+ * @see MembershipTable
+ */
+public final class Membership implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final Membership EMPTY = new Membership(new int[0], new String[0], new long[0], false);
+
+    @NotNull
+    private final int[] nodeIds;
+
+    @NotNull
+    private final String[] hosts;
+
+    /**
+     * Time the node was created at, the latest incarnation of the node wins
+     */
+    @NotNull
+    private final long[] incarnations;
+
+    /**
+     * Whether it is the complete membership table of the sender instead of its delta
+     */
+    private final boolean isComplete;
+
+    public Membership(@NotNull int[] nodeIds, @NotNull String[] hosts, @NotNull long[] incarnations, boolean isComplete) {
+        this.nodeIds = nodeIds;
+        this.hosts = hosts;
+        this.incarnations = incarnations;
+        this.isComplete = isComplete;
+    }
+
+    public int size() {
+        return nodeIds.length;
+    }
+
+    public boolean isEmpty() {
+        return nodeIds.length == 0;
+    }
+
+    public boolean isComplete() {
+        return isComplete;
+    }
+
+    /**
+     * @param index of the node, from 0 to size() exclusive
+     */
+    public int getNodeId(int index) {
+        return nodeIds[index];
+    }
+
+    @NotNull
+    public String getHost(int index) {
+        return hosts[index];
+    }
+
+    public long getIncarnation(int index) {
+        return incarnations[index];
+    }
+
+    public boolean contains(int nodeId) {
+        for (int id : nodeIds) {
+            if (id == nodeId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        if (o instanceof Membership) {
+            Membership object = (Membership) o;
+
+            return Arrays.equals(nodeIds, object.nodeIds) &&
+                    Arrays.equals(hosts, object.hosts) &&
+                    Arrays.equals(incarnations, object.incarnations) &&
+                    Objects.equals(isComplete, object.isComplete);
+        }
+
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(Arrays.hashCode(nodeIds), Arrays.hashCode(hosts), Arrays.hashCode(incarnations), isComplete);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("size", nodeIds.length)
+                .add("isComplete", isComplete)
+                .add("nodeIds", Arrays.toString(nodeIds))
+                .toString();
+    }
+}
@@ -0,0 +1,224 @@
+package nl.tue.ds.entity;
+
+import com.google.common.base.MoreObjects;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Versioned table of all known nodes in the graph
+ * <p>
+ * Every change of the table gets the next local version, so changes since any version can be taken as a delta
+ * for gossiping, while digest of the table (order independent hash of node ids and incarnations)
+ * tells whether two tables differ without exchanging them
+ *
+ * @see Membership
+ */
+public final class MembershipTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Hosts of known nodes, readable without locking
+     * <p>
+     * Map<NodeId, Host>
+     */
+    @NotNull
+    private final Map<Integer, String> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * Map<NodeId, Member>, guarded by this
+     */
+    @NotNull
+    private final Map<Integer, Member> members = new HashMap<>();
+
+    /**
+     * Version of the last change, guarded by this
+     */
+    private long version;
+
+    /**
+     * Sum of hashes of all members, guarded by this
+     */
+    private long digest;
+
+    /**
+     * Adds the node or replaces its older incarnation
+     *
+     * @param nodeId      of the node
+     * @param host        of the node
+     * @param incarnation of the node
+     * @return whether the table changed
+     */
+    public synchronized boolean put(int nodeId, @NotNull String host, long incarnation) {
+        Member member = members.get(nodeId);
+        if (member != null) {
+            if (member.incarnation >= incarnation) {
+                return false;
+            }
+            digest -= hash(nodeId, member.incarnation);
+        }
+        members.put(nodeId, new Member(host, incarnation, ++version));
+        hosts.put(nodeId, host);
+        digest += hash(nodeId, incarnation);
+        return true;
+    }
+
+    /**
+     * @param membership received from another node
+     * @return number of added or replaced nodes
+     */
+    public synchronized int merge(@NotNull Membership membership) {
+        int changes = 0;
+        for (int i = 0; i < membership.size(); i++) {
+            if (put(membership.getNodeId(i), membership.getHost(i), membership.getIncarnation(i))) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized long getDigest() {
+        return digest;
+    }
+
+    /**
+     * @param sinceVersion exclusive
+     * @return nodes added or replaced after the version
+     */
+    @NotNull
+    public synchronized Membership getSince(long sinceVersion) {
+        return collect(member -> member.version > sinceVersion, false);
+    }
+
+    /**
+     * @return complete table
+     */
+    @NotNull
+    public synchronized Membership getAll() {
+        return collect(member -> true, true);
+    }
+
+    /**
+     * @param nodeId of the node
+     * @return membership of the single node or empty if the node is unknown
+     */
+    @NotNull
+    public synchronized Membership get(int nodeId) {
+        Member member = members.get(nodeId);
+        if (member == null) {
+            return Membership.EMPTY;
+        }
+        return new Membership(new int[]{nodeId}, new String[]{member.host}, new long[]{member.incarnation}, false);
+    }
+
+    /**
+     * @param other complete table of another node
+     * @return nodes, which are unknown to another node or known by their older incarnation
+     */
+    @NotNull
+    public synchronized Membership getMissing(@NotNull Membership other) {
+        Map<Integer, Long> otherIncarnations = new HashMap<>();
+        for (int i = 0; i < other.size(); i++) {
+            otherIncarnations.put(other.getNodeId(i), other.getIncarnation(i));
+        }
+        List<Integer> nodeIds = new ArrayList<>();
+        for (Map.Entry<Integer, Member> entry : members.entrySet()) {
+            Long otherIncarnation = otherIncarnations.get(entry.getKey());
+            if (otherIncarnation == null || otherIncarnation < entry.getValue().incarnation) {
+                nodeIds.add(entry.getKey());
+            }
+        }
+        return collect(nodeIds, false);
+    }
+
+    /**
+     * @return hosts of known nodes, Map<NodeId, Host>
+     */
+    @NotNull
+    public Map<Integer, String> getHosts() {
+        return Collections.unmodifiableMap(hosts);
+    }
+
+    public int size() {
+        return hosts.size();
+    }
+
+    @NotNull
+    private Membership collect(@NotNull Predicate<Member> filter, boolean isComplete) {
+        List<Integer> nodeIds = new ArrayList<>();
+        for (Map.Entry<Integer, Member> entry : members.entrySet()) {
+            if (filter.test(entry.getValue())) {
+                nodeIds.add(entry.getKey());
+            }
+        }
+        return collect(nodeIds, isComplete);
+    }
+
+    @NotNull
+    private Membership collect(@NotNull List<Integer> nodeIds, boolean isComplete) {
+        if (nodeIds.isEmpty() && !isComplete) {
+            return Membership.EMPTY;
+        }
+        int[] ids = new int[nodeIds.size()];
+        String[] memberHosts = new String[ids.length];
+        long[] incarnations = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            Member member = members.get(nodeIds.get(i));
+            ids[i] = nodeIds.get(i);
+            memberHosts[i] = member.host;
+            incarnations[i] = member.incarnation;
+        }
+        return new Membership(ids, memberHosts, incarnations, isComplete);
+    }
+
+    /**
+     * Mixes bits of the node id and incarnation (finalizer of MurmurHash3), so sums of hashes rarely collide
+     */
+    private static long hash(int nodeId, long incarnation) {
+        long hash = nodeId * 0x9E3779B97F4A7C15L + incarnation;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("size", hosts.size())
+                .add("version", version)
+                .add("digest", digest)
+                .toString();
+    }
+
+    /**
+     * Known incarnation of the node and version of the table it was learned at
+     */
+    private static final class Member implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        @NotNull
+        private final String host;
+
+        private final long incarnation;
+
+        private final long version;
+
+        private Member(@NotNull String host, long incarnation, long version) {
+            this.host = host;
+            this.incarnation = incarnation;
+            this.version = version;
+        }
+    }
+}
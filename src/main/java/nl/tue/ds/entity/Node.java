@@ -2,19 +2,32 @@ package nl.tue.ds.entity;
 
 import com.google.common.base.MoreObjects;
 import nl.tue.ds.BankTransfer;
-import nl.tue.ds.util.StorageUtil;
+import nl.tue.ds.ServiceConfiguration;
+import nl.tue.ds.util.OverlayUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.Serializable;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Nodes are represented as banks in distributed environment and are interconnected in peer-to-peer fashion
  * <p>
  * Nodes form a digraph, consisting of one strongly connected component
+ * <p>
+ * Transfers and markers travel only along edges of the overlay over all known nodes, see OverlayUtil
  */
 public final class Node implements Serializable {
 
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of recently finished snapshots remembered by the bank
+     */
+    private static final int FINISHED_SNAPSHOTS = 1024;
+
     /**
      * Positive integer to determine position in the graph
      */
@@ -33,29 +46,80 @@ public final class Node implements Serializable {
     private final Item item;
 
     /**
-     * Snapshot record of the bank
+     * Snapshots being recorded by the bank, finished snapshots are removed
+     * <p>
+     * Map<Marker, Snapshot>
+     */
+    @NotNull
+    private final Map<Marker, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+    /**
+     * Markers of recently finished snapshots, so a late marker from a node, which was not an incoming channel
+     * of the snapshot when it started, does not start the snapshot again, guarded by itself
+     */
+    @NotNull
+    private final Set<Marker> finishedSnapshots = Collections.newSetFromMap(new LinkedHashMap<Marker, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Marker, Boolean> eldest) {
+            return size() > FINISHED_SNAPSHOTS;
+        }
+    });
+
+    /**
+     * Sequential number of the last snapshot initiated by the bank
      */
     @NotNull
-    private final Snapshot snapshot;
+    private final AtomicInteger snapshotSequence = new AtomicInteger();
+
+    /**
+     * Time the node was created at, distinguishes the node from its previous runs with the same id
+     */
+    private final long incarnation;
 
     /**
      * All known nodes in the graph, including itself
-     * <p>
-     * Map<NodeId, Host>
      */
     @NotNull
-    private final Map<Integer, String> nodes = new HashMap<>();
+    private final MembershipTable membership = new MembershipTable();
+
+    /**
+     * Number of neighbours of every node in the overlay, 0 -> full mesh
+     */
+    private final int overlayDegree;
+
+    /**
+     * Sorted ids of neighbours in the overlay, reset on every change of known nodes and rebuilt on the next access,
+     * so a burst of membership changes rebuilds the overlay once
+     */
+    @Nullable
+    private volatile int[] neighbourIds;
 
     public Node() {
         this(0, "");
     }
 
     public Node(int id, @NotNull String host) {
+        this(id, host, ServiceConfiguration.getOverlayDegree());
+    }
+
+    /**
+     * @param item state of the bank recovered from storage
+     */
+    public Node(int id, @NotNull String host, @NotNull Item item) {
+        this(id, host, ServiceConfiguration.getOverlayDegree(), System.currentTimeMillis(), item);
+    }
+
+    public Node(int id, @NotNull String host, int overlayDegree) {
+        this(id, host, overlayDegree, System.currentTimeMillis(), new Item(BankTransfer.ACCOUNTS, BankTransfer.INITIAL_BALANCE));
+    }
+
+    private Node(int id, @NotNull String host, int overlayDegree, long incarnation, @NotNull Item item) {
         this.id = id;
         this.host = host;
-        item = new Item(BankTransfer.INITIAL_BALANCE);
-        snapshot = new Snapshot();
-        nodes.put(id, host);
+        this.overlayDegree = overlayDegree;
+        this.incarnation = incarnation;
+        this.item = item;
+        membership.put(id, host, incarnation);
     }
 
     public int getId() {
@@ -67,29 +131,163 @@ public final class Node implements Serializable {
         return item;
     }
 
+    /**
+     * Gets snapshot being recorded
+     *
+     * @param marker of the snapshot
+     * @return snapshot or null if not recording
+     */
+    @Nullable
+    public Snapshot getSnapshot(@NotNull Marker marker) {
+        return snapshots.get(marker);
+    }
+
     @NotNull
-    public Snapshot getSnapshot() {
+    public Collection<Snapshot> getSnapshots() {
+        return Collections.unmodifiableCollection(snapshots.values());
+    }
+
+    /**
+     * Creates marker for the new snapshot initiated by the bank
+     */
+    @NotNull
+    public Marker nextMarker() {
+        return new Marker(id, snapshotSequence.incrementAndGet());
+    }
+
+    /**
+     * Continues sequence of snapshots initiated by the bank after the given one, never moves it back
+     *
+     * @param sequence of the last snapshot initiated by the previous run of the node
+     */
+    public void skipSnapshotSequence(int sequence) {
+        snapshotSequence.accumulateAndGet(sequence, Math::max);
+    }
+
+    /**
+     * Starts distributed snapshot by capturing local balances and waiting for marker from other nodes
+     * <p>
+     * Transfers must be excluded during the call, so balances of accounts are consistent with the total balance
+     *
+     * @param marker of the snapshot
+     * @return snapshot being recorded
+     */
+    @NotNull
+    public Snapshot startSnapshotRecording(@NotNull Marker marker) {
+        Snapshot snapshot = new Snapshot(marker, item.checkpoint(), getNeighbourIds());
+        snapshots.put(marker, snapshot);
         return snapshot;
     }
 
     /**
-     * Starts distributed snapshot by capturing local balance and waiting for marker from other nodes
+     * Forgets the snapshot once markers from all incoming channels are received
+     *
+     * @param snapshot to be stopped
+     */
+    public void stopSnapshotRecording(@NotNull Snapshot snapshot) {
+        synchronized (finishedSnapshots) {
+            finishedSnapshots.add(snapshot.getMarker());
+        }
+        snapshots.remove(snapshot.getMarker());
+    }
+
+    /**
+     * @param marker of the snapshot
+     * @return whether the snapshot was recorded by the bank recently
+     */
+    public boolean isSnapshotFinished(@NotNull Marker marker) {
+        synchronized (finishedSnapshots) {
+            return finishedSnapshots.contains(marker);
+        }
+    }
+
+    /**
+     * Records the money transfer into all snapshots still waiting for the marker from the sender
+     *
+     * @param senderNodeId sender of the money transfer
+     * @param accountId    credited by the money transfer
+     * @param amount       of the money transfer
      */
-    public void startSnapshotRecording() {
-        snapshot.startSnapshotRecording(id, item.getBalance(), nodes);
+    public void incrementMoneyInTransfer(int senderNodeId, int accountId, int amount) {
+        for (Snapshot snapshot : snapshots.values()) {
+            snapshot.incrementMoneyInTransfer(senderNodeId, accountId, amount);
+        }
     }
 
-    public void stopSnapshotRecording() {
-        StorageUtil.write(this);
-        snapshot.stopSnapshotRecording();
+    /**
+     * Adds nodes of unknown incarnation, used to build the graph in a single JVM
+     *
+     * @param nodes Map<NodeId, Host>
+     */
+    public synchronized void putNodes(@NotNull Map<Integer, String> nodes) {
+        for (Map.Entry<Integer, String> node : nodes.entrySet()) {
+            membership.put(node.getKey(), node.getValue(), 0);
+        }
+        neighbourIds = null;
     }
 
-    public void putNodes(@NotNull Map<Integer, String> nodes) {
-        this.nodes.putAll(nodes);
+    /**
+     * Merges membership received from another node, the overlay is rebuilt on next access if anything changed
+     *
+     * @param membership received from another node
+     * @return number of added or replaced nodes
+     */
+    public synchronized int mergeMembership(@NotNull Membership membership) {
+        int changes = this.membership.merge(membership);
+        if (changes > 0) {
+            neighbourIds = null;
+        }
+        return changes;
+    }
+
+    @NotNull
+    public MembershipTable getMembership() {
+        return membership;
+    }
+
+    public long getIncarnation() {
+        return incarnation;
+    }
+
+    /**
+     * @return sorted ids of neighbours in the overlay, which are both incoming and outgoing channels of the node
+     */
+    @NotNull
+    public int[] getNeighbourIds() {
+        int[] ids = neighbourIds;
+        return ids != null ? ids : buildNeighbourIds();
+    }
+
+    public boolean isNeighbour(int nodeId) {
+        return Arrays.binarySearch(getNeighbourIds(), nodeId) >= 0;
+    }
+
+    /**
+     * Channel sets of snapshots are frozen once they start, so a transfer from a node which has become a neighbour
+     * since then would not be recorded by them
+     *
+     * @return whether the node is a neighbour and an incoming channel of every snapshot being recorded
+     */
+    public boolean isChannel(int nodeId) {
+        if (!isNeighbour(nodeId)) {
+            return false;
+        }
+        for (Snapshot snapshot : snapshots.values()) {
+            if (!snapshot.hasChannel(nodeId)) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    public void putNode(int id, @NotNull String host) {
-        nodes.put(id, host);
+    @NotNull
+    private synchronized int[] buildNeighbourIds() {
+        int[] ids = neighbourIds;
+        if (ids == null) {
+            ids = OverlayUtil.getNeighbourIds(id, membership.getHosts().keySet(), overlayDegree);
+            neighbourIds = ids;
+        }
+        return ids;
     }
 
     @NotNull
@@ -98,7 +296,23 @@ public final class Node implements Serializable {
     }
 
     public Map<Integer, String> getNodes() {
-        return Collections.unmodifiableMap(nodes);
+        return membership.getHosts();
+    }
+
+    /**
+     * @return id and host of the node only
+     */
+    @NotNull
+    public NodeDescriptor getDescriptor() {
+        return new NodeDescriptor(id, host);
+    }
+
+    private Object writeReplace() {
+        return new SerializedForm(this);
+    }
+
+    private void readObject(ObjectInputStream stream) throws InvalidObjectException {
+        throw new InvalidObjectException("Node is deserialized from its serialized form only");
     }
 
     @Override
@@ -126,8 +340,97 @@ public final class Node implements Serializable {
                 .add("id", id)
                 .add("host", host)
                 .add("item", item)
-                .add("snapshot", snapshot)
-                .add("nodes", Arrays.toString(nodes.entrySet().toArray()))
+                .add("snapshots", Arrays.toString(snapshots.values().toArray()))
+                .add("nodes", Arrays.toString(membership.getHosts().entrySet().toArray()))
+                .add("neighbourIds", Arrays.toString(getNeighbourIds()))
                 .toString();
     }
+
+    /**
+     * Serialized form of the node, membership is written as primitives with hosts deduplicated,
+     * as most nodes share few hosts
+     * <p>
+     * Format: {version}{id}{host}{incarnation}{overlay degree}{snapshot sequence}{item}
+     * {host count}{host}...{member count}({node id}{incarnation}{host index})...{snapshot count}{snapshot}...
+     */
+    private static final class SerializedForm implements Externalizable {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final byte VERSION = 1;
+
+        private Node node;
+
+        public SerializedForm() {
+        }
+
+        private SerializedForm(@NotNull Node node) {
+            this.node = node;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeByte(VERSION);
+            out.writeInt(node.id);
+            out.writeUTF(node.host);
+            out.writeLong(node.incarnation);
+            out.writeInt(node.overlayDegree);
+            out.writeInt(node.snapshotSequence.get());
+            out.writeObject(node.item);
+            Membership members = node.membership.getAll();
+            Map<String, Integer> hostIndexes = new LinkedHashMap<>();
+            for (int i = 0; i < members.size(); i++) {
+                hostIndexes.putIfAbsent(members.getHost(i), hostIndexes.size());
+            }
+            out.writeInt(hostIndexes.size());
+            for (String memberHost : hostIndexes.keySet()) {
+                out.writeUTF(memberHost);
+            }
+            out.writeInt(members.size());
+            for (int i = 0; i < members.size(); i++) {
+                out.writeInt(members.getNodeId(i));
+                out.writeLong(members.getIncarnation(i));
+                out.writeInt(hostIndexes.get(members.getHost(i)));
+            }
+            Snapshot[] snapshots = node.snapshots.values().toArray(new Snapshot[0]);
+            out.writeInt(snapshots.length);
+            for (Snapshot snapshot : snapshots) {
+                out.writeObject(snapshot);
+            }
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new InvalidObjectException("Unsupported version=" + version + " of node");
+            }
+            int id = in.readInt();
+            String host = in.readUTF();
+            long incarnation = in.readLong();
+            int overlayDegree = in.readInt();
+            int snapshotSequence = in.readInt();
+            node = new Node(id, host, overlayDegree, incarnation, (Item) in.readObject());
+            node.snapshotSequence.set(snapshotSequence);
+            String[] hosts = new String[in.readInt()];
+            for (int i = 0; i < hosts.length; i++) {
+                hosts[i] = in.readUTF();
+            }
+            int memberCount = in.readInt();
+            for (int i = 0; i < memberCount; i++) {
+                int nodeId = in.readInt();
+                long memberIncarnation = in.readLong();
+                node.membership.put(nodeId, hosts[in.readInt()], memberIncarnation);
+            }
+            int snapshotCount = in.readInt();
+            for (int i = 0; i < snapshotCount; i++) {
+                Snapshot snapshot = (Snapshot) in.readObject();
+                node.snapshots.put(snapshot.getMarker(), snapshot);
+            }
+        }
+
+        private Object readResolve() {
+            return node;
+        }
+    }
 }
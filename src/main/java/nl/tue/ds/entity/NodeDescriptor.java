@@ -0,0 +1,64 @@
+package nl.tue.ds.entity;
+
+import com.google.common.base.MoreObjects;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Id and host of the node without its state, for calls which only need to address the node
+ *
+ * @see Node
+ */
+public final class NodeDescriptor implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int id;
+
+    @NotNull
+    private final String host;
+
+    public NodeDescriptor(int id, @NotNull String host) {
+        this.id = id;
+        this.host = host;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    @NotNull
+    public String getHost() {
+        return host;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        if (o instanceof NodeDescriptor) {
+            NodeDescriptor object = (NodeDescriptor) o;
+
+            return Objects.equals(id, object.id) &&
+                    Objects.equals(host, object.host);
+        }
+
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, host);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("id", id)
+                .add("host", host)
+                .toString();
+    }
+}
@@ -1,86 +1,306 @@
 package nl.tue.ds.entity;
 
 import com.google.common.base.MoreObjects;
+import nl.tue.ds.ServiceConfiguration;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.Serializable;
+import java.io.*;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
- * Distributed Snapshot associated with the node
+ * Record of one distributed snapshot at the node, created upon receiving the first marker of the snapshot
+ * <p>
+ * State of every incoming channel (number of messages and amount of money in transfer) is recorded separately
+ * into primitive arrays indexed by position of the sender in sorted array of channel node ids,
+ * so recording a transfer does not allocate
+ * <p>
+ * Balances of all accounts are captured by copy-on-write of the account table, so recording of the local state
+ * does not copy the accounts while transfers are blocked
+ * <p>
+ * Money in transit is recorded per credited account as well, so the cut can be restored by re-injecting it
  *
  * @see Node
+ * @see Marker
  */
 public final class Snapshot implements Serializable {
 
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Whether individual amounts of transfers are recorded per channel as well
+     */
+    private static final boolean IS_RECORDING_TRANSFERS = ServiceConfiguration.isSnapshotRecordTransfers();
+
+    private static final int[] NO_TRANSFERS = new int[0];
+
+    /**
+     * Identifies the snapshot among other snapshots taken at a same time
+     */
+    @NotNull
+    private final Marker marker;
+
+    /**
+     * Balances of the bank and position of its journal upon receiving the first marker
+     */
+    @NotNull
+    private final Checkpoint checkpoint;
+
+    /**
+     * Sorted ids of nodes of incoming channels, which are neighbours of the node in the overlay
+     */
+    @NotNull
+    private final int[] channelNodeIds;
+
     /**
-     * Sequential number, current snapshot ID to be taken
+     * Number of transfers received on the channel before its marker
      */
-    private int id;
+    @NotNull
+    private final AtomicIntegerArray messageCounts;
 
     /**
-     * Current amount of money at the bank
+     * Money received on the channel before its marker
      */
-    private int localBalance;
+    @NotNull
+    private final AtomicIntegerArray channelAmounts;
 
     /**
-     * All money transfers from incoming channels upon receiving the marker
+     * Money received on all channels before their markers by accounts of the node
      */
-    private int moneyInTransfer;
+    @NotNull
+    private final AccountTable accountsInTransit;
 
     /**
-     * Incoming nodes to be recorded for distributed snapshot
-     * holds only node ids from where the marker has not arrived yet
-     * if collection is empty -> all markers are received
+     * Whether the marker has not arrived from the channel yet (1) or the channel is recorded (0)
      * <p>
-     * Map<NodeId>
+     * Channels are recorded independently of each other, each one is updated only by its own incoming messages
      */
-    private final @NotNull Set<Integer> unrecordedChannels = new HashSet<>();
+    @NotNull
+    private final AtomicIntegerArray isChannelRecording;
 
-    public void startSnapshotRecording(int nodeId, int balance, Map<Integer, String> nodes) {
-        id++;
-        localBalance = balance;
-        moneyInTransfer = 0;
-        unrecordedChannels.addAll(nodes.entrySet().parallelStream().filter(n -> n.getKey() != nodeId).map(Map.Entry::getKey).collect(Collectors.toSet()));
+    /**
+     * Number of channels from where the marker has not arrived yet, if 0 -> all markers are received
+     */
+    @NotNull
+    private final AtomicInteger unrecordedChannels;
+
+    /**
+     * Individual amounts of transfers received on the channel, only if IS_RECORDING_TRANSFERS, guarded by this
+     */
+    @NotNull
+    private final int[][] channelTransfers;
+
+    /**
+     * Whether the last channel was already closed
+     */
+    @NotNull
+    private final AtomicBoolean isCompleted = new AtomicBoolean();
+
+    /**
+     * @param marker         of the snapshot
+     * @param checkpoint     local state of the node upon receiving the first marker
+     * @param channelNodeIds sorted ids of nodes of incoming channels
+     */
+    public Snapshot(@NotNull Marker marker, @NotNull Checkpoint checkpoint, @NotNull int[] channelNodeIds) {
+        this(marker, checkpoint, channelNodeIds, new int[channelNodeIds.length], new int[channelNodeIds.length], new AccountTable(0), allRecording(channelNodeIds.length),
+                new int[IS_RECORDING_TRANSFERS ? channelNodeIds.length : 0][], false);
     }
 
-    public void stopSnapshotRecording() {
-        localBalance = 0;
-        moneyInTransfer = 0;
-        unrecordedChannels.clear();
+    private Snapshot(@NotNull Marker marker, @NotNull Checkpoint checkpoint, @NotNull int[] channelNodeIds, @NotNull int[] messageCounts, @NotNull int[] channelAmounts,
+                     @NotNull AccountTable accountsInTransit, @NotNull int[] isChannelRecording, @NotNull int[][] channelTransfers, boolean isCompleted) {
+        this.marker = marker;
+        this.checkpoint = checkpoint;
+        this.channelNodeIds = channelNodeIds;
+        this.messageCounts = new AtomicIntegerArray(messageCounts);
+        this.channelAmounts = new AtomicIntegerArray(channelAmounts);
+        this.accountsInTransit = accountsInTransit;
+        this.isChannelRecording = new AtomicIntegerArray(isChannelRecording);
+        int unrecorded = 0;
+        for (int isRecording : isChannelRecording) {
+            unrecorded += isRecording;
+        }
+        unrecordedChannels = new AtomicInteger(unrecorded);
+        this.channelTransfers = channelTransfers;
+        this.isCompleted.set(isCompleted);
     }
 
-    public int getId() {
-        return id;
+    @NotNull
+    private static int[] allRecording(int channelCount) {
+        int[] isChannelRecording = new int[channelCount];
+        Arrays.fill(isChannelRecording, 1);
+        return isChannelRecording;
     }
 
-    public int getLocalBalance() {
-        return localBalance;
+    @NotNull
+    public Marker getMarker() {
+        return marker;
     }
 
+    public long getLocalBalance() {
+        return checkpoint.getBalance();
+    }
+
+    /**
+     * @param accountId of the account
+     * @return balance of the account upon receiving the first marker, 0 if the account did not exist
+     */
+    public long getAccountBalance(int accountId) {
+        return checkpoint.getAccounts().get(accountId);
+    }
+
+    /**
+     * @return balances of all accounts upon receiving the first marker, must not be changed
+     */
+    @NotNull
+    public AccountTable getAccounts() {
+        return checkpoint.getAccounts();
+    }
+
+    /**
+     * @return local state of the node upon receiving the first marker, from which its journal can be replayed
+     */
+    @NotNull
+    public Checkpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * @return money in transfer over all incoming channels by credited accounts, must not be changed
+     */
+    @NotNull
+    public AccountTable getAccountsInTransit() {
+        return accountsInTransit;
+    }
+
+    /**
+     * Balances of the accounts in the cut of the snapshot as if money in transfer has been delivered,
+     * meaningful only once all channels are recorded
+     *
+     * @return new table of balances of the accounts with money in transfer added
+     */
+    @NotNull
+    public AccountTable getRestoredAccounts() {
+        AccountTable accounts = checkpoint.getAccounts().copy();
+        accountsInTransit.forEach(accounts::add);
+        return accounts;
+    }
+
+    /**
+     * @return money in transfer over all incoming channels
+     */
     public int getMoneyInTransfer() {
+        int moneyInTransfer = 0;
+        for (int i = 0; i < channelNodeIds.length; i++) {
+            moneyInTransfer += channelAmounts.get(i);
+        }
         return moneyInTransfer;
     }
 
     /**
-     * Increments the money-in-transfer upon receiving the marker from that node
+     * @return number of incoming channels
+     */
+    public int getChannelCount() {
+        return channelNodeIds.length;
+    }
+
+    /**
+     * @param channel index of the channel, from 0 to getChannelCount() exclusive, in ascending order of node ids
+     * @return id of the sender node of the channel
+     */
+    public int getChannelNodeId(int channel) {
+        return channelNodeIds[channel];
+    }
+
+    /**
+     * @param channel index of the channel
+     * @return number of transfers in the channel
+     */
+    public int getMessageCount(int channel) {
+        return messageCounts.get(channel);
+    }
+
+    /**
+     * @param channel index of the channel
+     * @return money in transfer in the channel
+     */
+    public int getChannelAmount(int channel) {
+        return channelAmounts.get(channel);
+    }
+
+    /**
+     * @param channel index of the channel
+     * @return amounts of transfers in the channel, empty unless recording of transfers is enabled
+     */
+    @NotNull
+    public synchronized int[] getChannelTransfers(int channel) {
+        if (!IS_RECORDING_TRANSFERS || channelTransfers[channel] == null) {
+            return NO_TRANSFERS;
+        }
+        return Arrays.copyOf(channelTransfers[channel], Math.min(messageCounts.get(channel), channelTransfers[channel].length));
+    }
+
+    /**
+     * Records the money transfer into the channel if the marker from that node has not arrived yet
      *
-     * @param recipientNodeId recipient of the money transfer
-     * @param amount          of the money transfer
+     * @param senderNodeId sender of the money transfer
+     * @param accountId    credited by the money transfer
+     * @param amount       of the money transfer
      */
-    public void incrementMoneyInTransfer(int recipientNodeId, int amount) {
-        if (unrecordedChannels.contains(recipientNodeId)) {
-            moneyInTransfer += amount;
+    public void incrementMoneyInTransfer(int senderNodeId, int accountId, int amount) {
+        int channel = Arrays.binarySearch(channelNodeIds, senderNodeId);
+        if (channel >= 0 && isChannelRecording.get(channel) == 1) {
+            channelAmounts.addAndGet(channel, amount);
+            accountsInTransit.add(accountId, amount);
+            int count = messageCounts.incrementAndGet(channel);
+            if (IS_RECORDING_TRANSFERS) {
+                recordTransfer(channel, count - 1, amount);
+            }
         }
     }
 
-    public void stopRecording(int nodeId) {
-        unrecordedChannels.remove(nodeId);
+    /**
+     * @return whether the node is the sender of an incoming channel of the snapshot
+     */
+    public boolean hasChannel(int nodeId) {
+        return Arrays.binarySearch(channelNodeIds, nodeId) >= 0;
+    }
+
+    /**
+     * Stops recording the channel from that node upon receiving its marker
+     *
+     * @param nodeId sender of the marker
+     * @return true only for the call which closed the last channel
+     */
+    public boolean stopRecording(int nodeId) {
+        int channel = Arrays.binarySearch(channelNodeIds, nodeId);
+        if (channel >= 0 && isChannelRecording.compareAndSet(channel, 1, 0)) {
+            unrecordedChannels.decrementAndGet();
+        }
+        return unrecordedChannels.get() == 0 && isCompleted.compareAndSet(false, true);
     }
 
     public boolean isRecording() {
-        return unrecordedChannels.size() != 0;
+        return unrecordedChannels.get() != 0;
+    }
+
+    private Object writeReplace() {
+        return new SerializedForm(this);
+    }
+
+    private void readObject(ObjectInputStream stream) throws InvalidObjectException {
+        throw new InvalidObjectException("Snapshot is deserialized from its serialized form only");
+    }
+
+    private synchronized void recordTransfer(int channel, int position, int amount) {
+        int[] transfers = channelTransfers[channel];
+        if (transfers == null) {
+            transfers = channelTransfers[channel] = new int[Math.max(position + 1, 16)];
+        } else if (position >= transfers.length) {
+            transfers = channelTransfers[channel] = Arrays.copyOf(transfers, Math.max(position + 1, transfers.length * 2));
+        }
+        transfers[position] = amount;
     }
 
     @Override
@@ -91,9 +311,9 @@ public final class Snapshot implements Serializable {
         if (o instanceof Snapshot) {
             Snapshot object = (Snapshot) o;
 
-            return Objects.equals(id, object.id) &&
-                    Objects.equals(localBalance, object.localBalance) &&
-                    Objects.equals(moneyInTransfer, object.moneyInTransfer);
+            return Objects.equals(marker, object.marker) &&
+                    Objects.equals(checkpoint, object.checkpoint) &&
+                    Objects.equals(getMoneyInTransfer(), object.getMoneyInTransfer());
         }
 
         return false;
@@ -101,16 +321,108 @@ public final class Snapshot implements Serializable {
 
     @Override
     public int hashCode() {
-        return Objects.hash(id, localBalance, moneyInTransfer);
+        return Objects.hash(marker, checkpoint, getMoneyInTransfer());
     }
 
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
-                .add("id", id)
-                .add("localBalance", localBalance)
-                .add("moneyInTransfer", moneyInTransfer)
-                .add("unrecordedChannels", Arrays.toString(unrecordedChannels.toArray()))
+                .add("marker", marker)
+                .add("localBalance", checkpoint.getBalance())
+                .add("accounts", checkpoint.getAccounts().size())
+                .add("moneyInTransfer", getMoneyInTransfer())
+                .add("unrecordedChannels", unrecordedChannels.get())
                 .toString();
     }
+
+    /**
+     * Serialized form of the snapshot, channel state is written as primitive arrays instead of atomics
+     * <p>
+     * Format: {version}{initiator id}{sequence}{local balance}{journal position}{is completed}{channel count}
+     * ({node id}{message count}{amount}{is recording})...{recorded channels}({transfer count}{amount}...)...
+     * {account count}({account id}{balance})...{account count}({account id}{money in transit})...
+     */
+    private static final class SerializedForm implements Externalizable {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final byte VERSION = 4;
+
+        private Snapshot snapshot;
+
+        public SerializedForm() {
+        }
+
+        private SerializedForm(@NotNull Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            int channelCount = snapshot.channelNodeIds.length;
+            out.writeByte(VERSION);
+            out.writeInt(snapshot.marker.getInitiatorId());
+            out.writeInt(snapshot.marker.getSequence());
+            out.writeLong(snapshot.checkpoint.getBalance());
+            out.writeLong(snapshot.checkpoint.getPosition());
+            out.writeBoolean(snapshot.isCompleted.get());
+            out.writeInt(channelCount);
+            for (int i = 0; i < channelCount; i++) {
+                out.writeInt(snapshot.channelNodeIds[i]);
+                out.writeInt(snapshot.messageCounts.get(i));
+                out.writeInt(snapshot.channelAmounts.get(i));
+                out.writeByte(snapshot.isChannelRecording.get(i));
+            }
+            int recordedChannels = snapshot.channelTransfers.length;
+            out.writeInt(recordedChannels);
+            for (int i = 0; i < recordedChannels; i++) {
+                int[] transfers = snapshot.getChannelTransfers(i);
+                out.writeInt(transfers.length);
+                for (int amount : transfers) {
+                    out.writeInt(amount);
+                }
+            }
+            snapshot.checkpoint.getAccounts().write(out);
+            snapshot.accountsInTransit.write(out);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException {
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new InvalidObjectException("Unsupported version=" + version + " of snapshot");
+            }
+            Marker marker = new Marker(in.readInt(), in.readInt());
+            long localBalance = in.readLong();
+            long position = in.readLong();
+            boolean isCompleted = in.readBoolean();
+            int channelCount = in.readInt();
+            int[] channelNodeIds = new int[channelCount];
+            int[] messageCounts = new int[channelCount];
+            int[] channelAmounts = new int[channelCount];
+            int[] isChannelRecording = new int[channelCount];
+            for (int i = 0; i < channelCount; i++) {
+                channelNodeIds[i] = in.readInt();
+                messageCounts[i] = in.readInt();
+                channelAmounts[i] = in.readInt();
+                isChannelRecording[i] = in.readByte();
+            }
+            int recordedChannels = in.readInt();
+            int[][] channelTransfers = new int[Math.max(recordedChannels, IS_RECORDING_TRANSFERS ? channelCount : 0)][];
+            for (int i = 0; i < recordedChannels; i++) {
+                int[] transfers = new int[in.readInt()];
+                for (int j = 0; j < transfers.length; j++) {
+                    transfers[j] = in.readInt();
+                }
+                channelTransfers[i] = transfers;
+            }
+            Checkpoint checkpoint = new Checkpoint(position, localBalance, AccountTable.read(in));
+            AccountTable accountsInTransit = AccountTable.read(in);
+            snapshot = new Snapshot(marker, checkpoint, channelNodeIds, messageCounts, channelAmounts, accountsInTransit, isChannelRecording, channelTransfers, isCompleted);
+        }
+
+        private Object readResolve() {
+            return snapshot;
+        }
+    }
 }
@@ -0,0 +1,144 @@
+package nl.tue.ds.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets in nanoseconds, same layout as HdrHistogram:
+ * every power of two is split into SUB_BUCKET_COUNT linear sub-buckets, so recorded values are within 12.5%
+ * <p>
+ * Recording is a few atomic increments, safe to call from any number of threads
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Values of 2^MAX_EXPONENT nanoseconds (about 18 minutes) and above are recorded into the last bucket
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    @NotNull
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    @NotNull
+    private final LongAdder totalTime = new LongAdder();
+
+    @NotNull
+    private final LongAdder failures = new LongAdder();
+
+    @NotNull
+    private final AtomicLong maxTime = new AtomicLong();
+
+    /**
+     * Records successful call
+     *
+     * @param nanos duration of the call
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        buckets.incrementAndGet(getBucketIndex(value));
+        totalTime.add(value);
+        long max;
+        while (value > (max = maxTime.get())) {
+            if (maxTime.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Records call, failed calls are counted separately as well
+     *
+     * @param nanos     duration of the call
+     * @param isSuccess whether call succeeded
+     */
+    public void record(long nanos, boolean isSuccess) {
+        record(nanos);
+        if (!isSuccess) {
+            failures.increment();
+        }
+    }
+
+    /**
+     * @return number of recorded calls
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Takes consistent enough view of the histogram, concurrent records may or may not be included
+     */
+    @NotNull
+    public LatencyStats getStats() {
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        long max = maxTime.get();
+        return new LatencyStats(
+                count,
+                failures.sum(),
+                count == 0 ? 0 : toMicros(totalTime.sum()) / count,
+                toMicros(getPercentile(counts, count, max, 50)),
+                toMicros(getPercentile(counts, count, max, 90)),
+                toMicros(getPercentile(counts, count, max, 99)),
+                toMicros(getPercentile(counts, count, max, 99.9)),
+                toMicros(max));
+    }
+
+    /**
+     * @return highest value equivalent to the bucket, where given percentile of values falls into
+     */
+    private static long getPercentile(@NotNull long[] counts, long count, long max, double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max((long) Math.ceil(percentile / 100 * count), 1);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(getBucketHighestValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return Math.min((shift + 1) * SUB_BUCKET_COUNT + subBucket, BUCKET_COUNT - 1);
+    }
+
+    private static long getBucketHighestValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        int subBucket = index % SUB_BUCKET_COUNT;
+        return ((long) (SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+    }
+
+    private static double toMicros(long nanos) {
+        return (double) nanos / TimeUnit.MICROSECONDS.toNanos(1);
+    }
+}
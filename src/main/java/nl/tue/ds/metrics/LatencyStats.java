@@ -0,0 +1,85 @@
+package nl.tue.ds.metrics;
+
+import com.google.common.base.MoreObjects;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Immutable summary of the latency histogram in microseconds, exposed over JMX as composite data
+ *
+ * @see LatencyHistogram
+ */
+public final class LatencyStats {
+
+    private final long count;
+
+    private final long failures;
+
+    private final double meanMicros;
+
+    private final double p50Micros;
+
+    private final double p90Micros;
+
+    private final double p99Micros;
+
+    private final double p999Micros;
+
+    private final double maxMicros;
+
+    @ConstructorProperties({"count", "failures", "meanMicros", "p50Micros", "p90Micros", "p99Micros", "p999Micros", "maxMicros"})
+    public LatencyStats(long count, long failures, double meanMicros, double p50Micros, double p90Micros, double p99Micros, double p999Micros, double maxMicros) {
+        this.count = count;
+        this.failures = failures;
+        this.meanMicros = meanMicros;
+        this.p50Micros = p50Micros;
+        this.p90Micros = p90Micros;
+        this.p99Micros = p99Micros;
+        this.p999Micros = p999Micros;
+        this.maxMicros = maxMicros;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    public double getMeanMicros() {
+        return meanMicros;
+    }
+
+    public double getP50Micros() {
+        return p50Micros;
+    }
+
+    public double getP90Micros() {
+        return p90Micros;
+    }
+
+    public double getP99Micros() {
+        return p99Micros;
+    }
+
+    public double getP999Micros() {
+        return p999Micros;
+    }
+
+    public double getMaxMicros() {
+        return maxMicros;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("count", count)
+                .add("failures", failures)
+                .add("meanMicros", meanMicros)
+                .add("p50Micros", p50Micros)
+                .add("p99Micros", p99Micros)
+                .add("maxMicros", maxMicros)
+                .toString();
+    }
+}
@@ -0,0 +1,171 @@
+package nl.tue.ds.metrics;
+
+import nl.tue.ds.entity.Marker;
+import nl.tue.ds.entity.Node;
+import nl.tue.ds.entity.Snapshot;
+import nl.tue.ds.rmi.SnapshotListener;
+import nl.tue.ds.util.RemoteUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latency histograms of remote calls of the node, per method and per peer node, and duration of its snapshots
+ * <p>
+ * Histograms of served calls are allocated upfront, histograms of peers are allocated on the first call to the peer
+ * and only if per peer metrics are enabled, as the graph may have thousands of nodes
+ *
+ * @see LatencyHistogram
+ * @see NodeMetricsMXBean
+ */
+public final class NodeMetrics implements NodeMetricsMXBean, SnapshotListener {
+
+    private static final RemoteMethod[] METHODS = RemoteMethod.values();
+
+    /**
+     * Calls served by the node, indexed by method ordinal
+     */
+    @NotNull
+    private final LatencyHistogram[] methodLatencies = new LatencyHistogram[METHODS.length];
+
+    /**
+     * Calls made by the node, indexed by method ordinal
+     * <p>
+     * List<Map<PeerNodeId, LatencyHistogram>>
+     */
+    @NotNull
+    private final List<Map<Integer, LatencyHistogram>> peerLatencies = new ArrayList<>(METHODS.length);
+
+    private final boolean isPerPeer;
+
+    @NotNull
+    private final LatencyHistogram snapshotDurations = new LatencyHistogram();
+
+    /**
+     * Map<Marker, StartTimeNanos>
+     */
+    @NotNull
+    private final Map<Marker, Long> snapshotStartTimes = new ConcurrentHashMap<>();
+
+    @Nullable
+    private volatile ObjectName objectName;
+
+    public NodeMetrics(boolean isPerPeer) {
+        this.isPerPeer = isPerPeer;
+        for (int i = 0; i < METHODS.length; i++) {
+            methodLatencies[i] = new LatencyHistogram();
+            peerLatencies.add(new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * Records call served by the node
+     *
+     * @param method    served
+     * @param startTime of the call by System.nanoTime()
+     */
+    public void recordCall(@NotNull RemoteMethod method, long startTime) {
+        methodLatencies[method.ordinal()].record(System.nanoTime() - startTime);
+    }
+
+    /**
+     * Records call made by the node to the peer, no-op if per peer metrics are disabled
+     *
+     * @param method     called
+     * @param peerNodeId called node
+     * @param startTime  of the call by System.nanoTime()
+     * @param isSuccess  whether peer accepted the call
+     */
+    public void recordPeerCall(@NotNull RemoteMethod method, int peerNodeId, long startTime, boolean isSuccess) {
+        if (isPerPeer) {
+            peerLatencies.get(method.ordinal()).computeIfAbsent(peerNodeId, id -> new LatencyHistogram())
+                    .record(System.nanoTime() - startTime, isSuccess);
+        }
+    }
+
+    /**
+     * @param method served
+     * @return number of calls served by the node
+     */
+    public long getCallCount(@NotNull RemoteMethod method) {
+        return methodLatencies[method.ordinal()].getCount();
+    }
+
+    /**
+     * Publishes metrics over platform MBean server
+     *
+     * @param nodeId of the node
+     */
+    public void register(int nodeId) throws Exception {
+        ObjectName name = new ObjectName("nl.tue.ds:type=NodeMetrics,nodeId=" + nodeId);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        objectName = name;
+    }
+
+    public void unregister() throws Exception {
+        ObjectName name = objectName;
+        if (name != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            objectName = null;
+        }
+    }
+
+    @Override
+    public void snapshotStarted(@NotNull Node node, @NotNull Snapshot snapshot) {
+        snapshotStartTimes.put(snapshot.getMarker(), System.nanoTime());
+    }
+
+    @Override
+    public void snapshotCompleted(@NotNull Node node, @NotNull Snapshot snapshot) {
+        Long startTime = snapshotStartTimes.remove(snapshot.getMarker());
+        if (startTime != null) {
+            snapshotDurations.record(System.nanoTime() - startTime);
+        }
+    }
+
+    @Override
+    public void snapshotAbandoned(@NotNull Node node, @NotNull Snapshot snapshot) {
+        snapshotStartTimes.remove(snapshot.getMarker());
+    }
+
+    @Override
+    public Map<String, LatencyStats> getMethodLatencies() {
+        Map<String, LatencyStats> latencies = new TreeMap<>();
+        for (RemoteMethod method : METHODS) {
+            latencies.put(method.getMethodName(), methodLatencies[method.ordinal()].getStats());
+        }
+        return latencies;
+    }
+
+    @Override
+    public Map<String, LatencyStats> getPeerLatencies() {
+        Map<String, LatencyStats> latencies = new TreeMap<>();
+        for (RemoteMethod method : METHODS) {
+            peerLatencies.get(method.ordinal()).forEach((peerNodeId, histogram) ->
+                    latencies.put(method.getMethodName() + "->" + peerNodeId, histogram.getStats()));
+        }
+        return latencies;
+    }
+
+    @Override
+    public LatencyStats getSnapshotDurations() {
+        return snapshotDurations.getStats();
+    }
+
+    @Override
+    public int getSnapshotsInProgress() {
+        return snapshotStartTimes.size();
+    }
+
+    @Override
+    public long getNullNodeRemoteFallbacks() {
+        return RemoteUtil.getNullNodeRemoteFallbacks();
+    }
+}
@@ -0,0 +1,33 @@
+package nl.tue.ds.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of the node metrics, registered as nl.tue.ds:type=NodeMetrics,nodeId={id}
+ *
+ * @see NodeMetrics
+ */
+public interface NodeMetricsMXBean {
+
+    /**
+     * @return latency of remote calls served by the node, keyed by method name
+     */
+    Map<String, LatencyStats> getMethodLatencies();
+
+    /**
+     * @return latency and failures of remote calls made by the node, keyed by {method name}->{peer node id}
+     */
+    Map<String, LatencyStats> getPeerLatencies();
+
+    /**
+     * @return duration of snapshots on the node, from the first marker until markers from all channels are received
+     */
+    LatencyStats getSnapshotDurations();
+
+    int getSnapshotsInProgress();
+
+    /**
+     * @return how many times lookup of remote node failed and NullNodeRemote was used instead, shared by the JVM
+     */
+    long getNullNodeRemoteFallbacks();
+}
@@ -0,0 +1,35 @@
+package nl.tue.ds.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Remote methods of the node measured by NodeMetrics
+ *
+ * @see nl.tue.ds.rmi.NodeServer
+ */
+public enum RemoteMethod {
+    GET_DESCRIPTOR("getDescriptor"),
+    GET_MEMBERSHIP("getMembership"),
+    GOSSIP("gossip"),
+    TRANSFER_MONEY("transferMoney"),
+    ACCEPT_MONEY("acceptMoney"),
+    ACCEPT_MONEY_BATCH("acceptMoneyBatch"),
+    RECEIVE_MARKER("receiveMarker"),
+    RECEIVE_SNAPSHOT_REPORT("receiveSnapshotReport"),
+    PREPARE_RESTORE("prepareRestore"),
+    FINISH_RESTORE("finishRestore"),
+    GET_SNAPSHOT("getSnapshot"),
+    GET_SNAPSHOTS("getSnapshots");
+
+    @NotNull
+    private final String methodName;
+
+    RemoteMethod(@NotNull String methodName) {
+        this.methodName = methodName;
+    }
+
+    @NotNull
+    public String getMethodName() {
+        return methodName;
+    }
+}
@@ -0,0 +1,19 @@
+package nl.tue.ds.rmi;
+
+import nl.tue.ds.entity.Marker;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Notified about results of markers sent over outgoing channels
+ *
+ * @see OutgoingChannel
+ */
+interface MarkerDeliveryListener {
+
+    /**
+     * @param recipientNodeId recipient of the marker
+     * @param marker          of the snapshot
+     * @param isChild         whether it was the first marker received by the recipient, false if it was not delivered
+     */
+    void markerDelivered(int recipientNodeId, @NotNull Marker marker, boolean isChild);
+}
@@ -0,0 +1,205 @@
+package nl.tue.ds.rmi;
+
+import nl.tue.ds.ServiceConfiguration;
+import nl.tue.ds.entity.Membership;
+import nl.tue.ds.entity.MembershipTable;
+import nl.tue.ds.entity.Node;
+import nl.tue.ds.metrics.NodeMetrics;
+import nl.tue.ds.metrics.RemoteMethod;
+import nl.tue.ds.util.RemoteUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Spreads membership changes of the node by gossip (push-pull rumor mongering)
+ * <p>
+ * Every GOSSIP_INTERVAL the node pushes changes of its membership table made during the last RUMOR_ROUNDS rounds
+ * to GOSSIP_FANOUT random nodes, which reply with their own recent changes, so a join reaches all nodes
+ * in O(log N) rounds without any node calling all others
+ * <p>
+ * Without recent changes the node sends an empty probe with the digest of its table to one random node instead,
+ * which replies with its complete table if their tables differ, the node then pushes back nodes missing in the reply,
+ * so changes lost by rumor mongering are repaired (anti-entropy)
+ *
+ * @see MembershipTable
+ */
+final class MembershipGossip {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final int GOSSIP_INTERVAL = ServiceConfiguration.getGossipInterval();
+
+    private static final int GOSSIP_FANOUT = ServiceConfiguration.getGossipFanout();
+
+    private static final int RUMOR_ROUNDS = Math.max(ServiceConfiguration.getGossipRumorRounds(), 1);
+
+    @NotNull
+    private final Node node;
+
+    @NotNull
+    private final NodeMetrics metrics;
+
+    @NotNull
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Sends gossip, so slow nodes do not delay the scheduler
+     */
+    @NotNull
+    private final ExecutorService dispatcher;
+
+    /**
+     * Versions of the membership table at the start of the last RUMOR_ROUNDS rounds, ring indexed by round
+     */
+    @NotNull
+    private final AtomicLongArray roundVersions = new AtomicLongArray(RUMOR_ROUNDS);
+
+    /**
+     * Serializes gossip rounds, which call peers while holding it, so it is not the monitor of the gossip
+     */
+    @NotNull
+    private final Lock roundLock = new ReentrantLock();
+
+    /**
+     * Number of gossip rounds, guarded by roundLock
+     */
+    private long round;
+
+    @Nullable
+    private ScheduledFuture<?> rounds;
+
+    MembershipGossip(@NotNull Node node, @NotNull NodeExecutors executors, @NotNull NodeMetrics metrics) {
+        this.node = node;
+        this.metrics = metrics;
+        scheduler = executors.getScheduler();
+        dispatcher = executors.getMarkerDispatcher();
+        resetRumors();
+    }
+
+    /**
+     * Starts gossip rounds, membership known at this moment is not considered as recent changes
+     */
+    synchronized void start() {
+        if (rounds != null) {
+            return;
+        }
+        resetRumors();
+        rounds = scheduler.scheduleWithFixedDelay(() -> dispatcher.execute(this::gossip), GOSSIP_INTERVAL, GOSSIP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void close() {
+        if (rounds != null) {
+            rounds.cancel(false);
+            rounds = null;
+        }
+    }
+
+    /**
+     * @return changes of membership made during the last RUMOR_ROUNDS rounds
+     */
+    @NotNull
+    Membership getRumors() {
+        long sinceVersion = Long.MAX_VALUE;
+        for (int i = 0; i < RUMOR_ROUNDS; i++) {
+            sinceVersion = Math.min(sinceVersion, roundVersions.get(i));
+        }
+        return node.getMembership().getSince(sinceVersion);
+    }
+
+    /**
+     * Merges membership received from another node, evicting stubs of nodes which moved to another host
+     *
+     * @param membership received from another node
+     */
+    void merge(@NotNull Membership membership) {
+        if (membership.isEmpty()) {
+            return;
+        }
+        List<String> previousHosts = new ArrayList<>(membership.size());
+        for (int i = 0; i < membership.size(); i++) {
+            previousHosts.add(node.getNodes().get(membership.getNodeId(i)));
+        }
+        int changes = node.mergeMembership(membership);
+        if (changes > 0) {
+            for (int i = 0; i < membership.size(); i++) {
+                String previousHost = previousHosts.get(i);
+                if (previousHost != null && !previousHost.equals(node.getNodes().get(membership.getNodeId(i)))) {
+                    RemoteUtil.evictRemoteNode(membership.getNodeId(i), previousHost);
+                }
+            }
+            logger.debug("Merged membership changes=" + changes + ", known nodes=" + node.getNodes().size());
+        }
+    }
+
+    private void resetRumors() {
+        long version = node.getMembership().getVersion();
+        for (int i = 0; i < RUMOR_ROUNDS; i++) {
+            roundVersions.set(i, version);
+        }
+    }
+
+    /**
+     * Runs one round of gossip by the dispatcher thread
+     */
+    private void gossip() {
+        roundLock.lock();
+        try {
+            int slot = (int) (round++ % RUMOR_ROUNDS);
+            long version = node.getMembership().getVersion();
+            Membership rumors = getRumors();
+            roundVersions.set(slot, version);
+            List<Integer> peerIds = getRandomPeers(rumors.isEmpty() ? 1 : GOSSIP_FANOUT);
+            for (int peerId : peerIds) {
+                gossip(peerId, rumors);
+            }
+        } catch (Exception e) {
+            logger.error("Failed gossip round of nodeId=" + node.getId(), e);
+        } finally {
+            roundLock.unlock();
+        }
+    }
+
+    private void gossip(int peerId, @NotNull Membership rumors) {
+        String peerHost = node.getNodes().get(peerId);
+        long startTime = System.nanoTime();
+        try {
+            NodeServer peer = RemoteUtil.getRemoteNode(peerId, peerHost);
+            Membership reply = peer.gossip(node.getId(), rumors, node.getMembership().getDigest());
+            merge(reply);
+            if (reply.isComplete()) {
+                Membership missing = node.getMembership().getMissing(reply);
+                if (!missing.isEmpty()) {
+                    logger.debug("Repairing membership of nodeId=" + peerId + " by missing nodes=" + missing.size());
+                    merge(peer.gossip(node.getId(), missing, node.getMembership().getDigest()));
+                }
+            }
+            metrics.recordPeerCall(RemoteMethod.GOSSIP, peerId, startTime, true);
+        } catch (RemoteException e) {
+            metrics.recordPeerCall(RemoteMethod.GOSSIP, peerId, startTime, false);
+            logger.debug("Failed to gossip to nodeId=" + peerId, e);
+            RemoteUtil.evictRemoteNode(peerId, peerHost);
+        }
+    }
+
+    @NotNull
+    private List<Integer> getRandomPeers(int count) {
+        List<Integer> peerIds = new ArrayList<>(node.getNodes().keySet());
+        peerIds.remove(Integer.valueOf(node.getId()));
+        Collections.shuffle(peerIds);
+        return peerIds.subList(0, Math.min(count, peerIds.size()));
+    }
+}
@@ -0,0 +1,188 @@
+package nl.tue.ds.rmi;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import nl.tue.ds.BankTransfer;
+import nl.tue.ds.ServiceConfiguration;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+/**
+ * Threads of the node for flushing outgoing channels and broadcasting markers
+ * <p>
+ * Every node started by ServerLauncher has its own executors,
+ * while nodes simulated in the same JVM share one instance to keep number of threads bounded
+ * <p>
+ * In VIRTUAL mode dispatchers start virtual thread per task instead of queueing tasks for a bounded pool,
+ * virtual threads are created by reflection, so the project still builds and runs on JDK 8
+ *
+ * @see ThreadMode
+ * @see NodeRemote
+ * @see TransferBatcher
+ */
+public final class NodeExecutors {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final int MARKER_DISPATCH_QUEUE_CAPACITY = 16 * 1024;
+
+    /**
+     * Thread.ofVirtual(), null if virtual threads are not supported by the JDK
+     */
+    @Nullable
+    private static final Method OF_VIRTUAL = getVirtualThreadMethod();
+
+    /**
+     * Triggers flush of channels every BATCH_WINDOW
+     */
+    @NotNull
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Sends batches, so a slow recipient does not stall other channels
+     */
+    @NotNull
+    private final ExecutorService transferDispatcher;
+
+    /**
+     * Flushes outgoing channels with markers
+     */
+    @NotNull
+    private final ExecutorService markerDispatcher;
+
+    private NodeExecutors(@NotNull ScheduledExecutorService scheduler, @NotNull ExecutorService transferDispatcher, @NotNull ExecutorService markerDispatcher) {
+        this.scheduler = scheduler;
+        this.transferDispatcher = transferDispatcher;
+        this.markerDispatcher = markerDispatcher;
+    }
+
+    /**
+     * Creates executors sized by service configuration
+     * <p>
+     * Marker queue is bounded, so if dispatcher falls behind the marker is flushed by the receiving thread itself
+     */
+    @NotNull
+    public static NodeExecutors create() {
+        return create(BankTransfer.DISPATCH_THREADS, ServiceConfiguration.getMarkerDispatchThreads(), MARKER_DISPATCH_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Creates executors of the given size in the thread mode of service configuration
+     *
+     * @param transferThreads       number of threads sending batches
+     * @param markerThreads         number of threads broadcasting markers
+     * @param markerQueueCapacity   maximal number of markers waiting for broadcast
+     */
+    @NotNull
+    public static NodeExecutors create(int transferThreads, int markerThreads, int markerQueueCapacity) {
+        return create(transferThreads, markerThreads, markerQueueCapacity, ThreadMode.valueOf(ServiceConfiguration.getThreadMode()));
+    }
+
+    /**
+     * Creates executors of the given size, sizes are ignored by VIRTUAL mode
+     *
+     * @param transferThreads       number of threads sending batches
+     * @param markerThreads         number of threads broadcasting markers
+     * @param markerQueueCapacity   maximal number of markers waiting for broadcast
+     * @param threadMode            of dispatchers
+     */
+    @NotNull
+    public static NodeExecutors create(int transferThreads, int markerThreads, int markerQueueCapacity, @NotNull ThreadMode threadMode) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(newThreadFactory("transfer-batcher-%d"));
+        if (getThreadMode(threadMode) == ThreadMode.VIRTUAL) {
+            return new NodeExecutors(scheduler, newVirtualExecutor("transfer-dispatcher-"), newVirtualExecutor("marker-dispatcher-"));
+        }
+        return new NodeExecutors(
+                scheduler,
+                Executors.newFixedThreadPool(transferThreads, newThreadFactory("transfer-dispatcher-%d")),
+                new ThreadPoolExecutor(markerThreads, markerThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(markerQueueCapacity),
+                        newThreadFactory("marker-dispatcher-%d"), new ThreadPoolExecutor.CallerRunsPolicy()));
+    }
+
+    /**
+     * Creates executor of blocking tasks: fixed pool of daemon platform threads or virtual thread per task
+     *
+     * @param threadMode of the executor
+     * @param threads    number of platform threads, ignored by VIRTUAL mode
+     * @param namePrefix of threads, followed by their number
+     */
+    @NotNull
+    public static ExecutorService newExecutor(@NotNull ThreadMode threadMode, int threads, @NotNull String namePrefix) {
+        return getThreadMode(threadMode) == ThreadMode.VIRTUAL
+                ? newVirtualExecutor(namePrefix)
+                : Executors.newFixedThreadPool(threads, newThreadFactory(namePrefix + "%d"));
+    }
+
+    /**
+     * @param threadMode requested thread mode
+     * @return the requested thread mode or PLATFORM if virtual threads are not supported by the JDK
+     */
+    @NotNull
+    public static ThreadMode getThreadMode(@NotNull ThreadMode threadMode) {
+        if (threadMode == ThreadMode.VIRTUAL && OF_VIRTUAL == null) {
+            logger.warn("Virtual threads are not supported by JDK " + System.getProperty("java.version") + ", using platform threads");
+            return ThreadMode.PLATFORM;
+        }
+        return threadMode;
+    }
+
+    @NotNull
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    @NotNull
+    ExecutorService getTransferDispatcher() {
+        return transferDispatcher;
+    }
+
+    @NotNull
+    ExecutorService getMarkerDispatcher() {
+        return markerDispatcher;
+    }
+
+    /**
+     * Stops all threads, queued tasks are discarded
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        transferDispatcher.shutdownNow();
+        markerDispatcher.shutdownNow();
+    }
+
+    @NotNull
+    private static ThreadFactory newThreadFactory(@NotNull String nameFormat) {
+        return new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build();
+    }
+
+    /**
+     * Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix, 0).factory())
+     */
+    @NotNull
+    private static ExecutorService newVirtualExecutor(@NotNull String namePrefix) {
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            Class<?> builderClass = OF_VIRTUAL.getReturnType();
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to create virtual thread executor", e);
+        }
+    }
+
+    @Nullable
+    private static Method getVirtualThreadMethod() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            ofVirtual.invoke(null);
+            return ofVirtual;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -1,150 +1,937 @@
 package nl.tue.ds.rmi;
 
+import com.google.common.util.concurrent.Striped;
+import nl.tue.ds.BankTransfer;
+import nl.tue.ds.ServiceConfiguration;
+import nl.tue.ds.entity.AccountTable;
+import nl.tue.ds.entity.GlobalSnapshot;
+import nl.tue.ds.entity.Marker;
+import nl.tue.ds.entity.Membership;
 import nl.tue.ds.entity.Node;
+import nl.tue.ds.entity.NodeDescriptor;
 import nl.tue.ds.entity.Snapshot;
+import nl.tue.ds.metrics.NodeMetrics;
+import nl.tue.ds.metrics.RemoteMethod;
+import nl.tue.ds.storage.PendingTransfer;
+import nl.tue.ds.storage.RecoveredState;
+import nl.tue.ds.storage.SnapshotRecord;
 import nl.tue.ds.util.RemoteUtil;
+import nl.tue.ds.util.StorageUtil;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
 import java.rmi.RemoteException;
-import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
- * Provides an access to remote node via RMI
+ * Provides an access to remote node via RMI or other transport
  * <p>
- * Uses read/write locks for manipulation with internal data structure of the node in case of multiple requests
+ * Uses read/write locks striped by peer node id for manipulation with internal data structure of the node
+ * in case of multiple requests, each instance of the node has its own locks
  * <p>
- * Read Lock: multiple readers can enter, if not locked for writing
- * Write Lock: only one writer can enter, if not locked for reading
+ * Read Lock: transfers and accepts on the channel to/from the peer, channels of different stripes never contend
+ * Write Lock: taken over all stripes only to record the local state of a new snapshot
+ * <p>
+ * Rejected transfers are rolled back under the read lock of their channel as well, see OutgoingChannel
+ * <p>
+ * Balances are updated under no channel lock, with the transfer log on changes are serialized by the monitor
+ * of the journal only, so they are logged in the order they were applied, see Item
+ * <p>
+ * Amounts must be positive and accounts within [0, BankTransfer.ACCOUNTS), invalid transfers are refused
+ * and invalid batches are rejected as a whole before any of their transfers is credited
+ * <p>
+ * Accepted money is made durable in the transfer log (group commit) before replying to the sender, after the read lock
+ * is released, so waiting for the disk never delays recording of snapshots, see StorageUtil.syncTransfers
+ * <p>
+ * Batches resent by the sender after an unknown outcome are deduplicated by batch id, see acceptMoneyBatch(),
+ * credited batch ids are journaled together with the credited money, so a restarted node keeps deduplicating them
+ * <p>
+ * Restarted node restores its transfers in progress from the transfer log, see recover()
+ * <p>
+ * Every served call is timed into NodeMetrics
+ * <p>
+ * Local states of the snapshot are collected by the initiator along the spanning tree of the marker wave,
+ * see SnapshotAggregation. Snapshot not finished within the snapshot timeout is abandoned and partial state of the subtree
+ * is reported, so a failed node never leaves snapshots and their aggregations in memory forever
+ * <p>
+ * The node is rolled back to the cut of a snapshot from its restore point in two phases, see restore()
+ * <p>
+ * History of snapshots is queried from snapshot logs of all known nodes in parallel, see querySnapshot()
  *
  * @see Node
+ * @see nl.tue.ds.transport.Transport
+ * @see com.google.common.util.concurrent.Striped
  * @see java.util.concurrent.locks.ReadWriteLock
- * @see java.util.concurrent.locks.ReentrantReadWriteLock
  */
-public final class NodeRemote extends UnicastRemoteObject implements NodeServer {
+public final class NodeRemote implements NodeServer {
 
     private static final Logger logger = LogManager.getLogger();
 
+    private static final int CHANNEL_LOCK_STRIPES = 64;
+
+    /**
+     * Number of times per snapshot timeout unfinished snapshots are checked for expiry
+     */
+    private static final int SNAPSHOT_EXPIRY_CHECKS = 4;
+
+    /**
+     * Locks operations over the channels to/from peer nodes
+     */
+    @NotNull
+    private final Striped<ReadWriteLock> channelLocks = Striped.readWriteLock(CHANNEL_LOCK_STRIPES);
+
+    @NotNull
+    private final Node node;
+
     /**
-     * Locks operations over the nodes
+     * Transfers sent, but not yet accepted by recipients
      */
-    private static final ReadWriteLock nodesLock = new ReentrantReadWriteLock();
+    @NotNull
+    private final TransferLedger transferLedger;
 
     /**
-     * Locks operations over the item
+     * Id of the last batch credited per sender, its monitor serializes crediting of batches from the sender,
+     * so a batch resent while the first attempt is still being credited is not credited twice
+     * <p>
+     * Map<SenderNodeId, LastBatchId>
      */
-    private static final ReadWriteLock itemTransferLock = new ReentrantReadWriteLock();
+    @NotNull
+    private final Map<Integer, AtomicLong> lastBatchIds = new ConcurrentHashMap<>();
 
     /**
-     * Locks operations over the item
+     * Outgoing channels of the node for transfers and markers
      */
-    private static final ReadWriteLock itemAcceptLock = new ReentrantReadWriteLock();
+    @NotNull
+    private final TransferBatcher transferBatcher;
 
     /**
-     * Locks operations over the marker
+     * Flushes outgoing channels with markers, shared by all snapshots of the node
      */
-    private static final ReadWriteLock markerLock = new ReentrantReadWriteLock();
+    @NotNull
+    private final ExecutorService markerDispatcher;
 
+    /**
+     * Convergecasts of snapshots, which partial states are not reported to the parent yet
+     */
     @NotNull
-    private final Node node;
+    private final Map<Marker, SnapshotAggregation> aggregations = new ConcurrentHashMap<>();
+
+    /**
+     * Time after which unfinished snapshot is abandoned, 0 if never
+     */
+    private final long snapshotTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(ServiceConfiguration.getSnapshotTimeout());
+
+    /**
+     * Periodic expiry of unfinished snapshots, cancelled once the node is closed, null if snapshots never expire
+     */
+    @Nullable
+    private final ScheduledFuture<?> expiryTask;
 
-    public NodeRemote(@NotNull Node node) throws RemoteException {
+    /**
+     * Spreads membership changes of the node once started
+     */
+    @NotNull
+    private final MembershipGossip membershipGossip;
+
+    /**
+     * Latency of served and outgoing calls, notified about snapshots of the node as well
+     */
+    @NotNull
+    private final NodeMetrics metrics;
+
+    /**
+     * Notified about snapshots of the node
+     */
+    @NotNull
+    private final List<SnapshotListener> snapshotListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Restore point loaded by prepareRestore, transfers of the node are stopped while it is set,
+     * changed under write locks of all stripes
+     */
+    @Nullable
+    private volatile PreparedRestore preparedRestore;
+
+    public NodeRemote(@NotNull Node node) {
+        this(node, NodeExecutors.create());
+    }
+
+    public NodeRemote(@NotNull Node node, @NotNull NodeExecutors executors) {
+        this(node, executors, new NodeMetrics(true));
+    }
+
+    public NodeRemote(@NotNull Node node, @NotNull NodeExecutors executors, @NotNull NodeMetrics metrics) {
         this.node = node;
+        this.metrics = metrics;
+        transferLedger = new TransferLedger(node.getItem());
+        transferBatcher = new TransferBatcher(node, transferLedger, executors, metrics, this::markerDelivered, channelLocks);
+        markerDispatcher = executors.getMarkerDispatcher();
+        membershipGossip = new MembershipGossip(node, executors, metrics);
+        snapshotListeners.add(metrics);
+        long expiryInterval = snapshotTimeoutNanos / SNAPSHOT_EXPIRY_CHECKS;
+        expiryTask = expiryInterval > 0
+                ? executors.getScheduler().scheduleWithFixedDelay(this::expireSnapshots, expiryInterval, expiryInterval, TimeUnit.NANOSECONDS)
+                : null;
     }
 
     @NotNull
-    @Override
-    public Node getNode() throws RemoteException {
-        logger.debug("Get node=" + node);
+    public NodeMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void addSnapshotListener(@NotNull SnapshotListener snapshotListener) {
+        snapshotListeners.add(snapshotListener);
+    }
+
+    /**
+     * Starts gossiping membership of the node, once the node has joined the graph
+     */
+    public void startGossip() {
+        membershipGossip.start();
+    }
+
+    /**
+     * Stops periodic work of the node, outgoing channels are flushed for the last time and membership is no longer gossiped
+     */
+    public void close() {
+        if (expiryTask != null) {
+            expiryTask.cancel(false);
+        }
+        membershipGossip.close();
+        transferBatcher.close();
+    }
+
+    /**
+     * Restores transfers of the previous instance of the node recovered from its transfer log, must be called
+     * before the node is bound:
+     * - batches credited from senders are deduplicated as before
+     * - withdrawals never sent are rolled back, as no recipient has got them
+     * - batches sent with unknown outcome are queued to be resent with the same ids, see resendTransfers()
+     *
+     * @param state recovered from the transfer log
+     */
+    public void recover(@NotNull RecoveredState state) {
+        state.getLastBatchIds().forEach((senderNodeId, batchId) -> lastBatchIds.put(senderNodeId, new AtomicLong(batchId)));
+        transferLedger.recover(state.getLastTransferId(), state.getPendingTransfers());
+        List<Long> unsentTransferIds = new ArrayList<>();
+        Map<Integer, Map<Long, List<PendingTransfer>>> sentBatches = new TreeMap<>();
+        for (PendingTransfer transfer : state.getPendingTransfers()) {
+            if (transfer.getBatchId() == 0) {
+                unsentTransferIds.add(transfer.getTransferId());
+            } else {
+                sentBatches.computeIfAbsent(transfer.getRecipientNodeId(), id -> new TreeMap<>())
+                        .computeIfAbsent(transfer.getBatchId(), id -> new ArrayList<>()).add(transfer);
+            }
+        }
+        transferLedger.rollback(unsentTransferIds.stream().mapToLong(Long::longValue).toArray());
+        sentBatches.forEach((recipientNodeId, batches) -> batches.forEach((batchId, transfers) -> transferBatcher.enqueueRecovered(recipientNodeId, batchId, transfers)));
+        StorageUtil.syncTransfers(node.getId());
+        logger.info("Recovered credited senders=" + state.getLastBatchIds().size() + ", rolled back unsent transfers=" + unsentTransferIds.size()
+                + ", transfers to resend=" + (state.getPendingTransfers().size() - unsentTransferIds.size()));
+    }
+
+    /**
+     * Resends batches recovered with unknown outcome, once the node has joined the graph and knows their recipients
+     */
+    public void resendTransfers() {
+        transferBatcher.flushAll();
+    }
+
+    /**
+     * @return the node itself, for the process serving it only, other nodes address it by its descriptor
+     */
+    @NotNull
+    public Node getNode() {
         return node;
     }
 
+    @NotNull
+    @Override
+    public NodeDescriptor getDescriptor() throws RemoteException {
+        long startTime = System.nanoTime();
+        NodeDescriptor descriptor = node.getDescriptor();
+        metrics.recordCall(RemoteMethod.GET_DESCRIPTOR, startTime);
+        return descriptor;
+    }
+
+    @NotNull
     @Override
-    public void addNode(int id, @NotNull String host) throws RemoteException {
-        nodesLock.writeLock().lock();
+    public Membership getMembership() throws RemoteException {
+        long startTime = System.nanoTime();
+        Membership membership = node.getMembership().getAll();
+        logger.debug("Get membership=" + membership);
+        metrics.recordCall(RemoteMethod.GET_MEMBERSHIP, startTime);
+        return membership;
+    }
+
+    @NotNull
+    @Override
+    public Membership gossip(int senderNodeId, @NotNull Membership delta, long digest) throws RemoteException {
+        long startTime = System.nanoTime();
+        logger.trace("Gossip delta=" + delta + " from senderNodeId=" + senderNodeId);
+        membershipGossip.merge(delta);
+        Membership reply = delta.isEmpty() && digest != node.getMembership().getDigest() ? node.getMembership().getAll() : membershipGossip.getRumors();
+        metrics.recordCall(RemoteMethod.GOSSIP, startTime);
+        return reply;
+    }
+
+    /**
+     * Withdraws the amount from the account into the ledger and queues it to the account of the recipient
+     * <p>
+     * Read lock only excludes concurrent recording of the local state, so any number of transfers can be outstanding
+     * <p>
+     * Recipient must be a neighbour in the overlay, otherwise the transfer would not be recorded by snapshots
+     */
+    @Override
+    public void transferMoney(int accountId, int recipientNodeId, int recipientAccountId, int amount) throws RemoteException {
+        long startTime = System.nanoTime();
+        if (!isAccount(accountId) || !isAccount(recipientAccountId) || amount <= 0) {
+            logger.warn("NOT Transfer invalid amount=" + amount + " from accountId=" + accountId + " to recipientAccountId=" + recipientAccountId);
+            metrics.recordCall(RemoteMethod.TRANSFER_MONEY, startTime);
+            return;
+        }
+        if (!node.isNeighbour(recipientNodeId)) {
+            logger.debug("NOT Transfer to recipientNodeId=" + recipientNodeId + ", which is not a neighbour");
+            metrics.recordCall(RemoteMethod.TRANSFER_MONEY, startTime);
+            return;
+        }
+        boolean isBatchFull;
+        Lock lock = channelLocks.get(recipientNodeId).readLock();
+        lock.lock();
         try {
-            logger.debug("Add id=" + id + ", host=" + host);
-            node.putNode(id, host);
-            logger.debug("Current nodes=" + Arrays.toString(node.getNodes().entrySet().toArray()));
+            long transferId = preparedRestore == null ? transferLedger.withdraw(accountId, amount, recipientNodeId, recipientAccountId) : TransferLedger.NO_TRANSFER;
+            if (transferId == TransferLedger.NO_TRANSFER) {
+                logger.trace("NOT Withdraw money amount=" + amount + " from accountId=" + accountId);
+                isBatchFull = false;
+            } else {
+                logger.trace("Queueing transferId=" + transferId + " of amount=" + amount + " to recipientNodeId=" + recipientNodeId + ", recipientAccountId=" + recipientAccountId);
+                isBatchFull = transferBatcher.enqueueTransfer(recipientNodeId, transferId, recipientAccountId, amount);
+            }
         } finally {
-            nodesLock.writeLock().unlock();
+            lock.unlock();
         }
+        if (isBatchFull) {
+            transferBatcher.requestFlush(recipientNodeId);
+        }
+        metrics.recordCall(RemoteMethod.TRANSFER_MONEY, startTime);
     }
 
+    /**
+     * Money from a node, which is not an incoming channel of the node and of all its snapshots being recorded,
+     * is rejected (so the sender rolls it back), as no snapshot would record it in transit
+     */
     @Override
-    public void transferMoney(int recipientNodeId, int amount) throws RemoteException {
-        itemTransferLock.writeLock().lock();
+    public boolean acceptMoney(int senderNodeId, int accountId, int amount) throws RemoteException {
+        long startTime = System.nanoTime();
+        if (!isAccount(accountId) || amount <= 0) {
+            logger.warn("NOT Accepting invalid amount=" + amount + " to accountId=" + accountId + " from senderNodeId=" + senderNodeId);
+            metrics.recordCall(RemoteMethod.ACCEPT_MONEY, startTime);
+            return false;
+        }
+        boolean isAccepted;
+        Lock lock = channelLocks.get(senderNodeId).readLock();
+        lock.lock();
         try {
-            boolean isWithdraw = node.getItem().decrementBalance(amount);
-            if (isWithdraw) {
-                logger.trace("Transferring amount=" + amount + " to recipientNodeId=" + recipientNodeId);
-                boolean isAccepted = RemoteUtil.getRemoteNode(recipientNodeId, node.getNodes().get(recipientNodeId)).acceptMoney(node.getId(), amount);
-                if (isAccepted) {
-                    logger.trace("Transferred amount=" + amount + " to recipientNodeId=" + recipientNodeId);
+            if (!node.isChannel(senderNodeId)) {
+                logger.debug("NOT Accepting money amount=" + amount + " from senderNodeId=" + senderNodeId + ", which is not an incoming channel");
+                isAccepted = false;
+            } else if (preparedRestore == null) {
+                logger.trace("Accepting money amount=" + amount + " from senderNodeId=" + senderNodeId + " to accountId=" + accountId);
+                node.incrementMoneyInTransfer(senderNodeId, accountId, amount);
+                node.getItem().incrementBalance(accountId, amount);
+                isAccepted = true;
+                logger.trace("Accepted, new balance=" + node.getItem().getBalance());
+            } else {
+                logger.trace("NOT Accepting money amount=" + amount + " from senderNodeId=" + senderNodeId + " while restoring");
+                isAccepted = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (isAccepted) {
+            StorageUtil.syncTransfers(node.getId());
+        }
+        metrics.recordCall(RemoteMethod.ACCEPT_MONEY, startTime);
+        return isAccepted;
+    }
+
+    /**
+     * Already credited batch is acknowledged even while restoring, as rejecting it would make the sender roll back
+     * money the node has got. Other batches from a node, which is not an incoming channel, are rejected, see acceptMoney()
+     */
+    @Override
+    public boolean acceptMoneyBatch(int senderNodeId, long batchId, @NotNull int[] accountIds, @NotNull int[] amounts) throws RemoteException {
+        long startTime = System.nanoTime();
+        if (!isValidBatch(accountIds, amounts)) {
+            logger.warn("NOT Accepting invalid batchId=" + batchId + " of amounts=" + amounts.length + " from senderNodeId=" + senderNodeId);
+            metrics.recordCall(RemoteMethod.ACCEPT_MONEY_BATCH, startTime);
+            return false;
+        }
+        boolean isAccepted;
+        AtomicLong lastBatchId = lastBatchIds.computeIfAbsent(senderNodeId, id -> new AtomicLong());
+        Lock lock = channelLocks.get(senderNodeId).readLock();
+        lock.lock();
+        try {
+            synchronized (lastBatchId) {
+                if (batchId <= lastBatchId.get()) {
+                    logger.debug("Acknowledging again batchId=" + batchId + " from senderNodeId=" + senderNodeId + ", credited before");
+                    isAccepted = true;
+                } else if (!node.isChannel(senderNodeId)) {
+                    logger.debug("NOT Accepting batchId=" + batchId + " from senderNodeId=" + senderNodeId + ", which is not an incoming channel");
+                    isAccepted = false;
+                } else if (preparedRestore == null) {
+                    logger.trace("Accepting batchId=" + batchId + " of amounts=" + amounts.length + " from senderNodeId=" + senderNodeId);
+                    for (int i = 0; i < amounts.length; i++) {
+                        node.incrementMoneyInTransfer(senderNodeId, accountIds[i], amounts[i]);
+                    }
+                    node.getItem().credit(senderNodeId, batchId, accountIds, amounts);
+                    lastBatchId.set(batchId);
+                    isAccepted = true;
+                    logger.trace("Accepted, new balance=" + node.getItem().getBalance());
                 } else {
-                    node.getItem().restoreBalance();
-                    logger.trace("NOT Transferred amount=" + amount + " to recipientNodeId=" + recipientNodeId);
+                    logger.trace("NOT Accepting batch of amounts=" + amounts.length + " from senderNodeId=" + senderNodeId + " while restoring");
+                    isAccepted = false;
                 }
-            } else {
-                logger.trace("NOT Withdraw money amount=" + amount);
             }
         } finally {
-            itemTransferLock.writeLock().unlock();
+            lock.unlock();
         }
+        if (isAccepted) {
+            StorageUtil.syncTransfers(node.getId());
+        }
+        metrics.recordCall(RemoteMethod.ACCEPT_MONEY_BATCH, startTime);
+        return isAccepted;
+    }
+
+    /**
+     * Records the local state of a new snapshot under write locks of all stripes, while the rest of marker handling,
+     * broadcasting markers and persisting the snapshot are done without locks
+     * <p>
+     * Sender of the first marker becomes the parent of the node in the spanning tree of the snapshot
+     * <p>
+     * Markers are sent only to neighbours in the overlay, so the snapshot costs a marker per overlay edge
+     * <p>
+     * Marker of a recently finished snapshot is ignored, so a node which was not an incoming channel of the snapshot
+     * when it started cannot start it again
+     */
+    @Override
+    public boolean receiveMarker(int nodeId, @NotNull Marker marker) throws RemoteException {
+        long startTime = System.nanoTime();
+        logger.debug("Received marker=" + marker + " from nodeId=" + nodeId);
+        boolean isFirst = false;
+        List<Integer> recipientNodeIds = Collections.emptyList();
+        @Nullable Snapshot snapshot = node.getSnapshot(marker);
+        if (snapshot == null && !node.isSnapshotFinished(marker)) {
+            lockAllChannels();
+            try {
+                snapshot = node.getSnapshot(marker);
+                if (snapshot == null && !node.isSnapshotFinished(marker)) {
+                    snapshot = node.startSnapshotRecording(marker);
+                    for (SnapshotListener snapshotListener : snapshotListeners) {
+                        snapshotListener.snapshotStarted(node, snapshot);
+                    }
+                    // markers go to the channels the snapshot has started with, even if the overlay changes meanwhile
+                    int channelCount = snapshot.getChannelCount();
+                    // concurrent flush of a full batch may deliver the marker as soon as it is queued
+                    aggregations.put(marker, new SnapshotAggregation(marker, nodeId, channelCount));
+                    recipientNodeIds = new ArrayList<>(channelCount);
+                    for (int i = 0; i < channelCount; i++) {
+                        transferBatcher.enqueueMarker(snapshot.getChannelNodeId(i), marker);
+                        recipientNodeIds.add(snapshot.getChannelNodeId(i));
+                    }
+                    isFirst = true;
+                }
+            } finally {
+                unlockAllChannels();
+            }
+        }
+        if (snapshot == null) {
+            logger.debug("Ignored late marker=" + marker + " from nodeId=" + nodeId + ", which is not a channel of the finished snapshot");
+            metrics.recordCall(RemoteMethod.RECEIVE_MARKER, startTime);
+            return false;
+        }
+        broadcastMarker(recipientNodeIds, marker);
+        if (snapshot.stopRecording(nodeId)) {
+            logger.debug("Received all markers for snapshot=" + marker + " on nodeId=" + node.getId());
+            if (logger.isTraceEnabled()) {
+                for (int i = 0; i < snapshot.getChannelCount(); i++) {
+                    if (snapshot.getMessageCount(i) > 0) {
+                        logger.trace("Recorded channel from nodeId=" + snapshot.getChannelNodeId(i) + " of snapshot=" + marker + ": messages=" + snapshot.getMessageCount(i)
+                                + ", amount=" + snapshot.getChannelAmount(i) + ", transfers=" + Arrays.toString(snapshot.getChannelTransfers(i)));
+                    }
+                }
+            }
+            node.stopSnapshotRecording(snapshot);
+            StorageUtil.write(node, snapshot);
+            for (SnapshotListener snapshotListener : snapshotListeners) {
+                snapshotListener.snapshotCompleted(node, snapshot);
+            }
+            SnapshotAggregation aggregation = aggregations.get(marker);
+            if (aggregation != null && aggregation.localCompleted(GlobalSnapshot.of(snapshot))) {
+                report(aggregation);
+            }
+        }
+        metrics.recordCall(RemoteMethod.RECEIVE_MARKER, startTime);
+        return isFirst;
     }
 
     @Override
-    public boolean acceptMoney(int senderNodeId, int amount) throws RemoteException {
-        itemAcceptLock.writeLock().lock();
+    public void receiveSnapshotReport(int nodeId, @NotNull GlobalSnapshot report) throws RemoteException {
+        long startTime = System.nanoTime();
+        logger.debug("Received report=" + report + " from nodeId=" + nodeId);
+        SnapshotAggregation aggregation = aggregations.get(report.getMarker());
+        if (aggregation == null) {
+            logger.warn("Unexpected report=" + report + " from nodeId=" + nodeId);
+        } else if (aggregation.reportReceived(report)) {
+            report(aggregation);
+        }
+        metrics.recordCall(RemoteMethod.RECEIVE_SNAPSHOT_REPORT, startTime);
+    }
+
+    /**
+     * Stops transfers of the node before loading the restore point: new transfers are refused, accepts are rejected
+     * (so senders roll them back), queued transfers are rolled back once the flush in progress has finished
+     * and batches with unknown outcome are no longer resent
+     */
+    @Override
+    public boolean prepareRestore(@NotNull Marker marker) throws RemoteException {
+        long startTime = System.nanoTime();
+        AccountTable accounts;
         try {
-            logger.trace("Accepting money amount=" + amount + " from senderNodeId=" + senderNodeId);
-            node.getSnapshot().incrementMoneyInTransfer(senderNodeId, amount);
-            node.getItem().incrementBalance(amount);
-            logger.trace("Accepted, new balance=" + node.getItem().getBalance());
-            return true;
+            accounts = StorageUtil.readRestorePoint(node.getId(), marker);
+        } catch (IOException e) {
+            logger.error("Failed to read restore point of snapshot=" + marker + " of nodeId=" + node.getId(), e);
+            accounts = null;
+        }
+        if (accounts == null) {
+            logger.warn("NOT Prepared restore of snapshot=" + marker + ", nodeId=" + node.getId() + " has no restore point of it");
+            metrics.recordCall(RemoteMethod.PREPARE_RESTORE, startTime);
+            return false;
+        }
+        lockAllChannels();
+        try {
+            preparedRestore = new PreparedRestore(marker, accounts);
         } finally {
-            itemAcceptLock.writeLock().unlock();
+            unlockAllChannels();
         }
+        int discarded = transferBatcher.discardTransfers();
+        logger.info("Prepared restore of snapshot=" + marker + ", transfers are stopped, rolled back queued transfers=" + discarded);
+        metrics.recordCall(RemoteMethod.PREPARE_RESTORE, startTime);
+        return true;
     }
 
+    /**
+     * Committed restore forgets transfers still pending in the ledger and supersedes batches with unknown outcome,
+     * so neither their rollback nor their credit by the recipient changes restored balances.
+     * Cancelled restore resumes resending of batches with unknown outcome
+     */
     @Override
-    public void receiveMarker(int nodeId) throws RemoteException {
-        markerLock.writeLock().lock();
-        itemAcceptLock.writeLock().lock();
-        itemTransferLock.writeLock().lock();
+    public void finishRestore(@NotNull Marker marker, boolean isCommitted) throws RemoteException {
+        long startTime = System.nanoTime();
+        PreparedRestore prepared = preparedRestore;
+        if (prepared == null || !prepared.marker.equals(marker)) {
+            logger.warn("Unexpected finish of restore of snapshot=" + marker + ", prepared=" + (prepared == null ? null : prepared.marker));
+            metrics.recordCall(RemoteMethod.FINISH_RESTORE, startTime);
+            return;
+        }
+        int changedAccounts = 0;
+        int forgottenTransfers = 0;
+        long balance;
+        lockAllChannels();
         try {
-            logger.debug("Received marker from nodeId=" + nodeId);
-            @NotNull Snapshot snapshot = node.getSnapshot();
-            if (!snapshot.isRecording()) {
-                node.startSnapshotRecording();
-                logger.debug("Broadcasting marker to neighbours");
-                ExecutorService executorService = Executors.newFixedThreadPool(node.getNodes().size() - 1);
-                node.getNodes().entrySet().parallelStream().filter(n -> n.getKey() != node.getId()).forEach(entry -> {
-                    executorService.execute(() -> {
-                        try {
-                            RemoteUtil.getRemoteNode(entry.getKey(), entry.getValue()).receiveMarker(node.getId());
-                            logger.debug("Marker sent to nodeId=" + entry.getKey());
-                        } catch (RemoteException e) {
-                            logger.error("Failed to sent marker to nodeId=" + entry.getKey(), e);
-                        }
-                    });
-                });
-            }
-            snapshot.stopRecording(nodeId);
-            if (!snapshot.isRecording()) {
-                logger.debug("Received all markers for snapshot on nodeId=" + nodeId);
-                node.stopSnapshotRecording();
+            if (isCommitted) {
+                changedAccounts = node.getItem().restore(prepared.accounts);
+                forgottenTransfers = transferLedger.clear();
             }
+            transferBatcher.finishRestore(isCommitted);
+            balance = node.getItem().getBalance();
+            preparedRestore = null;
         } finally {
-            markerLock.writeLock().unlock();
-            itemAcceptLock.writeLock().unlock();
-            itemTransferLock.writeLock().unlock();
+            unlockAllChannels();
+        }
+        transferBatcher.flushAll();
+        if (isCommitted) {
+            StorageUtil.syncTransfers(node.getId());
+            logger.info("Restored snapshot=" + marker + ", balance=" + balance + ", changed accounts=" + changedAccounts
+                    + ", forgotten pending transfers=" + forgottenTransfers + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms");
+        } else {
+            logger.info("Cancelled restore of snapshot=" + marker + ", transfers are resumed");
+        }
+        metrics.recordCall(RemoteMethod.FINISH_RESTORE, startTime);
+    }
+
+    @Nullable
+    @Override
+    public GlobalSnapshot getSnapshot(@NotNull Marker marker) throws RemoteException {
+        long startTime = System.nanoTime();
+        SnapshotRecord record;
+        try {
+            record = StorageUtil.materialize(node.getId(), marker);
+        } catch (IOException e) {
+            metrics.recordCall(RemoteMethod.GET_SNAPSHOT, startTime);
+            throw new RemoteException("Failed to read snapshot=" + marker + " of nodeId=" + node.getId(), e);
+        }
+        metrics.recordCall(RemoteMethod.GET_SNAPSHOT, startTime);
+        return record != null ? toGlobalSnapshot(record) : null;
+    }
+
+    @NotNull
+    @Override
+    public List<GlobalSnapshot> getSnapshots(long fromTimestamp, long toTimestamp) throws RemoteException {
+        long startTime = System.nanoTime();
+        List<SnapshotRecord> records;
+        try {
+            records = StorageUtil.read(node.getId(), fromTimestamp, toTimestamp);
+        } catch (IOException e) {
+            metrics.recordCall(RemoteMethod.GET_SNAPSHOTS, startTime);
+            throw new RemoteException("Failed to read snapshots of nodeId=" + node.getId(), e);
+        }
+        List<GlobalSnapshot> snapshots = new ArrayList<>(records.size());
+        for (SnapshotRecord record : records) {
+            snapshots.add(toGlobalSnapshot(record));
+        }
+        metrics.recordCall(RemoteMethod.GET_SNAPSHOTS, startTime);
+        return snapshots;
+    }
+
+    /**
+     * Looks the snapshot up in the history of the node, the node itself is called directly
+     *
+     * @param nodeId of the node
+     * @param marker of the snapshot
+     * @return local state of the node or null if the node is unknown, unreachable or has no such snapshot
+     */
+    @Nullable
+    public GlobalSnapshot querySnapshot(int nodeId, @NotNull Marker marker) {
+        String host = node.getNodes().get(nodeId);
+        return host != null ? callQuery(RemoteMethod.GET_SNAPSHOT, nodeId, host, server -> server.getSnapshot(marker)) : null;
+    }
+
+    /**
+     * Looks the snapshot up in histories of all known nodes in parallel by marker dispatcher threads
+     *
+     * @param marker of the snapshot
+     * @return local states merged over nodes which have the snapshot, null if none of them has it
+     */
+    @Nullable
+    public GlobalSnapshot querySnapshot(@NotNull Marker marker) {
+        GlobalSnapshot merged = null;
+        for (GlobalSnapshot snapshot : queryAll(RemoteMethod.GET_SNAPSHOT, server -> server.getSnapshot(marker)).values()) {
+            if (snapshot != null) {
+                merged = merged == null ? snapshot : merged.merge(snapshot);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Reads snapshots written within the range of time from histories of all known nodes in parallel
+     * by marker dispatcher threads
+     *
+     * @param fromTimestamp inclusive, in milliseconds since epoch
+     * @param toTimestamp   inclusive, in milliseconds since epoch
+     * @return local states merged per snapshot, in the order the node itself wrote them, then the rest by marker
+     */
+    @NotNull
+    public List<GlobalSnapshot> querySnapshots(long fromTimestamp, long toTimestamp) {
+        Map<Integer, List<GlobalSnapshot>> histories = queryAll(RemoteMethod.GET_SNAPSHOTS, server -> server.getSnapshots(fromTimestamp, toTimestamp));
+        Map<Marker, GlobalSnapshot> merged = new LinkedHashMap<>();
+        List<GlobalSnapshot> own = histories.remove(node.getId());
+        if (own != null) {
+            own.forEach(snapshot -> merged.put(snapshot.getMarker(), snapshot));
+        }
+        for (List<GlobalSnapshot> history : new TreeMap<>(histories).values()) {
+            if (history != null) {
+                history.forEach(snapshot -> merged.merge(snapshot.getMarker(), snapshot, GlobalSnapshot::merge));
+            }
+        }
+        return new ArrayList<>(merged.values());
+    }
+
+    /**
+     * Calls the query on all known nodes in parallel by marker dispatcher threads and waits for all of them
+     *
+     * @return results by node id, null for nodes which failed
+     */
+    @NotNull
+    private <T> Map<Integer, T> queryAll(@NotNull RemoteMethod method, @NotNull Query<T> query) {
+        Map<Integer, String> nodes = node.getNodes();
+        Map<Integer, CompletableFuture<T>> calls = new HashMap<>(nodes.size() * 2);
+        for (Map.Entry<Integer, String> entry : nodes.entrySet()) {
+            calls.put(entry.getKey(), CompletableFuture.supplyAsync(() -> callQuery(method, entry.getKey(), entry.getValue(), query), markerDispatcher));
+        }
+        Map<Integer, T> results = new HashMap<>(calls.size() * 2);
+        calls.forEach((nodeId, call) -> results.put(nodeId, call.join()));
+        return results;
+    }
+
+    /**
+     * Calls the query on the node, the node itself is called directly
+     *
+     * @return result of the query or null if the call failed
+     */
+    @Nullable
+    private <T> T callQuery(@NotNull RemoteMethod method, int nodeId, @NotNull String host, @NotNull Query<T> query) {
+        long startTime = System.nanoTime();
+        try {
+            T result = query.call(nodeId == node.getId() ? this : RemoteUtil.getRemoteNode(nodeId, host));
+            metrics.recordPeerCall(method, nodeId, startTime, true);
+            return result;
+        } catch (RemoteException e) {
+            metrics.recordPeerCall(method, nodeId, startTime, false);
+            logger.error("Failed to " + method.getMethodName() + " of nodeId=" + nodeId, e);
+            RemoteUtil.evictRemoteNode(nodeId, host);
+            return null;
+        }
+    }
+
+    @NotNull
+    private static GlobalSnapshot toGlobalSnapshot(@NotNull SnapshotRecord record) {
+        return new GlobalSnapshot(new Marker(record.getInitiatorId(), record.getSequence()), 1, record.getLocalBalance(), record.getMoneyInTransfer());
+    }
+
+    /**
+     * Rolls the node back to the cut of the snapshot, the initiator of the snapshot rolls back all known nodes
+     * <p>
+     * Every node first stops its transfers and loads its restore point, then all of them set their balances,
+     * or resume unchanged if any node failed to prepare. As no node credits a transfer between the phases,
+     * transfers made after the cut are neither credited nor rolled back once balances are restored
+     * <p>
+     * Restoring a single node keeps money conserved only if every other node is restored to the same snapshot
+     *
+     * @param marker of the snapshot
+     * @return whether balances were restored
+     */
+    public boolean restore(@NotNull Marker marker) {
+        Map<Integer, String> participants = new TreeMap<>();
+        if (marker.getInitiatorId() == node.getId()) {
+            participants.putAll(node.getNodes());
+        } else {
+            participants.put(node.getId(), node.getHost());
+        }
+        logger.info("Restoring snapshot=" + marker + " on nodes=" + participants.size());
+        long startTime = System.nanoTime();
+        List<Integer> prepared = new ArrayList<>(participants.size());
+        boolean isPrepared = true;
+        for (Map.Entry<Integer, String> participant : participants.entrySet()) {
+            if (!callRestore(RemoteMethod.PREPARE_RESTORE, participant.getKey(), participant.getValue(), marker, true)) {
+                isPrepared = false;
+                break;
+            }
+            prepared.add(participant.getKey());
+        }
+        for (int nodeId : prepared) {
+            callRestore(RemoteMethod.FINISH_RESTORE, nodeId, participants.get(nodeId), marker, isPrepared);
+        }
+        logger.info((isPrepared ? "Restored" : "NOT Restored") + " snapshot=" + marker + " on nodes=" + prepared.size()
+                + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms");
+        return isPrepared;
+    }
+
+    /**
+     * Calls a phase of restore on the participant, the node itself is called directly
+     *
+     * @return whether the call succeeded and prepare returned true
+     */
+    private boolean callRestore(@NotNull RemoteMethod method, int nodeId, @NotNull String host, @NotNull Marker marker, boolean isCommitted) {
+        long startTime = System.nanoTime();
+        try {
+            NodeServer participant = nodeId == node.getId() ? this : RemoteUtil.getRemoteNode(nodeId, host);
+            boolean isSuccess = true;
+            if (method == RemoteMethod.PREPARE_RESTORE) {
+                isSuccess = participant.prepareRestore(marker);
+            } else {
+                participant.finishRestore(marker, isCommitted);
+            }
+            metrics.recordPeerCall(method, nodeId, startTime, isSuccess);
+            return isSuccess;
+        } catch (RemoteException e) {
+            metrics.recordPeerCall(method, nodeId, startTime, false);
+            logger.error("Failed to " + method.getMethodName() + " of snapshot=" + marker + " on nodeId=" + nodeId, e);
+            RemoteUtil.evictRemoteNode(nodeId, host);
+            return false;
+        }
+    }
+
+    /**
+     * Abandons local snapshots still waiting for markers after the timeout, merging state recorded so far as partial,
+     * and reports state of the subtree merged so far as partial, once it is not reported within twice the timeout
+     */
+    private void expireSnapshots() {
+        try {
+            long now = System.nanoTime();
+            for (SnapshotAggregation aggregation : aggregations.values()) {
+                long age = aggregation.getAge(now);
+                if (age < snapshotTimeoutNanos) {
+                    continue;
+                }
+                Snapshot snapshot = node.getSnapshot(aggregation.getMarker());
+                if (snapshot != null) {
+                    logger.warn("Abandoned snapshot=" + aggregation.getMarker() + " still waiting for markers after " + TimeUnit.NANOSECONDS.toMillis(age) + " ms");
+                    node.stopSnapshotRecording(snapshot);
+                    for (SnapshotListener snapshotListener : snapshotListeners) {
+                        snapshotListener.snapshotAbandoned(node, snapshot);
+                    }
+                    if (aggregation.localAbandoned(GlobalSnapshot.of(snapshot))) {
+                        report(aggregation);
+                    }
+                }
+                if (age >= snapshotTimeoutNanos * 2 && aggregation.expire()) {
+                    logger.warn("Expired aggregation of snapshot=" + aggregation.getMarker() + " still waiting for reports after " + TimeUnit.NANOSECONDS.toMillis(age) + " ms");
+                    report(aggregation);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Failed to expire snapshots", e);
+        }
+    }
+
+    /**
+     * Counts children of the node in the spanning tree by results of sent markers
+     */
+    private void markerDelivered(int recipientNodeId, @NotNull Marker marker, boolean isChild) {
+        SnapshotAggregation aggregation = aggregations.get(marker);
+        if (aggregation != null && aggregation.markerDelivered(isChild)) {
+            report(aggregation);
+        }
+    }
+
+    /**
+     * Reports partial state of the subtree to the parent by marker dispatcher thread,
+     * the initiator notifies listeners about collected global state instead
+     */
+    private void report(@NotNull SnapshotAggregation aggregation) {
+        aggregations.remove(aggregation.getMarker());
+        GlobalSnapshot globalSnapshot = aggregation.getGlobalSnapshot();
+        int parentNodeId = aggregation.getParentNodeId();
+        if (parentNodeId == node.getId()) {
+            logger.info("Collected global snapshot=" + globalSnapshot + " of nodes=" + node.getNodes().size());
+            for (SnapshotListener snapshotListener : snapshotListeners) {
+                snapshotListener.globalSnapshotCollected(node, globalSnapshot);
+            }
+            return;
+        }
+        markerDispatcher.execute(() -> {
+            String parentHost = node.getNodes().get(parentNodeId);
+            long startTime = System.nanoTime();
+            try {
+                RemoteUtil.getRemoteNode(parentNodeId, parentHost).receiveSnapshotReport(node.getId(), globalSnapshot);
+                metrics.recordPeerCall(RemoteMethod.RECEIVE_SNAPSHOT_REPORT, parentNodeId, startTime, true);
+                logger.debug("Reported=" + globalSnapshot + " to parent nodeId=" + parentNodeId);
+            } catch (RemoteException e) {
+                metrics.recordPeerCall(RemoteMethod.RECEIVE_SNAPSHOT_REPORT, parentNodeId, startTime, false);
+                logger.error("Failed to report=" + globalSnapshot + " to parent nodeId=" + parentNodeId, e);
+                RemoteUtil.evictRemoteNode(parentNodeId, parentHost);
+            }
+        });
+    }
+
+    /**
+     * Flushes outgoing channels with queued marker by marker dispatcher threads
+     *
+     * @param recipientNodeIds channels with queued marker
+     * @param marker           of the snapshot
+     */
+    private void broadcastMarker(@NotNull List<Integer> recipientNodeIds, @NotNull Marker marker) {
+        if (recipientNodeIds.isEmpty()) {
+            return;
+        }
+        logger.debug("Broadcasting marker=" + marker + " to neighbours=" + recipientNodeIds.size());
+        long startTime = System.nanoTime();
+        CompletableFuture<?>[] broadcasts = new CompletableFuture<?>[recipientNodeIds.size()];
+        for (int i = 0; i < broadcasts.length; i++) {
+            int recipientNodeId = recipientNodeIds.get(i);
+            broadcasts[i] = CompletableFuture.runAsync(() -> transferBatcher.flush(recipientNodeId), markerDispatcher);
+        }
+        CompletableFuture.allOf(broadcasts).whenComplete((result, e) -> {
+            if (e != null) {
+                logger.error("Failed to broadcast marker=" + marker, e);
+            } else {
+                logger.debug("Broadcast marker=" + marker + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms");
+            }
+        });
+    }
+
+    /**
+     * @param accountId of the account
+     * @return whether the account is one of accounts of every bank
+     */
+    private static boolean isAccount(int accountId) {
+        return accountId >= 0 && accountId < BankTransfer.ACCOUNTS;
+    }
+
+    /**
+     * @return whether every transfer of the batch has positive amount to an existing account
+     */
+    private static boolean isValidBatch(@NotNull int[] accountIds, @NotNull int[] amounts) {
+        if (accountIds.length != amounts.length) {
+            return false;
+        }
+        for (int i = 0; i < amounts.length; i++) {
+            if (!isAccount(accountIds[i]) || amounts[i] <= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Takes write locks of all stripes in the same order, so no transfer or accept is in progress
+     */
+    private void lockAllChannels() {
+        for (int i = 0; i < channelLocks.size(); i++) {
+            channelLocks.getAt(i).writeLock().lock();
+        }
+    }
+
+    private void unlockAllChannels() {
+        for (int i = channelLocks.size() - 1; i >= 0; i--) {
+            channelLocks.getAt(i).writeLock().unlock();
+        }
+    }
+
+    /**
+     * Query of the history of a node
+     */
+    private interface Query<T> {
+
+        @Nullable
+        T call(@NotNull NodeServer server) throws RemoteException;
+    }
+
+    /**
+     * Snapshot being restored and balances of accounts of the node in its cut
+     */
+    private static final class PreparedRestore {
+
+        @NotNull
+        private final Marker marker;
+
+        @NotNull
+        private final AccountTable accounts;
+
+        private PreparedRestore(@NotNull Marker marker, @NotNull AccountTable accounts) {
+            this.marker = marker;
+            this.accounts = accounts;
         }
     }
 }
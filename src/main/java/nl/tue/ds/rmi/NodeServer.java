@@ -1,23 +1,96 @@
 package nl.tue.ds.rmi;
 
-import nl.tue.ds.entity.Node;
+import nl.tue.ds.entity.GlobalSnapshot;
+import nl.tue.ds.entity.Marker;
+import nl.tue.ds.entity.Membership;
+import nl.tue.ds.entity.NodeDescriptor;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 /**
  * Interface to be used by SERVER for accessing the remote node via RMI
  */
 public interface NodeServer extends Remote {
 
-    @NotNull Node getNode() throws RemoteException;
+    /**
+     * Id and host of the node without state of the bank, for callers which only address the node
+     */
+    @NotNull NodeDescriptor getDescriptor() throws RemoteException;
 
-    void addNode(int id, @NotNull String host) throws RemoteException;
+    /**
+     * Compact bootstrap of the joining node: complete membership table without state of the bank
+     */
+    @NotNull Membership getMembership() throws RemoteException;
 
-    void transferMoney(int recipientNodeId, int amount) throws RemoteException;
+    /**
+     * Merges membership changes gossiped by the sender
+     *
+     * @param delta  recent changes of membership of the sender, empty for anti-entropy probe
+     * @param digest of membership table of the sender
+     * @return recent changes of membership of the node,
+     * or its complete table if the sender sent no changes and tables of both nodes differ
+     */
+    @NotNull Membership gossip(int senderNodeId, @NotNull Membership delta, long digest) throws RemoteException;
 
-    boolean acceptMoney(int senderNodeId, int amount) throws RemoteException;
+    /**
+     * Transfers the amount from the account of the node to the account of the recipient node
+     */
+    void transferMoney(int accountId, int recipientNodeId, int recipientAccountId, int amount) throws RemoteException;
 
-    void receiveMarker(int nodeId) throws RemoteException;
+    /**
+     * Credits the amount sent by the sender node to the account of the node
+     */
+    boolean acceptMoney(int senderNodeId, int accountId, int amount) throws RemoteException;
+
+    /**
+     * Credits amounts sent by the sender node to accounts of the node, accountIds[i] receives amounts[i]
+     * <p>
+     * Batch ids of the sender increase along its FIFO channel, so a resent batch with id not above the last credited
+     * one is acknowledged again without being credited twice
+     *
+     * @return true if the batch is credited (now or before), false if it is rejected and never will be credited
+     */
+    boolean acceptMoneyBatch(int senderNodeId, long batchId, @NotNull int[] accountIds, @NotNull int[] amounts) throws RemoteException;
+
+    /**
+     * @return true if it is the first marker of the snapshot received by the node, so the sender becomes its parent
+     * in the spanning tree of the snapshot
+     */
+    boolean receiveMarker(int nodeId, @NotNull Marker marker) throws RemoteException;
+
+    /**
+     * Accepts partial global state of the snapshot from the child in the spanning tree
+     */
+    void receiveSnapshotReport(int nodeId, @NotNull GlobalSnapshot report) throws RemoteException;
+
+    /**
+     * First phase of restoring the snapshot: loads the restore point of the node and stops its transfers,
+     * so no transfer issued before the restore is credited after it
+     *
+     * @return false if the node has no restore point of the snapshot
+     */
+    boolean prepareRestore(@NotNull Marker marker) throws RemoteException;
+
+    /**
+     * Second phase of restoring the snapshot: sets balances of the node from the prepared restore point if committed
+     * and resumes its transfers
+     */
+    void finishRestore(@NotNull Marker marker, boolean isCommitted) throws RemoteException;
+
+    /**
+     * Local state of the node in the snapshot, looked up in its snapshot log by the index
+     *
+     * @return state of the node alone or null if the node has no such snapshot
+     */
+    @Nullable GlobalSnapshot getSnapshot(@NotNull Marker marker) throws RemoteException;
+
+    /**
+     * Local states of the node in snapshots it wrote within the range of time (inclusive, milliseconds since epoch),
+     * in the order they were written
+     */
+    @NotNull List<GlobalSnapshot> getSnapshots(long fromTimestamp, long toTimestamp) throws RemoteException;
 }
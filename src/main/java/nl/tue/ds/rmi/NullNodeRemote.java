@@ -1,43 +1,80 @@
 package nl.tue.ds.rmi;
 
-import nl.tue.ds.entity.Node;
+import nl.tue.ds.entity.GlobalSnapshot;
+import nl.tue.ds.entity.Marker;
+import nl.tue.ds.entity.Membership;
+import nl.tue.ds.entity.NodeDescriptor;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.rmi.RemoteException;
-import java.rmi.server.UnicastRemoteObject;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Used to simulate crashed node or in case of network errors
  */
-public final class NullNodeRemote extends UnicastRemoteObject implements NodeServer {
+public final class NullNodeRemote implements NodeServer {
 
     @NotNull
-    private final Node node;
+    @Override
+    public NodeDescriptor getDescriptor() throws RemoteException {
+        return new NodeDescriptor(0, "");
+    }
 
-    public NullNodeRemote(@NotNull Node node) throws RemoteException {
-        this.node = node;
+    @NotNull
+    @Override
+    public Membership getMembership() throws RemoteException {
+        return Membership.EMPTY;
     }
 
     @NotNull
     @Override
-    public Node getNode() throws RemoteException {
-        return node;
+    public Membership gossip(int senderNodeId, @NotNull Membership delta, long digest) throws RemoteException {
+        return Membership.EMPTY;
+    }
+
+    @Override
+    public void transferMoney(int accountId, int recipientNodeId, int recipientAccountId, int amount) throws RemoteException {
     }
 
     @Override
-    public void addNode(int id, @NotNull String host) throws RemoteException {
+    public boolean acceptMoney(int senderNodeId, int accountId, int amount) throws RemoteException {
+        return false;
     }
 
     @Override
-    public void transferMoney(int recipientNodeId, int amount) throws RemoteException {
+    public boolean acceptMoneyBatch(int senderNodeId, long batchId, @NotNull int[] accountIds, @NotNull int[] amounts) throws RemoteException {
+        return false;
     }
 
     @Override
-    public boolean acceptMoney(int senderNodeId, int amount) throws RemoteException {
+    public boolean receiveMarker(int nodeId, @NotNull Marker marker) throws RemoteException {
         return false;
     }
 
     @Override
-    public void receiveMarker(int nodeId) throws RemoteException {
+    public void receiveSnapshotReport(int nodeId, @NotNull GlobalSnapshot report) throws RemoteException {
+    }
+
+    @Override
+    public boolean prepareRestore(@NotNull Marker marker) throws RemoteException {
+        return false;
+    }
+
+    @Override
+    public void finishRestore(@NotNull Marker marker, boolean isCommitted) throws RemoteException {
+    }
+
+    @Nullable
+    @Override
+    public GlobalSnapshot getSnapshot(@NotNull Marker marker) throws RemoteException {
+        return null;
+    }
+
+    @NotNull
+    @Override
+    public List<GlobalSnapshot> getSnapshots(long fromTimestamp, long toTimestamp) throws RemoteException {
+        return Collections.emptyList();
     }
 }
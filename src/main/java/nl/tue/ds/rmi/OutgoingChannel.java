@@ -0,0 +1,468 @@
+package nl.tue.ds.rmi;
+
+import nl.tue.ds.BankTransfer;
+import nl.tue.ds.entity.Marker;
+import nl.tue.ds.entity.Node;
+import nl.tue.ds.metrics.NodeMetrics;
+import nl.tue.ds.metrics.RemoteMethod;
+import nl.tue.ds.storage.PendingTransfer;
+import nl.tue.ds.util.RemoteUtil;
+import nl.tue.ds.util.StorageUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * FIFO channel from current node to one recipient node
+ * <p>
+ * Queues withdrawn money transfers and markers in the order they were issued and sends
+ * consecutive transfers as a single batch, followed by the markers (if any)
+ * <p>
+ * Only one flush is in progress at a time, so recipient observes transfers and markers in the order they were queued
+ * <p>
+ * Every batch is sent with the next batch id of the channel. Batch is rolled back only once the recipient rejected it
+ * or could not have received it, batch with unknown outcome (call failed after the request was sent) is resent with
+ * the same id, which the recipient credits at most once
+ * <p>
+ * Batch id is journaled before the batch is sent, so a restarted node resends the batch with the same id as well
+ * <p>
+ * Sending of batches is suspended while a restore is prepared, so no batch is in flight once it is committed.
+ * Batches sent before a committed restore are superseded: they are dropped without being resent, completed or rolled back,
+ * as restored balances of both the node and the recipient exclude them
+ * <p>
+ * Rejected batch is rolled back under the read lock of the channel stripe, as transferMoney withdraws under it,
+ * so returned money never changes balances while the local state of a snapshot is being recorded
+ *
+ * @see TransferBatcher
+ * @see TransferLedger
+ */
+final class OutgoingChannel {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    @NotNull
+    private final Node node;
+
+    @NotNull
+    private final TransferLedger transferLedger;
+
+    @NotNull
+    private final NodeMetrics metrics;
+
+    @NotNull
+    private final MarkerDeliveryListener markerDeliveryListener;
+
+    /**
+     * Read lock of the channel stripe of the recipient, see NodeRemote
+     */
+    @NotNull
+    private final Lock channelLock;
+
+    private final int recipientNodeId;
+
+    /**
+     * Batches waiting to be sent, guarded by this
+     */
+    @NotNull
+    private final Deque<Batch> batches = new ArrayDeque<>();
+
+    /**
+     * Serializes flushes of the channel, held across calls to the recipient, so it is not a monitor,
+     * which would pin the carrier of a virtual thread for the whole call
+     */
+    @NotNull
+    private final Lock sendLock = new ReentrantLock();
+
+    /**
+     * Id of the last sent batch, ids of a new instance of the node start from its start time in microseconds,
+     * so they stay above ids credited by recipients from the previous instance, guarded by sendLock
+     */
+    private volatile long lastBatchId = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+
+    /**
+     * Batches with ids up to it were sent before the last committed restore
+     */
+    private volatile long supersededBatchId;
+
+    /**
+     * Whether sending of batches is suspended by a prepared restore
+     */
+    private volatile boolean isSuspended;
+
+    /**
+     * Whether flush is already waiting for dispatcher thread
+     */
+    @NotNull
+    private final AtomicBoolean isFlushScheduled = new AtomicBoolean();
+
+    /**
+     * Whether channel is already waiting for the periodic flush
+     */
+    @NotNull
+    private final AtomicBoolean isDirty = new AtomicBoolean();
+
+    OutgoingChannel(@NotNull Node node, @NotNull TransferLedger transferLedger, @NotNull NodeMetrics metrics, @NotNull MarkerDeliveryListener markerDeliveryListener,
+                    @NotNull Lock channelLock, int recipientNodeId) {
+        this.node = node;
+        this.transferLedger = transferLedger;
+        this.metrics = metrics;
+        this.markerDeliveryListener = markerDeliveryListener;
+        this.channelLock = channelLock;
+        this.recipientNodeId = recipientNodeId;
+    }
+
+    /**
+     * Queues pending transfer
+     *
+     * @param transferId         of pending transfer in the ledger
+     * @param recipientAccountId account of the recipient to be credited
+     * @param amount             already withdrawn from the balance
+     * @return whether the batch reached BATCH_SIZE and channel should be flushed
+     */
+    synchronized boolean enqueueTransfer(long transferId, int recipientAccountId, int amount) {
+        Batch batch = batches.peekLast();
+        if (batch == null || batch.markers != null || batch.batchId != 0) {
+            batch = new Batch();
+            batches.addLast(batch);
+        }
+        batch.add(transferId, recipientAccountId, amount);
+        return batch.size >= BankTransfer.BATCH_SIZE;
+    }
+
+    /**
+     * Queues batch of pending transfers sent by the previous instance of the node with unknown outcome,
+     * must be called before any transfer is queued
+     *
+     * @param batchId   the batch was sent with
+     * @param transfers of the batch
+     */
+    synchronized void enqueueRecovered(long batchId, @NotNull List<PendingTransfer> transfers) {
+        Batch batch = new Batch();
+        batch.batchId = batchId;
+        batch.isInDoubt = true;
+        for (PendingTransfer transfer : transfers) {
+            batch.add(transfer.getTransferId(), transfer.getRecipientAccountId(), transfer.getAmount());
+        }
+        batches.addLast(batch);
+    }
+
+    /**
+     * Queues marker after all transfers queued so far
+     *
+     * @param marker of the snapshot
+     */
+    synchronized void enqueueMarker(@NotNull Marker marker) {
+        Batch batch = batches.peekLast();
+        if (batch == null) {
+            batch = new Batch();
+            batches.addLast(batch);
+        }
+        if (batch.markers == null) {
+            batch.markers = new ArrayList<>(1);
+        }
+        batch.markers.add(marker);
+    }
+
+    /**
+     * @return true if the channel was not waiting for the periodic flush yet and caller must register it
+     */
+    boolean markDirty() {
+        return isDirty.compareAndSet(false, true);
+    }
+
+    void clearDirty() {
+        isDirty.set(false);
+    }
+
+    /**
+     * @return true if the flush was not scheduled yet and caller must schedule it
+     */
+    boolean scheduleFlush() {
+        return isFlushScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Sends all queued batches to the recipient
+     * <p>
+     * Accepted transfers are completed in the ledger, rejected ones are rolled back to the balance
+     * <p>
+     * Batch with unknown outcome stays first in the channel together with all batches (and markers) after it,
+     * so their order is kept once the channel is flushed again
+     *
+     * @return false if the channel is stalled by a batch with unknown outcome and must be flushed again later
+     */
+    boolean flush() {
+        isFlushScheduled.set(false);
+        sendLock.lock();
+        try {
+            Batch[] pending;
+            synchronized (this) {
+                pending = batches.toArray(new Batch[batches.size()]);
+                batches.clear();
+            }
+            for (int i = 0; i < pending.length; i++) {
+                Batch batch = pending[i];
+                if (batch.batchId != 0 && batch.batchId <= supersededBatchId) {
+                    logger.debug("Dropped batchId=" + batch.batchId + " of transfers=" + batch.size + " to recipientNodeId=" + recipientNodeId + ", superseded by restore");
+                    batch.size = 0;
+                }
+                if (batch.size > 0 && !sendTransfers(batch)) {
+                    synchronized (this) {
+                        for (int j = pending.length - 1; j >= i; j--) {
+                            batches.addFirst(pending[j]);
+                        }
+                    }
+                    return false;
+                }
+                if (batch.markers != null) {
+                    batch.markers.forEach(this::sendMarker);
+                }
+            }
+            return true;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Suspends sending of batches and removes queued transfers, while queued markers stay, once the flush in progress
+     * (if any) has finished, so no batch is in flight afterwards
+     * <p>
+     * Batch with unknown outcome stays, as the recipient may have credited it already, see finishRestore()
+     *
+     * @return ids of removed transfers in the ledger
+     */
+    @NotNull
+    long[] discardTransfers() {
+        isSuspended = true;
+        sendLock.lock();
+        try {
+            synchronized (this) {
+                int count = 0;
+                for (Batch batch : batches) {
+                    if (batch.batchId == 0) {
+                        count += batch.size;
+                    }
+                }
+                long[] transferIds = new long[count];
+                int position = 0;
+                for (Batch batch : batches) {
+                    if (batch.batchId == 0) {
+                        System.arraycopy(batch.transferIds, 0, transferIds, position, batch.size);
+                        position += batch.size;
+                        batch.size = 0;
+                    }
+                }
+                return transferIds;
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Resumes sending of batches suspended by discardTransfers(), must be followed by flush
+     *
+     * @param isCommitted whether the restore was committed, so batches sent before it are superseded
+     */
+    void finishRestore(boolean isCommitted) {
+        if (isCommitted) {
+            supersededBatchId = lastBatchId;
+        }
+        isSuspended = false;
+    }
+
+    /**
+     * Sends the batch until the recipient credits or rejects it, the batch is resent with the same batch id
+     * up to SEND_ATTEMPTS times
+     * <p>
+     * Batch is rolled back if the recipient rejected it or no attempt could have reached the recipient,
+     * batch with unknown outcome to a recipient which has left the graph is neither completed nor rolled back
+     *
+     * @return false if the outcome of the batch is still unknown or sending is suspended and it must be resent later
+     */
+    private boolean sendTransfers(@NotNull Batch batch) {
+        if (isSuspended) {
+            return false;
+        }
+        if (batch.batchId == 0) {
+            batch.batchId = ++lastBatchId;
+            // withdrawals and the batch id must be durable before the recipient credits them, otherwise a crash would create money
+            node.getItem().sent(batch.batchId, Arrays.copyOf(batch.transferIds, batch.size));
+            StorageUtil.syncTransfers(node.getId());
+        }
+        int[] accountIds = Arrays.copyOf(batch.accountIds, batch.size);
+        int[] amounts = Arrays.copyOf(batch.amounts, batch.size);
+        Outcome outcome = Outcome.UNREACHABLE;
+        for (int attempt = 1; attempt <= Math.max(BankTransfer.SEND_ATTEMPTS, 1); attempt++) {
+            if (attempt > 1 && !backOff(attempt)) {
+                break;
+            }
+            if (isSuspended) {
+                return false;
+            }
+            outcome = callAcceptMoneyBatch(batch.batchId, accountIds, amounts);
+            if (outcome == Outcome.UNKNOWN) {
+                batch.isInDoubt = true;
+            } else if (outcome != Outcome.UNREACHABLE) {
+                break;
+            }
+        }
+        long[] transferIds = Arrays.copyOf(batch.transferIds, batch.size);
+        if (outcome == Outcome.ACCEPTED) {
+            transferLedger.complete(transferIds);
+            logger.trace("Transferred batchId=" + batch.batchId + " of amounts=" + batch.size + " to recipientNodeId=" + recipientNodeId);
+        } else if (outcome == Outcome.REJECTED || !batch.isInDoubt) {
+            channelLock.lock();
+            try {
+                transferLedger.rollback(transferIds);
+            } finally {
+                channelLock.unlock();
+            }
+            logger.trace("NOT Transferred batchId=" + batch.batchId + " of amounts=" + batch.size + " to recipientNodeId=" + recipientNodeId);
+        } else if (node.getNodes().containsKey(recipientNodeId)) {
+            logger.warn("Unknown outcome of batchId=" + batch.batchId + " to recipientNodeId=" + recipientNodeId + ", resending it later");
+            return false;
+        } else {
+            logger.error("Unknown outcome of batchId=" + batch.batchId + " of transfers=" + batch.size + " to recipientNodeId=" + recipientNodeId
+                    + ", which has left, transfers stay pending in the ledger");
+        }
+        return true;
+    }
+
+    /**
+     * @return outcome of a single attempt to send the batch
+     */
+    @NotNull
+    private Outcome callAcceptMoneyBatch(long batchId, @NotNull int[] accountIds, @NotNull int[] amounts) {
+        String recipientHost = node.getNodes().get(recipientNodeId);
+        if (recipientHost == null) {
+            logger.debug("NOT Transferring batchId=" + batchId + " to recipientNodeId=" + recipientNodeId + ", which is not known");
+            return Outcome.UNREACHABLE;
+        }
+        long startTime = System.nanoTime();
+        Outcome outcome;
+        try {
+            logger.trace("Transferring batchId=" + batchId + " of amounts=" + amounts.length + " to recipientNodeId=" + recipientNodeId);
+            outcome = RemoteUtil.getRemoteNode(recipientNodeId, recipientHost).acceptMoneyBatch(node.getId(), batchId, accountIds, amounts) ? Outcome.ACCEPTED : Outcome.REJECTED;
+        } catch (ConnectException | ConnectIOException | UnknownHostException | NoSuchObjectException e) {
+            logger.error("Failed to reach recipientNodeId=" + recipientNodeId + " with batchId=" + batchId, e);
+            RemoteUtil.evictRemoteNode(recipientNodeId, recipientHost);
+            outcome = Outcome.UNREACHABLE;
+        } catch (RemoteException | RuntimeException e) {
+            logger.error("Failed to transfer batchId=" + batchId + " to recipientNodeId=" + recipientNodeId, e);
+            RemoteUtil.evictRemoteNode(recipientNodeId, recipientHost);
+            outcome = Outcome.UNKNOWN;
+        }
+        metrics.recordPeerCall(RemoteMethod.ACCEPT_MONEY_BATCH, recipientNodeId, startTime, outcome == Outcome.ACCEPTED);
+        return outcome;
+    }
+
+    /**
+     * Waits before the attempt, the delay doubles with every attempt starting from BATCH_WINDOW
+     *
+     * @return false if the thread was interrupted
+     */
+    private static boolean backOff(int attempt) {
+        try {
+            Thread.sleep((long) Math.max(BankTransfer.BATCH_WINDOW, 1) << Math.min(attempt - 2, 16));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void sendMarker(@NotNull Marker marker) {
+        String recipientHost = node.getNodes().get(recipientNodeId);
+        long startTime = System.nanoTime();
+        boolean isChild = false;
+        try {
+            NodeServer recipient = RemoteUtil.getRemoteNode(recipientNodeId, recipientHost);
+            isChild = recipient.receiveMarker(node.getId(), marker);
+            metrics.recordPeerCall(RemoteMethod.RECEIVE_MARKER, recipientNodeId, startTime, !(recipient instanceof NullNodeRemote));
+            logger.debug("Marker=" + marker + " sent to nodeId=" + recipientNodeId);
+        } catch (RemoteException e) {
+            metrics.recordPeerCall(RemoteMethod.RECEIVE_MARKER, recipientNodeId, startTime, false);
+            logger.error("Failed to sent marker to nodeId=" + recipientNodeId, e);
+            RemoteUtil.evictRemoteNode(recipientNodeId, recipientHost);
+        } catch (RuntimeException e) {
+            metrics.recordPeerCall(RemoteMethod.RECEIVE_MARKER, recipientNodeId, startTime, false);
+            logger.error("Failed to sent marker to nodeId=" + recipientNodeId, e);
+        }
+        markerDeliveryListener.markerDelivered(recipientNodeId, marker, isChild);
+    }
+
+    /**
+     * Outcome of an attempt to send the batch
+     */
+    private enum Outcome {
+        /**
+         * Recipient credited the batch, now or by an earlier attempt
+         */
+        ACCEPTED,
+        /**
+         * Recipient refused the batch and never credits it
+         */
+        REJECTED,
+        /**
+         * Request could not have reached the recipient
+         */
+        UNREACHABLE,
+        /**
+         * Call failed after the request was sent, recipient may have credited the batch
+         */
+        UNKNOWN
+    }
+
+    /**
+     * Consecutive transfers optionally followed by the markers
+     * <p>
+     * Batch id is assigned once the batch is sent for the first time, no transfer is added to the batch afterwards
+     */
+    private static final class Batch {
+
+        private long batchId;
+
+        /**
+         * Whether any attempt to send the batch had unknown outcome, so it must not be rolled back
+         */
+        private boolean isInDoubt;
+
+        private long[] transferIds = new long[Math.max(BankTransfer.BATCH_SIZE, 1)];
+
+        private int[] accountIds = new int[transferIds.length];
+
+        private int[] amounts = new int[transferIds.length];
+
+        private int size;
+
+        private List<Marker> markers;
+
+        private void add(long transferId, int accountId, int amount) {
+            if (size == amounts.length) {
+                transferIds = Arrays.copyOf(transferIds, size * 2);
+                accountIds = Arrays.copyOf(accountIds, size * 2);
+                amounts = Arrays.copyOf(amounts, size * 2);
+            }
+            transferIds[size] = transferId;
+            accountIds[size] = accountId;
+            amounts[size++] = amount;
+        }
+    }
+}
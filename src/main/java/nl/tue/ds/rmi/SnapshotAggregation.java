@@ -0,0 +1,155 @@
+package nl.tue.ds.rmi;
+
+import nl.tue.ds.entity.GlobalSnapshot;
+import nl.tue.ds.entity.Marker;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Convergecast of one distributed snapshot on the node
+ * <p>
+ * Spanning tree is formed by the marker wave itself: parent of the node is the sender of its first marker,
+ * which is known to the sender by the result of receiveMarker, so no extra messages are needed to form the tree
+ * <p>
+ * Partial state of the subtree is ready to be reported to the parent once:
+ * - results of all markers sent by the node are known (so the number of children is known)
+ * - local snapshot is completed
+ * - all children reported their partial states
+ * <p>
+ * Local snapshot still waiting for markers after the snapshot timeout is abandoned: state recorded so far is merged
+ * as partial local state. Aggregation not ready after twice the timeout (a child failed before reporting) expires:
+ * whatever is merged so far is reported as partial state. Children abandon their local snapshots after the timeout too
+ * and report before their parent expires, so the initiator is never blocked forever by a failed node and still
+ * collects partial states of all live subtrees
+ *
+ * @see GlobalSnapshot
+ */
+final class SnapshotAggregation {
+
+    @NotNull
+    private final Marker marker;
+
+    /**
+     * Node to report to, initiator reports to itself
+     */
+    private final int parentNodeId;
+
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * Markers sent by the node, which results are not known yet
+     */
+    private int pendingMarkers;
+
+    private int children;
+
+    private int reports;
+
+    private boolean isLocalCompleted;
+
+    private boolean isReported;
+
+    @NotNull
+    private GlobalSnapshot globalSnapshot;
+
+    SnapshotAggregation(@NotNull Marker marker, int parentNodeId, int pendingMarkers) {
+        this.marker = marker;
+        this.parentNodeId = parentNodeId;
+        this.pendingMarkers = pendingMarkers;
+        globalSnapshot = new GlobalSnapshot(marker, 0, 0, 0);
+    }
+
+    int getParentNodeId() {
+        return parentNodeId;
+    }
+
+    @NotNull
+    Marker getMarker() {
+        return marker;
+    }
+
+    @NotNull
+    synchronized GlobalSnapshot getGlobalSnapshot() {
+        return globalSnapshot;
+    }
+
+    /**
+     * @param isChild whether recipient of the marker became a child of the node
+     * @return whether partial state is ready to be reported
+     */
+    synchronized boolean markerDelivered(boolean isChild) {
+        pendingMarkers--;
+        if (isChild) {
+            children++;
+        }
+        return isReady();
+    }
+
+    /**
+     * @param localSnapshot state of the node itself
+     * @return whether partial state is ready to be reported
+     */
+    synchronized boolean localCompleted(@NotNull GlobalSnapshot localSnapshot) {
+        if (isLocalCompleted) {
+            return false;
+        }
+        isLocalCompleted = true;
+        globalSnapshot = globalSnapshot.merge(localSnapshot);
+        return isReady();
+    }
+
+    /**
+     * @param report partial state of the child subtree
+     * @return whether partial state is ready to be reported
+     */
+    synchronized boolean reportReceived(@NotNull GlobalSnapshot report) {
+        reports++;
+        globalSnapshot = globalSnapshot.merge(report);
+        return isReady();
+    }
+
+    /**
+     * @param localSnapshot state of the node itself recorded before the local snapshot was abandoned
+     * @return whether partial state is ready to be reported
+     */
+    synchronized boolean localAbandoned(@NotNull GlobalSnapshot localSnapshot) {
+        if (isLocalCompleted) {
+            return false;
+        }
+        isLocalCompleted = true;
+        globalSnapshot = globalSnapshot.merge(localSnapshot).toPartial();
+        return isReady();
+    }
+
+    /**
+     * @param now in nanoseconds, see System.nanoTime()
+     * @return nanoseconds since the aggregation has started
+     */
+    long getAge(long now) {
+        return now - startNanos;
+    }
+
+    /**
+     * Marks state merged so far as partial, once the aggregation is not ready within twice the timeout
+     *
+     * @return whether partial state must be reported, false if the aggregation is reported already
+     */
+    synchronized boolean expire() {
+        if (isReported) {
+            return false;
+        }
+        isReported = true;
+        globalSnapshot = globalSnapshot.toPartial();
+        return true;
+    }
+
+    /**
+     * Returns true only once, so partial state is reported exactly once
+     */
+    private boolean isReady() {
+        if (!isReported && isLocalCompleted && pendingMarkers == 0 && reports == children) {
+            isReported = true;
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,38 @@
+package nl.tue.ds.rmi;
+
+import nl.tue.ds.entity.GlobalSnapshot;
+import nl.tue.ds.entity.Node;
+import nl.tue.ds.entity.Snapshot;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Observes distributed snapshots recorded by the node
+ *
+ * @see NodeRemote
+ */
+public interface SnapshotListener {
+
+    /**
+     * Called once the local state is recorded upon receiving the first marker
+     */
+    void snapshotStarted(@NotNull Node node, @NotNull Snapshot snapshot);
+
+    /**
+     * Called once markers from all incoming channels are received and the snapshot is persisted
+     */
+    void snapshotCompleted(@NotNull Node node, @NotNull Snapshot snapshot);
+
+    /**
+     * Called once the snapshot is given up, as markers from some incoming channels are not received within the timeout,
+     * the snapshot is not persisted
+     */
+    default void snapshotAbandoned(@NotNull Node node, @NotNull Snapshot snapshot) {
+    }
+
+    /**
+     * Called on the initiator once local states of all nodes are collected along the spanning tree,
+     * or once the snapshot timed out, with partial global state
+     */
+    default void globalSnapshotCollected(@NotNull Node node, @NotNull GlobalSnapshot globalSnapshot) {
+    }
+}
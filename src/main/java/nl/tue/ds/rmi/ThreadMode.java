@@ -0,0 +1,19 @@
+package nl.tue.ds.rmi;
+
+/**
+ * Represents kinds of threads blocking remote calls, marker broadcast and workload run on
+ *
+ * @see NodeExecutors
+ */
+public enum ThreadMode {
+
+    /**
+     * Bounded pools of platform threads
+     */
+    PLATFORM,
+
+    /**
+     * Virtual thread per task (JDK 21+), so blocked calls hold no platform thread, falls back to PLATFORM on older JDK
+     */
+    VIRTUAL
+}
@@ -0,0 +1,245 @@
+package nl.tue.ds.rmi;
+
+import com.google.common.util.concurrent.Striped;
+import nl.tue.ds.BankTransfer;
+import nl.tue.ds.entity.Marker;
+import nl.tue.ds.entity.Node;
+import nl.tue.ds.metrics.NodeMetrics;
+import nl.tue.ds.storage.PendingTransfer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * Batching stage for outgoing money transfers of the node
+ * <p>
+ * Transfers are queued per recipient and flushed as one acceptMoneyBatch call,
+ * either as soon as BATCH_SIZE transfers are queued or every BATCH_WINDOW milliseconds
+ * <p>
+ * In ASYNC mode full batches are sent by dispatcher threads, otherwise by the transferring thread
+ * <p>
+ * Markers are queued into the same channels, so they never overtake transfers sent before them
+ * <p>
+ * Channel stalled by a batch with unknown outcome is flushed again by the next periodic flush
+ * <p>
+ * Transfers are rolled back under the read lock of the channel stripe of their recipient, so returned money
+ * never changes balances while the local state of a snapshot is being recorded, see NodeRemote
+ *
+ * @see OutgoingChannel
+ * @see BankTransfer
+ */
+final class TransferBatcher {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    @NotNull
+    private final Node node;
+
+    @NotNull
+    private final TransferLedger transferLedger;
+
+    @NotNull
+    private final NodeMetrics metrics;
+
+    @NotNull
+    private final MarkerDeliveryListener markerDeliveryListener;
+
+    /**
+     * Locks of channels of the node, shared with NodeRemote
+     */
+    @NotNull
+    private final Striped<ReadWriteLock> channelLocks;
+
+    /**
+     * Outgoing channels of the node
+     * <p>
+     * Map<RecipientNodeId, OutgoingChannel>
+     */
+    @NotNull
+    private final Map<Integer, OutgoingChannel> channels = new ConcurrentHashMap<>();
+
+    /**
+     * Channels with transfers queued since the last periodic flush, so idle channels are never scanned
+     */
+    @NotNull
+    private final Queue<OutgoingChannel> dirtyChannels = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Sends batches, so a slow recipient does not stall other channels
+     */
+    @NotNull
+    private final ExecutorService dispatcher;
+
+    /**
+     * Periodic flush of channels, cancelled once the batcher is closed
+     */
+    @NotNull
+    private final ScheduledFuture<?> flushTask;
+
+    TransferBatcher(@NotNull Node node, @NotNull TransferLedger transferLedger, @NotNull NodeExecutors executors, @NotNull NodeMetrics metrics,
+                    @NotNull MarkerDeliveryListener markerDeliveryListener, @NotNull Striped<ReadWriteLock> channelLocks) {
+        this.node = node;
+        this.transferLedger = transferLedger;
+        this.metrics = metrics;
+        this.markerDeliveryListener = markerDeliveryListener;
+        this.channelLocks = channelLocks;
+        dispatcher = executors.getTransferDispatcher();
+        flushTask = executors.getScheduler().scheduleWithFixedDelay(this::flushDirty, BankTransfer.BATCH_WINDOW, BankTransfer.BATCH_WINDOW, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues pending transfer to the recipient
+     *
+     * @param recipientNodeId recipient of the money transfer
+     * @param transferId         of pending transfer in the ledger
+     * @param recipientAccountId account of the recipient to be credited
+     * @param amount             of the money transfer
+     * @return whether the batch is full and requestFlush must be called
+     */
+    boolean enqueueTransfer(int recipientNodeId, long transferId, int recipientAccountId, int amount) {
+        OutgoingChannel channel = getChannel(recipientNodeId);
+        boolean isFull = channel.enqueueTransfer(transferId, recipientAccountId, amount);
+        if (channel.markDirty()) {
+            dirtyChannels.add(channel);
+        }
+        return isFull;
+    }
+
+    /**
+     * Queues batch sent by the previous instance of the node with unknown outcome, must be followed by flushAll
+     *
+     * @param recipientNodeId recipient of the batch
+     * @param batchId         the batch was sent with
+     * @param transfers       of the batch
+     */
+    void enqueueRecovered(int recipientNodeId, long batchId, @NotNull List<PendingTransfer> transfers) {
+        getChannel(recipientNodeId).enqueueRecovered(batchId, transfers);
+    }
+
+    /**
+     * Queues marker to the recipient after all transfers queued so far, must be followed by flush
+     *
+     * @param recipientNodeId recipient of the marker
+     * @param marker          of the snapshot
+     */
+    void enqueueMarker(int recipientNodeId, @NotNull Marker marker) {
+        getChannel(recipientNodeId).enqueueMarker(marker);
+    }
+
+    /**
+     * Sends everything queued to the recipient on the calling thread
+     *
+     * @param recipientNodeId recipient of the channel
+     */
+    void flush(int recipientNodeId) {
+        flush(getChannel(recipientNodeId));
+    }
+
+    /**
+     * Sends everything queued to the recipient according to transfer mode
+     *
+     * @param recipientNodeId recipient of the channel
+     */
+    void requestFlush(int recipientNodeId) {
+        OutgoingChannel channel = getChannel(recipientNodeId);
+        if (BankTransfer.ASYNC) {
+            scheduleFlush(channel);
+        } else {
+            flush(channel);
+        }
+    }
+
+    /**
+     * Sends everything queued to all recipients by dispatcher threads
+     */
+    void flushAll() {
+        channels.values().forEach(this::scheduleFlush);
+    }
+
+    /**
+     * Suspends sending of batches and rolls back transfers queued to all recipients, waiting for flushes in progress,
+     * so no batch is in flight afterwards until finishRestore()
+     *
+     * @return number of rolled back transfers
+     */
+    int discardTransfers() {
+        int count = 0;
+        for (Map.Entry<Integer, OutgoingChannel> entry : channels.entrySet()) {
+            long[] transferIds = entry.getValue().discardTransfers();
+            Lock lock = channelLocks.get(entry.getKey()).readLock();
+            lock.lock();
+            try {
+                transferLedger.rollback(transferIds);
+            } finally {
+                lock.unlock();
+            }
+            count += transferIds.length;
+        }
+        return count;
+    }
+
+    /**
+     * Resumes sending of batches to all recipients, must be followed by flushAll
+     *
+     * @param isCommitted whether the restore was committed, so batches with unknown outcome are dropped instead of resent
+     */
+    void finishRestore(boolean isCommitted) {
+        channels.values().forEach(channel -> channel.finishRestore(isCommitted));
+    }
+
+    /**
+     * Stops periodic flush of channels and sends everything still queued on the calling thread
+     */
+    void close() {
+        flushTask.cancel(false);
+        channels.forEach((recipientNodeId, channel) -> {
+            if (!channel.flush()) {
+                logger.error("Closed channel to recipientNodeId=" + recipientNodeId + " stalled by a batch with unknown outcome");
+            }
+        });
+    }
+
+    private void flushDirty() {
+        try {
+            OutgoingChannel channel;
+            while ((channel = dirtyChannels.poll()) != null) {
+                channel.clearDirty();
+                scheduleFlush(channel);
+            }
+        } catch (Exception e) {
+            logger.error("Failed to flush outgoing channels", e);
+        }
+    }
+
+    private void scheduleFlush(@NotNull OutgoingChannel channel) {
+        if (channel.scheduleFlush()) {
+            dispatcher.execute(() -> flush(channel));
+        }
+    }
+
+    /**
+     * Flushes the channel on the calling thread and registers it for the periodic flush if it is stalled
+     */
+    private void flush(@NotNull OutgoingChannel channel) {
+        if (!channel.flush() && channel.markDirty()) {
+            dirtyChannels.add(channel);
+        }
+    }
+
+    @NotNull
+    private OutgoingChannel getChannel(int recipientNodeId) {
+        return channels.computeIfAbsent(recipientNodeId, id -> new OutgoingChannel(node, transferLedger, metrics, markerDeliveryListener,
+                channelLocks.get(id).readLock(), id));
+    }
+}
@@ -0,0 +1,284 @@
+package nl.tue.ds.rmi;
+
+import nl.tue.ds.entity.Item;
+import nl.tue.ds.storage.PendingTransfer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ledger of withdrawals which are sent, but not yet confirmed by the recipient
+ * <p>
+ * Any number of transfers can be outstanding at a time, each of them is either completed
+ * or returned back to the balance once the recipient replies
+ * <p>
+ * Transfer ids are consecutive, so withdrawals are kept in a ring of primitive arrays indexed by transfer id
+ * between the oldest pending transfer and the last one, the ring doubles once this range exceeds it
+ * <p>
+ * Transfer id is reserved without the monitor and the amount is withdrawn from the item before the monitor is taken,
+ * so withdrawals of different threads run in parallel and the monitor only guards publishing into the ring.
+ * Slot of an id reserved by a withdrawal still in progress is marked RESERVED, so the oldest pending id never moves past it
+ * <p>
+ * Withdrawals and their outcome are journaled by the item, pending transfers of the previous instance of the node
+ * recovered from the journal keep their ids and are kept aside of the ring
+ *
+ * @see Item
+ */
+final class TransferLedger {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * Transfer id returned when the balance is insufficient
+     */
+    static final long NO_TRANSFER = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Amount in the slot of a transfer id reserved by a withdrawal, which is not published yet
+     */
+    private static final int RESERVED = -1;
+
+    @NotNull
+    private final Item item;
+
+    /**
+     * Accounts and amounts of withdrawals by transfer id modulo capacity, amount 0 marks a free slot, guarded by this
+     */
+    @NotNull
+    private int[] accountIds = new int[INITIAL_CAPACITY];
+
+    @NotNull
+    private int[] amounts = new int[INITIAL_CAPACITY];
+
+    /**
+     * Oldest transfer id which may still be pending, guarded by this
+     */
+    private long firstTransferId = 1;
+
+    /**
+     * Last published transfer id, ids up to it without a withdrawal are RESERVED or free, guarded by this
+     */
+    private long lastTransferId;
+
+    /**
+     * Last reserved transfer id
+     */
+    @NotNull
+    private final AtomicLong reservedTransferId = new AtomicLong();
+
+    /**
+     * Number of pending transfers, guarded by this
+     */
+    private int pendingCount;
+
+    /**
+     * Pending transfers recovered from the journal, guarded by this
+     * <p>
+     * Map<TransferId, PendingTransfer>
+     */
+    @NotNull
+    private final Map<Long, PendingTransfer> recoveredTransfers = new HashMap<>();
+
+    TransferLedger(@NotNull Item item) {
+        this.item = item;
+    }
+
+    /**
+     * Withdraws the amount from the balance of the account and registers it as pending transfer
+     *
+     * @param accountId          of the account to withdraw from
+     * @param amount             to be withdrawn
+     * @param recipientNodeId    recipient of the transfer
+     * @param recipientAccountId account of the recipient to be credited
+     * @return id of the pending transfer or NO_TRANSFER if the balance is insufficient
+     */
+    long withdraw(int accountId, int amount, int recipientNodeId, int recipientAccountId) {
+        long transferId = reservedTransferId.incrementAndGet();
+        boolean isWithdrawn = item.withdraw(transferId, accountId, amount, recipientNodeId, recipientAccountId);
+        synchronized (this) {
+            publish(transferId, accountId, isWithdrawn ? amount : 0);
+        }
+        return isWithdrawn ? transferId : NO_TRANSFER;
+    }
+
+    /**
+     * Registers pending transfers of the previous instance of the node, new transfers get ids after the recovered ones,
+     * must be called before any withdrawal
+     *
+     * @param lastTransferId   issued by the previous instance
+     * @param pendingTransfers recovered from the journal
+     */
+    synchronized void recover(long lastTransferId, @NotNull Collection<PendingTransfer> pendingTransfers) {
+        this.lastTransferId = lastTransferId;
+        reservedTransferId.set(lastTransferId);
+        firstTransferId = lastTransferId + 1;
+        for (PendingTransfer transfer : pendingTransfers) {
+            recoveredTransfers.put(transfer.getTransferId(), transfer);
+        }
+        pendingCount += pendingTransfers.size();
+    }
+
+    /**
+     * Forgets the pending transfers accepted by the recipient
+     *
+     * @param transferIds of accepted transfers
+     */
+    void complete(@NotNull long[] transferIds) {
+        synchronized (this) {
+            for (long transferId : transferIds) {
+                remove(transferId);
+            }
+        }
+        item.completed(transferIds);
+    }
+
+    /**
+     * Returns the pending transfers rejected by the recipient back to the balances of their accounts
+     *
+     * @param transferIds of rejected transfers
+     */
+    void rollback(@NotNull long[] transferIds) {
+        if (transferIds.length == 0) {
+            return;
+        }
+        int[] rolledBackAccountIds = new int[transferIds.length];
+        int[] rolledBackAmounts = new int[transferIds.length];
+        synchronized (this) {
+            for (int i = 0; i < transferIds.length; i++) {
+                PendingTransfer recovered = recoveredTransfers.get(transferIds[i]);
+                rolledBackAccountIds[i] = recovered != null ? recovered.getAccountId() : accountIds[getSlot(transferIds[i])];
+                rolledBackAmounts[i] = remove(transferIds[i]);
+            }
+        }
+        item.rollback(transferIds, rolledBackAccountIds, rolledBackAmounts);
+        long amount = 0;
+        for (int rolledBackAmount : rolledBackAmounts) {
+            amount += rolledBackAmount;
+        }
+        logger.trace("Rolled back transfers=" + transferIds.length + " of amount=" + amount);
+    }
+
+    /**
+     * Forgets all pending transfers without returning their amounts, as balances restored from a snapshot already
+     * exclude them, later replies to them change no balance. Forgotten transfers are journaled as completed
+     *
+     * @return number of forgotten transfers
+     */
+    int clear() {
+        long[] transferIds;
+        synchronized (this) {
+            transferIds = new long[pendingCount];
+            int count = 0;
+            for (long transferId = firstTransferId; transferId <= lastTransferId; transferId++) {
+                int slot = getSlot(transferId);
+                if (amounts[slot] > 0) {
+                    transferIds[count++] = transferId;
+                }
+                amounts[slot] = 0;
+            }
+            for (Long transferId : recoveredTransfers.keySet()) {
+                transferIds[count++] = transferId;
+            }
+            recoveredTransfers.clear();
+            firstTransferId = lastTransferId + 1;
+            pendingCount = 0;
+        }
+        if (transferIds.length > 0) {
+            item.completed(transferIds);
+        }
+        return transferIds.length;
+    }
+
+    /**
+     * @return number of transfers waiting for reply
+     */
+    synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Publishes the outcome of the withdrawal with reserved transfer id into the ring, ids reserved before it,
+     * which are not published yet, are marked RESERVED
+     *
+     * @param amount withdrawn or 0 if the balance was insufficient
+     */
+    private void publish(long transferId, int accountId, int amount) {
+        while (transferId - firstTransferId >= amounts.length) {
+            grow();
+        }
+        for (long reservedId = lastTransferId + 1; reservedId < transferId; reservedId++) {
+            amounts[getSlot(reservedId)] = RESERVED;
+        }
+        lastTransferId = Math.max(lastTransferId, transferId);
+        int slot = getSlot(transferId);
+        accountIds[slot] = accountId;
+        amounts[slot] = amount;
+        if (amount > 0) {
+            pendingCount++;
+        } else {
+            advance();
+        }
+    }
+
+    /**
+     * Frees the slot of the transfer and moves the oldest pending transfer id past freed slots
+     *
+     * @return withdrawn amount or 0 if the transfer is not pending
+     */
+    private int remove(long transferId) {
+        PendingTransfer recovered = recoveredTransfers.remove(transferId);
+        if (recovered != null) {
+            pendingCount--;
+            return recovered.getAmount();
+        }
+        if (transferId < firstTransferId || transferId > lastTransferId) {
+            return 0;
+        }
+        int slot = getSlot(transferId);
+        int amount = amounts[slot];
+        if (amount <= 0) {
+            return 0;
+        }
+        amounts[slot] = 0;
+        pendingCount--;
+        advance();
+        return amount;
+    }
+
+    /**
+     * Moves the oldest pending transfer id past free slots
+     */
+    private void advance() {
+        while (firstTransferId <= lastTransferId && amounts[getSlot(firstTransferId)] == 0) {
+            firstTransferId++;
+        }
+    }
+
+    /**
+     * Doubles the ring, withdrawals keep their transfer ids
+     */
+    private void grow() {
+        int[] grownAccountIds = new int[accountIds.length * 2];
+        int[] grownAmounts = new int[amounts.length * 2];
+        for (long transferId = firstTransferId; transferId <= lastTransferId; transferId++) {
+            int slot = getSlot(transferId);
+            int grownSlot = (int) (transferId & (grownAmounts.length - 1));
+            grownAccountIds[grownSlot] = accountIds[slot];
+            grownAmounts[grownSlot] = amounts[slot];
+        }
+        accountIds = grownAccountIds;
+        amounts = grownAmounts;
+        logger.debug("Grown ledger to capacity=" + amounts.length + ", pending transfers=" + pendingCount);
+    }
+
+    private int getSlot(long transferId) {
+        return (int) (transferId & (amounts.length - 1));
+    }
+}
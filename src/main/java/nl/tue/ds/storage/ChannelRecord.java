@@ -0,0 +1,70 @@
+package nl.tue.ds.storage;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.Objects;
+
+/**
+ * Persisted state of one incoming channel in the snapshot: transfers received before the marker of the channel
+ *
+ * @see SnapshotRecord
+ */
+public final class ChannelRecord {
+
+    /**
+     * Sender node of the channel
+     */
+    private final int nodeId;
+
+    private final int messageCount;
+
+    private final int amount;
+
+    public ChannelRecord(int nodeId, int messageCount, int amount) {
+        this.nodeId = nodeId;
+        this.messageCount = messageCount;
+        this.amount = amount;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    public int getAmount() {
+        return amount;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        if (o instanceof ChannelRecord) {
+            ChannelRecord object = (ChannelRecord) o;
+
+            return Objects.equals(nodeId, object.nodeId) &&
+                    Objects.equals(messageCount, object.messageCount) &&
+                    Objects.equals(amount, object.amount);
+        }
+
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(nodeId, messageCount, amount);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("nodeId", nodeId)
+                .add("messageCount", messageCount)
+                .add("amount", amount)
+                .toString();
+    }
+}
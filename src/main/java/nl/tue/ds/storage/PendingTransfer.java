@@ -0,0 +1,100 @@
+package nl.tue.ds.storage;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.Objects;
+
+/**
+ * Persisted withdrawal of the node, which is not yet accepted or rolled back
+ *
+ * @see TransferLog
+ */
+public final class PendingTransfer {
+
+    private final long transferId;
+
+    /**
+     * Account of the node the amount was withdrawn from
+     */
+    private final int accountId;
+
+    private final int amount;
+
+    private final int recipientNodeId;
+
+    private final int recipientAccountId;
+
+    /**
+     * Batch the transfer was sent in, 0 if it was never sent
+     */
+    private final long batchId;
+
+    public PendingTransfer(long transferId, int accountId, int amount, int recipientNodeId, int recipientAccountId, long batchId) {
+        this.transferId = transferId;
+        this.accountId = accountId;
+        this.amount = amount;
+        this.recipientNodeId = recipientNodeId;
+        this.recipientAccountId = recipientAccountId;
+        this.batchId = batchId;
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public int getAccountId() {
+        return accountId;
+    }
+
+    public int getAmount() {
+        return amount;
+    }
+
+    public int getRecipientNodeId() {
+        return recipientNodeId;
+    }
+
+    public int getRecipientAccountId() {
+        return recipientAccountId;
+    }
+
+    public long getBatchId() {
+        return batchId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        if (o instanceof PendingTransfer) {
+            PendingTransfer object = (PendingTransfer) o;
+
+            return Objects.equals(transferId, object.transferId) &&
+                    Objects.equals(accountId, object.accountId) &&
+                    Objects.equals(amount, object.amount) &&
+                    Objects.equals(recipientNodeId, object.recipientNodeId) &&
+                    Objects.equals(recipientAccountId, object.recipientAccountId) &&
+                    Objects.equals(batchId, object.batchId);
+        }
+
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(transferId, accountId, amount, recipientNodeId, recipientAccountId, batchId);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("transferId", transferId)
+                .add("accountId", accountId)
+                .add("amount", amount)
+                .add("recipientNodeId", recipientNodeId)
+                .add("recipientAccountId", recipientAccountId)
+                .add("batchId", batchId)
+                .toString();
+    }
+}
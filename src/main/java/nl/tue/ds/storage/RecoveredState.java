@@ -0,0 +1,71 @@
+package nl.tue.ds.storage;
+
+import com.google.common.base.MoreObjects;
+import nl.tue.ds.entity.Item;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * State of the node recovered from its transfer log: balances, withdrawals still pending and batches already credited
+ *
+ * @see TransferLog
+ */
+public final class RecoveredState {
+
+    @NotNull
+    private final Item item;
+
+    /**
+     * Last transfer id issued by the previous instance of the node, new transfers must get greater ids
+     */
+    private final long lastTransferId;
+
+    @NotNull
+    private final Collection<PendingTransfer> pendingTransfers;
+
+    /**
+     * Id of the last batch credited per sender
+     * <p>
+     * Map<SenderNodeId, LastBatchId>
+     */
+    @NotNull
+    private final Map<Integer, Long> lastBatchIds;
+
+    public RecoveredState(@NotNull Item item, long lastTransferId, @NotNull Collection<PendingTransfer> pendingTransfers, @NotNull Map<Integer, Long> lastBatchIds) {
+        this.item = item;
+        this.lastTransferId = lastTransferId;
+        this.pendingTransfers = pendingTransfers;
+        this.lastBatchIds = lastBatchIds;
+    }
+
+    @NotNull
+    public Item getItem() {
+        return item;
+    }
+
+    public long getLastTransferId() {
+        return lastTransferId;
+    }
+
+    @NotNull
+    public Collection<PendingTransfer> getPendingTransfers() {
+        return pendingTransfers;
+    }
+
+    @NotNull
+    public Map<Integer, Long> getLastBatchIds() {
+        return lastBatchIds;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("item", item)
+                .add("lastTransferId", lastTransferId)
+                .add("pendingTransfers", pendingTransfers.size())
+                .add("lastBatchIds", lastBatchIds.size())
+                .toString();
+    }
+}
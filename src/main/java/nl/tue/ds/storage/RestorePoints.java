@@ -0,0 +1,165 @@
+package nl.tue.ds.storage;
+
+import nl.tue.ds.entity.AccountTable;
+import nl.tue.ds.entity.Marker;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Balances of all accounts of the bank in the last snapshots, with money in transit re-injected into credited accounts,
+ * so the bank is rolled back to the cut of a snapshot by loading one file instead of replaying its history
+ * <p>
+ * Restore point file {prefix}-{initiator ID}-{snapshot sequence}.state:
+ * {magic},{version},{initiator ID},{snapshot sequence},{account count}({account ID}{balance})...,{CRC32}
+ * <p>
+ * Files are written into a temporary file and renamed, only the last capacity files are kept
+ *
+ * @see nl.tue.ds.entity.Snapshot#getRestoredAccounts()
+ */
+public final class RestorePoints {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final int MAGIC = 0x47535253;
+
+    private static final int VERSION = 1;
+
+    private static final String SUFFIX = ".state";
+
+    @NotNull
+    private final Path directory;
+
+    @NotNull
+    private final String prefix;
+
+    private final int capacity;
+
+    /**
+     * Whether files are forced to disk before they are renamed
+     */
+    private final boolean isForced;
+
+    /**
+     * Files of restore points from the oldest to the newest, guarded by this
+     */
+    @NotNull
+    private final Deque<Path> files;
+
+    private RestorePoints(@NotNull Path directory, @NotNull String prefix, int capacity, boolean isForced, @NotNull Deque<Path> files) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.capacity = capacity;
+        this.isForced = isForced;
+        this.files = files;
+    }
+
+    /**
+     * Opens restore points of the bank written before
+     *
+     * @param directory of restore points
+     * @param prefix    of file names of restore points
+     * @param capacity  number of the last restore points to keep
+     * @param isForced  whether files are forced to disk
+     * @return opened restore points
+     */
+    @NotNull
+    public static RestorePoints open(@NotNull Path directory, @NotNull String prefix, int capacity, boolean isForced) throws IOException {
+        List<Path> existing = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "-*" + SUFFIX)) {
+            stream.forEach(existing::add);
+        }
+        existing.sort(Comparator.comparingLong(file -> file.toFile().lastModified()));
+        return new RestorePoints(directory, prefix, Math.max(capacity, 1), isForced, new ArrayDeque<>(existing));
+    }
+
+    /**
+     * Persists the restore point and deletes the oldest ones beyond capacity
+     *
+     * @param marker   of the snapshot
+     * @param accounts balances of all accounts in the cut of the snapshot, not changed
+     */
+    public synchronized void write(@NotNull Marker marker, @NotNull AccountTable accounts) throws IOException {
+        Path target = getFile(marker);
+        Path temporary = directory.resolve(target.getFileName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(marker.getInitiatorId());
+            out.writeInt(marker.getSequence());
+            accounts.write(out);
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            if (isForced) {
+                file.getFD().sync();
+            }
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        files.remove(target);
+        files.addLast(target);
+        while (files.size() > capacity) {
+            Files.deleteIfExists(files.removeFirst());
+        }
+        logger.debug("Wrote restore point=" + target);
+    }
+
+    /**
+     * Loads balances of all accounts in the cut of the snapshot
+     *
+     * @param marker of the snapshot
+     * @return balances of accounts or null if there is no valid restore point of the snapshot
+     */
+    @Nullable
+    public synchronized AccountTable read(@NotNull Marker marker) throws IOException {
+        Path file = getFile(marker);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(file)), new CRC32())) {
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != marker.getInitiatorId() || in.readInt() != marker.getSequence()) {
+                logger.warn("Ignored restore point of unknown version=" + file);
+                return null;
+            }
+            AccountTable accounts = AccountTable.read(in);
+            long checksum = checked.getChecksum().getValue();
+            if (in.readLong() != checksum) {
+                logger.warn("Ignored corrupted restore point=" + file);
+                return null;
+            }
+            return accounts;
+        } catch (EOFException e) {
+            logger.warn("Ignored truncated restore point=" + file);
+            return null;
+        }
+    }
+
+    /**
+     * Deletes all restore points
+     */
+    public synchronized void delete() throws IOException {
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+        files.clear();
+    }
+
+    @NotNull
+    private Path getFile(@NotNull Marker marker) {
+        return directory.resolve(prefix + "-" + marker.getInitiatorId() + "-" + marker.getSequence() + SUFFIX);
+    }
+}
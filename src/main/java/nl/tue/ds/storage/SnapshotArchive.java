@@ -0,0 +1,695 @@
+package nl.tue.ds.storage;
+
+import com.google.common.base.MoreObjects;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Columnar archive of snapshot records moved out of the snapshot log
+ * <p>
+ * File starts with header {magic},{version} followed by blocks of up to BLOCK_RECORDS records:
+ * {block length},{CRC32},{record count},{log generation},{last log slot},{min/max timestamp},{column length}...,{column}...
+ * <p>
+ * Columns hold one field of all records of the block as varints: initiator IDs, sequences, timestamps and local balances
+ * as zig-zag deltas to the previous record, money in transfer and channel counts as they are and channels of all records
+ * as {zig-zag delta of node ID},{message count},{zig-zag amount}, so a record takes few bytes instead of a log slot
+ * <p>
+ * Headers of all blocks are kept in memory, so scans skip blocks by min/max timestamp. Blocks holding records of every initiator
+ * are indexed with min/max sequence of its records in them (initiator and sequence columns are decoded once, on opening or append),
+ * so lookups by snapshot ID read only blocks of the initiator that may hold the sequence.
+ * Log generation and slot of the last record tell which records of the log are archived already
+ * <p>
+ * Torn block at the end of the file (not completely written before crash) is truncated on opening
+ *
+ * @see SnapshotLog
+ */
+public final class SnapshotArchive implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    static final int BLOCK_RECORDS = 1024;
+
+    private static final int MAGIC = 0x47534e41;
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+
+    private static final int COLUMNS = 7;
+
+    private static final int INITIATOR_COLUMN = 0;
+
+    private static final int SEQUENCE_COLUMN = 1;
+
+    private static final int TIMESTAMP_COLUMN = 2;
+
+    private static final int BALANCE_COLUMN = 3;
+
+    private static final int MONEY_COLUMN = 4;
+
+    private static final int CHANNEL_COUNT_COLUMN = 5;
+
+    private static final int CHANNEL_COLUMN = 6;
+
+    /**
+     * {block length},{CRC32}, block length covers everything after itself
+     */
+    private static final int BLOCK_PREFIX_SIZE = Integer.BYTES * 2;
+
+    /**
+     * {record count},{log generation},{last log slot},{min/max timestamp},{column lengths}
+     */
+    private static final int BLOCK_HEADER_SIZE = Integer.BYTES + Long.BYTES * 4 + Integer.BYTES * COLUMNS;
+
+    @NotNull
+    private final FileChannel channel;
+
+    /**
+     * Headers of all blocks in the order they were appended, replaced by a longer copy on append
+     */
+    @NotNull
+    private volatile Block[] blocks;
+
+    /**
+     * Blocks holding records of initiators, entry is replaced by a copy with one more block on append
+     * <p>
+     * Map<InitiatorId, InitiatorBlocks>
+     */
+    @NotNull
+    private final Map<Integer, InitiatorBlocks> initiators = new ConcurrentHashMap<>();
+
+    private long size;
+
+    private SnapshotArchive(@NotNull FileChannel channel, @NotNull Block[] blocks, long size) {
+        this.channel = channel;
+        this.blocks = blocks;
+        this.size = size;
+        for (int i = 0; i < blocks.length; i++) {
+            index(i, blocks[i]);
+        }
+    }
+
+    /**
+     * Opens existing archive and reads headers of its blocks, truncating torn block at the end, or creates a new one
+     *
+     * @param path of the archive file
+     * @return opened archive
+     */
+    @NotNull
+    public static SnapshotArchive open(@NotNull Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                channel.write(header, 0);
+                return new SnapshotArchive(channel, new Block[0], HEADER_SIZE);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Not a snapshot archive of version=" + VERSION + ": " + path);
+            }
+            List<Block> blocks = new ArrayList<>();
+            long position = HEADER_SIZE;
+            while (position < channel.size()) {
+                Block block = readBlock(channel, position);
+                if (block == null) {
+                    logger.warn("Truncated torn block of snapshot archive=" + path + " at position=" + position);
+                    channel.truncate(position);
+                    break;
+                }
+                blocks.add(block);
+                position += BLOCK_PREFIX_SIZE + block.length - Integer.BYTES;
+            }
+            return new SnapshotArchive(channel, blocks.toArray(new Block[0]), position);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Appends records as one block, durable after the next force()
+     *
+     * @param generation of the log the records are moved from
+     * @param lastSlot   of the last record in the log
+     * @param records    up to BLOCK_RECORDS records in the order they were appended to the log
+     */
+    synchronized void append(long generation, long lastSlot, @NotNull List<SnapshotRecord> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream[] columns = new ByteArrayOutputStream[COLUMNS];
+        for (int i = 0; i < COLUMNS; i++) {
+            columns[i] = new ByteArrayOutputStream();
+        }
+        long minTimestamp = Long.MAX_VALUE, maxTimestamp = Long.MIN_VALUE;
+        SnapshotRecord previous = new SnapshotRecord(0, 0, 0, 0, 0, new ArrayList<>());
+        for (SnapshotRecord record : records) {
+            putZigZag(columns[INITIATOR_COLUMN], record.getInitiatorId() - previous.getInitiatorId());
+            putZigZag(columns[SEQUENCE_COLUMN], (long) record.getSequence() - previous.getSequence());
+            putZigZag(columns[TIMESTAMP_COLUMN], record.getTimestamp() - previous.getTimestamp());
+            putZigZag(columns[BALANCE_COLUMN], record.getLocalBalance() - previous.getLocalBalance());
+            putZigZag(columns[MONEY_COLUMN], record.getMoneyInTransfer());
+            putVarint(columns[CHANNEL_COUNT_COLUMN], record.getChannels().size());
+            int previousNodeId = 0;
+            for (ChannelRecord channel : record.getChannels()) {
+                putZigZag(columns[CHANNEL_COLUMN], (long) channel.getNodeId() - previousNodeId);
+                putVarint(columns[CHANNEL_COLUMN], channel.getMessageCount());
+                putZigZag(columns[CHANNEL_COLUMN], channel.getAmount());
+                previousNodeId = channel.getNodeId();
+            }
+            minTimestamp = Math.min(minTimestamp, record.getTimestamp());
+            maxTimestamp = Math.max(maxTimestamp, record.getTimestamp());
+            previous = record;
+        }
+        int columnsSize = 0;
+        for (ByteArrayOutputStream column : columns) {
+            columnsSize += column.size();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_PREFIX_SIZE + BLOCK_HEADER_SIZE + columnsSize);
+        buffer.putInt(Integer.BYTES + BLOCK_HEADER_SIZE + columnsSize).putInt(0)
+                .putInt(records.size()).putLong(generation).putLong(lastSlot)
+                .putLong(minTimestamp).putLong(maxTimestamp);
+        for (ByteArrayOutputStream column : columns) {
+            buffer.putInt(column.size());
+        }
+        for (ByteArrayOutputStream column : columns) {
+            buffer.put(column.toByteArray());
+        }
+        buffer.putInt(Integer.BYTES, checksum(buffer.array()));
+        buffer.flip();
+        long position = size;
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+        size += buffer.limit();
+        Block block = readBlock(channel, position);
+        if (block == null) {
+            throw new IOException("Failed to read back block of snapshot archive at position=" + position);
+        }
+        index(blocks.length, block);
+        Block[] appended = new Block[blocks.length + 1];
+        System.arraycopy(blocks, 0, appended, 0, blocks.length);
+        appended[blocks.length] = block;
+        blocks = appended;
+    }
+
+    /**
+     * Adds the block to entries of initiators of its records
+     *
+     * @param number of the block in the order blocks were appended
+     * @param block  to add
+     */
+    private void index(int number, @NotNull Block block) {
+        block.sequences.forEach((initiatorId, sequences) -> initiators.merge(initiatorId,
+                new InitiatorBlocks(number, sequences[0], sequences[1]), InitiatorBlocks::append));
+    }
+
+    /**
+     * @return headers of all blocks, later appends do not change the returned array
+     */
+    @NotNull
+    Block[] getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * @return the last block or null if the archive is empty
+     */
+    @Nullable
+    Block getLastBlock() {
+        Block[] current = blocks;
+        return current.length > 0 ? current[current.length - 1] : null;
+    }
+
+    /**
+     * Reads records of blocks within the range of timestamps in the order they were archived,
+     * blocks outside of the range are skipped by their min/max
+     *
+     * @param blocks        to read
+     * @param fromTimestamp inclusive, in milliseconds since epoch
+     * @param toTimestamp   inclusive, in milliseconds since epoch
+     * @param consumer      of the records
+     */
+    void read(@NotNull Block[] blocks, long fromTimestamp, long toTimestamp, @NotNull Consumer<SnapshotRecord> consumer) throws IOException {
+        for (Block block : blocks) {
+            if (block.maxTimestamp < fromTimestamp || block.minTimestamp > toTimestamp) {
+                continue;
+            }
+            for (SnapshotRecord record : decode(block)) {
+                if (record.getTimestamp() >= fromTimestamp && record.getTimestamp() <= toTimestamp) {
+                    consumer.accept(record);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the latest archived record of the snapshot, only blocks holding records of the initiator
+     * within the sequence are read
+     * <p>
+     * Sequence ranges of the initiator rise with blocks, so the last block starting at or below the sequence is found
+     * by binary search and blocks are checked backwards until one ends below it. Ranges which do not rise
+     * (sequences of the initiator restarted) are checked backwards from the last block
+     *
+     * @param blocks      to search
+     * @param initiatorId of the snapshot
+     * @param sequence    of the snapshot
+     * @return record or null if the snapshot is not archived
+     */
+    @Nullable
+    SnapshotRecord find(@NotNull Block[] blocks, int initiatorId, int sequence) throws IOException {
+        InitiatorBlocks initiator = initiators.get(initiatorId);
+        if (initiator == null) {
+            return null;
+        }
+        for (int i = initiator.findLast(sequence); i >= 0; i--) {
+            if (initiator.isRising && initiator.maxSequences[i] < sequence) {
+                break;
+            }
+            if (initiator.blockNumbers[i] >= blocks.length
+                    || sequence < initiator.minSequences[i] || sequence > initiator.maxSequences[i]) {
+                continue;
+            }
+            Block block = blocks[initiator.blockNumbers[i]];
+            ByteBuffer columns = readColumns(block);
+            int index = indexOf(block, columns, initiatorId, sequence);
+            if (index >= 0) {
+                return decode(block, columns).get(index);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param initiatorId of snapshots
+     * @return the highest archived sequence of snapshots of the initiator, 0 if there is none
+     */
+    int getLastSequence(int initiatorId) {
+        InitiatorBlocks initiator = initiators.get(initiatorId);
+        return initiator != null ? initiator.lastSequence : 0;
+    }
+
+    /**
+     * @return size of the archive file in bytes
+     */
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Writes appended blocks to the disk
+     */
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    /**
+     * @return index of the record of the snapshot in the block or -1
+     */
+    private static int indexOf(@NotNull Block block, @NotNull ByteBuffer columns, int initiatorId, int sequence) {
+        ByteBuffer initiators = getColumn(block, columns, INITIATOR_COLUMN);
+        ByteBuffer sequences = getColumn(block, columns, SEQUENCE_COLUMN);
+        int currentInitiator = 0;
+        long currentSequence = 0;
+        int found = -1;
+        for (int i = 0; i < block.recordCount; i++) {
+            currentInitiator += getZigZag(initiators);
+            currentSequence += getZigZag(sequences);
+            if (currentInitiator == initiatorId && currentSequence == sequence) {
+                found = i;
+            }
+        }
+        return found;
+    }
+
+    @NotNull
+    private List<SnapshotRecord> decode(@NotNull Block block) throws IOException {
+        return decode(block, readColumns(block));
+    }
+
+    @NotNull
+    private static List<SnapshotRecord> decode(@NotNull Block block, @NotNull ByteBuffer columns) {
+        ByteBuffer initiators = getColumn(block, columns, INITIATOR_COLUMN);
+        ByteBuffer sequences = getColumn(block, columns, SEQUENCE_COLUMN);
+        ByteBuffer timestamps = getColumn(block, columns, TIMESTAMP_COLUMN);
+        ByteBuffer balances = getColumn(block, columns, BALANCE_COLUMN);
+        ByteBuffer money = getColumn(block, columns, MONEY_COLUMN);
+        ByteBuffer channelCounts = getColumn(block, columns, CHANNEL_COUNT_COLUMN);
+        ByteBuffer channels = getColumn(block, columns, CHANNEL_COLUMN);
+        List<SnapshotRecord> records = new ArrayList<>(block.recordCount);
+        int initiatorId = 0;
+        long sequence = 0;
+        long timestamp = 0;
+        long balance = 0;
+        for (int i = 0; i < block.recordCount; i++) {
+            initiatorId += getZigZag(initiators);
+            sequence += getZigZag(sequences);
+            timestamp += getZigZag(timestamps);
+            balance += getZigZag(balances);
+            int moneyInTransfer = (int) getZigZag(money);
+            int channelCount = (int) getVarint(channelCounts);
+            List<ChannelRecord> recordChannels = new ArrayList<>(channelCount);
+            long nodeId = 0;
+            for (int j = 0; j < channelCount; j++) {
+                nodeId += getZigZag(channels);
+                recordChannels.add(new ChannelRecord((int) nodeId, (int) getVarint(channels), (int) getZigZag(channels)));
+            }
+            records.add(new SnapshotRecord(initiatorId, (int) sequence, balance, moneyInTransfer, timestamp, recordChannels));
+        }
+        return records;
+    }
+
+    /**
+     * @return all columns of the block
+     */
+    @NotNull
+    private ByteBuffer readColumns(@NotNull Block block) throws IOException {
+        ByteBuffer columns = ByteBuffer.allocate(block.columnsSize);
+        long position = block.position + BLOCK_PREFIX_SIZE + BLOCK_HEADER_SIZE;
+        while (columns.hasRemaining()) {
+            if (channel.read(columns, position + columns.position()) < 0) {
+                throw new IOException("Unexpected end of snapshot archive at position=" + position);
+            }
+        }
+        columns.flip();
+        return columns;
+    }
+
+    /**
+     * @return view of the column positioned at its start
+     */
+    @NotNull
+    private static ByteBuffer getColumn(@NotNull Block block, @NotNull ByteBuffer columns, int column) {
+        ByteBuffer view = columns.duplicate();
+        view.position(block.columnOffsets[column]);
+        view.limit(block.columnOffsets[column + 1]);
+        return view;
+    }
+
+    /**
+     * @return header of the block or null if the block is torn or corrupted
+     */
+    @Nullable
+    private static Block readBlock(@NotNull FileChannel channel, long position) throws IOException {
+        ByteBuffer prefix = ByteBuffer.allocate(BLOCK_PREFIX_SIZE);
+        while (prefix.hasRemaining()) {
+            if (channel.read(prefix, position + prefix.position()) < 0) {
+                return null;
+            }
+        }
+        int length = prefix.getInt(0);
+        if (length < Integer.BYTES + BLOCK_HEADER_SIZE || position + Integer.BYTES + length > channel.size()) {
+            return null;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(Integer.BYTES + length);
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, position + bytes.position()) < 0) {
+                return null;
+            }
+        }
+        if (bytes.getInt(Integer.BYTES) != checksum(bytes.array())) {
+            return null;
+        }
+        bytes.position(BLOCK_PREFIX_SIZE);
+        int recordCount = bytes.getInt();
+        long generation = bytes.getLong();
+        long lastSlot = bytes.getLong();
+        long minTimestamp = bytes.getLong();
+        long maxTimestamp = bytes.getLong();
+        int[] columnOffsets = new int[COLUMNS + 1];
+        for (int i = 0; i < COLUMNS; i++) {
+            columnOffsets[i + 1] = columnOffsets[i] + bytes.getInt();
+        }
+        ByteBuffer columns = bytes.slice();
+        ByteBuffer initiators = columns.duplicate();
+        initiators.position(columnOffsets[INITIATOR_COLUMN]).limit(columnOffsets[INITIATOR_COLUMN + 1]);
+        ByteBuffer sequences = columns.duplicate();
+        sequences.position(columnOffsets[SEQUENCE_COLUMN]).limit(columnOffsets[SEQUENCE_COLUMN + 1]);
+        Map<Integer, int[]> sequenceRanges = new HashMap<>();
+        int initiatorId = 0;
+        long sequence = 0;
+        for (int i = 0; i < recordCount; i++) {
+            initiatorId += getZigZag(initiators);
+            sequence += getZigZag(sequences);
+            int[] range = sequenceRanges.computeIfAbsent(initiatorId, id -> new int[]{Integer.MAX_VALUE, Integer.MIN_VALUE});
+            range[0] = Math.min(range[0], (int) sequence);
+            range[1] = Math.max(range[1], (int) sequence);
+        }
+        return new Block(position, length, recordCount, generation, lastSlot, minTimestamp, maxTimestamp, columnOffsets, sequenceRanges);
+    }
+
+    /**
+     * @return CRC32 of the block after its checksum
+     */
+    private static int checksum(@NotNull byte[] block) {
+        CRC32 crc = new CRC32();
+        crc.update(block, BLOCK_PREFIX_SIZE, block.length - BLOCK_PREFIX_SIZE);
+        return (int) crc.getValue();
+    }
+
+    private static void putZigZag(@NotNull ByteArrayOutputStream out, long value) {
+        putVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static void putVarint(@NotNull ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long getZigZag(@NotNull ByteBuffer in) {
+        long value = getVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long getVarint(@NotNull ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Header of a block of the archive
+     */
+    static final class Block {
+
+        /**
+         * Position of the block in the file
+         */
+        private final long position;
+
+        /**
+         * Length of the block after its length field
+         */
+        private final int length;
+
+        private final int recordCount;
+
+        /**
+         * Generation of the log the records were moved from
+         */
+        private final long generation;
+
+        /**
+         * Slot of the last record of the block in the log
+         */
+        private final long lastSlot;
+
+        private final long minTimestamp;
+
+        private final long maxTimestamp;
+
+        /**
+         * Offsets of columns from the start of the first column, the last one is the end of the last column
+         */
+        @NotNull
+        private final int[] columnOffsets;
+
+        private final int columnsSize;
+
+        /**
+         * Min/max sequence of records of every initiator in the block
+         * <p>
+         * Map<InitiatorId, {MinSequence, MaxSequence}>
+         */
+        @NotNull
+        private final Map<Integer, int[]> sequences;
+
+        private Block(long position, int length, int recordCount, long generation, long lastSlot, long minTimestamp, long maxTimestamp,
+                      @NotNull int[] columnOffsets, @NotNull Map<Integer, int[]> sequences) {
+            this.position = position;
+            this.length = length;
+            this.recordCount = recordCount;
+            this.generation = generation;
+            this.lastSlot = lastSlot;
+            this.minTimestamp = minTimestamp;
+            this.maxTimestamp = maxTimestamp;
+            this.columnOffsets = columnOffsets;
+            this.columnsSize = columnOffsets[COLUMNS];
+            this.sequences = sequences;
+        }
+
+        long getGeneration() {
+            return generation;
+        }
+
+        long getLastSlot() {
+            return lastSlot;
+        }
+
+        int getRecordCount() {
+            return recordCount;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("position", position)
+                    .add("recordCount", recordCount)
+                    .add("generation", generation)
+                    .add("lastSlot", lastSlot)
+                    .add("minTimestamp", minTimestamp)
+                    .add("maxTimestamp", maxTimestamp)
+                    .add("initiatorCount", sequences.size())
+                    .toString();
+        }
+    }
+
+    /**
+     * Blocks holding records of one initiator in the order they were appended
+     * <p>
+     * Arrays are shared by copies with more blocks: entries up to count are never changed, so readers of a copy
+     * are not affected by appends into spare capacity. Arrays are doubled once full, as the ring of TransferLedger,
+     * so indexing all blocks on opening takes linear time
+     */
+    private static final class InitiatorBlocks {
+
+        private static final int INITIAL_CAPACITY = 16;
+
+        @NotNull
+        private final int[] blockNumbers;
+
+        /**
+         * Min sequence of records of the initiator in each of the blocks
+         */
+        @NotNull
+        private final int[] minSequences;
+
+        /**
+         * Max sequence of records of the initiator in each of the blocks
+         */
+        @NotNull
+        private final int[] maxSequences;
+
+        /**
+         * Number of blocks
+         */
+        private final int count;
+
+        private final int lastSequence;
+
+        /**
+         * Whether both min and max sequences never decrease from block to block
+         */
+        private final boolean isRising;
+
+        private InitiatorBlocks(int blockNumber, int minSequence, int maxSequence) {
+            this(new int[INITIAL_CAPACITY], new int[INITIAL_CAPACITY], new int[INITIAL_CAPACITY], 1, maxSequence, true);
+            blockNumbers[0] = blockNumber;
+            minSequences[0] = minSequence;
+            maxSequences[0] = maxSequence;
+        }
+
+        private InitiatorBlocks(@NotNull int[] blockNumbers, @NotNull int[] minSequences, @NotNull int[] maxSequences, int count, int lastSequence, boolean isRising) {
+            this.blockNumbers = blockNumbers;
+            this.minSequences = minSequences;
+            this.maxSequences = maxSequences;
+            this.count = count;
+            this.lastSequence = lastSequence;
+            this.isRising = isRising;
+        }
+
+        /**
+         * @return the last block with min sequence at or below the sequence, -1 if there is none,
+         * the last block if ranges do not rise
+         */
+        private int findLast(int sequence) {
+            if (!isRising) {
+                return count - 1;
+            }
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (minSequences[middle] <= sequence) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low - 1;
+        }
+
+        /**
+         * Must be called on the latest copy only, as it writes into spare capacity shared with this copy
+         *
+         * @return copy with blocks of the other one appended
+         */
+        @NotNull
+        private InitiatorBlocks append(@NotNull InitiatorBlocks other) {
+            int[] appendedBlockNumbers = blockNumbers;
+            int[] appendedMinSequences = minSequences;
+            int[] appendedMaxSequences = maxSequences;
+            int capacity = blockNumbers.length;
+            while (capacity < count + other.count) {
+                capacity *= 2;
+            }
+            if (capacity > blockNumbers.length) {
+                appendedBlockNumbers = Arrays.copyOf(blockNumbers, capacity);
+                appendedMinSequences = Arrays.copyOf(minSequences, capacity);
+                appendedMaxSequences = Arrays.copyOf(maxSequences, capacity);
+            }
+            System.arraycopy(other.blockNumbers, 0, appendedBlockNumbers, count, other.count);
+            System.arraycopy(other.minSequences, 0, appendedMinSequences, count, other.count);
+            System.arraycopy(other.maxSequences, 0, appendedMaxSequences, count, other.count);
+            boolean isAppendedRising = isRising && other.isRising
+                    && other.minSequences[0] >= minSequences[count - 1] && other.maxSequences[0] >= maxSequences[count - 1];
+            return new InitiatorBlocks(appendedBlockNumbers, appendedMinSequences, appendedMaxSequences, count + other.count,
+                    Math.max(lastSequence, other.lastSequence), isAppendedRising);
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package nl.tue.ds.storage;
+
+import com.google.common.base.MoreObjects;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Index of the snapshot log by snapshot id and by timestamp
+ * <p>
+ * File consists of fixed size entries in the order records were appended to the log, first entry is the header:
+ * {magic},{version},{entry size},{generation of the log},{unused}
+ * <p>
+ * Entry: {initiator ID},{snapshot sequence},{timestamp},{slot of the record},{unused},{CRC32}
+ * <p>
+ * Lookup by snapshot id reads one entry found by the directory: sequences of every initiator are consecutive,
+ * so the directory keeps number of the entry at position of the sequence in an array per initiator (4 bytes per snapshot),
+ * it is rebuilt from the file on opening
+ * <p>
+ * Lookup by timestamp is a binary search over entries, as timestamps of records are non-decreasing in the order of appending,
+ * invalid entries are stepped over by probing at most MAX_PROBES neighbouring entries on each side
+ * <p>
+ * Entries are reserved together with slots of their records and written by appending threads concurrently,
+ * entries with invalid checksum (reserved, but not written yet or torn by crash) are treated as missing
+ * <p>
+ * Index of other generation of the log than the opened one is emptied, so the log indexes its records again
+ *
+ * @see SnapshotLog
+ */
+public final class SnapshotIndex implements Closeable {
+
+    static final int ENTRY_SIZE = 32;
+
+    private static final int MAGIC = 0x47534e49;
+
+    private static final int VERSION = 3;
+
+    private static final int GENERATION_OFFSET = 12;
+
+    private static final int CHECKSUM_OFFSET = ENTRY_SIZE - Integer.BYTES;
+
+    private static final int INITIAL_SEQUENCES = 64;
+
+    private static final int NO_ENTRY = -1;
+
+    /**
+     * Maximal number of neighbouring entries read to step over invalid entries in lookup by timestamp,
+     * invalid entries are rare: reserved by appends in progress or torn by crash
+     */
+    private static final int MAX_PROBES = 64;
+
+    @NotNull
+    private final FileChannel channel;
+
+    /**
+     * Number of the next entry to write, entry 0 is the header
+     */
+    @NotNull
+    private final AtomicLong nextEntry;
+
+    /**
+     * Whether entries were written since the last force
+     */
+    @NotNull
+    private final AtomicBoolean isDirty = new AtomicBoolean();
+
+    /**
+     * Numbers of entries by sequence of the snapshot, per initiator, guarded by this
+     * <p>
+     * Map<InitiatorId, EntryBySequence>
+     */
+    @NotNull
+    private final Map<Integer, int[]> directory = new HashMap<>();
+
+    private SnapshotIndex(@NotNull FileChannel channel, long nextEntry) {
+        this.channel = channel;
+        this.nextEntry = new AtomicLong(nextEntry);
+    }
+
+    /**
+     * Opens existing index and rebuilds its directory up to the first invalid entry,
+     * or creates a new one if it is missing, of other version or of other generation of the log
+     *
+     * @param path       of the index file
+     * @param generation of the log
+     * @return opened index
+     */
+    @NotNull
+    public static SnapshotIndex open(@NotNull Path path, long generation) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            SnapshotIndex index = new SnapshotIndex(channel, 1);
+            ByteBuffer header = ByteBuffer.allocate(ENTRY_SIZE);
+            channel.read(header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != ENTRY_SIZE
+                    || header.getLong(GENERATION_OFFSET) != generation) {
+                index.reset(generation);
+                return index;
+            }
+            long entryCount = channel.size() / ENTRY_SIZE;
+            ByteBuffer entries = ByteBuffer.allocate(ENTRY_SIZE * 1024);
+            long entry = 1;
+            reading:
+            while (entry < entryCount) {
+                entries.clear();
+                channel.read(entries, entry * ENTRY_SIZE);
+                entries.flip();
+                while (entries.remaining() >= ENTRY_SIZE) {
+                    byte[] bytes = new byte[ENTRY_SIZE];
+                    entries.get(bytes);
+                    Entry valid = toEntry(bytes);
+                    if (valid == null) {
+                        break reading;
+                    }
+                    index.putDirectory(valid.initiatorId, valid.sequence, entry++);
+                }
+            }
+            index.nextEntry.set(entry);
+            return index;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Empties the index for the new generation of the log, appends to the log must be excluded
+     *
+     * @param generation of the log
+     */
+    synchronized void reset(long generation) throws IOException {
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(ENTRY_SIZE).putInt(MAGIC).putInt(VERSION).putInt(ENTRY_SIZE).putLong(generation);
+        header.clear();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        channel.force(false);
+        directory.clear();
+        nextEntry.set(1);
+        isDirty.set(false);
+    }
+
+    /**
+     * @return the last valid entry or null if the index is empty
+     */
+    @Nullable
+    Entry getLast() throws IOException {
+        for (long entry = nextEntry.get() - 1; entry > 0; entry--) {
+            Entry last = read(entry);
+            if (last != null) {
+                return last;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reserves the next entry, must be called in the order records are appended to the log
+     *
+     * @return number of the entry to write
+     */
+    long reserve() {
+        return nextEntry.getAndIncrement();
+    }
+
+    /**
+     * Writes entry of the record appended to the log
+     *
+     * @param entry       number of the reserved entry
+     * @param initiatorId of the snapshot
+     * @param sequence    of the snapshot
+     * @param timestamp   of the record
+     * @param slot        of the record in the log
+     */
+    void write(long entry, int initiatorId, int sequence, long timestamp, long slot) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE)
+                .putInt(initiatorId)
+                .putInt(sequence)
+                .putLong(timestamp)
+                .putLong(slot);
+        buffer.putInt(CHECKSUM_OFFSET, checksum(buffer.array()));
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, entry * ENTRY_SIZE + buffer.position());
+        }
+        isDirty.set(true);
+        synchronized (this) {
+            putDirectory(initiatorId, sequence, entry);
+        }
+    }
+
+    /**
+     * Looks the snapshot up by its id in constant time
+     *
+     * @param initiatorId of the snapshot
+     * @param sequence    of the snapshot
+     * @return entry or null if the snapshot is not indexed
+     */
+    @Nullable
+    Entry find(int initiatorId, int sequence) throws IOException {
+        int entry;
+        synchronized (this) {
+            int[] entries = directory.get(initiatorId);
+            entry = entries != null && sequence >= 0 && sequence < entries.length ? entries[sequence] : NO_ENTRY;
+        }
+        if (entry == NO_ENTRY) {
+            return null;
+        }
+        Entry found = read(entry);
+        return found != null && found.initiatorId == initiatorId && found.sequence == sequence ? found : null;
+    }
+
+    /**
+     * @param initiatorId of snapshots
+     * @return the highest indexed sequence of snapshots of the initiator, 0 if there is none
+     */
+    synchronized int getLastSequence(int initiatorId) {
+        int[] entries = directory.get(initiatorId);
+        if (entries != null) {
+            for (int sequence = entries.length - 1; sequence >= 0; sequence--) {
+                if (entries[sequence] != NO_ENTRY) {
+                    return sequence;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Binary search for the first entry with timestamp at or after the given one, an invalid middle entry is replaced
+     * by the nearest valid one within MAX_PROBES entries after or before it. The found entry is exact (or the invalid
+     * entry right after the last older one) while runs of invalid entries are shorter than MAX_PROBES, otherwise
+     * it may precede the first one, but never follows it
+     *
+     * @param timestamp in milliseconds since epoch
+     * @return number of the entry, or the number of the next entry to write if all entries are older
+     */
+    long findFirst(long timestamp) throws IOException {
+        long low = 1;
+        long high = nextEntry.get();
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            long probeEnd = Math.min(high, middle + MAX_PROBES);
+            long entry = middle;
+            Entry found = null;
+            while (entry < probeEnd && (found = read(entry)) == null) {
+                entry++;
+            }
+            if (found != null) {
+                if (found.timestamp < timestamp) {
+                    low = entry + 1;
+                } else {
+                    high = middle;
+                }
+                continue;
+            }
+            // entries from the middle to probeEnd are invalid, the nearest valid entry before them decides the side
+            long probeStart = Math.max(low, middle - MAX_PROBES);
+            entry = middle - 1;
+            while (entry >= probeStart && (found = read(entry)) == null) {
+                entry--;
+            }
+            if (found != null ? found.timestamp < timestamp : probeStart == low) {
+                low = probeEnd;
+            } else {
+                high = found != null ? entry : middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param entry number of the entry
+     * @return the entry or the nearest valid entry before it within MAX_PROBES entries, null if there is none
+     */
+    @Nullable
+    Entry findValid(long entry) throws IOException {
+        for (long probe = entry; probe >= Math.max(entry - MAX_PROBES, 1); probe--) {
+            Entry found = read(probe);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param entry number of the entry
+     * @return entry or null if it is missing or invalid
+     */
+    @Nullable
+    Entry read(long entry) throws IOException {
+        if (entry < 1 || entry >= nextEntry.get()) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, entry * ENTRY_SIZE + buffer.position()) < 0) {
+                return null;
+            }
+        }
+        return toEntry(buffer.array());
+    }
+
+    /**
+     * @return number of the next entry to write
+     */
+    long getNextEntry() {
+        return nextEntry.get();
+    }
+
+    /**
+     * Writes entries to the disk, no-op if nothing was written since the last force
+     */
+    public void force() throws IOException {
+        if (isDirty.getAndSet(false)) {
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    private void putDirectory(int initiatorId, int sequence, long entry) {
+        if (sequence < 0) {
+            return;
+        }
+        int[] entries = directory.get(initiatorId);
+        if (entries == null || sequence >= entries.length) {
+            int length = entries == null ? INITIAL_SEQUENCES : entries.length;
+            while (length <= sequence) {
+                length *= 2;
+            }
+            int[] grown = new int[length];
+            Arrays.fill(grown, NO_ENTRY);
+            if (entries != null) {
+                System.arraycopy(entries, 0, grown, 0, entries.length);
+            }
+            entries = grown;
+            directory.put(initiatorId, entries);
+        }
+        entries[sequence] = (int) entry;
+    }
+
+    @Nullable
+    private static Entry toEntry(@NotNull byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int checksum = buffer.getInt(CHECKSUM_OFFSET);
+        if (checksum == 0 || checksum != checksum(bytes)) {
+            return null;
+        }
+        return new Entry(buffer.getInt(0), buffer.getInt(4), buffer.getLong(8), buffer.getLong(16));
+    }
+
+    /**
+     * @return CRC32 of the entry without its checksum, never 0 so zeroed entries are never valid
+     */
+    private static int checksum(@NotNull byte[] entry) {
+        CRC32 crc = new CRC32();
+        crc.update(entry, 0, CHECKSUM_OFFSET);
+        int checksum = (int) crc.getValue();
+        return checksum == 0 ? 1 : checksum;
+    }
+
+    /**
+     * Position of one record in the log
+     */
+    static final class Entry {
+
+        private final int initiatorId;
+
+        private final int sequence;
+
+        private final long timestamp;
+
+        private final long slot;
+
+        private Entry(int initiatorId, int sequence, long timestamp, long slot) {
+            this.initiatorId = initiatorId;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.slot = slot;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        long getSlot() {
+            return slot;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("initiatorId", initiatorId)
+                    .add("sequence", sequence)
+                    .add("timestamp", timestamp)
+                    .add("slot", slot)
+                    .toString();
+        }
+    }
+}
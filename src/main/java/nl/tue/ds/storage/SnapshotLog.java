@@ -0,0 +1,850 @@
+package nl.tue.ds.storage;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of snapshot records backed by memory-mapped file
+ * <p>
+ * File consists of fixed size slots of RECORD_SIZE bytes, first slot is the header:
+ * {magic},{version},{record size},{segment size},{generation}
+ * <p>
+ * Record slot: {initiator ID},{snapshot sequence},{local balance (long)},{money in transfer},{timestamp},{slots from the FULL record},{channel count},{CRC32}
+ * <p>
+ * Record slot is followed by (channel count + 1) / 2 channel slots, two channels per slot:
+ * {node ID},{message count},{amount},{node ID},{message count},{amount},{unused},{-1},{CRC32}
+ * <p>
+ * Every fullInterval-th record is FULL (0 slots from the FULL record): its local balance and all channels with transfers
+ * in transit. Records in between are DELTA: change of local balance since the previous record and only channels
+ * whose transfers in transit differ from the previous record, a channel without transfers any more has message count -1.
+ * So a DELTA of a cut with no new traffic takes one slot. Channels are kept in ascending order of node ID
+ * <p>
+ * DELTA record is materialized by reading from its FULL record and applying the following DELTA records in order.
+ * Records of a chain take consecutive slots, so a torn slot loses its record and the rest of its chain up to the next FULL record
+ * <p>
+ * File grows by segments of preallocated slots, each mapped once. Appending reserves consecutive slots of the record
+ * and copies the record into mapped memory, while forcing to disk is done separately by force()
+ * <p>
+ * Slots with invalid checksum (reserved, but not completely written before crash) are skipped on reading,
+ * together with the record they belong to and DELTA records depending on it. The first record after opening is FULL
+ * <p>
+ * Every record is indexed by snapshot id and timestamp in SnapshotIndex, so a snapshot is read from its slot
+ * and a range of timestamps is read from its first record, instead of scanning the log.
+ * Timestamps are made non-decreasing in the order of appending. Records appended after the last valid entry
+ * of the index (lost by crash) are indexed again on opening
+ * <p>
+ * Once the log holds enough records, archive() moves them into columnar SnapshotArchive and empties the log,
+ * which starts a new generation, so the log stays bounded. Reads go over archived records followed by records
+ * of the log not archived yet (the archive knows generation and slot of the last archived record)
+ *
+ * @see SnapshotIndex
+ * @see SnapshotArchive
+ */
+public final class SnapshotLog implements Closeable {
+
+    static final int RECORD_SIZE = 40;
+
+    private static final int MAGIC = 0x47534e50;
+
+    private static final int VERSION = 6;
+
+    private static final int CHECKSUM_OFFSET = RECORD_SIZE - Integer.BYTES;
+
+    /**
+     * Holds channel count in record slot and CHANNEL_SLOT in channel slot
+     */
+    private static final int TYPE_OFFSET = CHECKSUM_OFFSET - Integer.BYTES;
+
+    private static final int CHANNEL_SLOT = -1;
+
+    /**
+     * Holds number of slots from the FULL record in record slot, 0 for FULL record
+     */
+    private static final int FULL_OFFSET = TYPE_OFFSET - Integer.BYTES;
+
+    /**
+     * Message count of the channel in DELTA record, which has no transfers in transit any more
+     */
+    private static final int REMOVED_CHANNEL = -1;
+
+    private static final int CHANNELS_PER_SLOT = 2;
+
+    private static final int GENERATION_OFFSET = 16;
+
+    @NotNull
+    private final FileChannel channel;
+
+    @NotNull
+    private final SnapshotIndex index;
+
+    @NotNull
+    private final SnapshotArchive archive;
+
+    /**
+     * Appends and reads hold the read lock, emptying the log after archiving holds the write lock
+     */
+    @NotNull
+    private final ReadWriteLock resetLock = new ReentrantReadWriteLock();
+
+    /**
+     * Distinguishes contents of the log between times it is emptied, changed under the write lock
+     */
+    private volatile long generation;
+
+    /**
+     * Serializes archiving
+     */
+    @NotNull
+    private final Object archiveLock = new Object();
+
+    /**
+     * Size of segment in bytes, multiple of RECORD_SIZE
+     */
+    private final int segmentSize;
+
+    /**
+     * Every N-th record is FULL, 1 -> all records are FULL
+     */
+    private final int fullInterval;
+
+    /**
+     * Mapped segments of the file, replaced by a longer copy once the file grows
+     */
+    @NotNull
+    private volatile MappedByteBuffer[] segments;
+
+    /**
+     * Next slot to append into
+     */
+    @NotNull
+    private final AtomicLong nextSlot;
+
+    /**
+     * Whether records were appended since the last force
+     */
+    @NotNull
+    private final AtomicBoolean isDirty = new AtomicBoolean();
+
+    /**
+     * Serializes forces, segments before the one of forcedSlot are not forced again (but the previous one,
+     * as appends reserved before the last force may still be in progress)
+     */
+    @NotNull
+    private final Object forceLock = new Object();
+
+    private long forcedSlot = 1;
+
+    /**
+     * Serializes reservation of slots and index entries, so timestamps are non-decreasing in the order of appending
+     */
+    @NotNull
+    private final Object appendLock = new Object();
+
+    /**
+     * Timestamp of the last appended record, guarded by appendLock
+     */
+    private long lastTimestamp;
+
+    /**
+     * Last appended record the next DELTA record is computed from, null if the next record is FULL, guarded by appendLock
+     */
+    @Nullable
+    private SnapshotRecord lastRecord;
+
+    /**
+     * Slot of the last FULL record, guarded by appendLock
+     */
+    private long fullSlot;
+
+    /**
+     * DELTA records appended since the last FULL record, guarded by appendLock
+     */
+    private int deltaCount;
+
+    private SnapshotLog(@NotNull FileChannel channel, @NotNull SnapshotIndex index, @NotNull SnapshotArchive archive, long generation,
+                        int segmentSize, int fullInterval, @NotNull MappedByteBuffer[] segments, long nextSlot) {
+        this.channel = channel;
+        this.index = index;
+        this.archive = archive;
+        this.generation = generation;
+        this.segmentSize = segmentSize;
+        this.fullInterval = Math.max(fullInterval, 1);
+        this.segments = segments;
+        this.nextSlot = new AtomicLong(nextSlot);
+    }
+
+    /**
+     * Opens existing log and recovers its end or creates a new one, together with its index and archive
+     * <p>
+     * Log without valid records starts a new generation, as its records may have been archived before crash
+     *
+     * @param path        of the log file
+     * @param indexPath   of the index file
+     * @param archivePath of the archive file
+     * @param segmentSize  in bytes for the new log, rounded down to multiple of RECORD_SIZE
+     * @param fullInterval every N-th record is FULL, others are DELTA, 1 -> all records are FULL
+     * @return opened log
+     */
+    @NotNull
+    public static SnapshotLog open(@NotNull Path path, @NotNull Path indexPath, @NotNull Path archivePath, int segmentSize, int fullInterval) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        SnapshotIndex index = null;
+        SnapshotArchive archive = null;
+        try {
+            archive = SnapshotArchive.open(archivePath);
+            if (channel.size() == 0) {
+                int size = Math.max(segmentSize / RECORD_SIZE, 2) * RECORD_SIZE;
+                long generation = nextGeneration(archive.getLastBlock() != null ? archive.getLastBlock().getGeneration() : 0);
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                segment.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, RECORD_SIZE).putInt(12, size).putLong(GENERATION_OFFSET, generation);
+                segment.force();
+                index = SnapshotIndex.open(indexPath, generation);
+                return new SnapshotLog(channel, index, archive, generation, size, fullInterval, new MappedByteBuffer[]{segment}, 1);
+            }
+            ByteBuffer header = ByteBuffer.allocate(RECORD_SIZE);
+            channel.read(header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != RECORD_SIZE) {
+                throw new IOException("Not a snapshot log of version=" + VERSION + ": " + path);
+            }
+            int size = header.getInt(12);
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((channel.size() + size - 1) / size)];
+            long lastSlot = 0;
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * size, size);
+                for (int offset = i == 0 ? RECORD_SIZE : 0; offset < size; offset += RECORD_SIZE) {
+                    if (readSlot(segments[i], offset) != null) {
+                        lastSlot = ((long) i * size + offset) / RECORD_SIZE;
+                    }
+                }
+            }
+            long generation = header.getLong(GENERATION_OFFSET);
+            if (lastSlot == 0 || generation == 0) {
+                generation = nextGeneration(generation);
+                segments[0].putLong(GENERATION_OFFSET, generation);
+                segments[0].force();
+            }
+            index = SnapshotIndex.open(indexPath, generation);
+            SnapshotLog log = new SnapshotLog(channel, index, archive, generation, size, fullInterval, segments, lastSlot + 1);
+            log.reindex();
+            return log;
+        } catch (IOException | RuntimeException e) {
+            if (index != null) {
+                index.close();
+            }
+            if (archive != null) {
+                archive.close();
+            }
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Appends record into mapped memory as FULL or DELTA to the previously appended record,
+     * the record is durable after the next force()
+     *
+     * @param record to append
+     */
+    public void append(@NotNull SnapshotRecord record) throws IOException {
+        resetLock.readLock().lock();
+        try {
+            appendSlots(record);
+        } finally {
+            resetLock.readLock().unlock();
+        }
+    }
+
+    private void appendSlots(@NotNull SnapshotRecord record) throws IOException {
+        record = sortChannels(record);
+        List<ChannelRecord> channels;
+        long balance;
+        int channelSlots;
+        long slot;
+        int slotsFromFull;
+        long timestamp;
+        long entry;
+        synchronized (appendLock) {
+            SnapshotRecord previous = lastRecord;
+            boolean isFull = previous == null || deltaCount + 1 >= fullInterval;
+            if (isFull) {
+                channels = record.getChannels();
+                balance = record.getLocalBalance();
+            } else {
+                channels = getChangedChannels(previous.getChannels(), record.getChannels());
+                balance = record.getLocalBalance() - previous.getLocalBalance();
+            }
+            channelSlots = getChannelSlots(channels.size());
+            slot = nextSlot.getAndAdd(1 + channelSlots);
+            if (isFull) {
+                fullSlot = slot;
+                deltaCount = 0;
+            } else {
+                deltaCount++;
+            }
+            slotsFromFull = (int) (slot - fullSlot);
+            lastRecord = record;
+            timestamp = Math.max(record.getTimestamp(), lastTimestamp);
+            lastTimestamp = timestamp;
+            entry = index.reserve();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE)
+                .putInt(record.getInitiatorId())
+                .putInt(record.getSequence())
+                .putLong(balance)
+                .putInt(record.getMoneyInTransfer())
+                .putLong(timestamp)
+                .putInt(FULL_OFFSET, slotsFromFull)
+                .putInt(TYPE_OFFSET, channels.size());
+        writeSlot(slot, buffer);
+        for (int i = 0; i < channelSlots; i++) {
+            buffer = ByteBuffer.allocate(RECORD_SIZE);
+            for (int j = i * CHANNELS_PER_SLOT; j < Math.min((i + 1) * CHANNELS_PER_SLOT, channels.size()); j++) {
+                ChannelRecord channel = channels.get(j);
+                buffer.putInt(channel.getNodeId()).putInt(channel.getMessageCount()).putInt(channel.getAmount());
+            }
+            buffer.putInt(TYPE_OFFSET, CHANNEL_SLOT);
+            writeSlot(slot + 1 + i, buffer);
+        }
+        isDirty.set(true);
+        index.write(entry, record.getInitiatorId(), record.getSequence(), timestamp, slot);
+    }
+
+    /**
+     * Materializes the record of the snapshot found by the index from its FULL record and DELTA records up to its slot,
+     * or finds it in the archive if it is not in the log
+     *
+     * @param initiatorId of the snapshot
+     * @param sequence    of the snapshot
+     * @return full record or null if the snapshot is neither in the log nor in the archive
+     */
+    @Nullable
+    public SnapshotRecord materialize(int initiatorId, int sequence) throws IOException {
+        resetLock.readLock().lock();
+        try {
+            SnapshotRecord record = materializeSlots(initiatorId, sequence);
+            return record != null ? record : archive.find(archive.getBlocks(), initiatorId, sequence);
+        } finally {
+            resetLock.readLock().unlock();
+        }
+    }
+
+    @Nullable
+    private SnapshotRecord materializeSlots(int initiatorId, int sequence) throws IOException {
+        SnapshotIndex.Entry entry = index.find(initiatorId, sequence);
+        if (entry == null) {
+            return null;
+        }
+        SnapshotRecord[] result = new SnapshotRecord[1];
+        read(getFullSlot(entry.getSlot()), (record, slot) -> {
+            if (slot == entry.getSlot() && record.getInitiatorId() == initiatorId && record.getSequence() == sequence) {
+                result[0] = record;
+            }
+            return slot < entry.getSlot();
+        });
+        return result[0];
+    }
+
+    /**
+     * @param initiatorId of snapshots
+     * @return the highest sequence of snapshots of the initiator in the log or the archive, 0 if there is none
+     */
+    public int getLastSequence(int initiatorId) throws IOException {
+        resetLock.readLock().lock();
+        try {
+            return Math.max(index.getLastSequence(initiatorId), archive.getLastSequence(initiatorId));
+        } finally {
+            resetLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads all archived records and valid records of the log in the order they were appended
+     *
+     * @param consumer of the records
+     */
+    public void read(@NotNull Consumer<SnapshotRecord> consumer) throws IOException {
+        read(Long.MIN_VALUE, Long.MAX_VALUE, consumer);
+    }
+
+    /**
+     * Reads archived records and valid records of the log written within the range of timestamps in the order
+     * they were appended, the archive skips blocks out of the range and the log starts from the FULL record
+     * of the first record of the range found by the index
+     *
+     * @param fromTimestamp inclusive, in milliseconds since epoch
+     * @param toTimestamp   inclusive, in milliseconds since epoch
+     * @param consumer      of the records
+     */
+    public void read(long fromTimestamp, long toTimestamp, @NotNull Consumer<SnapshotRecord> consumer) throws IOException {
+        resetLock.readLock().lock();
+        try {
+            SnapshotArchive.Block[] blocks = archive.getBlocks();
+            archive.read(blocks, fromTimestamp, toTimestamp, consumer);
+            long archivedSlot = getArchivedSlot(blocks.length > 0 ? blocks[blocks.length - 1] : null);
+            readSlots(fromTimestamp, toTimestamp, archivedSlot, consumer);
+        } finally {
+            resetLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Moves records of the log into the archive and empties the log once it holds at least minRecords records
+     * <p>
+     * Full blocks are copied while appends go on, the rest is copied with appends excluded,
+     * then the archive is forced and the log is emptied and starts a new generation
+     *
+     * @param minRecords number of records the log must hold, 0 disables archiving
+     * @return number of archived records
+     */
+    public int archive(int minRecords) throws IOException {
+        if (minRecords <= 0 || index.getNextEntry() - 1 < minRecords) {
+            return 0;
+        }
+        synchronized (archiveLock) {
+            int archived;
+            resetLock.readLock().lock();
+            try {
+                archived = copyToArchive(false);
+            } finally {
+                resetLock.readLock().unlock();
+            }
+            resetLock.writeLock().lock();
+            try {
+                archived += copyToArchive(true);
+                archive.force();
+                reset();
+            } finally {
+                resetLock.writeLock().unlock();
+            }
+            return archived;
+        }
+    }
+
+    /**
+     * @return size of the archive file in bytes
+     */
+    public long getArchiveSize() {
+        return archive.size();
+    }
+
+    private void readSlots(long fromTimestamp, long toTimestamp, long archivedSlot, @NotNull Consumer<SnapshotRecord> consumer) throws IOException {
+        long entry = index.findFirst(fromTimestamp);
+        if (entry >= index.getNextEntry()) {
+            return;
+        }
+        // valid entry at or before the first one of the range, reading starts from the first record of the log without it
+        SnapshotIndex.Entry first = index.findValid(entry);
+        if (first != null && first.getTimestamp() > toTimestamp) {
+            return;
+        }
+        long firstSlot = first != null ? first.getSlot() : 1;
+        read(getFullSlot(firstSlot), (record, slot) -> {
+            if (slot < firstSlot || slot <= archivedSlot || record.getTimestamp() < fromTimestamp) {
+                return true;
+            }
+            if (record.getTimestamp() > toTimestamp) {
+                return false;
+            }
+            consumer.accept(record);
+            return true;
+        });
+    }
+
+    /**
+     * @param lastBlock of the archive
+     * @return slot of the last archived record of the current generation, 0 if none of its records is archived
+     */
+    private long getArchivedSlot(@Nullable SnapshotArchive.Block lastBlock) {
+        return lastBlock != null && lastBlock.getGeneration() == generation ? lastBlock.getLastSlot() : 0;
+    }
+
+    /**
+     * Copies records after the last archived one into the archive in blocks of BLOCK_RECORDS records
+     *
+     * @param isExclusive whether appends are excluded, otherwise copying stops at the first slot not written yet
+     *                    and only full blocks are copied
+     * @return number of copied records
+     */
+    private int copyToArchive(boolean isExclusive) throws IOException {
+        SnapshotArchive.Block lastBlock = archive.getLastBlock();
+        long archivedSlot = getArchivedSlot(lastBlock);
+        List<SnapshotRecord> records = new ArrayList<>(SnapshotArchive.BLOCK_RECORDS);
+        long[] lastSlot = new long[1];
+        long[] expectedSlot = {archivedSlot > 0 ? archivedSlot : 1};
+        int[] copied = new int[1];
+        try {
+            read(archivedSlot > 0 ? getFullSlot(archivedSlot) : 1, (record, slot) -> {
+                if (slot <= archivedSlot) {
+                    expectedSlot[0] = slot + 1 + getChannelSlots(record.getChannels().size());
+                    return true;
+                }
+                if (!isExclusive && slot != expectedSlot[0]) {
+                    return false;
+                }
+                expectedSlot[0] = slot + 1 + getChannelSlots(record.getChannels().size());
+                records.add(record);
+                lastSlot[0] = slot;
+                if (records.size() == SnapshotArchive.BLOCK_RECORDS) {
+                    appendBlock(records, lastSlot[0]);
+                    copied[0] += records.size();
+                    records.clear();
+                }
+                return true;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (isExclusive && !records.isEmpty()) {
+            appendBlock(records, lastSlot[0]);
+            copied[0] += records.size();
+        }
+        return copied[0];
+    }
+
+    private void appendBlock(@NotNull List<SnapshotRecord> records, long lastSlot) {
+        try {
+            archive.append(generation, lastSlot, records);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Empties the log and its index and starts a new generation, appends must be excluded
+     */
+    private void reset() throws IOException {
+        MappedByteBuffer[] mapped = segments;
+        long endSlot = Math.min(nextSlot.get(), (long) mapped.length * segmentSize / RECORD_SIZE);
+        byte[] zeros = new byte[segmentSize];
+        for (int i = 0; i <= getSegmentIndex(endSlot - 1); i++) {
+            ByteBuffer segment = mapped[i].duplicate();
+            int from = i == 0 ? RECORD_SIZE : 0;
+            segment.position(from);
+            segment.put(zeros, 0, segmentSize - from);
+        }
+        generation = nextGeneration(generation);
+        mapped[0].putLong(GENERATION_OFFSET, generation);
+        for (MappedByteBuffer segment : mapped) {
+            segment.force();
+        }
+        synchronized (forceLock) {
+            nextSlot.set(1);
+            forcedSlot = 1;
+            isDirty.set(false);
+        }
+        synchronized (appendLock) {
+            lastRecord = null;
+        }
+        index.reset(generation);
+    }
+
+    /**
+     * @return generation greater than the given one, current time if possible
+     */
+    private static long nextGeneration(long generation) {
+        return Math.max(System.currentTimeMillis(), generation + 1);
+    }
+
+    private static int getChannelSlots(int channelCount) {
+        return (channelCount + CHANNELS_PER_SLOT - 1) / CHANNELS_PER_SLOT;
+    }
+
+    /**
+     * @return record with channels in ascending order of node ID, the record itself if they are already sorted
+     */
+    @NotNull
+    private static SnapshotRecord sortChannels(@NotNull SnapshotRecord record) {
+        List<ChannelRecord> channels = record.getChannels();
+        for (int i = 1; i < channels.size(); i++) {
+            if (channels.get(i - 1).getNodeId() > channels.get(i).getNodeId()) {
+                List<ChannelRecord> sorted = new ArrayList<>(channels);
+                sorted.sort(Comparator.comparingInt(ChannelRecord::getNodeId));
+                return new SnapshotRecord(record.getInitiatorId(), record.getSequence(), record.getLocalBalance(), record.getMoneyInTransfer(), record.getTimestamp(), sorted);
+            }
+        }
+        return record;
+    }
+
+    /**
+     * @param previous channels of the previous record, sorted by node ID
+     * @param current  channels of the record, sorted by node ID
+     * @return channels of the record which differ from the previous record and channels of the previous record
+     * missing in the record with REMOVED_CHANNEL message count, sorted by node ID
+     */
+    @NotNull
+    private static List<ChannelRecord> getChangedChannels(@NotNull List<ChannelRecord> previous, @NotNull List<ChannelRecord> current) {
+        List<ChannelRecord> changed = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < previous.size() || j < current.size()) {
+            int previousNodeId = i < previous.size() ? previous.get(i).getNodeId() : Integer.MAX_VALUE;
+            int currentNodeId = j < current.size() ? current.get(j).getNodeId() : Integer.MAX_VALUE;
+            if (j == current.size() || i < previous.size() && previousNodeId < currentNodeId) {
+                changed.add(new ChannelRecord(previousNodeId, REMOVED_CHANNEL, 0));
+                i++;
+            } else if (i == previous.size() || currentNodeId < previousNodeId) {
+                changed.add(current.get(j++));
+            } else {
+                if (!previous.get(i).equals(current.get(j))) {
+                    changed.add(current.get(j));
+                }
+                i++;
+                j++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @param previous channels of the previous record, sorted by node ID
+     * @param changed  channels of DELTA record, sorted by node ID
+     * @return channels of the previous record replaced and removed by changed channels, sorted by node ID
+     */
+    @NotNull
+    private static List<ChannelRecord> applyChangedChannels(@NotNull List<ChannelRecord> previous, @NotNull List<ChannelRecord> changed) {
+        if (changed.isEmpty()) {
+            return previous;
+        }
+        List<ChannelRecord> channels = new ArrayList<>(previous.size() + changed.size());
+        int i = 0;
+        int j = 0;
+        while (i < previous.size() || j < changed.size()) {
+            int previousNodeId = i < previous.size() ? previous.get(i).getNodeId() : Integer.MAX_VALUE;
+            int changedNodeId = j < changed.size() ? changed.get(j).getNodeId() : Integer.MAX_VALUE;
+            if (j == changed.size() || i < previous.size() && previousNodeId < changedNodeId) {
+                channels.add(previous.get(i++));
+                continue;
+            }
+            if (i < previous.size() && previousNodeId == changedNodeId) {
+                i++;
+            }
+            ChannelRecord channel = changed.get(j++);
+            if (channel.getMessageCount() != REMOVED_CHANNEL) {
+                channels.add(channel);
+            }
+        }
+        return channels;
+    }
+
+    /**
+     * @param slot of a record
+     * @return slot of the FULL record the record is materialized from, the slot itself if it holds no valid record
+     */
+    private long getFullSlot(long slot) {
+        MappedByteBuffer[] mapped = segments;
+        if (slot < 1 || slot >= Math.min(nextSlot.get(), (long) mapped.length * segmentSize / RECORD_SIZE)) {
+            return slot;
+        }
+        ByteBuffer recordSlot = readSlot(mapped, slot);
+        return recordSlot != null && recordSlot.getInt(TYPE_OFFSET) >= 0 ? Math.max(slot - recordSlot.getInt(FULL_OFFSET), 1) : slot;
+    }
+
+    /**
+     * Reads valid records from the slot, DELTA records are materialized from the preceding records of their chain,
+     * so reading must start from a FULL record, DELTA records without it are skipped
+     *
+     * @param fromSlot slot to start reading from
+     * @param visitor  of the records, reading stops once it returns false
+     */
+    private void read(long fromSlot, @NotNull RecordVisitor visitor) {
+        MappedByteBuffer[] mapped = segments;
+        long endSlot = Math.min(nextSlot.get(), (long) mapped.length * segmentSize / RECORD_SIZE);
+        long slot = fromSlot;
+        // last materialized record, its FULL record and the slot right after it
+        SnapshotRecord previous = null;
+        long previousFullSlot = 0;
+        long previousEndSlot = 0;
+        while (slot < endSlot) {
+            ByteBuffer recordSlot = readSlot(mapped, slot);
+            if (recordSlot == null || recordSlot.getInt(TYPE_OFFSET) < 0) {
+                slot++;
+                continue;
+            }
+            int channelCount = recordSlot.getInt(TYPE_OFFSET);
+            int channelSlots = (channelCount + CHANNELS_PER_SLOT - 1) / CHANNELS_PER_SLOT;
+            List<ChannelRecord> channels = new ArrayList<>(channelCount);
+            for (int i = 0; i < channelSlots && slot + 1 + i < endSlot; i++) {
+                ByteBuffer channelSlot = readSlot(mapped, slot + 1 + i);
+                if (channelSlot == null || channelSlot.getInt(TYPE_OFFSET) != CHANNEL_SLOT) {
+                    break;
+                }
+                for (int j = 0; j < CHANNELS_PER_SLOT && channels.size() < channelCount; j++) {
+                    channels.add(new ChannelRecord(channelSlot.getInt(), channelSlot.getInt(), channelSlot.getInt()));
+                }
+            }
+            if (channels.size() != channelCount) {
+                slot++;
+                continue;
+            }
+            int slotsFromFull = recordSlot.getInt(FULL_OFFSET);
+            SnapshotRecord record;
+            if (slotsFromFull == 0) {
+                record = new SnapshotRecord(recordSlot.getInt(0), recordSlot.getInt(4), recordSlot.getLong(8), recordSlot.getInt(16), recordSlot.getLong(20), channels);
+                previousFullSlot = slot;
+            } else if (previous != null && slot == previousEndSlot && slot - slotsFromFull == previousFullSlot) {
+                record = new SnapshotRecord(recordSlot.getInt(0), recordSlot.getInt(4), previous.getLocalBalance() + recordSlot.getLong(8), recordSlot.getInt(16), recordSlot.getLong(20),
+                        applyChangedChannels(previous.getChannels(), channels));
+            } else {
+                // FULL record or a preceding DELTA record of the chain is lost
+                record = null;
+            }
+            previous = record;
+            previousEndSlot = slot + 1 + channelSlots;
+            if (record != null && !visitor.visit(record, slot)) {
+                return;
+            }
+            slot += 1 + channelSlots;
+        }
+    }
+
+    /**
+     * Indexes valid records appended after the record of the last valid entry of the index,
+     * restores timestamp of the last record, so timestamps stay non-decreasing
+     */
+    private void reindex() throws IOException {
+        SnapshotIndex.Entry last = index.getLast();
+        long lastSlot = last != null ? last.getSlot() : 0;
+        long[] reindexed = new long[1];
+        synchronized (appendLock) {
+            lastTimestamp = last != null ? last.getTimestamp() : 0;
+            read(last != null ? getFullSlot(last.getSlot()) : 1, (record, slot) -> {
+                if (slot > lastSlot) {
+                    lastTimestamp = Math.max(record.getTimestamp(), lastTimestamp);
+                    try {
+                        index.write(index.reserve(), record.getInitiatorId(), record.getSequence(), lastTimestamp, slot);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    reindexed[0]++;
+                }
+                return true;
+            });
+        }
+        if (reindexed[0] > 0) {
+            index.force();
+        }
+    }
+
+    /**
+     * Writes appended records and their index entries to the disk, no-op if nothing was appended since the last force
+     */
+    public void force() throws IOException {
+        index.force();
+        synchronized (forceLock) {
+            if (isDirty.getAndSet(false)) {
+                MappedByteBuffer[] mapped = segments;
+                long endSlot = nextSlot.get();
+                int lastIndex = Math.min(getSegmentIndex(endSlot - 1), mapped.length - 1);
+                for (int i = Math.max(getSegmentIndex(forcedSlot) - 1, 0); i <= lastIndex; i++) {
+                    mapped[i].force();
+                }
+                forcedSlot = endSlot;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        index.close();
+        archive.close();
+        channel.close();
+    }
+
+    @NotNull
+    private MappedByteBuffer getSegment(long slot) throws IOException {
+        int index = getSegmentIndex(slot);
+        MappedByteBuffer[] mapped = segments;
+        if (index < mapped.length) {
+            return mapped[index];
+        }
+        synchronized (this) {
+            mapped = segments;
+            if (index >= mapped.length) {
+                mapped = Arrays.copyOf(mapped, index + 1);
+                for (int i = segments.length; i <= index; i++) {
+                    mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * segmentSize, segmentSize);
+                }
+                segments = mapped;
+            }
+            return mapped[index];
+        }
+    }
+
+    private int getSegmentIndex(long slot) {
+        return (int) (slot * RECORD_SIZE / segmentSize);
+    }
+
+    private int getOffset(long slot) {
+        return (int) (slot * RECORD_SIZE % segmentSize);
+    }
+
+    /**
+     * Fills in checksum and copies the slot into mapped memory
+     */
+    private void writeSlot(long slot, @NotNull ByteBuffer buffer) throws IOException {
+        buffer.putInt(CHECKSUM_OFFSET, checksum(buffer.array()));
+        ByteBuffer target = getSegment(slot).duplicate();
+        target.position(getOffset(slot));
+        target.put(buffer.array());
+    }
+
+    @Nullable
+    private ByteBuffer readSlot(@NotNull MappedByteBuffer[] mapped, long slot) {
+        return readSlot(mapped[getSegmentIndex(slot)], getOffset(slot));
+    }
+
+    /**
+     * @return copy of the slot or null if its checksum is invalid
+     */
+    @Nullable
+    private static ByteBuffer readSlot(@NotNull ByteBuffer segment, int offset) {
+        byte[] slot = new byte[RECORD_SIZE];
+        for (int i = 0; i < RECORD_SIZE; i++) {
+            slot[i] = segment.get(offset + i);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(slot);
+        int checksum = buffer.getInt(CHECKSUM_OFFSET);
+        return checksum != 0 && checksum == checksum(slot) ? buffer : null;
+    }
+
+    /**
+     * @return CRC32 of the record without its checksum, never 0 so zeroed slots are never valid
+     */
+    private static int checksum(@NotNull byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, CHECKSUM_OFFSET);
+        int checksum = (int) crc.getValue();
+        return checksum == 0 ? 1 : checksum;
+    }
+
+    /**
+     * Receives record together with its slot
+     */
+    private interface RecordVisitor {
+
+        /**
+         * @return whether to continue reading
+         */
+        boolean visit(@NotNull SnapshotRecord record, long slot);
+    }
+}
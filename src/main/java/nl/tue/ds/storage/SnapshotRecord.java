@@ -0,0 +1,105 @@
+package nl.tue.ds.storage;
+
+import com.google.common.base.MoreObjects;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Persisted local state of the node in one distributed snapshot
+ *
+ * @see SnapshotLog
+ */
+public final class SnapshotRecord {
+
+    private final int initiatorId;
+
+    private final int sequence;
+
+    private final long localBalance;
+
+    private final int moneyInTransfer;
+
+    /**
+     * Time the record was written in milliseconds since epoch
+     */
+    private final long timestamp;
+
+    /**
+     * Incoming channels with transfers in transit, channels without transfers are omitted
+     */
+    @NotNull
+    private final List<ChannelRecord> channels;
+
+    public SnapshotRecord(int initiatorId, int sequence, long localBalance, int moneyInTransfer, long timestamp, @NotNull List<ChannelRecord> channels) {
+        this.initiatorId = initiatorId;
+        this.sequence = sequence;
+        this.localBalance = localBalance;
+        this.moneyInTransfer = moneyInTransfer;
+        this.timestamp = timestamp;
+        this.channels = Collections.unmodifiableList(channels);
+    }
+
+    public int getInitiatorId() {
+        return initiatorId;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public long getLocalBalance() {
+        return localBalance;
+    }
+
+    public int getMoneyInTransfer() {
+        return moneyInTransfer;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @NotNull
+    public List<ChannelRecord> getChannels() {
+        return channels;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        if (o instanceof SnapshotRecord) {
+            SnapshotRecord object = (SnapshotRecord) o;
+
+            return Objects.equals(initiatorId, object.initiatorId) &&
+                    Objects.equals(sequence, object.sequence) &&
+                    Objects.equals(localBalance, object.localBalance) &&
+                    Objects.equals(moneyInTransfer, object.moneyInTransfer) &&
+                    Objects.equals(timestamp, object.timestamp) &&
+                    Objects.equals(channels, object.channels);
+        }
+
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(initiatorId, sequence, localBalance, moneyInTransfer, timestamp, channels);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("initiatorId", initiatorId)
+                .add("sequence", sequence)
+                .add("localBalance", localBalance)
+                .add("moneyInTransfer", moneyInTransfer)
+                .add("timestamp", timestamp)
+                .add("channels", channels)
+                .toString();
+    }
+}
@@ -0,0 +1,724 @@
+package nl.tue.ds.storage;
+
+import nl.tue.ds.entity.AccountTable;
+import nl.tue.ds.entity.Checkpoint;
+import nl.tue.ds.entity.Item;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Write-ahead log of balance changes and transfers of the bank (journal of the item) with group commit
+ * <p>
+ * Changes are appended into memory buffer by transferring threads, sync() writes buffered changes and forces them
+ * to disk by one thread at a time, so changes appended while one thread is forcing are made durable together
+ * by the next force (group commit)
+ * <p>
+ * Record: {position}{type}{payload length}{payload}{CRC32}, positions are consecutive from 1, payload by type:
+ * - CHANGE: {account ID}{amount}
+ * - WITHDRAWAL: {transfer ID}{account ID}{amount}{recipient node ID}{recipient account ID}
+ * - SENT: {batch ID}{count}({transfer ID})...
+ * - COMPLETED, ROLLED_BACK: {count}({transfer ID})...
+ * - CREDITED: {sender node ID}{batch ID}{count}({account ID}{amount})...
+ * <p>
+ * The log keeps pending transfers (withdrawn, but neither completed nor rolled back) and the last batch credited
+ * per sender as they are appended, so recovery knows which withdrawals are still in transit and which batches
+ * are credited already, see RecoveredState
+ * <p>
+ * Log consists of segment files {prefix}-{first position}.transfers, a new segment is started once the current one
+ * exceeds segment size and on every opening. Segments with all records covered by the checkpoint are deleted
+ * <p>
+ * Checkpoint file {prefix}.checkpoint holds balances of all accounts of the attached item, pending transfers and credited
+ * batches at a position of the log: {magic},{version},{position},{account count}({account ID}{balance})...,{last transfer ID},
+ * {pending count}({transfer ID}{account ID}{amount}{recipient node ID}{recipient account ID}{batch ID})...,
+ * {sender count}({sender node ID}{batch ID})...,{CRC32}, it is written into a temporary file and renamed,
+ * so a crash leaves either the previous or the new checkpoint
+ * <p>
+ * Recovery loads the checkpoint and replays records after its position up to the first invalid one (torn write)
+ *
+ * @see Item.Journal
+ * @see RecoveredState
+ */
+public final class TransferLog implements Item.Journal, Closeable {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final int HEADER_SIZE = Long.BYTES + Byte.BYTES + Integer.BYTES;
+
+    /**
+     * Size of the CHANGE record, the smallest one
+     */
+    static final int RECORD_SIZE = HEADER_SIZE + Integer.BYTES * 2 + Integer.BYTES;
+
+    /**
+     * Upper bound of payload length, anything longer is a corrupted record
+     */
+    private static final int MAX_PAYLOAD_SIZE = 1 << 24;
+
+    private static final byte CHANGE = 1;
+
+    private static final byte WITHDRAWAL = 2;
+
+    private static final byte SENT = 3;
+
+    private static final byte COMPLETED = 4;
+
+    private static final byte ROLLED_BACK = 5;
+
+    private static final byte CREDITED = 6;
+
+    private static final int MAGIC = 0x47535452;
+
+    private static final int VERSION = 2;
+
+    private static final String SEGMENT_SUFFIX = ".transfers";
+
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    private static final int INITIAL_BUFFER_RECORDS = 1024;
+
+    @NotNull
+    private final Path directory;
+
+    @NotNull
+    private final String prefix;
+
+    private final int segmentSize;
+
+    /**
+     * Whether sync() forces changes to disk or only writes them to the operating system
+     */
+    private final boolean isForced;
+
+    /**
+     * State recovered on opening, null if the log was empty
+     */
+    @Nullable
+    private final RecoveredState recovered;
+
+    /**
+     * Item journaled into the log, which balances are captured by checkpoints
+     */
+    @Nullable
+    private volatile Item item;
+
+    /**
+     * Pending transfers and credited batches up to the last appended change, guarded by this
+     */
+    @NotNull
+    private final Ledger ledger;
+
+    /**
+     * Changes appended, but not yet written, guarded by this
+     */
+    @NotNull
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_RECORDS * RECORD_SIZE);
+
+    /**
+     * Position of the last appended change, guarded by this
+     */
+    private long position;
+
+    @NotNull
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Serializes writing and forcing of buffered changes and changes of segments
+     */
+    @NotNull
+    private final Object syncLock = new Object();
+
+    /**
+     * Buffer swapped with the buffer of appended changes on the next sync, guarded by syncLock
+     */
+    @NotNull
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_RECORDS * RECORD_SIZE);
+
+    /**
+     * Segment files by their first position, the last one is being written, guarded by syncLock
+     * <p>
+     * Map<FirstPosition, Path>
+     */
+    @NotNull
+    private final TreeMap<Long, Path> segments;
+
+    /**
+     * Segment being written, opened by the first sync, guarded by syncLock
+     */
+    @Nullable
+    private FileChannel segment;
+
+    /**
+     * Bytes written into the segment, guarded by syncLock
+     */
+    private long segmentBytes;
+
+    /**
+     * Serializes writing of checkpoints, so syncs are not blocked while balances of all accounts are written
+     */
+    @NotNull
+    private final Object checkpointLock = new Object();
+
+    /**
+     * Position of the last checkpoint, guarded by checkpointLock
+     */
+    private long checkpointPosition;
+
+    /**
+     * Number of forces and records made durable by them, guarded by syncLock
+     */
+    private long syncCount;
+
+    private long syncedRecords;
+
+    /**
+     * Position of the last durable change
+     */
+    private volatile long durablePosition;
+
+    private TransferLog(@NotNull Path directory, @NotNull String prefix, int segmentSize, boolean isForced, @NotNull TreeMap<Long, Path> segments,
+                        long position, long checkpointPosition, @NotNull Ledger ledger, @Nullable RecoveredState recovered) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+        this.isForced = isForced;
+        this.segments = segments;
+        this.position = position;
+        this.checkpointPosition = checkpointPosition;
+        this.ledger = ledger;
+        this.recovered = recovered;
+        durablePosition = position;
+    }
+
+    /**
+     * Opens the log and recovers the state of the bank from the last checkpoint and the changes after it
+     *
+     * @param directory   of the log
+     * @param prefix      of file names of the log
+     * @param segmentSize in bytes, a new segment is started once the current one exceeds it
+     * @param isForced    whether sync() forces changes to disk
+     * @param initialItem state of the bank before the first change of the log, used if there is no checkpoint
+     * @return opened log, new changes are appended into a new segment
+     */
+    @NotNull
+    public static TransferLog open(@NotNull Path directory, @NotNull String prefix, int segmentSize, boolean isForced, @NotNull Supplier<Item> initialItem) throws IOException {
+        long startTime = System.nanoTime();
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "-*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(prefix.length() + 1, name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    logger.warn("Skipped unknown file of transfer log=" + file);
+                }
+            }
+        }
+        Ledger ledger = new Ledger();
+        Checkpoint checkpoint = readCheckpoint(directory.resolve(prefix + CHECKPOINT_SUFFIX), ledger);
+        if (checkpoint == null && segments.isEmpty()) {
+            return new TransferLog(directory, prefix, segmentSize, isForced, segments, 0, 0, ledger, null);
+        }
+        Item item = checkpoint != null ? new Item(checkpoint.getAccounts()) : initialItem.get();
+        long checkpointPosition = checkpoint != null ? checkpoint.getPosition() : 0;
+        long position = checkpointPosition;
+        long replayed = 0;
+        for (Path file : segments.values()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                ByteBuffer record;
+                while ((record = readRecord(in)) != null) {
+                    long recordPosition = record.getLong();
+                    if (recordPosition > position + 1) {
+                        break;
+                    }
+                    if (recordPosition == position + 1) {
+                        if (!replay(record, item, ledger)) {
+                            logger.warn("Stopped replay at unknown record of transfer log=" + file + ", position=" + recordPosition);
+                            break;
+                        }
+                        position = recordPosition;
+                        replayed++;
+                    }
+                }
+            }
+        }
+        logger.info("Recovered balance=" + item.getBalance() + " of accounts=" + item.getAccountCount() + ", pending transfers=" + ledger.pendingTransfers.size()
+                + " from checkpoint position=" + checkpointPosition + " and changes=" + replayed + " up to position=" + position
+                + " in " + (System.nanoTime() - startTime) / 1_000_000 + " ms");
+        RecoveredState recovered = new RecoveredState(item, ledger.lastTransferId, new ArrayList<>(ledger.pendingTransfers.values()), new HashMap<>(ledger.lastBatchIds));
+        return new TransferLog(directory, prefix, segmentSize, isForced, segments, position, checkpointPosition, ledger, recovered);
+    }
+
+    /**
+     * @return state of the bank recovered on opening or null if the log was empty
+     */
+    @Nullable
+    public RecoveredState getRecovered() {
+        return recovered;
+    }
+
+    /**
+     * Journals changes of the item into the log, balances of the item are captured by checkpoints from now on
+     *
+     * @param item to journal
+     */
+    public void attach(@NotNull Item item) {
+        this.item = item;
+        item.setJournal(this);
+    }
+
+    @Override
+    public synchronized void append(int accountId, int amount) {
+        int offset = begin(CHANGE, Integer.BYTES * 2);
+        buffer.putInt(accountId).putInt(amount);
+        end(offset);
+    }
+
+    @Override
+    public synchronized void appendWithdrawal(long transferId, int accountId, int amount, int recipientNodeId, int recipientAccountId) {
+        int offset = begin(WITHDRAWAL, Long.BYTES + Integer.BYTES * 4);
+        buffer.putLong(transferId).putInt(accountId).putInt(amount).putInt(recipientNodeId).putInt(recipientAccountId);
+        end(offset);
+        ledger.withdrawn(transferId, accountId, amount, recipientNodeId, recipientAccountId);
+    }
+
+    @Override
+    public synchronized void appendSent(long batchId, @NotNull long[] transferIds) {
+        int offset = begin(SENT, Long.BYTES + Integer.BYTES + Long.BYTES * transferIds.length);
+        buffer.putLong(batchId).putInt(transferIds.length);
+        for (long transferId : transferIds) {
+            buffer.putLong(transferId);
+            ledger.sent(batchId, transferId);
+        }
+        end(offset);
+    }
+
+    @Override
+    public synchronized void appendCompleted(@NotNull long[] transferIds) {
+        appendSettled(COMPLETED, transferIds);
+    }
+
+    @Override
+    public synchronized void appendRolledBack(@NotNull long[] transferIds) {
+        appendSettled(ROLLED_BACK, transferIds);
+    }
+
+    @Override
+    public synchronized void appendCredited(int senderNodeId, long batchId, @NotNull int[] accountIds, @NotNull int[] amounts) {
+        int offset = begin(CREDITED, Integer.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES * 2 * amounts.length);
+        buffer.putInt(senderNodeId).putLong(batchId).putInt(amounts.length);
+        for (int i = 0; i < amounts.length; i++) {
+            buffer.putInt(accountIds[i]).putInt(amounts[i]);
+        }
+        end(offset);
+        ledger.credited(senderNodeId, batchId);
+    }
+
+    private void appendSettled(byte type, @NotNull long[] transferIds) {
+        int offset = begin(type, Integer.BYTES + Long.BYTES * transferIds.length);
+        buffer.putInt(transferIds.length);
+        for (long transferId : transferIds) {
+            buffer.putLong(transferId);
+            ledger.settled(transferId);
+        }
+        end(offset);
+    }
+
+    /**
+     * Writes header of the next record into the buffer, which grows to fit the record
+     *
+     * @return offset of the record in the buffer
+     */
+    private int begin(byte type, int payloadSize) {
+        int recordSize = HEADER_SIZE + payloadSize + Integer.BYTES;
+        if (buffer.remaining() < recordSize) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + recordSize));
+            buffer.flip();
+            buffer = larger.put(buffer);
+        }
+        int offset = buffer.position();
+        buffer.putLong(++position).put(type).putInt(payloadSize);
+        return offset;
+    }
+
+    /**
+     * Writes checksum of the record started at the offset
+     */
+    private void end(int offset) {
+        crc.reset();
+        crc.update(buffer.array(), offset, buffer.position() - offset);
+        buffer.putInt((int) crc.getValue());
+    }
+
+    @Override
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    /**
+     * Makes all changes appended so far durable
+     */
+    public void sync() throws IOException {
+        sync(getPosition());
+    }
+
+    /**
+     * Makes changes up to the position durable, together with all changes appended by other threads meanwhile
+     *
+     * @param position of the last change to make durable
+     */
+    public void sync(long position) throws IOException {
+        if (durablePosition >= position) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (durablePosition >= position) {
+                return;
+            }
+            ByteBuffer batch;
+            long lastPosition;
+            synchronized (this) {
+                batch = buffer;
+                buffer = spare;
+                lastPosition = this.position;
+            }
+            batch.flip();
+            long records = lastPosition - durablePosition;
+            if (batch.hasRemaining()) {
+                FileChannel channel = getSegment(durablePosition + 1);
+                while (batch.hasRemaining()) {
+                    segmentBytes += channel.write(batch);
+                }
+                if (isForced) {
+                    channel.force(false);
+                }
+                syncCount++;
+                syncedRecords += records;
+            }
+            batch.clear();
+            spare = batch;
+            durablePosition = lastPosition;
+        }
+    }
+
+    /**
+     * Captures balances of the attached item together with pending transfers and credited batches, persists them
+     * as the checkpoint and deletes segments, which changes are all covered by it
+     * <p>
+     * Balances are captured under the monitor of the log, so no change is applied meanwhile, see Item
+     *
+     * @return whether the checkpoint was written, false if no item is attached or nothing was appended since the last one
+     */
+    public boolean checkpoint() throws IOException {
+        Item item = this.item;
+        if (item == null) {
+            return false;
+        }
+        synchronized (checkpointLock) {
+            long checkpointedPosition;
+            AccountTable accounts;
+            Ledger checkpointedLedger;
+            synchronized (this) {
+                if (position == checkpointPosition) {
+                    return false;
+                }
+                checkpointedPosition = position;
+                accounts = item.captureAccounts();
+                checkpointedLedger = ledger.copy();
+            }
+            sync(checkpointedPosition);
+            Path target = directory.resolve(prefix + CHECKPOINT_SUFFIX);
+            Path temporary = directory.resolve(prefix + CHECKPOINT_SUFFIX + ".tmp");
+            try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+                CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file), new CRC32());
+                DataOutputStream out = new DataOutputStream(checked);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(checkpointedPosition);
+                accounts.write(out);
+                checkpointedLedger.write(out);
+                out.writeLong(checked.getChecksum().getValue());
+                out.flush();
+                if (isForced) {
+                    file.getFD().sync();
+                }
+            }
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            checkpointPosition = checkpointedPosition;
+            List<Long> covered = new ArrayList<>();
+            synchronized (syncLock) {
+                for (Long firstPosition : segments.keySet()) {
+                    Long nextPosition = segments.higherKey(firstPosition);
+                    if (nextPosition != null && nextPosition - 1 <= checkpointPosition) {
+                        covered.add(firstPosition);
+                    }
+                }
+                for (Long firstPosition : covered) {
+                    Files.deleteIfExists(segments.remove(firstPosition));
+                }
+            }
+            logger.debug("Wrote checkpoint of transfer log=" + prefix + " at position=" + checkpointedPosition + ", pending transfers="
+                    + checkpointedLedger.pendingTransfers.size() + ", deleted segments=" + covered.size());
+            return true;
+        }
+    }
+
+    /**
+     * Makes all appended changes durable and closes the segment, files of the log are kept for recovery
+     */
+    @Override
+    public void close() throws IOException {
+        sync();
+        synchronized (syncLock) {
+            if (segment != null) {
+                segment.close();
+                segment = null;
+            }
+            logger.info("Closed transfer log=" + prefix + ", durable changes=" + syncedRecords + " in syncs=" + syncCount
+                    + ", changes per sync=" + (syncCount == 0 ? 0 : syncedRecords / syncCount));
+        }
+    }
+
+    /**
+     * Deletes all files of the log
+     */
+    public void delete() throws IOException {
+        close();
+        synchronized (syncLock) {
+            for (Path file : segments.values()) {
+                Files.deleteIfExists(file);
+            }
+            segments.clear();
+            Files.deleteIfExists(directory.resolve(prefix + CHECKPOINT_SUFFIX));
+        }
+    }
+
+    /**
+     * @param firstPosition of the next record to write
+     * @return segment to write into, a new one is started if the current one is full or not opened yet
+     */
+    @NotNull
+    private FileChannel getSegment(long firstPosition) throws IOException {
+        if (segment != null && segmentBytes < segmentSize) {
+            return segment;
+        }
+        if (segment != null) {
+            segment.close();
+        }
+        Path file = directory.resolve(prefix + "-" + firstPosition + SEGMENT_SUFFIX);
+        segment = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        segments.put(firstPosition, file);
+        segmentBytes = 0;
+        return segment;
+    }
+
+    /**
+     * @return complete record with valid checksum positioned after its header, null if there is none
+     */
+    @Nullable
+    private static ByteBuffer readRecord(@NotNull DataInputStream in) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        try {
+            in.readFully(header);
+        } catch (EOFException e) {
+            return null;
+        }
+        int payloadSize = ByteBuffer.wrap(header).getInt(Long.BYTES + Byte.BYTES);
+        if (payloadSize < 0 || payloadSize > MAX_PAYLOAD_SIZE) {
+            return null;
+        }
+        byte[] record = Arrays.copyOf(header, HEADER_SIZE + payloadSize + Integer.BYTES);
+        try {
+            in.readFully(record, HEADER_SIZE, payloadSize + Integer.BYTES);
+        } catch (EOFException e) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, HEADER_SIZE + payloadSize);
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        return buffer.getInt(HEADER_SIZE + payloadSize) == (int) crc.getValue() ? buffer : null;
+    }
+
+    /**
+     * Applies the record to the item and the ledger
+     *
+     * @param record positioned after its position
+     * @return false if the type of the record is unknown
+     */
+    private static boolean replay(@NotNull ByteBuffer record, @NotNull Item item, @NotNull Ledger ledger) {
+        byte type = record.get();
+        record.getInt();
+        switch (type) {
+            case CHANGE:
+                item.incrementBalance(record.getInt(), record.getInt());
+                return true;
+            case WITHDRAWAL: {
+                long transferId = record.getLong();
+                int accountId = record.getInt();
+                int amount = record.getInt();
+                item.incrementBalance(accountId, -amount);
+                ledger.withdrawn(transferId, accountId, amount, record.getInt(), record.getInt());
+                return true;
+            }
+            case SENT: {
+                long batchId = record.getLong();
+                for (int i = record.getInt(); i > 0; i--) {
+                    ledger.sent(batchId, record.getLong());
+                }
+                return true;
+            }
+            case COMPLETED:
+            case ROLLED_BACK:
+                for (int i = record.getInt(); i > 0; i--) {
+                    PendingTransfer transfer = ledger.settled(record.getLong());
+                    if (transfer != null && type == ROLLED_BACK) {
+                        item.incrementBalance(transfer.getAccountId(), transfer.getAmount());
+                    }
+                }
+                return true;
+            case CREDITED: {
+                int senderNodeId = record.getInt();
+                long batchId = record.getLong();
+                for (int i = record.getInt(); i > 0; i--) {
+                    item.incrementBalance(record.getInt(), record.getInt());
+                }
+                ledger.credited(senderNodeId, batchId);
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param ledger filled with pending transfers and credited batches of the checkpoint
+     * @return checkpoint or null if the file does not exist or is corrupted
+     */
+    @Nullable
+    private static Checkpoint readCheckpoint(@NotNull Path file, @NotNull Ledger ledger) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(file)), new CRC32())) {
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.warn("Ignored checkpoint of unknown version=" + file);
+                return null;
+            }
+            long position = in.readLong();
+            AccountTable accounts = AccountTable.read(in);
+            Ledger checkpointed = Ledger.read(in);
+            long checksum = checked.getChecksum().getValue();
+            if (in.readLong() != checksum) {
+                logger.warn("Ignored corrupted checkpoint=" + file);
+                return null;
+            }
+            ledger.lastTransferId = checkpointed.lastTransferId;
+            ledger.pendingTransfers.putAll(checkpointed.pendingTransfers);
+            ledger.lastBatchIds.putAll(checkpointed.lastBatchIds);
+            return new Checkpoint(position, accounts.sum(), accounts);
+        } catch (EOFException e) {
+            logger.warn("Ignored truncated checkpoint=" + file);
+            return null;
+        }
+    }
+
+    /**
+     * Pending transfers and credited batches at a position of the log
+     */
+    private static final class Ledger {
+
+        private long lastTransferId;
+
+        /**
+         * Map<TransferId, PendingTransfer>
+         */
+        @NotNull
+        private final Map<Long, PendingTransfer> pendingTransfers = new HashMap<>();
+
+        /**
+         * Map<SenderNodeId, LastBatchId>
+         */
+        @NotNull
+        private final Map<Integer, Long> lastBatchIds = new HashMap<>();
+
+        private void withdrawn(long transferId, int accountId, int amount, int recipientNodeId, int recipientAccountId) {
+            pendingTransfers.put(transferId, new PendingTransfer(transferId, accountId, amount, recipientNodeId, recipientAccountId, 0));
+            lastTransferId = Math.max(lastTransferId, transferId);
+        }
+
+        private void sent(long batchId, long transferId) {
+            PendingTransfer transfer = pendingTransfers.get(transferId);
+            if (transfer != null) {
+                pendingTransfers.put(transferId, new PendingTransfer(transferId, transfer.getAccountId(), transfer.getAmount(),
+                        transfer.getRecipientNodeId(), transfer.getRecipientAccountId(), batchId));
+            }
+        }
+
+        @Nullable
+        private PendingTransfer settled(long transferId) {
+            return pendingTransfers.remove(transferId);
+        }
+
+        private void credited(int senderNodeId, long batchId) {
+            lastBatchIds.put(senderNodeId, batchId);
+        }
+
+        @NotNull
+        private Ledger copy() {
+            Ledger copy = new Ledger();
+            copy.lastTransferId = lastTransferId;
+            copy.pendingTransfers.putAll(pendingTransfers);
+            copy.lastBatchIds.putAll(lastBatchIds);
+            return copy;
+        }
+
+        private void write(@NotNull DataOutput out) throws IOException {
+            out.writeLong(lastTransferId);
+            out.writeInt(pendingTransfers.size());
+            for (PendingTransfer transfer : pendingTransfers.values()) {
+                out.writeLong(transfer.getTransferId());
+                out.writeInt(transfer.getAccountId());
+                out.writeInt(transfer.getAmount());
+                out.writeInt(transfer.getRecipientNodeId());
+                out.writeInt(transfer.getRecipientAccountId());
+                out.writeLong(transfer.getBatchId());
+            }
+            out.writeInt(lastBatchIds.size());
+            for (Map.Entry<Integer, Long> entry : lastBatchIds.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        }
+
+        @NotNull
+        private static Ledger read(@NotNull DataInput in) throws IOException {
+            Ledger ledger = new Ledger();
+            ledger.lastTransferId = in.readLong();
+            for (int i = in.readInt(); i > 0; i--) {
+                PendingTransfer transfer = new PendingTransfer(in.readLong(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readLong());
+                ledger.pendingTransfers.put(transfer.getTransferId(), transfer);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                ledger.lastBatchIds.put(in.readInt(), in.readLong());
+            }
+            return ledger;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package nl.tue.ds.transport;
+
+import nl.tue.ds.entity.GlobalSnapshot;
+import nl.tue.ds.entity.Marker;
+import nl.tue.ds.entity.Membership;
+import nl.tue.ds.entity.Node;
+import nl.tue.ds.entity.NodeDescriptor;
+import nl.tue.ds.rmi.NodeServer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Transport between nodes running in the same JVM, used to simulate large graphs on a single machine
+ * <p>
+ * Every call is delayed by the latency plus random jitter, so messages of different channels are reordered
+ * against each other, while each channel stays FIFO as the sender waits for the call to return
+ */
+public final class InMemoryTransport implements Transport {
+
+    /**
+     * Local nodes
+     * <p>
+     * Map<NodeId, NodeServer>
+     */
+    @NotNull
+    private final Map<Integer, NodeServer> servers = new ConcurrentHashMap<>();
+
+    private final long latencyNanos;
+
+    private final long jitterNanos;
+
+    /**
+     * @param latencyMicros delay of every call in microseconds
+     * @param jitterMicros  maximal random extra delay of every call in microseconds
+     */
+    public InMemoryTransport(long latencyMicros, long jitterMicros) {
+        latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+        jitterNanos = TimeUnit.MICROSECONDS.toNanos(jitterMicros);
+    }
+
+    @Override
+    public void bind(@NotNull Node node, @NotNull NodeServer server) {
+        servers.put(node.getId(), server);
+    }
+
+    @Override
+    public void unbind(@NotNull Node node) {
+        servers.remove(node.getId());
+    }
+
+    @NotNull
+    @Override
+    public NodeServer lookup(int id, @NotNull String host) throws ConnectException {
+        if (!servers.containsKey(id)) {
+            throw new ConnectException("NodeId=" + id + " is not bound");
+        }
+        return new InMemoryNodeClient(id);
+    }
+
+    /**
+     * Reference to the node in the same JVM, which delays every call
+     */
+    private final class InMemoryNodeClient implements NodeServer {
+
+        private final int nodeId;
+
+        private InMemoryNodeClient(int nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        @NotNull
+        @Override
+        public NodeDescriptor getDescriptor() throws RemoteException {
+            return getServer().getDescriptor();
+        }
+
+        @NotNull
+        @Override
+        public Membership getMembership() throws RemoteException {
+            return getServer().getMembership();
+        }
+
+        @NotNull
+        @Override
+        public Membership gossip(int senderNodeId, @NotNull Membership delta, long digest) throws RemoteException {
+            return getServer().gossip(senderNodeId, delta, digest);
+        }
+
+        @Override
+        public void transferMoney(int accountId, int recipientNodeId, int recipientAccountId, int amount) throws RemoteException {
+            getServer().transferMoney(accountId, recipientNodeId, recipientAccountId, amount);
+        }
+
+        @Override
+        public boolean acceptMoney(int senderNodeId, int accountId, int amount) throws RemoteException {
+            return getServer().acceptMoney(senderNodeId, accountId, amount);
+        }
+
+        @Override
+        public boolean acceptMoneyBatch(int senderNodeId, long batchId, @NotNull int[] accountIds, @NotNull int[] amounts) throws RemoteException {
+            return getServer().acceptMoneyBatch(senderNodeId, batchId, accountIds, amounts);
+        }
+
+        @Override
+        public boolean receiveMarker(int nodeId, @NotNull Marker marker) throws RemoteException {
+            return getServer().receiveMarker(nodeId, marker);
+        }
+
+        @Override
+        public void receiveSnapshotReport(int nodeId, @NotNull GlobalSnapshot report) throws RemoteException {
+            getServer().receiveSnapshotReport(nodeId, report);
+        }
+
+        @Override
+        public boolean prepareRestore(@NotNull Marker marker) throws RemoteException {
+            return getServer().prepareRestore(marker);
+        }
+
+        @Override
+        public void finishRestore(@NotNull Marker marker, boolean isCommitted) throws RemoteException {
+            getServer().finishRestore(marker, isCommitted);
+        }
+
+        @Nullable
+        @Override
+        public GlobalSnapshot getSnapshot(@NotNull Marker marker) throws RemoteException {
+            return getServer().getSnapshot(marker);
+        }
+
+        @NotNull
+        @Override
+        public List<GlobalSnapshot> getSnapshots(long fromTimestamp, long toTimestamp) throws RemoteException {
+            return getServer().getSnapshots(fromTimestamp, toTimestamp);
+        }
+
+        /**
+         * Delays the call and resolves the server, which may have been unbound in the meantime
+         */
+        @NotNull
+        private NodeServer getServer() throws ConnectException {
+            long delayNanos = latencyNanos + (jitterNanos > 0 ? ThreadLocalRandom.current().nextLong(jitterNanos) : 0);
+            if (delayNanos > 0) {
+                LockSupport.parkNanos(delayNanos);
+            }
+            NodeServer server = servers.get(nodeId);
+            if (server == null) {
+                throw new ConnectException("NodeId=" + nodeId + " is not bound");
+            }
+            return server;
+        }
+    }
+}
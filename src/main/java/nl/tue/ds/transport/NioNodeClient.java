@@ -0,0 +1,312 @@
+package nl.tue.ds.transport;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import nl.tue.ds.ServiceConfiguration;
+import nl.tue.ds.entity.GlobalSnapshot;
+import nl.tue.ds.entity.Marker;
+import nl.tue.ds.entity.Membership;
+import nl.tue.ds.entity.NodeDescriptor;
+import nl.tue.ds.rmi.NodeServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectIOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reference to remote node over NIO transport
+ * <p>
+ * Keeps one persistent connection to the node, which is multiplexed by all calling threads:
+ * requests are tagged by request id and responses are matched by the reader thread
+ * <p>
+ * Requests are registered under the lock taken by close(), so every registered request is either answered
+ * or failed by close(), and every wait for the response is bounded by RMI_CALL_TIMEOUT
+ * <p>
+ * Failure before the request is sent is ConnectIOException, failure after it (lost connection or timeout)
+ * is plain RemoteException, as the request may have been executed
+ *
+ * @see NioProtocol
+ */
+final class NioNodeClient implements NodeServer, RetirableStub, Closeable {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final long RMI_CALL_TIMEOUT = ServiceConfiguration.getRmiCallTimeout();
+
+    private final int nodeId;
+
+    @NotNull
+    private final SocketChannel channel;
+
+    /**
+     * Serializes writes of requests, not a monitor, as a virtual thread blocked in the write would pin its carrier
+     */
+    @NotNull
+    private final Lock writeLock = new ReentrantLock();
+
+    @NotNull
+    private final AtomicLong requestIds = new AtomicLong();
+
+    /**
+     * Requests waiting for the response, registered under stateLock
+     * <p>
+     * Map<RequestId, Response>
+     */
+    @NotNull
+    private final Map<Long, CompletableFuture<ByteBuffer>> pendingRequests = new ConcurrentHashMap<>();
+
+    /**
+     * Guards registration of requests, closing and retiring
+     */
+    @NotNull
+    private final Object stateLock = new Object();
+
+    private volatile boolean isClosed;
+
+    /**
+     * Whether the client was evicted from the cache and is closed once no request is pending, guarded by stateLock
+     */
+    private boolean isRetired;
+
+    NioNodeClient(int nodeId, @NotNull InetSocketAddress address) throws IOException {
+        this.nodeId = nodeId;
+        channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+        new ThreadFactoryBuilder().setNameFormat("nio-client-" + nodeId).setDaemon(true).build().newThread(this::readResponses).start();
+    }
+
+    @NotNull
+    @Override
+    public NodeDescriptor getDescriptor() throws RemoteException {
+        ByteBuffer response = call(NioProtocol.GET_DESCRIPTOR, newRequest(NioProtocol.GET_DESCRIPTOR, 0));
+        return new NodeDescriptor(response.getInt(), NioProtocol.getString(response));
+    }
+
+    @NotNull
+    @Override
+    public Membership getMembership() throws RemoteException {
+        return NioProtocol.readMembership(call(NioProtocol.GET_MEMBERSHIP, newRequest(NioProtocol.GET_MEMBERSHIP, 0)));
+    }
+
+    @NotNull
+    @Override
+    public Membership gossip(int senderNodeId, @NotNull Membership delta, long digest) throws RemoteException {
+        byte[] membership = NioProtocol.writeMembership(delta);
+        ByteBuffer request = newRequest(NioProtocol.GOSSIP, Integer.BYTES + Long.BYTES + membership.length).putInt(senderNodeId).putLong(digest).put(membership);
+        return NioProtocol.readMembership(call(NioProtocol.GOSSIP, request));
+    }
+
+    @Override
+    public void transferMoney(int accountId, int recipientNodeId, int recipientAccountId, int amount) throws RemoteException {
+        call(NioProtocol.TRANSFER_MONEY, newRequest(NioProtocol.TRANSFER_MONEY, Integer.BYTES * 4).putInt(accountId).putInt(recipientNodeId).putInt(recipientAccountId).putInt(amount));
+    }
+
+    @Override
+    public boolean acceptMoney(int senderNodeId, int accountId, int amount) throws RemoteException {
+        return call(NioProtocol.ACCEPT_MONEY, newRequest(NioProtocol.ACCEPT_MONEY, Integer.BYTES * 3).putInt(senderNodeId).putInt(accountId).putInt(amount)).get() != 0;
+    }
+
+    @Override
+    public boolean acceptMoneyBatch(int senderNodeId, long batchId, @NotNull int[] accountIds, @NotNull int[] amounts) throws RemoteException {
+        ByteBuffer request = newRequest(NioProtocol.ACCEPT_MONEY_BATCH, Long.BYTES + Integer.BYTES * (2 + accountIds.length + amounts.length))
+                .putInt(senderNodeId).putLong(batchId).putInt(amounts.length);
+        for (int accountId : accountIds) {
+            request.putInt(accountId);
+        }
+        for (int amount : amounts) {
+            request.putInt(amount);
+        }
+        return call(NioProtocol.ACCEPT_MONEY_BATCH, request).get() != 0;
+    }
+
+    @Override
+    public boolean receiveMarker(int nodeId, @NotNull Marker marker) throws RemoteException {
+        return call(NioProtocol.RECEIVE_MARKER, newRequest(NioProtocol.RECEIVE_MARKER, Integer.BYTES * 3).putInt(nodeId).putInt(marker.getInitiatorId()).putInt(marker.getSequence())).get() != 0;
+    }
+
+    @Override
+    public void receiveSnapshotReport(int nodeId, @NotNull GlobalSnapshot report) throws RemoteException {
+        Marker marker = report.getMarker();
+        call(NioProtocol.RECEIVE_SNAPSHOT_REPORT, newRequest(NioProtocol.RECEIVE_SNAPSHOT_REPORT, Integer.BYTES * 4 + Long.BYTES * 2 + Byte.BYTES)
+                .putInt(nodeId).putInt(marker.getInitiatorId()).putInt(marker.getSequence())
+                .putInt(report.getNodeCount()).putLong(report.getBalance()).putLong(report.getMoneyInTransfer())
+                .put((byte) (report.isPartial() ? 1 : 0)));
+    }
+
+    @Override
+    public boolean prepareRestore(@NotNull Marker marker) throws RemoteException {
+        return call(NioProtocol.PREPARE_RESTORE, newRequest(NioProtocol.PREPARE_RESTORE, Integer.BYTES * 2).putInt(marker.getInitiatorId()).putInt(marker.getSequence())).get() != 0;
+    }
+
+    @Override
+    public void finishRestore(@NotNull Marker marker, boolean isCommitted) throws RemoteException {
+        call(NioProtocol.FINISH_RESTORE, newRequest(NioProtocol.FINISH_RESTORE, Integer.BYTES * 2 + Byte.BYTES)
+                .putInt(marker.getInitiatorId()).putInt(marker.getSequence()).put((byte) (isCommitted ? 1 : 0)));
+    }
+
+    @Nullable
+    @Override
+    public GlobalSnapshot getSnapshot(@NotNull Marker marker) throws RemoteException {
+        List<GlobalSnapshot> snapshots = NioProtocol.readSnapshots(call(NioProtocol.GET_SNAPSHOT,
+                newRequest(NioProtocol.GET_SNAPSHOT, Integer.BYTES * 2).putInt(marker.getInitiatorId()).putInt(marker.getSequence())));
+        return snapshots.isEmpty() ? null : snapshots.get(0);
+    }
+
+    @NotNull
+    @Override
+    public List<GlobalSnapshot> getSnapshots(long fromTimestamp, long toTimestamp) throws RemoteException {
+        return NioProtocol.readSnapshots(call(NioProtocol.GET_SNAPSHOTS, newRequest(NioProtocol.GET_SNAPSHOTS, Long.BYTES * 2).putLong(fromTimestamp).putLong(toTimestamp)));
+    }
+
+    @Override
+    public void retire() {
+        boolean isIdle;
+        synchronized (stateLock) {
+            isRetired = true;
+            isIdle = pendingRequests.isEmpty();
+        }
+        if (isIdle) {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        List<CompletableFuture<ByteBuffer>> responses;
+        synchronized (stateLock) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            responses = new ArrayList<>(pendingRequests.values());
+            pendingRequests.clear();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Failed to close connection to nodeId=" + nodeId, e);
+        }
+        RemoteException e = new RemoteException("Connection to nodeId=" + nodeId + " is lost while waiting for the response");
+        responses.forEach(response -> response.completeExceptionally(e));
+    }
+
+    @NotNull
+    private ByteBuffer newRequest(byte opcode, int payloadSize) {
+        return NioProtocol.newFrame(requestIds.incrementAndGet(), opcode, payloadSize);
+    }
+
+    /**
+     * Sends request frame and waits for the response
+     *
+     * @return payload of the response
+     */
+    @NotNull
+    private ByteBuffer call(byte opcode, @NotNull ByteBuffer request) throws RemoteException {
+        long requestId = request.getLong(NioProtocol.LENGTH_SIZE);
+        CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+        synchronized (stateLock) {
+            if (isClosed) {
+                throw new ConnectIOException("Connection to nodeId=" + nodeId + " is closed");
+            }
+            pendingRequests.put(requestId, response);
+        }
+        try {
+            request.flip();
+            try {
+                writeLock.lock();
+                try {
+                    while (request.hasRemaining()) {
+                        channel.write(request);
+                    }
+                } finally {
+                    writeLock.unlock();
+                }
+            } catch (IOException e) {
+                close();
+                throw new ConnectIOException("Failed to send request opcode=" + opcode + " to nodeId=" + nodeId, e);
+            }
+            return response.get(RMI_CALL_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for nodeId=" + nodeId, e);
+        } catch (TimeoutException e) {
+            throw new RemoteException("Request opcode=" + opcode + " to nodeId=" + nodeId + " timed out after " + RMI_CALL_TIMEOUT + " ms", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RemoteException("Request opcode=" + opcode + " to nodeId=" + nodeId + " failed", e.getCause());
+        } finally {
+            boolean isIdle;
+            synchronized (stateLock) {
+                pendingRequests.remove(requestId);
+                isIdle = isRetired && pendingRequests.isEmpty();
+            }
+            if (isIdle) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Reads response frames and completes requests waiting for them, until connection is closed
+     */
+    private void readResponses() {
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(NioProtocol.LENGTH_SIZE);
+        try {
+            while (!isClosed) {
+                lengthBuffer.clear();
+                readFully(lengthBuffer);
+                int length = lengthBuffer.getInt(0);
+                if (length < NioProtocol.HEADER_SIZE || length > NioProtocol.MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid frame length=" + length);
+                }
+                ByteBuffer frame = ByteBuffer.allocate(length);
+                readFully(frame);
+                frame.flip();
+                CompletableFuture<ByteBuffer> response = pendingRequests.remove(frame.getLong());
+                byte status = frame.get();
+                if (response == null) {
+                    continue;
+                }
+                if (status == NioProtocol.STATUS_OK) {
+                    response.complete(frame.slice());
+                } else {
+                    response.completeExceptionally(new RemoteException(NioProtocol.getString(frame)));
+                }
+            }
+        } catch (IOException e) {
+            if (!isClosed) {
+                logger.trace("Connection to nodeId=" + nodeId + " is lost", e);
+            }
+        }
+        close();
+    }
+
+    private void readFully(@NotNull ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+}
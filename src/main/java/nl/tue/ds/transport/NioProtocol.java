@@ -0,0 +1,219 @@
+package nl.tue.ds.transport;
+
+import nl.tue.ds.entity.GlobalSnapshot;
+import nl.tue.ds.entity.Marker;
+import nl.tue.ds.entity.Membership;
+import nl.tue.ds.entity.NodeDescriptor;
+import nl.tue.ds.rmi.NodeServer;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Binary length-prefixed protocol of NIO transport
+ * <p>
+ * Request frame: {int length}{long requestId}{byte opcode}{payload}
+ * Response frame: {int length}{long requestId}{byte status}{payload}
+ * <p>
+ * Length covers everything after itself, request id matches response to request on multiplexed connection
+ */
+abstract class NioProtocol {
+
+    static final int LENGTH_SIZE = Integer.BYTES;
+
+    static final int HEADER_SIZE = Long.BYTES + Byte.BYTES;
+
+    static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    static final byte GET_MEMBERSHIP = 2;
+
+    static final byte TRANSFER_MONEY = 3;
+
+    static final byte ACCEPT_MONEY = 4;
+
+    static final byte ACCEPT_MONEY_BATCH = 5;
+
+    static final byte RECEIVE_MARKER = 6;
+
+    static final byte RECEIVE_SNAPSHOT_REPORT = 7;
+
+    static final byte GOSSIP = 8;
+
+    static final byte GET_DESCRIPTOR = 9;
+
+    static final byte PREPARE_RESTORE = 10;
+
+    static final byte FINISH_RESTORE = 11;
+
+    static final byte GET_SNAPSHOT = 12;
+
+    static final byte GET_SNAPSHOTS = 13;
+
+    static final byte STATUS_OK = 0;
+
+    static final byte STATUS_ERROR = 1;
+
+    /**
+     * Allocates frame with header filled in and position set to the payload
+     *
+     * @param requestId   of the request
+     * @param code        opcode of request or status of response
+     * @param payloadSize in bytes
+     * @return frame to put payload into
+     */
+    @NotNull
+    static ByteBuffer newFrame(long requestId, byte code, int payloadSize) {
+        ByteBuffer frame = ByteBuffer.allocate(LENGTH_SIZE + HEADER_SIZE + payloadSize);
+        frame.putInt(HEADER_SIZE + payloadSize).putLong(requestId).put(code);
+        return frame;
+    }
+
+    /**
+     * Executes request on the server
+     *
+     * @param server  to execute request on
+     * @param opcode  of the request
+     * @param request payload of the request
+     * @return payload of the response
+     */
+    @NotNull
+    static byte[] dispatch(@NotNull NodeServer server, byte opcode, @NotNull ByteBuffer request) throws Exception {
+        switch (opcode) {
+            case GET_DESCRIPTOR:
+                return writeDescriptor(server.getDescriptor());
+            case GET_MEMBERSHIP:
+                return writeMembership(server.getMembership());
+            case GOSSIP:
+                int gossipNodeId = request.getInt();
+                long digest = request.getLong();
+                return writeMembership(server.gossip(gossipNodeId, readMembership(request), digest));
+            case TRANSFER_MONEY:
+                server.transferMoney(request.getInt(), request.getInt(), request.getInt(), request.getInt());
+                return new byte[0];
+            case ACCEPT_MONEY:
+                return toBytes(server.acceptMoney(request.getInt(), request.getInt(), request.getInt()));
+            case ACCEPT_MONEY_BATCH:
+                int senderNodeId = request.getInt();
+                long batchId = request.getLong();
+                int[] accountIds = new int[request.getInt()];
+                int[] amounts = new int[accountIds.length];
+                IntBuffer batch = request.asIntBuffer();
+                batch.get(accountIds).get(amounts);
+                return toBytes(server.acceptMoneyBatch(senderNodeId, batchId, accountIds, amounts));
+            case RECEIVE_MARKER:
+                return toBytes(server.receiveMarker(request.getInt(), new Marker(request.getInt(), request.getInt())));
+            case RECEIVE_SNAPSHOT_REPORT:
+                int nodeId = request.getInt();
+                Marker marker = new Marker(request.getInt(), request.getInt());
+                server.receiveSnapshotReport(nodeId, new GlobalSnapshot(marker, request.getInt(), request.getLong(), request.getLong(), request.get() != 0));
+                return new byte[0];
+            case PREPARE_RESTORE:
+                return toBytes(server.prepareRestore(new Marker(request.getInt(), request.getInt())));
+            case FINISH_RESTORE:
+                server.finishRestore(new Marker(request.getInt(), request.getInt()), request.get() != 0);
+                return new byte[0];
+            case GET_SNAPSHOT:
+                GlobalSnapshot snapshot = server.getSnapshot(new Marker(request.getInt(), request.getInt()));
+                return writeSnapshots(snapshot != null ? Collections.singletonList(snapshot) : Collections.emptyList());
+            case GET_SNAPSHOTS:
+                return writeSnapshots(server.getSnapshots(request.getLong(), request.getLong()));
+            default:
+                throw new IllegalArgumentException("Unknown opcode=" + opcode);
+        }
+    }
+
+    /**
+     * Descriptor: {int node id}{int host length}{host}
+     */
+    @NotNull
+    static byte[] writeDescriptor(@NotNull NodeDescriptor descriptor) {
+        byte[] host = toBytes(descriptor.getHost());
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES * 2 + host.length).putInt(descriptor.getId());
+        putString(buffer, host);
+        return buffer.array();
+    }
+
+    /**
+     * Membership: {byte isComplete}{int size}{int node id}{long incarnation}{int host length}{host}...
+     */
+    @NotNull
+    static byte[] writeMembership(@NotNull Membership membership) {
+        byte[][] hosts = new byte[membership.size()][];
+        int size = Byte.BYTES + Integer.BYTES;
+        for (int i = 0; i < hosts.length; i++) {
+            hosts[i] = toBytes(membership.getHost(i));
+            size += Integer.BYTES * 2 + Long.BYTES + hosts[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put((byte) (membership.isComplete() ? 1 : 0)).putInt(hosts.length);
+        for (int i = 0; i < hosts.length; i++) {
+            buffer.putInt(membership.getNodeId(i)).putLong(membership.getIncarnation(i));
+            putString(buffer, hosts[i]);
+        }
+        return buffer.array();
+    }
+
+    @NotNull
+    static Membership readMembership(@NotNull ByteBuffer buffer) {
+        boolean isComplete = buffer.get() != 0;
+        int size = buffer.getInt();
+        int[] nodeIds = new int[size];
+        String[] hosts = new String[size];
+        long[] incarnations = new long[size];
+        for (int i = 0; i < size; i++) {
+            nodeIds[i] = buffer.getInt();
+            incarnations[i] = buffer.getLong();
+            hosts[i] = getString(buffer);
+        }
+        return new Membership(nodeIds, hosts, incarnations, isComplete);
+    }
+
+    /**
+     * Snapshots: {int size}({int initiator id}{int sequence}{int node count}{long balance}{long money in transfer})...
+     */
+    @NotNull
+    static byte[] writeSnapshots(@NotNull List<GlobalSnapshot> snapshots) {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + snapshots.size() * (Integer.BYTES * 3 + Long.BYTES * 2)).putInt(snapshots.size());
+        for (GlobalSnapshot snapshot : snapshots) {
+            buffer.putInt(snapshot.getMarker().getInitiatorId()).putInt(snapshot.getMarker().getSequence())
+                    .putInt(snapshot.getNodeCount()).putLong(snapshot.getBalance()).putLong(snapshot.getMoneyInTransfer());
+        }
+        return buffer.array();
+    }
+
+    @NotNull
+    static List<GlobalSnapshot> readSnapshots(@NotNull ByteBuffer buffer) {
+        int size = buffer.getInt();
+        List<GlobalSnapshot> snapshots = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            snapshots.add(new GlobalSnapshot(new Marker(buffer.getInt(), buffer.getInt()), buffer.getInt(), buffer.getLong(), buffer.getLong()));
+        }
+        return snapshots;
+    }
+
+    @NotNull
+    static byte[] toBytes(@NotNull String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static void putString(@NotNull ByteBuffer buffer, @NotNull byte[] value) {
+        buffer.putInt(value.length).put(value);
+    }
+
+    @NotNull
+    static String getString(@NotNull ByteBuffer buffer) {
+        byte[] value = new byte[buffer.getInt()];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    @NotNull
+    private static byte[] toBytes(boolean value) {
+        return new byte[]{(byte) (value ? 1 : 0)};
+    }
+}
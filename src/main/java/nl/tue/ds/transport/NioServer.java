@@ -0,0 +1,260 @@
+package nl.tue.ds.transport;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import nl.tue.ds.rmi.NodeExecutors;
+import nl.tue.ds.rmi.NodeServer;
+import nl.tue.ds.rmi.ThreadMode;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves NIO transport requests to the local node
+ * <p>
+ * Single selector thread accepts connections, reads request frames and writes response frames,
+ * while requests are executed by handler threads, so a slow request does not block the connection
+ * <p>
+ * Requests of the same connection may be executed concurrently, FIFO order of a channel between
+ * two nodes is kept by the sender, which waits for the response before sending the next request
+ *
+ * @see NioProtocol
+ */
+final class NioServer implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    @NotNull
+    private final NodeServer server;
+
+    @NotNull
+    private final Selector selector;
+
+    @NotNull
+    private final ServerSocketChannel serverChannel;
+
+    @NotNull
+    private final ExecutorService handlers;
+
+    /**
+     * Connections with responses waiting to be written
+     */
+    @NotNull
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    @NotNull
+    private final Thread selectorThread;
+
+    private volatile boolean isRunning = true;
+
+    NioServer(int port, @NotNull NodeServer server, int handlerThreads, @NotNull ThreadMode threadMode) throws IOException {
+        this.server = server;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        handlers = NodeExecutors.newExecutor(threadMode, handlerThreads, "nio-handler-" + port + "-");
+        selectorThread = new ThreadFactoryBuilder().setNameFormat("nio-selector-" + port).setDaemon(true).build().newThread(this::select);
+        selectorThread.start();
+        logger.debug("NIO server is listening on port=" + port);
+    }
+
+    @Override
+    public void close() throws IOException {
+        isRunning = false;
+        selector.wakeup();
+        handlers.shutdown();
+        serverChannel.close();
+    }
+
+    private void select() {
+        while (isRunning) {
+            try {
+                selector.select();
+                Connection connection;
+                while ((connection = pendingWrites.poll()) != null) {
+                    if (connection.key.isValid()) {
+                        connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException e) {
+                        logger.trace("Connection closed by peer", e);
+                        connection.close();
+                    }
+                }
+            } catch (Exception e) {
+                logger.error("NIO selector failure", e);
+            }
+        }
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            logger.error("Failed to close NIO selector", e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+        }
+    }
+
+    /**
+     * Executes request frame and queues response frame to the connection
+     */
+    private void handle(@NotNull Connection connection, @NotNull ByteBuffer request) {
+        long requestId = request.getLong();
+        byte opcode = request.get();
+        ByteBuffer response;
+        try {
+            byte[] payload = NioProtocol.dispatch(server, opcode, request);
+            response = NioProtocol.newFrame(requestId, NioProtocol.STATUS_OK, payload.length).put(payload);
+        } catch (Exception e) {
+            logger.error("Failed to handle request opcode=" + opcode, e);
+            byte[] message = NioProtocol.toBytes(String.valueOf(e));
+            response = NioProtocol.newFrame(requestId, NioProtocol.STATUS_ERROR, Integer.BYTES + message.length);
+            NioProtocol.putString(response, message);
+        }
+        response.flip();
+        connection.send(response);
+    }
+
+    /**
+     * Accepted connection from a remote node
+     */
+    private final class Connection {
+
+        @NotNull
+        private final SocketChannel channel;
+
+        @NotNull
+        private final SelectionKey key;
+
+        @NotNull
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        @NotNull
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+
+        @NotNull
+        private final AtomicBoolean isWriteScheduled = new AtomicBoolean();
+
+        private Connection(@NotNull SocketChannel channel, @NotNull SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        /**
+         * Reads available bytes and hands every complete request frame to handler threads
+         */
+        private void read() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                throw new EOFException();
+            }
+            readBuffer.flip();
+            int frameSize = 0;
+            while (readBuffer.remaining() >= NioProtocol.LENGTH_SIZE) {
+                int length = readBuffer.getInt(readBuffer.position());
+                if (length < NioProtocol.HEADER_SIZE || length > NioProtocol.MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid frame length=" + length);
+                }
+                frameSize = NioProtocol.LENGTH_SIZE + length;
+                if (readBuffer.remaining() < frameSize) {
+                    break;
+                }
+                readBuffer.getInt();
+                byte[] frame = new byte[length];
+                readBuffer.get(frame);
+                handlers.execute(() -> handle(this, ByteBuffer.wrap(frame)));
+                frameSize = 0;
+            }
+            readBuffer.compact();
+            if (frameSize > readBuffer.capacity()) {
+                readBuffer.flip();
+                readBuffer = ByteBuffer.allocate(frameSize).put(readBuffer);
+            }
+        }
+
+        /**
+         * Queues response frame, called by handler threads
+         */
+        private void send(@NotNull ByteBuffer frame) {
+            writeQueue.add(frame);
+            if (isWriteScheduled.compareAndSet(false, true)) {
+                pendingWrites.add(this);
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Writes queued response frames until socket buffer is full, called by selector thread
+         */
+        private void write() throws IOException {
+            ByteBuffer frame;
+            while ((frame = writeQueue.peek()) != null) {
+                channel.write(frame);
+                if (frame.hasRemaining()) {
+                    return;
+                }
+                writeQueue.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            isWriteScheduled.set(false);
+            if (!writeQueue.isEmpty() && isWriteScheduled.compareAndSet(false, true)) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error("Failed to close NIO connection", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package nl.tue.ds.transport;
+
+import nl.tue.ds.ServiceConfiguration;
+import nl.tue.ds.entity.Node;
+import nl.tue.ds.rmi.NodeServer;
+import nl.tue.ds.rmi.ThreadMode;
+import org.jetbrains.annotations.NotNull;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transport over binary length-prefixed protocol on persistent NIO socket channels
+ * <p>
+ * Each node listens on port NIO_PORT + node id, so several nodes can run on the same host
+ *
+ * @see NioServer
+ * @see NioNodeClient
+ */
+public final class NioTransport implements Transport {
+
+    private static final int NIO_PORT = ServiceConfiguration.getNioPort();
+
+    private static final int NIO_HANDLER_THREADS = ServiceConfiguration.getNioHandlerThreads();
+
+    private static final ThreadMode THREAD_MODE = ThreadMode.valueOf(ServiceConfiguration.getThreadMode());
+
+    /**
+     * Servers of local nodes
+     * <p>
+     * Map<NodeId, NioServer>
+     */
+    @NotNull
+    private final Map<Integer, NioServer> servers = new ConcurrentHashMap<>();
+
+    @Override
+    public void bind(@NotNull Node node, @NotNull NodeServer server) throws Exception {
+        servers.put(node.getId(), new NioServer(getPort(node.getId()), server, NIO_HANDLER_THREADS, THREAD_MODE));
+    }
+
+    @Override
+    public void unbind(@NotNull Node node) throws Exception {
+        NioServer server = servers.remove(node.getId());
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @NotNull
+    @Override
+    public NodeServer lookup(int id, @NotNull String host) throws Exception {
+        return new NioNodeClient(id, new InetSocketAddress(host, getPort(id)));
+    }
+
+    private static int getPort(int nodeId) {
+        return NIO_PORT + nodeId;
+    }
+}
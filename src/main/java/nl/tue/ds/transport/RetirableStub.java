@@ -0,0 +1,14 @@
+package nl.tue.ds.transport;
+
+/**
+ * Remote stub holding a connection, which is retired once the stub is evicted from the cache of RemoteUtil
+ *
+ * @see nl.tue.ds.util.RemoteUtil
+ */
+public interface RetirableStub {
+
+    /**
+     * Closes the connection once calls in progress return, later calls fail without being sent
+     */
+    void retire();
+}
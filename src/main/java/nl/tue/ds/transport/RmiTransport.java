@@ -0,0 +1,72 @@
+package nl.tue.ds.transport;
+
+import nl.tue.ds.ServiceConfiguration;
+import nl.tue.ds.entity.Node;
+import nl.tue.ds.rmi.NodeServer;
+import nl.tue.ds.util.RemoteUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transport over Java RMI, each node is bound in RMI registry as rmi://{host}/NodeRemote{id}
+ */
+public final class RmiTransport implements Transport {
+
+    private static final int RMI_PORT = ServiceConfiguration.getRmiPort();
+
+    static {
+        // calls waiting for the response longer than the timeout fail instead of blocking the caller forever
+        if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null) {
+            System.setProperty("sun.rmi.transport.tcp.responseTimeout", String.valueOf(ServiceConfiguration.getRmiCallTimeout()));
+        }
+    }
+
+    /**
+     * Exported servers of local nodes
+     * <p>
+     * Map<NodeId, NodeServer>
+     */
+    @NotNull
+    private final Map<Integer, NodeServer> servers = new ConcurrentHashMap<>();
+
+    @Override
+    public void bind(@NotNull Node node, @NotNull NodeServer server) throws Exception {
+        startRMIRegistry();
+        System.setProperty("java.rmi.server.hostname", node.getHost());
+        // rebind replaces the binding left in the shared registry by a crashed run of the node, join refuses ids of live nodes
+        Naming.rebind(RemoteUtil.getRemoteName(node.getId(), node.getHost()), UnicastRemoteObject.exportObject(server, 0));
+        servers.put(node.getId(), server);
+    }
+
+    @Override
+    public void unbind(@NotNull Node node) throws Exception {
+        Naming.unbind(RemoteUtil.getRemoteName(node.getId(), node.getHost()));
+        NodeServer server = servers.remove(node.getId());
+        if (server != null) {
+            UnicastRemoteObject.unexportObject(server, true);
+        }
+    }
+
+    @NotNull
+    @Override
+    public NodeServer lookup(int id, @NotNull String host) throws Exception {
+        return (NodeServer) Naming.lookup(RemoteUtil.getRemoteName(id, host));
+    }
+
+    /**
+     * Starts RMI registry on default port if not started already
+     */
+    private static void startRMIRegistry() {
+        try {
+            LocateRegistry.createRegistry(RMI_PORT);
+        } catch (RemoteException e) {
+            // already started
+        }
+    }
+}
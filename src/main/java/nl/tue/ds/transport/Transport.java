@@ -0,0 +1,41 @@
+package nl.tue.ds.transport;
+
+import nl.tue.ds.entity.Node;
+import nl.tue.ds.rmi.NodeServer;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Communication layer between nodes
+ * <p>
+ * Exposes local node to other nodes and gives access to remote nodes with the same NodeServer semantics
+ *
+ * @see TransportType
+ * @see NodeServer
+ */
+public interface Transport {
+
+    /**
+     * Makes node accessible to other nodes
+     *
+     * @param node   to expose
+     * @param server serving requests to the node
+     */
+    void bind(@NotNull Node node, @NotNull NodeServer server) throws Exception;
+
+    /**
+     * Makes node no longer accessible to other nodes
+     *
+     * @param node to hide
+     */
+    void unbind(@NotNull Node node) throws Exception;
+
+    /**
+     * Get reference to remote node
+     *
+     * @param id   of the node
+     * @param host of the node
+     * @return reference to remote node, which may be closed once no longer needed if it implements Closeable
+     */
+    @NotNull
+    NodeServer lookup(int id, @NotNull String host) throws Exception;
+}
@@ -0,0 +1,24 @@
+package nl.tue.ds.transport;
+
+/**
+ * Represents different transports nodes can communicate with
+ *
+ * @see Transport
+ */
+public enum TransportType {
+
+    /**
+     * Java RMI with default serialization
+     */
+    RMI,
+
+    /**
+     * Binary length-prefixed protocol over persistent NIO socket channels
+     */
+    NIO,
+
+    /**
+     * Direct calls between nodes simulated in the same JVM
+     */
+    MEMORY
+}
@@ -0,0 +1,150 @@
+package nl.tue.ds.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Convenient class to build sparse overlay over known nodes of the graph
+ * <p>
+ * Overlay is built by consistent hashing: every node is placed on the ring of 64-bit positions by hash of its id
+ * and links to the node following its own position (ring, so the overlay is strongly connected) and to the nodes
+ * following pseudo-random positions derived from its id, which makes it an expander with high probability,
+ * so markers reach every node in few hops
+ * <p>
+ * Links depend only on ids of the nodes, so a joining node takes over only links aimed at the range of the ring
+ * before its position, while the rest of the overlay stays the same
+ * <p>
+ * Edges are undirected (a link of either node connects both of them, so incoming channels of the node are the same
+ * as outgoing ones) and every node with the same view of the graph builds the same overlay without any coordination
+ */
+public abstract class OverlayUtil {
+
+    private static final int[] NO_NEIGHBOURS = new int[0];
+
+    /**
+     * Maximal number of pseudo-random positions tried per link, as positions may lead to the same node
+     */
+    private static final int ATTEMPTS_PER_LINK = 4;
+
+    /**
+     * @param nodeId  of the node
+     * @param nodeIds of all known nodes, including the node itself
+     * @param degree  number of neighbours of every node on average rounded up to even,
+     *                0 or more than number of nodes -> full mesh
+     * @return sorted ids of neighbours of the node
+     */
+    @NotNull
+    public static int[] getNeighbourIds(int nodeId, @NotNull Collection<Integer> nodeIds, int degree) {
+        int[] ids = nodeIds.stream().mapToInt(Integer::intValue).sorted().toArray();
+        if (Arrays.binarySearch(ids, nodeId) < 0) {
+            return NO_NEIGHBOURS;
+        }
+        int nodeCount = ids.length;
+        if (degree <= 0 || degree >= nodeCount - 2) {
+            return Arrays.stream(ids).filter(id -> id != nodeId).toArray();
+        }
+        Ring ring = new Ring(ids);
+        int linkCount = (degree + 1) / 2;
+        Set<Integer> neighbourIds = new TreeSet<>();
+        for (int id : ids) {
+            int[] links = ring.getLinks(id, linkCount);
+            if (id == nodeId) {
+                for (int link : links) {
+                    neighbourIds.add(link);
+                }
+            } else if (contains(links, links.length, nodeId)) {
+                neighbourIds.add(id);
+            }
+        }
+        return neighbourIds.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static boolean contains(@NotNull int[] ids, int count, int id) {
+        for (int i = 0; i < count; i++) {
+            if (ids[i] == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finalization step of MurmurHash3, spreads consecutive ids over the whole ring
+     */
+    private static long hash(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /**
+     * Known nodes sorted by their positions on the ring
+     */
+    private static final class Ring {
+
+        private final long[] positions;
+
+        private final int[] ids;
+
+        private Ring(@NotNull int[] nodeIds) {
+            long[] hashes = new long[nodeIds.length];
+            Integer[] order = new Integer[nodeIds.length];
+            for (int i = 0; i < nodeIds.length; i++) {
+                hashes[i] = hash(nodeIds[i]);
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compareUnsigned(hashes[a], hashes[b]));
+            positions = new long[nodeIds.length];
+            ids = new int[nodeIds.length];
+            for (int i = 0; i < order.length; i++) {
+                positions[i] = hashes[order[i]];
+                ids[i] = nodeIds[order[i]];
+            }
+        }
+
+        /**
+         * @param nodeId    of the node
+         * @param linkCount number of distinct links, less than number of nodes
+         * @return ids of the node following the node on the ring and of the nodes following pseudo-random positions
+         * derived from its id, fewer than linkCount if positions keep leading to the same nodes
+         */
+        @NotNull
+        private int[] getLinks(int nodeId, int linkCount) {
+            long position = hash(nodeId);
+            int[] links = new int[linkCount];
+            links[0] = ids[(successor(position) + 1) % ids.length];
+            int count = 1;
+            for (int i = 1; count < linkCount && i < linkCount * ATTEMPTS_PER_LINK; i++) {
+                int link = ids[successor(hash(position + i))];
+                if (link != nodeId && !contains(links, count, link)) {
+                    links[count++] = link;
+                }
+            }
+            return count == linkCount ? links : Arrays.copyOf(links, count);
+        }
+
+        /**
+         * @return index of the first node at or after the position, wrapping around the ring
+         */
+        private int successor(long position) {
+            int low = 0;
+            int high = positions.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (Long.compareUnsigned(positions[middle], position) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low == positions.length ? 0 : low;
+        }
+    }
+}
@@ -1,22 +1,99 @@
 package nl.tue.ds.util;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import nl.tue.ds.ServiceConfiguration;
 import nl.tue.ds.entity.Node;
+import nl.tue.ds.entity.NodeDescriptor;
 import nl.tue.ds.rmi.NodeServer;
 import nl.tue.ds.rmi.NullNodeRemote;
+import nl.tue.ds.transport.InMemoryTransport;
+import nl.tue.ds.transport.NioTransport;
+import nl.tue.ds.transport.RetirableStub;
+import nl.tue.ds.transport.RmiTransport;
+import nl.tue.ds.transport.Transport;
+import nl.tue.ds.transport.TransportType;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 
-import java.rmi.Naming;
-import java.rmi.RemoteException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Convenient class to deal with RMI for nodes
+ * Convenient class to deal with remote nodes over the configured transport
+ * <p>
+ * Keeps bounded LRU cache of remote stubs keyed by RMI name (node id and host), so the transport looks the node up
+ * only on the first call to the node or after the stub has been evicted due to failure or rebind
+ * <p>
+ * Stub is looked up atomically, so concurrent callers share one stub (and one connection) per node,
+ * evicted stub holding a connection is retired: it is closed once calls in progress on it return
+ *
+ * @see Transport
  */
 public abstract class RemoteUtil {
 
     private static final Logger logger = LogManager.getLogger();
 
+    @NotNull
+    private static volatile Transport transport = createTransport(TransportType.valueOf(ServiceConfiguration.getTransport()));
+
+    /**
+     * Retires evicted stubs holding a connection
+     */
+    private static final RemovalListener<String, NodeServer> retireStub = notification -> {
+        if (notification.getValue() instanceof RetirableStub) {
+            ((RetirableStub) notification.getValue()).retire();
+        }
+    };
+
+    /**
+     * Remote stubs of known nodes
+     * <p>
+     * Cache<RemoteName, NodeServer>
+     */
+    private static final Cache<String, NodeServer> stubs = CacheBuilder.newBuilder()
+            .maximumSize(ServiceConfiguration.getRmiStubCacheSize())
+            .removalListener(retireStub)
+            .build();
+
+    /**
+     * Lookups failed over to NullNodeRemote
+     */
+    private static final LongAdder nullNodeRemoteFallbacks = new LongAdder();
+
+    /**
+     * Replaces configured transport, must be called before any node is bound
+     *
+     * @param transport to communicate over
+     */
+    public static void setTransport(@NotNull Transport transport) {
+        RemoteUtil.transport = transport;
+        stubs.invalidateAll();
+        logger.info("Using transport=" + transport.getClass().getSimpleName());
+    }
+
+    /**
+     * Makes node accessible to other nodes
+     *
+     * @param node   to expose
+     * @param server serving requests to the node
+     */
+    public static void bind(@NotNull Node node, @NotNull NodeServer server) throws Exception {
+        transport.bind(node, server);
+    }
+
+    /**
+     * Makes node no longer accessible to other nodes
+     *
+     * @param node to hide
+     */
+    public static void unbind(@NotNull Node node) throws Exception {
+        transport.unbind(node);
+        evictRemoteNode(node.getId(), node.getHost());
+    }
+
     /**
      * Get reference to remote node
      *
@@ -31,6 +108,19 @@ public abstract class RemoteUtil {
     /**
      * Get reference to remote node
      *
+     * @param descriptor of remote node
+     * @return reference to remote object
+     */
+    @NotNull
+    public static NodeServer getRemoteNode(@NotNull NodeDescriptor descriptor) {
+        return getRemoteNode(descriptor.getId(), descriptor.getHost());
+    }
+
+    /**
+     * Get reference to remote node, looking it up by the transport if not cached yet
+     * <p>
+     * NullNodeRemote is never cached, so the next call retries the lookup
+     *
      * @param id   of the node
      * @param host of the node
      * @return reference to remote object
@@ -38,15 +128,54 @@ public abstract class RemoteUtil {
     @NotNull
     public static NodeServer getRemoteNode(int id, @NotNull String host) {
         try {
-            return (NodeServer) Naming.lookup("rmi://" + host + "/NodeRemote" + id);
-        } catch (Exception e) {
-            logger.error("Failed to get remote interface for id=" + id, e);
-            try {
-                return new NullNodeRemote(new Node());
-            } catch (RemoteException re) {
-                logger.error("Failed to get Null Node Pattern", re);
-                throw new RuntimeException("RMI failed miserably", re);
-            }
+            return stubs.get(getRemoteName(id, host), () -> transport.lookup(id, host));
+        } catch (ExecutionException | RuntimeException e) {
+            logger.error("Failed to get remote interface for id=" + id, e.getCause() != null ? e.getCause() : e);
+            nullNodeRemoteFallbacks.increment();
+            return new NullNodeRemote();
+        }
+    }
+
+    /**
+     * Drops cached reference to remote node, must be called once the node failed or rebound
+     *
+     * @param id   of the node
+     * @param host of the node
+     */
+    public static void evictRemoteNode(int id, @NotNull String host) {
+        stubs.invalidate(getRemoteName(id, host));
+        logger.trace("Evicted remote interface for id=" + id + ", host=" + host);
+    }
+
+    /**
+     * @return how many times lookup of remote node failed and NullNodeRemote was returned instead
+     */
+    public static long getNullNodeRemoteFallbacks() {
+        return nullNodeRemoteFallbacks.sum();
+    }
+
+    /**
+     * Get RMI name the node is bound to
+     *
+     * @param id   of the node
+     * @param host of the node
+     * @return RMI name in format rmi://{host}/NodeRemote{id}
+     */
+    @NotNull
+    public static String getRemoteName(int id, @NotNull String host) {
+        return "rmi://" + host + "/NodeRemote" + id;
+    }
+
+    @NotNull
+    private static Transport createTransport(@NotNull TransportType transportType) {
+        logger.info("Using transport=" + transportType);
+        switch (transportType) {
+            case NIO:
+                return new NioTransport();
+            case MEMORY:
+                return new InMemoryTransport(0, 0);
+            default:
+                return new RmiTransport();
         }
     }
 }
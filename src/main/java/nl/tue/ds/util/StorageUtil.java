@@ -1,23 +1,69 @@
 package nl.tue.ds.util;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import nl.tue.ds.BankTransfer;
+import nl.tue.ds.ServiceConfiguration;
+import nl.tue.ds.entity.AccountTable;
+import nl.tue.ds.entity.Item;
+import nl.tue.ds.entity.Marker;
 import nl.tue.ds.entity.Node;
 import nl.tue.ds.entity.Snapshot;
+import nl.tue.ds.storage.ChannelRecord;
+import nl.tue.ds.storage.RecoveredState;
+import nl.tue.ds.storage.RestorePoints;
+import nl.tue.ds.storage.SnapshotLog;
+import nl.tue.ds.storage.SnapshotRecord;
+import nl.tue.ds.storage.TransferLog;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.BufferedWriter;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * Convenient class to work with Node's internal list of snapshots
  * <p>
- * Maintains CSV file (under STORAGE_FOLDER directory) in format:
- * {snapshotID},{local balance},{sum of all incoming transfers upon receiving the marker}
+ * Maintains binary append-only snapshot log (under STORAGE_FOLDER directory) per node, see SnapshotLog,
+ * which is forced to disk every STORAGE_FORCE_INTERVAL milliseconds by background thread
+ * <p>
+ * Snapshots are written as differential records, so reading always goes through the log, which materializes them
+ * and also covers its archive, single snapshots and ranges of time are found by the index of the log, see SnapshotIndex
+ * <p>
+ * Once the log holds STORAGE_ARCHIVE_RECORDS snapshots, the background thread moves them into compressed columnar archive,
+ * see SnapshotArchive, and the log is emptied, reading goes over the archive and the log together
+ * <p>
+ * The log can be exported into CSV file in format:
+ * {initiator ID},{snapshot sequence},{local balance},{sum of all incoming transfers upon receiving the marker},{channels}
+ * <p>
+ * Channels are incoming channels with transfers in transit separated by ";", each as {node ID}:{message count}:{amount}
+ * <p>
+ * Balance changes and transfers of the node are kept in write-ahead transfer log, see TransferLog, which is checkpointed
+ * every STORAGE_TRANSFER_LOG_CHECKPOINT_INTERVAL milliseconds by the background thread, so a restarted node recovers
+ * from the last checkpoint and changes after it, while segments of the log covered by the checkpoint are deleted
+ * <p>
+ * Balances of accounts in the cut of the last STORAGE_RESTORE_POINTS snapshots are kept as restore points, see RestorePoints,
+ * restore points are written by the background thread from the last completed snapshot of the node
+ *
+ * @see SnapshotLog
+ * @see nl.tue.ds.storage.SnapshotIndex
+ * @see nl.tue.ds.storage.SnapshotArchive
+ * @see TransferLog
+ * @see RestorePoints
  */
 public abstract class StorageUtil {
 
@@ -27,23 +73,241 @@ public abstract class StorageUtil {
 
     private static final String STORAGE_FOLDER = "storage";
 
+    private static final int STORAGE_RESTORE_POINTS = ServiceConfiguration.getStorageRestorePoints();
+
+    private static final int STORAGE_ARCHIVE_RECORDS = ServiceConfiguration.getStorageArchiveRecords();
+
+    /**
+     * Opened snapshot logs
+     * <p>
+     * Map<NodeId, SnapshotLog>
+     */
+    private static final Map<Integer, SnapshotLog> logs = new ConcurrentHashMap<>();
+
     /**
-     * Creates/Updates list of nodes snapshots into CSV file
+     * Opened transfer logs
+     * <p>
+     * Map<NodeId, TransferLog>
+     */
+    private static final Map<Integer, TransferLog> transferLogs = new ConcurrentHashMap<>();
+
+    /**
+     * Opened restore points
+     * <p>
+     * Map<NodeId, RestorePoints>
+     */
+    private static final Map<Integer, RestorePoints> restorePoints = new ConcurrentHashMap<>();
+
+    /**
+     * Last completed snapshot of the node waiting for its restore point to be written,
+     * snapshots superseded before they are written are skipped
+     * <p>
+     * Map<NodeId, Snapshot>
+     */
+    private static final Map<Integer, Snapshot> pendingSnapshots = new ConcurrentHashMap<>();
+
+    /**
+     * Forces snapshot logs to disk, archives them and checkpoints transfer logs off the path of marker handling
+     */
+    private static final ScheduledExecutorService forcer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("storage-force-%d").setDaemon(true).build());
+
+    static {
+        int forceInterval = ServiceConfiguration.getStorageForceInterval();
+        forcer.scheduleWithFixedDelay(StorageUtil::forceAll, forceInterval, forceInterval, TimeUnit.MILLISECONDS);
+        if (STORAGE_ARCHIVE_RECORDS > 0) {
+            int archiveInterval = ServiceConfiguration.getStorageArchiveInterval();
+            forcer.scheduleWithFixedDelay(StorageUtil::archiveAll, archiveInterval, archiveInterval, TimeUnit.MILLISECONDS);
+        }
+        int checkpointInterval = ServiceConfiguration.getStorageTransferLogCheckpointInterval();
+        if (checkpointInterval > 0) {
+            forcer.scheduleWithFixedDelay(StorageUtil::checkpointAll, checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Appends snapshot of the node into its snapshot log
      *
-     * @param node to write
+     * @param node     to write
+     * @param snapshot of the node to write
      */
-    public static void write(@NotNull Node node) {
-        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(getFileName(node.getId()), true)))) {
-            @NotNull Snapshot snapshot = node.getSnapshot();
-            writer.println(snapshot.getId() + SEPARATOR + snapshot.getLocalBalance() + SEPARATOR + snapshot.getMoneyInTransfer());
+    public static void write(@NotNull Node node, @NotNull Snapshot snapshot) {
+        try {
+            Marker marker = snapshot.getMarker();
+            List<ChannelRecord> channels = new ArrayList<>();
+            for (int i = 0; i < snapshot.getChannelCount(); i++) {
+                if (snapshot.getMessageCount(i) > 0) {
+                    channels.add(new ChannelRecord(snapshot.getChannelNodeId(i), snapshot.getMessageCount(i), snapshot.getChannelAmount(i)));
+                }
+            }
+            getLog(node.getId()).append(new SnapshotRecord(marker.getInitiatorId(), marker.getSequence(), snapshot.getLocalBalance(), snapshot.getMoneyInTransfer(), System.currentTimeMillis(), channels));
             logger.debug("Storage wrote a snapshot=" + snapshot);
         } catch (Exception e) {
             logger.error("Failed to write snapshot of node=" + node, e);
         }
+        if (STORAGE_RESTORE_POINTS > 0 && pendingSnapshots.put(node.getId(), snapshot) == null) {
+            forcer.execute(() -> writeRestorePoint(node.getId()));
+        }
+    }
+
+    /**
+     * Loads balances of accounts of the node in the cut of the snapshot
+     *
+     * @param nodeId of the node
+     * @param marker of the snapshot
+     * @return balances of accounts with money in transit re-injected, null if the node has no restore point of the snapshot
+     */
+    @Nullable
+    public static AccountTable readRestorePoint(int nodeId, @NotNull Marker marker) throws IOException {
+        return STORAGE_RESTORE_POINTS > 0 ? getRestorePoints(nodeId).read(marker) : null;
+    }
+
+    /**
+     * Opens transfer log of the node (if enabled) and recovers state of the node from it
+     *
+     * @param nodeId of the node
+     * @return state of the node recovered from the last checkpoint and changes after it, null if there is nothing to recover
+     */
+    @Nullable
+    public static RecoveredState recover(int nodeId) throws IOException {
+        if (!ServiceConfiguration.isStorageTransferLog()) {
+            return null;
+        }
+        synchronized (transferLogs) {
+            TransferLog transferLog = transferLogs.get(nodeId);
+            if (transferLog == null) {
+                transferLog = openTransferLog(nodeId);
+                transferLogs.put(nodeId, transferLog);
+            }
+            return transferLog.getRecovered();
+        }
     }
 
     /**
-     * Creates storage folder to keep node's CSV files in
+     * Deletes transfer log and restore points left by the previous instance of the node and opens an empty transfer log
+     * (if enabled), so the node starts as a new bank. History of snapshots is kept, so ids of snapshots are not reused
+     *
+     * @param nodeId of the node
+     */
+    public static void reset(int nodeId) throws IOException {
+        pendingSnapshots.remove(nodeId);
+        if (STORAGE_RESTORE_POINTS > 0) {
+            getRestorePoints(nodeId).delete();
+            restorePoints.remove(nodeId);
+        }
+        if (!ServiceConfiguration.isStorageTransferLog()) {
+            return;
+        }
+        synchronized (transferLogs) {
+            TransferLog transferLog = transferLogs.remove(nodeId);
+            (transferLog != null ? transferLog : openTransferLog(nodeId)).delete();
+            transferLogs.put(nodeId, openTransferLog(nodeId));
+        }
+        logger.info("Storage reset state of nodeId=" + nodeId);
+    }
+
+    /**
+     * Journals balance changes and transfers of the node into its transfer log opened by recover() or reset(),
+     * no-op if transfer log is disabled
+     *
+     * @param node to journal
+     */
+    public static void attachTransferLog(@NotNull Node node) {
+        TransferLog transferLog = transferLogs.get(node.getId());
+        if (transferLog != null) {
+            transferLog.attach(node.getItem());
+        }
+    }
+
+    /**
+     * Makes balance changes of the node durable (group commit), no-op if the node has no transfer log
+     * <p>
+     * Failure is only logged, as changes are already applied in memory and durability is lost anyway
+     *
+     * @param nodeId of the node
+     */
+    public static void syncTransfers(int nodeId) {
+        TransferLog transferLog = transferLogs.get(nodeId);
+        if (transferLog == null) {
+            return;
+        }
+        try {
+            transferLog.sync();
+        } catch (Exception e) {
+            logger.error("Failed to sync transfer log of nodeId=" + nodeId, e);
+        }
+    }
+
+    /**
+     * Reads snapshots of the node in the order they were written
+     *
+     * @param nodeId of the node
+     * @return snapshot records
+     */
+    @NotNull
+    public static List<SnapshotRecord> read(int nodeId) throws IOException {
+        List<SnapshotRecord> records = new ArrayList<>();
+        getLog(nodeId).read(records::add);
+        return records;
+    }
+
+    /**
+     * Materializes full snapshot of the node from the snapshot log or its archive
+     *
+     * @param nodeId of the node
+     * @param marker of the snapshot
+     * @return snapshot record or null if the node has no such snapshot
+     */
+    @Nullable
+    public static SnapshotRecord materialize(int nodeId, @NotNull Marker marker) throws IOException {
+        return getLog(nodeId).materialize(marker.getInitiatorId(), marker.getSequence());
+    }
+
+    /**
+     * Sequence of the last snapshot initiated by the node found in its snapshot log,
+     * so the node restarted with the same id does not reuse ids of snapshots in its history
+     *
+     * @param nodeId of the node
+     * @return sequence of the last snapshot, 0 if there is none
+     */
+    public static int getLastSequence(int nodeId) throws IOException {
+        return getLog(nodeId).getLastSequence(nodeId);
+    }
+
+    /**
+     * Reads snapshots of the node written within the range of time in the order they were written
+     *
+     * @param nodeId        of the node
+     * @param fromTimestamp inclusive, in milliseconds since epoch
+     * @param toTimestamp   inclusive, in milliseconds since epoch
+     * @return snapshot records
+     */
+    @NotNull
+    public static List<SnapshotRecord> read(int nodeId, long fromTimestamp, long toTimestamp) throws IOException {
+        List<SnapshotRecord> records = new ArrayList<>();
+        getLog(nodeId).read(fromTimestamp, toTimestamp, records::add);
+        return records;
+    }
+
+    /**
+     * Exports snapshot log of the node into CSV file
+     *
+     * @param nodeId of the node
+     * @return name of the CSV file
+     */
+    @NotNull
+    public static String exportCsv(int nodeId) throws IOException {
+        String fileName = getCsvFileName(nodeId);
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(fileName)))) {
+            getLog(nodeId).read(record -> writer.println(record.getInitiatorId() + SEPARATOR + record.getSequence() + SEPARATOR + record.getLocalBalance() + SEPARATOR + record.getMoneyInTransfer() + SEPARATOR
+                    + record.getChannels().stream().map(c -> c.getNodeId() + ":" + c.getMessageCount() + ":" + c.getAmount()).collect(Collectors.joining(";"))));
+        }
+        logger.debug("Storage exported snapshots of nodeId=" + nodeId + " into " + fileName);
+        return fileName;
+    }
+
+    /**
+     * Creates storage folder to keep node's snapshot logs in
      */
     public static void init() {
         try {
@@ -57,23 +321,164 @@ public abstract class StorageUtil {
     }
 
     /**
-     * Removes node's CSV file
+     * Closes node's snapshot log and transfer log, files are kept to recover the node once it is restarted
+     *
+     * @param nodeId of the node
+     */
+    public static void close(int nodeId) {
+        try {
+            restorePoints.remove(nodeId);
+            SnapshotLog log = logs.remove(nodeId);
+            if (log != null) {
+                log.close();
+            }
+            TransferLog transferLog = transferLogs.remove(nodeId);
+            if (transferLog != null) {
+                transferLog.close();
+            }
+        } catch (Exception e) {
+            logger.error("Failed to close storage of nodeId=" + nodeId, e);
+        }
+    }
+
+    /**
+     * Closes node's snapshot log and transfer log and removes them together with index, archive, restore points and exported CSV file
      *
      * @param nodeId of the node
      */
     public static void removeFile(int nodeId) {
         try {
-            Path path = Paths.get(getFileName(nodeId));
-            if (Files.exists(path)) {
-                Files.delete(path);
+            pendingSnapshots.remove(nodeId);
+            RestorePoints points = restorePoints.remove(nodeId);
+            if (points != null) {
+                points.delete();
+            }
+            SnapshotLog log = logs.remove(nodeId);
+            if (log != null) {
+                log.close();
+            }
+            TransferLog transferLog = transferLogs.remove(nodeId);
+            if (transferLog != null) {
+                transferLog.delete();
             }
+            Files.deleteIfExists(Paths.get(getLogFileName(nodeId)));
+            Files.deleteIfExists(Paths.get(getIndexFileName(nodeId)));
+            Files.deleteIfExists(Paths.get(getArchiveFileName(nodeId)));
+            Files.deleteIfExists(Paths.get(getCsvFileName(nodeId)));
         } catch (Exception e) {
             logger.error("Failed to remove file for nodeId=" + nodeId, e);
         }
     }
 
     @NotNull
-    private static String getFileName(int nodeId) {
+    private static SnapshotLog getLog(int nodeId) throws IOException {
+        SnapshotLog log = logs.get(nodeId);
+        if (log != null) {
+            return log;
+        }
+        synchronized (logs) {
+            log = logs.get(nodeId);
+            if (log == null) {
+                log = SnapshotLog.open(Paths.get(getLogFileName(nodeId)), Paths.get(getIndexFileName(nodeId)), Paths.get(getArchiveFileName(nodeId)),
+                        ServiceConfiguration.getStorageSegmentSize(), ServiceConfiguration.getStorageFullInterval());
+                logs.put(nodeId, log);
+            }
+            return log;
+        }
+    }
+
+    @NotNull
+    private static RestorePoints getRestorePoints(int nodeId) throws IOException {
+        RestorePoints points = restorePoints.get(nodeId);
+        if (points != null) {
+            return points;
+        }
+        synchronized (restorePoints) {
+            points = restorePoints.get(nodeId);
+            if (points == null) {
+                points = RestorePoints.open(Paths.get(STORAGE_FOLDER), getFilePrefix(nodeId), STORAGE_RESTORE_POINTS, ServiceConfiguration.isStorageTransferLogForce());
+                restorePoints.put(nodeId, points);
+            }
+            return points;
+        }
+    }
+
+    /**
+     * Writes restore point of the last completed snapshot of the node by the background thread
+     */
+    private static void writeRestorePoint(int nodeId) {
+        Snapshot snapshot = pendingSnapshots.remove(nodeId);
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            getRestorePoints(nodeId).write(snapshot.getMarker(), snapshot.getRestoredAccounts());
+        } catch (Exception e) {
+            logger.error("Failed to write restore point of snapshot=" + snapshot.getMarker() + " of nodeId=" + nodeId, e);
+        }
+    }
+
+    @NotNull
+    private static TransferLog openTransferLog(int nodeId) throws IOException {
+        return TransferLog.open(Paths.get(STORAGE_FOLDER), getFilePrefix(nodeId), ServiceConfiguration.getStorageTransferLogSegmentSize(),
+                ServiceConfiguration.isStorageTransferLogForce(), () -> new Item(BankTransfer.ACCOUNTS, BankTransfer.INITIAL_BALANCE));
+    }
+
+    private static void forceAll() {
+        for (SnapshotLog log : logs.values()) {
+            try {
+                log.force();
+            } catch (Exception e) {
+                logger.error("Failed to force snapshot log", e);
+            }
+        }
+    }
+
+    private static void checkpointAll() {
+        for (Map.Entry<Integer, TransferLog> entry : transferLogs.entrySet()) {
+            try {
+                entry.getValue().checkpoint();
+            } catch (Exception e) {
+                logger.error("Failed to checkpoint transfer log of nodeId=" + entry.getKey(), e);
+            }
+        }
+    }
+
+    private static void archiveAll() {
+        for (Map.Entry<Integer, SnapshotLog> entry : logs.entrySet()) {
+            try {
+                int archived = entry.getValue().archive(STORAGE_ARCHIVE_RECORDS);
+                if (archived > 0) {
+                    logger.info("Storage archived " + archived + " snapshots of nodeId=" + entry.getKey() + ", archive size=" + entry.getValue().getArchiveSize() + " bytes");
+                }
+            } catch (Exception e) {
+                logger.error("Failed to archive snapshot log of nodeId=" + entry.getKey(), e);
+            }
+        }
+    }
+
+    @NotNull
+    private static String getLogFileName(int nodeId) {
+        return STORAGE_FOLDER + "/" + getFilePrefix(nodeId) + ".snapshots";
+    }
+
+    @NotNull
+    private static String getIndexFileName(int nodeId) {
+        return STORAGE_FOLDER + "/" + getFilePrefix(nodeId) + ".index";
+    }
+
+    @NotNull
+    private static String getArchiveFileName(int nodeId) {
+        return STORAGE_FOLDER + "/" + getFilePrefix(nodeId) + ".archive";
+    }
+
+    @NotNull
+    private static String getFilePrefix(int nodeId) {
+        return "Node-" + nodeId;
+    }
+
+    @NotNull
+    private static String getCsvFileName(int nodeId) {
         return STORAGE_FOLDER + "/Node-" + nodeId + ".csv";
     }
 }
@@ -0,0 +1,297 @@
+package nl.tue.ds;
+
+import nl.tue.ds.entity.GlobalSnapshot;
+import nl.tue.ds.entity.Marker;
+import nl.tue.ds.entity.Node;
+import nl.tue.ds.entity.NodeDescriptor;
+import nl.tue.ds.entity.Snapshot;
+import nl.tue.ds.metrics.NodeMetrics;
+import nl.tue.ds.rmi.NodeExecutors;
+import nl.tue.ds.rmi.NodeRemote;
+import nl.tue.ds.rmi.NodeServer;
+import nl.tue.ds.rmi.SnapshotListener;
+import nl.tue.ds.transport.InMemoryTransport;
+import nl.tue.ds.transport.Transport;
+import nl.tue.ds.util.RemoteUtil;
+import nl.tue.ds.util.StorageUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Graph of nodes (banks) in a single JVM over in-memory transport or the given one, nodes join and learn about each other by gossip
+ * the same way as in SimulationLauncher
+ * <p>
+ * Ids of nodes start from the given id, so graphs of different tests do not share storage files
+ *
+ * @see SimulationLauncher
+ */
+public final class SimulatedGraph implements AutoCloseable {
+
+    private static final String HOST = "localhost";
+
+    /**
+     * Maximal time to wait for membership, snapshots and settlement of transfers
+     */
+    public static final long TIMEOUT_SECONDS = 30;
+
+    private static final long POLL_MILLIS = 5;
+
+    @NotNull
+    private final NodeExecutors executors = NodeExecutors.create(8, 8, Integer.MAX_VALUE);
+
+    @NotNull
+    private final NodeRemote[] nodeRemotes;
+
+    /**
+     * Map<Marker, GlobalSnapshot collected by the initiator>
+     */
+    @NotNull
+    private final Map<Marker, CompletableFuture<GlobalSnapshot>> collections = new ConcurrentHashMap<>();
+
+    /**
+     * Map<Marker, Number of nodes which completed the snapshot>
+     */
+    @NotNull
+    private final Map<Marker, Integer> completions = new ConcurrentHashMap<>();
+
+    @Nullable
+    private ScheduledExecutorService workload;
+
+    private SimulatedGraph(int nodeCount) {
+        nodeRemotes = new NodeRemote[nodeCount];
+    }
+
+    /**
+     * Binds nodes with ids from firstNodeId, joins every node through a random existing node and waits until
+     * every node knows all nodes
+     *
+     * @param firstNodeId   id of the first node
+     * @param nodeCount     number of nodes
+     * @param overlayDegree of nodes, 0 -> every node is a neighbour of all nodes
+     */
+    @NotNull
+    public static SimulatedGraph start(int firstNodeId, int nodeCount, int overlayDegree) throws Exception {
+        return start(firstNodeId, nodeCount, overlayDegree, new InMemoryTransport(0, 0));
+    }
+
+    /**
+     * Binds nodes over the transport, see start(int, int, int)
+     *
+     * @param transport nodes communicate over, all nodes are bound on localhost
+     */
+    @NotNull
+    public static SimulatedGraph start(int firstNodeId, int nodeCount, int overlayDegree, @NotNull Transport transport) throws Exception {
+        StorageUtil.init();
+        RemoteUtil.setTransport(transport);
+        SimulatedGraph graph = new SimulatedGraph(nodeCount);
+        Listener listener = graph.new Listener();
+        try {
+            for (int i = 0; i < nodeCount; i++) {
+                StorageUtil.removeFile(firstNodeId + i);
+                Node node = new Node(firstNodeId + i, HOST, overlayDegree);
+                graph.nodeRemotes[i] = new NodeRemote(node, graph.executors, new NodeMetrics(false));
+                graph.nodeRemotes[i].addSnapshotListener(listener);
+                RemoteUtil.bind(node, graph.nodeRemotes[i]);
+                if (i > 0) {
+                    NodeDescriptor existingNode = graph.nodeRemotes[ThreadLocalRandom.current().nextInt(i)].getDescriptor();
+                    NodeServer existingNodeRemote = RemoteUtil.getRemoteNode(existingNode);
+                    node.mergeMembership(existingNodeRemote.getMembership());
+                    node.mergeMembership(existingNodeRemote.gossip(node.getId(), node.getMembership().get(node.getId()), node.getMembership().getDigest()));
+                }
+                graph.nodeRemotes[i].startGossip();
+            }
+            for (NodeRemote nodeRemote : graph.nodeRemotes) {
+                if (!await(() -> nodeRemote.getNode().getNodes().size() == nodeCount)) {
+                    throw new IllegalStateException("Membership of nodeId=" + nodeRemote.getNode().getId() + " did not converge");
+                }
+            }
+        } catch (Exception e) {
+            graph.close();
+            throw e;
+        }
+        return graph;
+    }
+
+    @NotNull
+    public NodeRemote get(int index) {
+        return nodeRemotes[index];
+    }
+
+    public int size() {
+        return nodeRemotes.length;
+    }
+
+    /**
+     * Makes one transfer from a random account of every node to a random account of its random neighbour every millisecond
+     */
+    public void startTransfers() {
+        workload = Executors.newSingleThreadScheduledExecutor();
+        workload.scheduleAtFixedRate(this::transferMoney, 0, 1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops transfers and waits until the last round of transfers is made
+     */
+    public void stopTransfers() throws InterruptedException {
+        if (workload != null) {
+            workload.shutdownNow();
+            workload.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            workload = null;
+        }
+    }
+
+    /**
+     * Initiates a snapshot on the node and waits until the initiator collects it
+     *
+     * @return global snapshot collected by the initiator
+     */
+    @NotNull
+    public GlobalSnapshot snapshot(int index) throws Exception {
+        NodeRemote initiator = nodeRemotes[index];
+        Marker marker = initiator.getNode().nextMarker();
+        CompletableFuture<GlobalSnapshot> collection = new CompletableFuture<>();
+        collections.put(marker, collection);
+        initiator.receiveMarker(initiator.getNode().getId(), marker);
+        try {
+            return collection.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } finally {
+            collections.remove(marker);
+        }
+    }
+
+    /**
+     * Waits until every node has written the restore point of the snapshot
+     *
+     * @return whether all restore points were written within the timeout
+     */
+    public boolean awaitRestorePoints(@NotNull Marker marker) throws InterruptedException {
+        return await(() -> {
+            for (NodeRemote nodeRemote : nodeRemotes) {
+                try {
+                    if (StorageUtil.readRestorePoint(nodeRemote.getNode().getId(), marker) == null) {
+                        return false;
+                    }
+                } catch (Exception e) {
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
+
+    /**
+     * @return number of nodes which completed the snapshot
+     */
+    public int getCompletions(@NotNull Marker marker) {
+        return completions.getOrDefault(marker, 0);
+    }
+
+    /**
+     * @return sum of balances of all nodes, excluding money withdrawn by transfers still waiting for reply
+     */
+    public long getBalance() {
+        long balance = 0;
+        for (NodeRemote nodeRemote : nodeRemotes) {
+            balance += nodeRemote.getNode().getItem().getBalance();
+        }
+        return balance;
+    }
+
+    /**
+     * @return sum of initial balances of all nodes
+     */
+    public long getInitialBalance() {
+        return (long) nodeRemotes.length * BankTransfer.ACCOUNTS * BankTransfer.INITIAL_BALANCE;
+    }
+
+    /**
+     * Waits until transfers still waiting for reply are settled and balances of all nodes add up to the expected balance
+     *
+     * @return sum of balances of all nodes once it is expected, or once the timeout passed
+     */
+    public long awaitBalance(long expected) throws InterruptedException {
+        await(() -> getBalance() == expected);
+        return getBalance();
+    }
+
+    /**
+     * Polls the condition until it holds or the timeout passes
+     *
+     * @return whether the condition holds
+     */
+    public static boolean await(@NotNull BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+        return true;
+    }
+
+    /**
+     * Stops transfers, closes and unbinds all nodes and removes their storage files
+     */
+    @Override
+    public void close() throws Exception {
+        stopTransfers();
+        for (NodeRemote nodeRemote : nodeRemotes) {
+            if (nodeRemote != null) {
+                nodeRemote.close();
+            }
+        }
+        executors.shutdown();
+        for (NodeRemote nodeRemote : nodeRemotes) {
+            if (nodeRemote != null) {
+                RemoteUtil.unbind(nodeRemote.getNode());
+                StorageUtil.removeFile(nodeRemote.getNode().getId());
+            }
+        }
+    }
+
+    private void transferMoney() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (NodeRemote nodeRemote : nodeRemotes) {
+            int[] neighbourIds = nodeRemote.getNode().getNeighbourIds();
+            try {
+                nodeRemote.transferMoney(random.nextInt(BankTransfer.ACCOUNTS), neighbourIds[random.nextInt(neighbourIds.length)],
+                        random.nextInt(BankTransfer.ACCOUNTS), random.nextInt(BankTransfer.MIN_AMOUNT, BankTransfer.MAX_AMOUNT + 1));
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to transfer from nodeId=" + nodeRemote.getNode().getId(), e);
+            }
+        }
+    }
+
+    /**
+     * Collects completions of snapshots on all nodes and global snapshots collected by initiators
+     */
+    private final class Listener implements SnapshotListener {
+
+        @Override
+        public void snapshotStarted(@NotNull Node node, @NotNull Snapshot snapshot) {
+        }
+
+        @Override
+        public void snapshotCompleted(@NotNull Node node, @NotNull Snapshot snapshot) {
+            completions.merge(snapshot.getMarker(), 1, Integer::sum);
+        }
+
+        @Override
+        public void globalSnapshotCollected(@NotNull Node node, @NotNull GlobalSnapshot globalSnapshot) {
+            CompletableFuture<GlobalSnapshot> collection = collections.get(globalSnapshot.getMarker());
+            if (collection != null) {
+                collection.complete(globalSnapshot);
+            }
+        }
+    }
+}
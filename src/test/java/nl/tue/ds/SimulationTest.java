@@ -0,0 +1,70 @@
+package nl.tue.ds;
+
+import nl.tue.ds.entity.GlobalSnapshot;
+import nl.tue.ds.transport.InMemoryTransport;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Simulation of a sparse graph in a single JVM over in-memory transport with latency and jitter, as run by SimulationLauncher:
+ * money is conserved by concurrent cuts of several initiators before and after a restore while transfers keep running
+ *
+ * @see SimulationLauncher
+ */
+public class SimulationTest {
+
+    private static final int NODES = 40;
+
+    private static final int OVERLAY_DEGREE = 6;
+
+    private static final int INITIATORS = 3;
+
+    @Test
+    public void concurrentCutsAndRestoreConserveMoney() throws Exception {
+        try (SimulatedGraph graph = SimulatedGraph.start(7001, NODES, OVERLAY_DEGREE, new InMemoryTransport(100, 200))) {
+            graph.startTransfers();
+            Thread.sleep(100);
+            snapshotConcurrently(graph);
+
+            // restore points of concurrent snapshots are coalesced per node, so the node may keep only the last one of them
+            GlobalSnapshot restored = graph.snapshot(0);
+            assertTrue(restored.toString(), restored.isConserved());
+            assertTrue(graph.awaitRestorePoints(restored.getMarker()));
+            assertTrue(graph.get(0).restore(restored.getMarker()));
+            Thread.sleep(100);
+            snapshotConcurrently(graph);
+
+            graph.stopTransfers();
+            assertEquals(graph.getInitialBalance(), graph.awaitBalance(graph.getInitialBalance()));
+        }
+    }
+
+    /**
+     * Initiates a snapshot on each of the first INITIATORS nodes at the same time and checks the collected snapshots
+     */
+    private static void snapshotConcurrently(SimulatedGraph graph) throws Exception {
+        ExecutorService initiators = Executors.newFixedThreadPool(INITIATORS);
+        try {
+            List<Future<GlobalSnapshot>> futures = new ArrayList<>();
+            for (int i = 0; i < INITIATORS; i++) {
+                int index = i;
+                futures.add(initiators.submit(() -> graph.snapshot(index)));
+            }
+            for (Future<GlobalSnapshot> future : futures) {
+                GlobalSnapshot snapshot = future.get();
+                assertEquals(NODES, snapshot.getNodeCount());
+                assertTrue(snapshot.toString(), snapshot.isConserved());
+            }
+        } finally {
+            initiators.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package nl.tue.ds.entity;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Copies, visiting, comparison and serialization of balances of accounts, comparison of items by their accounts
+ */
+public class AccountTableTest {
+
+    @Test
+    public void copyIsNotAffectedByLaterChanges() {
+        AccountTable accounts = createAccounts(5_000);
+        AccountTable copy = accounts.copy();
+        assertEquals(accounts.sum(), copy.sum());
+        accounts.add(7, 100);
+        assertEquals(accounts.sum() - 100, copy.sum());
+        copy.add(5_000, 1);
+        assertEquals(5_000, accounts.size());
+        assertEquals(5_001, copy.size());
+    }
+
+    @Test
+    public void writtenAccountsAreReadBack() throws IOException {
+        AccountTable accounts = createAccounts(5_000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        accounts.write(new DataOutputStream(bytes));
+        AccountTable read = AccountTable.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(accounts, read);
+        assertEquals(accounts.hashCode(), read.hashCode());
+    }
+
+    @Test
+    public void readRejectsCorruptedAccountCount() {
+        for (int size : new int[]{-1, Integer.MAX_VALUE}) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                new DataOutputStream(bytes).writeInt(size);
+                AccountTable.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+                fail("Account count=" + size + " was read");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void itemsWithSameTotalAreEqualOnlyWithSameAccounts() {
+        Item item = new Item(3, 10);
+        Item moved = new Item(3, 10);
+        assertEquals(item, moved);
+        assertEquals(item.hashCode(), moved.hashCode());
+
+        moved.incrementBalance(0, 5);
+        moved.incrementBalance(1, -5);
+        assertEquals(item.getBalance(), moved.getBalance());
+        assertNotEquals(item, moved);
+    }
+
+    /**
+     * Accounts with ids from 0 to count exclusive, balance of every account is its id
+     */
+    private static AccountTable createAccounts(int count) {
+        AccountTable accounts = new AccountTable(count);
+        for (int i = 0; i < count; i++) {
+            accounts.add(i, i);
+        }
+        return accounts;
+    }
+}
@@ -0,0 +1,68 @@
+package nl.tue.ds.entity;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Versions, deltas and digests of the membership table gossiped between nodes
+ */
+public class MembershipTableTest {
+
+    @Test
+    public void latestIncarnationWins() {
+        MembershipTable table = new MembershipTable();
+        assertTrue(table.put(1, "a", 10));
+        assertFalse(table.put(1, "b", 10));
+        assertFalse(table.put(1, "b", 9));
+        assertTrue(table.put(1, "c", 11));
+        assertEquals(1, table.size());
+        assertEquals("c", table.getHosts().get(1));
+        assertEquals(2, table.getVersion());
+    }
+
+    @Test
+    public void deltaHasOnlyChangesSinceVersion() {
+        MembershipTable table = new MembershipTable();
+        table.put(1, "a", 1);
+        table.put(2, "b", 1);
+        long version = table.getVersion();
+        assertEquals(Membership.EMPTY, table.getSince(version));
+
+        table.put(3, "c", 1);
+        table.put(1, "a", 2);
+        Membership delta = table.getSince(version);
+        assertFalse(delta.isComplete());
+        assertEquals(2, delta.size());
+        assertTrue(delta.contains(1));
+        assertTrue(delta.contains(3));
+        assertFalse(delta.contains(2));
+        assertEquals(3, table.getAll().size());
+        assertTrue(table.getAll().isComplete());
+    }
+
+    @Test
+    public void mergingMissingNodesMakesDigestsEqual() {
+        MembershipTable first = new MembershipTable();
+        MembershipTable second = new MembershipTable();
+        first.put(1, "a", 1);
+        first.put(2, "b", 1);
+        first.put(3, "c", 2);
+        second.put(3, "c", 1);
+        second.put(2, "b", 1);
+        second.put(4, "d", 1);
+        assertNotEquals(first.getDigest(), second.getDigest());
+
+        Membership missing = first.getMissing(second.getAll());
+        assertEquals(2, missing.size());
+        assertTrue(missing.contains(1));
+        assertTrue(missing.contains(3));
+        assertEquals(2, second.merge(missing));
+        assertEquals(1, first.merge(second.getMissing(first.getAll())));
+        assertEquals(first.getDigest(), second.getDigest());
+        assertEquals(Membership.EMPTY, first.getMissing(second.getAll()));
+    }
+}
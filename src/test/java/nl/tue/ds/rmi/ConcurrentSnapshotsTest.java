@@ -0,0 +1,91 @@
+package nl.tue.ds.rmi;
+
+import nl.tue.ds.SimulatedGraph;
+import nl.tue.ds.entity.GlobalSnapshot;
+import nl.tue.ds.entity.Marker;
+import nl.tue.ds.entity.Node;
+import nl.tue.ds.entity.Snapshot;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Snapshots recorded concurrently by the same nodes, kept apart by their markers
+ */
+public class ConcurrentSnapshotsTest {
+
+    private static final int NODES = 8;
+
+    private static final int INITIATORS = 4;
+
+    private static final int SNAPSHOTS_PER_INITIATOR = 3;
+
+    @Test
+    public void transfersAreRecordedOnlyBySnapshotsWaitingForTheSender() {
+        Node node = new Node(1, "test", 0);
+        Map<Integer, String> nodes = new HashMap<>();
+        nodes.put(2, "test");
+        nodes.put(3, "test");
+        node.putNodes(nodes);
+        Snapshot first = node.startSnapshotRecording(new Marker(1, 1));
+        Snapshot second = node.startSnapshotRecording(new Marker(2, 1));
+
+        assertFalse(first.stopRecording(2));
+        node.incrementMoneyInTransfer(2, 0, 10);
+        node.incrementMoneyInTransfer(3, 1, 20);
+        assertEquals(20, first.getMoneyInTransfer());
+        assertEquals(30, second.getMoneyInTransfer());
+
+        assertTrue(first.stopRecording(3));
+        node.stopSnapshotRecording(first);
+        node.incrementMoneyInTransfer(3, 1, 5);
+        assertEquals(20, first.getMoneyInTransfer());
+        assertEquals(35, second.getMoneyInTransfer());
+        assertNull(node.getSnapshot(first.getMarker()));
+        assertTrue(node.isSnapshotFinished(first.getMarker()));
+        assertTrue(second.isRecording());
+    }
+
+    @Test
+    public void concurrentSnapshotsOfDifferentInitiatorsAreConserved() throws Exception {
+        try (SimulatedGraph graph = SimulatedGraph.start(4001, NODES, 4)) {
+            graph.startTransfers();
+            Thread.sleep(50);
+            ExecutorService initiators = Executors.newFixedThreadPool(INITIATORS);
+            List<Future<GlobalSnapshot>> futures = new ArrayList<>();
+            try {
+                for (int i = 0; i < INITIATORS * SNAPSHOTS_PER_INITIATOR; i++) {
+                    int index = i % INITIATORS;
+                    futures.add(initiators.submit(() -> graph.snapshot(index)));
+                }
+                Set<Marker> markers = new HashSet<>();
+                for (Future<GlobalSnapshot> future : futures) {
+                    GlobalSnapshot snapshot = future.get();
+                    assertEquals(NODES, snapshot.getNodeCount());
+                    assertTrue(snapshot.toString(), snapshot.isConserved());
+                    assertTrue(markers.add(snapshot.getMarker()));
+                }
+                for (Marker marker : markers) {
+                    assertTrue(SimulatedGraph.await(() -> graph.getCompletions(marker) == NODES));
+                }
+            } finally {
+                initiators.shutdownNow();
+            }
+            graph.stopTransfers();
+            assertEquals(graph.getInitialBalance(), graph.awaitBalance(graph.getInitialBalance()));
+        }
+    }
+}
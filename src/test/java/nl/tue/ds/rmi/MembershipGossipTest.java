@@ -0,0 +1,40 @@
+package nl.tue.ds.rmi;
+
+import nl.tue.ds.SimulatedGraph;
+import nl.tue.ds.entity.MembershipTable;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Spreading of joins by gossip: every node joins through a single random node, the rest of the graph learns about it
+ * only from gossip rounds
+ */
+public class MembershipGossipTest {
+
+    private static final int NODES = 30;
+
+    @Test
+    public void everyNodeLearnsAboutAllJoinedNodes() throws Exception {
+        try (SimulatedGraph graph = SimulatedGraph.start(2001, NODES, 4)) {
+            MembershipTable first = graph.get(0).getNode().getMembership();
+            assertTrue(SimulatedGraph.await(() -> {
+                for (int i = 1; i < NODES; i++) {
+                    if (graph.get(i).getNode().getMembership().getDigest() != first.getDigest()) {
+                        return false;
+                    }
+                }
+                return true;
+            }));
+            for (int i = 0; i < NODES; i++) {
+                MembershipTable membership = graph.get(i).getNode().getMembership();
+                assertEquals(NODES, membership.size());
+                for (int j = 0; j < NODES; j++) {
+                    assertTrue(membership.getHosts().containsKey(graph.get(j).getNode().getId()));
+                }
+                assertTrue(graph.get(i).getNode().getNeighbourIds().length < NODES - 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package nl.tue.ds.rmi;
+
+import nl.tue.ds.SimulatedGraph;
+import nl.tue.ds.entity.GlobalSnapshot;
+import nl.tue.ds.entity.Marker;
+import nl.tue.ds.util.StorageUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Two-phase restore of all nodes to the cut of a snapshot while transfers keep running
+ */
+public class RestoreTest {
+
+    private static final int NODES = 5;
+
+    @Test
+    public void committedRestoreConservesMoneyWhileTransfersRun() throws Exception {
+        try (SimulatedGraph graph = SimulatedGraph.start(1001, NODES, 0)) {
+            graph.startTransfers();
+            Thread.sleep(100);
+            GlobalSnapshot snapshot = graph.snapshot(0);
+            assertTrue(snapshot.toString(), snapshot.isConserved());
+            assertTrue(graph.awaitRestorePoints(snapshot.getMarker()));
+            Thread.sleep(100);
+
+            assertTrue(graph.get(0).restore(snapshot.getMarker()));
+            Thread.sleep(100);
+            graph.stopTransfers();
+            assertEquals(graph.getInitialBalance(), graph.awaitBalance(graph.getInitialBalance()));
+        }
+    }
+
+    @Test
+    public void committedRestoreSetsBalancesOfTheCut() throws Exception {
+        try (SimulatedGraph graph = SimulatedGraph.start(1011, NODES, 0)) {
+            graph.startTransfers();
+            Thread.sleep(100);
+            GlobalSnapshot snapshot = graph.snapshot(1);
+            Marker marker = snapshot.getMarker();
+            assertTrue(graph.awaitRestorePoints(marker));
+            Thread.sleep(100);
+            graph.stopTransfers();
+            assertEquals(graph.getInitialBalance(), graph.awaitBalance(graph.getInitialBalance()));
+
+            assertTrue(graph.get(1).restore(marker));
+            for (int i = 0; i < NODES; i++) {
+                int nodeId = graph.get(i).getNode().getId();
+                assertEquals(StorageUtil.readRestorePoint(nodeId, marker).sum(), graph.get(i).getNode().getItem().getBalance());
+            }
+            assertEquals(graph.getInitialBalance(), graph.getBalance());
+
+            graph.startTransfers();
+            Thread.sleep(100);
+            graph.stopTransfers();
+            assertEquals(graph.getInitialBalance(), graph.awaitBalance(graph.getInitialBalance()));
+        }
+    }
+
+    @Test
+    public void restoreWithoutRestorePointLeavesBalancesUnchanged() throws Exception {
+        try (SimulatedGraph graph = SimulatedGraph.start(1021, NODES, 0)) {
+            graph.startTransfers();
+            Thread.sleep(100);
+            Marker marker = new Marker(graph.get(2).getNode().getId(), Integer.MAX_VALUE);
+            assertFalse(graph.get(2).restore(marker));
+            Thread.sleep(100);
+            graph.stopTransfers();
+            assertEquals(graph.getInitialBalance(), graph.awaitBalance(graph.getInitialBalance()));
+        }
+    }
+}
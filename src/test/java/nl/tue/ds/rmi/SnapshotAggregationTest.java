@@ -0,0 +1,72 @@
+package nl.tue.ds.rmi;
+
+import nl.tue.ds.SimulatedGraph;
+import nl.tue.ds.entity.GlobalSnapshot;
+import nl.tue.ds.entity.Marker;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Readiness of partial states of the convergecast on a single node, and conservation of money in global snapshots
+ * collected over a sparse overlay while transfers keep running
+ */
+public class SnapshotAggregationTest {
+
+    private static final Marker MARKER = new Marker(1, 1);
+
+    private static final int NODES = 12;
+
+    @Test
+    public void reportsOnceAllMarkersChildrenAndLocalStateAreKnown() {
+        SnapshotAggregation aggregation = new SnapshotAggregation(MARKER, 1, 3);
+        assertFalse(aggregation.markerDelivered(true));
+        assertFalse(aggregation.reportReceived(new GlobalSnapshot(MARKER, 2, 50, 5)));
+        assertFalse(aggregation.localCompleted(new GlobalSnapshot(MARKER, 1, 30, 0)));
+        assertFalse(aggregation.markerDelivered(false));
+        assertFalse(aggregation.markerDelivered(true));
+        assertTrue(aggregation.reportReceived(new GlobalSnapshot(MARKER, 1, 10, 5)));
+        assertFalse(aggregation.expire());
+
+        GlobalSnapshot globalSnapshot = aggregation.getGlobalSnapshot();
+        assertEquals(new GlobalSnapshot(MARKER, 4, 90, 10), globalSnapshot);
+        assertFalse(globalSnapshot.isPartial());
+    }
+
+    @Test
+    public void abandonedLocalSnapshotMakesStatePartial() {
+        SnapshotAggregation aggregation = new SnapshotAggregation(MARKER, 2, 1);
+        assertFalse(aggregation.localAbandoned(new GlobalSnapshot(MARKER, 1, 30, 0)));
+        assertFalse(aggregation.localCompleted(new GlobalSnapshot(MARKER, 1, 30, 0)));
+        assertTrue(aggregation.markerDelivered(false));
+        assertTrue(aggregation.getGlobalSnapshot().isPartial());
+        assertEquals(1, aggregation.getGlobalSnapshot().getNodeCount());
+    }
+
+    @Test
+    public void expiredAggregationReportsWhatIsMergedSoFar() {
+        SnapshotAggregation aggregation = new SnapshotAggregation(MARKER, 2, 1);
+        assertFalse(aggregation.markerDelivered(true));
+        assertFalse(aggregation.localCompleted(new GlobalSnapshot(MARKER, 1, 30, 0)));
+        assertTrue(aggregation.expire());
+        assertFalse(aggregation.expire());
+        assertFalse(aggregation.reportReceived(new GlobalSnapshot(MARKER, 1, 10, 0)));
+        assertTrue(aggregation.getGlobalSnapshot().isPartial());
+    }
+
+    @Test
+    public void collectedSnapshotsOfSparseOverlayAreConserved() throws Exception {
+        try (SimulatedGraph graph = SimulatedGraph.start(3001, NODES, 4)) {
+            graph.startTransfers();
+            for (int i = 0; i < 5; i++) {
+                Thread.sleep(20);
+                GlobalSnapshot snapshot = graph.snapshot(i % NODES);
+                assertEquals(NODES, snapshot.getNodeCount());
+                assertTrue(snapshot.toString(), snapshot.isConserved());
+                assertTrue(SimulatedGraph.await(() -> graph.getCompletions(snapshot.getMarker()) == NODES));
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package nl.tue.ds.rmi;
+
+import nl.tue.ds.SimulatedGraph;
+import nl.tue.ds.entity.Node;
+import nl.tue.ds.transport.InMemoryTransport;
+import nl.tue.ds.transport.Transport;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Batching of transfers per outgoing channel, crediting of a batch at most once by its id and resending of batches
+ * with unknown outcome
+ */
+public class TransferBatchingTest {
+
+    private static final int TRANSFERS = 640;
+
+    @Test
+    public void transfersToTheSameRecipientAreSentInBatches() throws Exception {
+        CountingTransport transport = new CountingTransport();
+        try (SimulatedGraph graph = SimulatedGraph.start(5001, 2, 0, transport)) {
+            transfer(graph, TRANSFERS);
+            assertEquals(graph.getInitialBalance(), graph.awaitBalance(graph.getInitialBalance()));
+            assertEquals(getInitialBalance(graph) + TRANSFERS, graph.get(1).getNode().getItem().getBalance());
+            assertTrue("batches=" + transport.batches.get(), transport.batches.get() * 4 <= TRANSFERS);
+        }
+    }
+
+    @Test
+    public void batchIsCreditedAtMostOnce() throws Exception {
+        try (SimulatedGraph graph = SimulatedGraph.start(5011, 2, 0)) {
+            int senderNodeId = graph.get(0).getNode().getId();
+            NodeRemote recipient = graph.get(1);
+            long balance = recipient.getNode().getItem().getBalance();
+            assertTrue(recipient.acceptMoneyBatch(senderNodeId, 5, new int[]{0, 0}, new int[]{10, 20}));
+            assertTrue(recipient.acceptMoneyBatch(senderNodeId, 5, new int[]{0, 0}, new int[]{10, 20}));
+            assertTrue(recipient.acceptMoneyBatch(senderNodeId, 4, new int[]{0}, new int[]{40}));
+            assertEquals(balance + 30, recipient.getNode().getItem().getBalance());
+
+            assertFalse(recipient.acceptMoneyBatch(senderNodeId, 6, new int[]{0}, new int[]{0}));
+            assertTrue(recipient.acceptMoneyBatch(senderNodeId, 6, new int[]{0}, new int[]{1}));
+            assertEquals(balance + 31, recipient.getNode().getItem().getBalance());
+        }
+    }
+
+    @Test
+    public void batchWithLostReplyIsResentAndCreditedOnce() throws Exception {
+        CountingTransport transport = new CountingTransport();
+        transport.lostReplies.set(3);
+        try (SimulatedGraph graph = SimulatedGraph.start(5021, 2, 0, transport)) {
+            transfer(graph, TRANSFERS);
+            assertEquals(graph.getInitialBalance(), graph.awaitBalance(graph.getInitialBalance()));
+            assertEquals(getInitialBalance(graph) + TRANSFERS, graph.get(1).getNode().getItem().getBalance());
+            assertEquals(0, transport.lostReplies.get());
+        }
+    }
+
+    /**
+     * Transfers 1 from the first node to the second one the given number of times
+     */
+    private static void transfer(@NotNull SimulatedGraph graph, int count) throws RemoteException {
+        int recipientNodeId = graph.get(1).getNode().getId();
+        for (int i = 0; i < count; i++) {
+            graph.get(0).transferMoney(0, recipientNodeId, 0, 1);
+        }
+    }
+
+    private static long getInitialBalance(@NotNull SimulatedGraph graph) {
+        return graph.getInitialBalance() / graph.size();
+    }
+
+    /**
+     * In-memory transport counting calls of acceptMoneyBatch, which loses replies of the first calls: the batch is credited,
+     * but the sender gets RemoteException
+     */
+    private static final class CountingTransport implements Transport {
+
+        private final InMemoryTransport transport = new InMemoryTransport(0, 0);
+
+        private final AtomicInteger batches = new AtomicInteger();
+
+        private final AtomicInteger lostReplies = new AtomicInteger();
+
+        @Override
+        public void bind(@NotNull Node node, @NotNull NodeServer server) {
+            transport.bind(node, server);
+        }
+
+        @Override
+        public void unbind(@NotNull Node node) {
+            transport.unbind(node);
+        }
+
+        @NotNull
+        @Override
+        public NodeServer lookup(int id, @NotNull String host) throws Exception {
+            NodeServer server = transport.lookup(id, host);
+            return (NodeServer) Proxy.newProxyInstance(NodeServer.class.getClassLoader(), new Class<?>[]{NodeServer.class}, (proxy, method, args) -> {
+                Object result;
+                try {
+                    result = method.invoke(server, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+                if (method.getName().equals("acceptMoneyBatch")) {
+                    batches.incrementAndGet();
+                    if (lostReplies.getAndUpdate(count -> Math.max(count - 1, 0)) > 0) {
+                        throw new RemoteException("Lost reply of batchId=" + args[1]);
+                    }
+                }
+                return result;
+            });
+        }
+    }
+}
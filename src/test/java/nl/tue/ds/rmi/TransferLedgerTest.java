@@ -0,0 +1,128 @@
+package nl.tue.ds.rmi;
+
+import nl.tue.ds.entity.Item;
+import nl.tue.ds.storage.PendingTransfer;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Withdrawals, settlement and rollback of pending transfers in the ring of the ledger, growing of the ring
+ * and withdrawals of concurrent threads
+ */
+public class TransferLedgerTest {
+
+    @Test
+    public void completesAndRollsBackPendingTransfers() {
+        Item item = new Item(2, 100);
+        TransferLedger ledger = new TransferLedger(item);
+        long first = ledger.withdraw(0, 10, 7, 0);
+        long second = ledger.withdraw(1, 20, 7, 0);
+        long third = ledger.withdraw(0, 30, 8, 1);
+        assertEquals(3, ledger.getPendingCount());
+        assertEquals(140, item.getBalance());
+
+        ledger.complete(new long[]{first});
+        ledger.rollback(new long[]{second, third});
+        ledger.rollback(new long[]{first, third});
+        assertEquals(0, ledger.getPendingCount());
+        assertEquals(90, item.getBalance(0));
+        assertEquals(100, item.getBalance(1));
+    }
+
+    @Test
+    public void refusedWithdrawalDoesNotKeepTransfersPending() {
+        Item item = new Item(1, 100);
+        TransferLedger ledger = new TransferLedger(item);
+        assertEquals(TransferLedger.NO_TRANSFER, ledger.withdraw(0, 101, 7, 0));
+        long transferId = ledger.withdraw(0, 100, 7, 0);
+        assertNotEquals(TransferLedger.NO_TRANSFER, transferId);
+        assertEquals(TransferLedger.NO_TRANSFER, ledger.withdraw(0, 1, 7, 0));
+        assertEquals(1, ledger.getPendingCount());
+        ledger.rollback(new long[]{transferId});
+        assertEquals(0, ledger.getPendingCount());
+        assertEquals(100, item.getBalance());
+    }
+
+    @Test
+    public void growsRingWhileOldestTransferIsPending() {
+        int count = 10_000;
+        Item item = new Item(1, count);
+        TransferLedger ledger = new TransferLedger(item);
+        long[] transferIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            transferIds[i] = ledger.withdraw(0, 1, 7, 0);
+            if (i % 2 == 1) {
+                ledger.complete(new long[]{transferIds[i]});
+            }
+        }
+        assertEquals(count / 2, ledger.getPendingCount());
+        assertEquals(0, item.getBalance());
+
+        ledger.rollback(transferIds);
+        assertEquals(0, ledger.getPendingCount());
+        assertEquals(count / 2, item.getBalance());
+    }
+
+    @Test
+    public void recoveredTransfersKeepTheirIds() {
+        Item item = new Item(2, 100);
+        TransferLedger ledger = new TransferLedger(item);
+        ledger.recover(10, Arrays.asList(new PendingTransfer(4, 1, 40, 7, 0, 0), new PendingTransfer(9, 0, 5, 8, 1, 3)));
+        assertEquals(2, ledger.getPendingCount());
+        assertEquals(11, ledger.withdraw(0, 1, 7, 0));
+
+        ledger.rollback(new long[]{4});
+        ledger.complete(new long[]{9, 11});
+        assertEquals(0, ledger.getPendingCount());
+        assertEquals(99, item.getBalance(0));
+        assertEquals(140, item.getBalance(1));
+    }
+
+    @Test
+    public void concurrentWithdrawalsGetDistinctIds() throws Exception {
+        int threads = 8;
+        int perThread = 5_000;
+        Item item = new Item(threads, perThread);
+        TransferLedger ledger = new TransferLedger(item);
+        Set<Long> transferIds = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Future<?>[] futures = new Future<?>[threads];
+            for (int t = 0; t < threads; t++) {
+                int accountId = t;
+                futures[t] = executor.submit(() -> {
+                    for (int i = 0; i < perThread + 10; i++) {
+                        long transferId = ledger.withdraw(accountId, 1, 7, 0);
+                        if (transferId != TransferLedger.NO_TRANSFER) {
+                            assertTrue(transferIds.add(transferId));
+                            if (i % 3 == 0) {
+                                ledger.rollback(new long[]{transferId});
+                            }
+                        }
+                    }
+                });
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(item.getBalance(), (long) threads * perThread - (long) ledger.getPendingCount());
+
+        ledger.rollback(transferIds.stream().mapToLong(Long::longValue).toArray());
+        assertEquals(0, ledger.getPendingCount());
+        assertEquals((long) threads * perThread, item.getBalance());
+    }
+}
@@ -0,0 +1,219 @@
+package nl.tue.ds.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encoding and decoding of records by columnar blocks of the snapshot archive, lookups by snapshot ID, truncation of torn blocks
+ * and size of the archive compared to the snapshot log
+ */
+public class SnapshotArchiveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void decodesEncodedRecords() throws IOException {
+        List<SnapshotRecord> records = Arrays.asList(
+                new SnapshotRecord(3, 7, Long.MAX_VALUE, 0, 1_500_000_000_000L, Collections.emptyList()),
+                new SnapshotRecord(1, Integer.MAX_VALUE, Long.MIN_VALUE, Integer.MAX_VALUE, 1_400_000_000_000L,
+                        Arrays.asList(new ChannelRecord(Integer.MAX_VALUE, 3, Integer.MIN_VALUE), new ChannelRecord(1, 0, 0))),
+                new SnapshotRecord(2, 0, -1, -5, 0, Collections.singletonList(new ChannelRecord(-4, Integer.MAX_VALUE, -1))),
+                new SnapshotRecord(2, 1, 0, 0, Long.MAX_VALUE, Collections.emptyList()));
+        try (SnapshotArchive archive = open()) {
+            archive.append(1, 42, records);
+            assertEquals(records, read(archive));
+        }
+        try (SnapshotArchive archive = open()) {
+            assertEquals(records, read(archive));
+            SnapshotArchive.Block block = archive.getLastBlock();
+            assertEquals(1, block.getGeneration());
+            assertEquals(42, block.getLastSlot());
+            assertEquals(records.size(), block.getRecordCount());
+        }
+    }
+
+    @Test
+    public void findsRecordsAcrossBlocks() throws IOException {
+        List<SnapshotRecord> records = createRecords(SnapshotArchive.BLOCK_RECORDS * 2 + 10);
+        try (SnapshotArchive archive = open()) {
+            for (int i = 0; i < records.size(); i += SnapshotArchive.BLOCK_RECORDS) {
+                List<SnapshotRecord> block = records.subList(i, Math.min(i + SnapshotArchive.BLOCK_RECORDS, records.size()));
+                archive.append(1, i + block.size(), block);
+            }
+        }
+        try (SnapshotArchive archive = open()) {
+            SnapshotArchive.Block[] blocks = archive.getBlocks();
+            assertEquals(3, blocks.length);
+            assertEquals(records, read(archive));
+            for (int i : new int[]{0, 1, SnapshotArchive.BLOCK_RECORDS, records.size() - 1}) {
+                SnapshotRecord record = records.get(i);
+                assertEquals(record, archive.find(blocks, record.getInitiatorId(), record.getSequence()));
+            }
+            assertNull(archive.find(blocks, 1, records.size() + 1));
+            assertNull(archive.find(blocks, 3, 0));
+            assertEquals(records.size() - 2, archive.getLastSequence(1));
+            assertEquals(records.size() - 1, archive.getLastSequence(2));
+            assertEquals(0, archive.getLastSequence(3));
+            List<SnapshotRecord> range = new ArrayList<>();
+            archive.read(blocks, records.get(1000).getTimestamp(), records.get(1100).getTimestamp(), range::add);
+            assertEquals(records.subList(1000, 1101), range);
+        }
+    }
+
+    @Test
+    public void findsRecordsOfOverlappingAndRestartedSequences() throws IOException {
+        // snapshots 11 and 12 completed out of order across the boundary of the first two blocks
+        List<SnapshotRecord> first = createSequences(1, 10, 0);
+        first.add(new SnapshotRecord(1, 12, 12, 0, 12, Collections.emptyList()));
+        List<SnapshotRecord> second = createSequences(11, 11, 0);
+        second.addAll(createSequences(13, 20, 0));
+        // sequences restarted by a new instance of the initiator
+        List<SnapshotRecord> third = createSequences(1, 5, 100);
+        try (SnapshotArchive archive = open()) {
+            archive.append(1, 11, first);
+            archive.append(1, 20, second);
+            SnapshotArchive.Block[] blocks = archive.getBlocks();
+            assertEquals(first.get(10), archive.find(blocks, 1, 12));
+            assertEquals(second.get(0), archive.find(blocks, 1, 11));
+            assertEquals(first.get(0), archive.find(blocks, 1, 1));
+            assertEquals(second.get(8), archive.find(blocks, 1, 20));
+            assertNull(archive.find(blocks, 1, 21));
+
+            archive.append(2, 5, third);
+            blocks = archive.getBlocks();
+            assertEquals(third.get(2), archive.find(blocks, 1, 3));
+            assertEquals(first.get(5), archive.find(blocks, 1, 6));
+            assertEquals(second.get(0), archive.find(blocks, 1, 11));
+            assertEquals(20, archive.getLastSequence(1));
+        }
+    }
+
+    @Test
+    public void truncatesTornBlockOnOpening() throws IOException {
+        List<SnapshotRecord> records = createRecords(20);
+        long size;
+        try (SnapshotArchive archive = open()) {
+            archive.append(1, 10, records.subList(0, 10));
+            size = archive.size();
+            archive.append(1, 20, records.subList(10, 20));
+        }
+        try (FileChannel channel = FileChannel.open(getPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        try (SnapshotArchive archive = open()) {
+            assertEquals(1, archive.getBlocks().length);
+            assertEquals(size, archive.size());
+            assertEquals(records.subList(0, 10), read(archive));
+            assertEquals(8, archive.getLastSequence(1));
+            archive.append(1, 20, records.subList(10, 20));
+        }
+        try (SnapshotArchive archive = open()) {
+            assertEquals(records, read(archive));
+        }
+    }
+
+    @Test
+    public void archiveIsSeveralTimesSmallerThanFullRecordsOfTheLog() throws IOException {
+        List<SnapshotRecord> records = createCutRecords(SnapshotArchive.BLOCK_RECORDS * 40);
+        long logSize = 0;
+        for (SnapshotRecord record : records) {
+            logSize += (1 + (record.getChannels().size() + 1) / 2) * SnapshotLog.RECORD_SIZE;
+        }
+        try (SnapshotArchive archive = open()) {
+            for (int i = 0; i < records.size(); i += SnapshotArchive.BLOCK_RECORDS) {
+                archive.append(1, i + SnapshotArchive.BLOCK_RECORDS, records.subList(i, i + SnapshotArchive.BLOCK_RECORDS));
+            }
+            long archiveSize = archive.size();
+            assertTrue("log=" + logSize + " bytes, archive=" + archiveSize + " bytes", archiveSize * 5 <= logSize);
+        }
+        try (SnapshotArchive archive = open()) {
+            assertEquals(records, read(archive));
+            SnapshotArchive.Block[] blocks = archive.getBlocks();
+            for (SnapshotRecord record : Arrays.asList(records.get(0), records.get(records.size() / 2), records.get(records.size() - 1))) {
+                assertEquals(record, archive.find(blocks, record.getInitiatorId(), record.getSequence()));
+            }
+        }
+    }
+
+    private Path getPath() {
+        return folder.getRoot().toPath().resolve("Node.archive");
+    }
+
+    private SnapshotArchive open() throws IOException {
+        return SnapshotArchive.open(getPath());
+    }
+
+    private static List<SnapshotRecord> read(SnapshotArchive archive) throws IOException {
+        List<SnapshotRecord> records = new ArrayList<>();
+        archive.read(archive.getBlocks(), Long.MIN_VALUE, Long.MAX_VALUE, records::add);
+        return records;
+    }
+
+    /**
+     * Records of the initiator 1 with the range of sequences, balance is the sequence plus the offset
+     */
+    private static List<SnapshotRecord> createSequences(int fromSequence, int toSequence, int balanceOffset) {
+        List<SnapshotRecord> records = new ArrayList<>();
+        for (int sequence = fromSequence; sequence <= toSequence; sequence++) {
+            records.add(new SnapshotRecord(1, sequence, sequence + balanceOffset, 0, sequence, Collections.emptyList()));
+        }
+        return records;
+    }
+
+    /**
+     * Records of a node of a mesh of 100 nodes, cut every few milliseconds by one of four initiators: local balance
+     * changes by transfers between cuts and few of its neighbours have transfers in transit
+     */
+    private static List<SnapshotRecord> createCutRecords(int count) {
+        Random random = new Random(count);
+        int[] sequences = new int[4];
+        long balance = 1_000_000;
+        long timestamp = 1_500_000_000_000L;
+        List<SnapshotRecord> records = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int initiator = random.nextInt(sequences.length);
+            balance += random.nextInt(2001) - 1000;
+            timestamp += random.nextInt(50);
+            List<ChannelRecord> channels = new ArrayList<>();
+            int moneyInTransfer = 0;
+            for (int nodeId = random.nextInt(20) + 1; nodeId <= 100; nodeId += random.nextInt(40) + 1) {
+                int amount = random.nextInt(100) + 1;
+                channels.add(new ChannelRecord(nodeId, 1, amount));
+                moneyInTransfer += amount;
+            }
+            records.add(new SnapshotRecord(initiator * 25 + 1, ++sequences[initiator], balance, moneyInTransfer, timestamp, channels));
+        }
+        return records;
+    }
+
+    /**
+     * Records of two initiators with balances going up and down and up to three channels in transit
+     */
+    private static List<SnapshotRecord> createRecords(int count) {
+        List<SnapshotRecord> records = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            List<ChannelRecord> channels = new ArrayList<>();
+            for (int j = 0; j < i % 4; j++) {
+                channels.add(new ChannelRecord(10 - j * 3, j + 1, (j + 1) * 10));
+            }
+            records.add(new SnapshotRecord(i % 2 + 1, i, (i % 3 == 0 ? -1 : 1) * (Integer.MAX_VALUE + (long) i), i % 7, 1_000_000 + i, channels));
+        }
+        return records;
+    }
+}
@@ -0,0 +1,90 @@
+package nl.tue.ds.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lookup of index entries by timestamp over runs of invalid entries, which are reserved by appends still in progress
+ */
+public class SnapshotIndexTest {
+
+    private static final int ENTRIES = 400;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void findsFirstEntryAcrossShortRunsOfInvalidEntries() throws IOException {
+        try (SnapshotIndex index = open(101, 150, 391, 400)) {
+            assertEquals(1, index.findFirst(0));
+            assertEquals(50, index.findFirst(495));
+            assertEquals(100, index.findFirst(1000));
+            assertEquals(101, index.findFirst(1001));
+            assertEquals(101, index.findFirst(1510));
+            // records of entries still reserved at the end are not readable yet
+            assertEquals(index.getNextEntry(), index.findFirst(3901));
+            assertEquals(index.getNextEntry(), index.findFirst(4001));
+            for (long timestamp = 0; timestamp <= ENTRIES * 10 + 10; timestamp += 7) {
+                assertFirst(index, timestamp, true);
+            }
+        }
+    }
+
+    @Test
+    public void neverSkipsEntriesAcrossLongRunsOfInvalidEntries() throws IOException {
+        try (SnapshotIndex index = open(101, 300, 0, 0)) {
+            for (long timestamp = 0; timestamp <= ENTRIES * 10 + 10; timestamp += 7) {
+                assertFirst(index, timestamp, false);
+            }
+            SnapshotIndex.Entry valid = index.findValid(160);
+            assertNotNull(valid);
+            assertEquals(100, valid.getSlot());
+            assertNull(index.findValid(250));
+            assertEquals(301, index.findValid(301).getSlot());
+        }
+    }
+
+    /**
+     * Reserves ENTRIES entries with timestamps of ten times their number and leaves two ranges of them unwritten
+     */
+    private SnapshotIndex open(int fromInvalid, int toInvalid, int fromTailInvalid, int toTailInvalid) throws IOException {
+        SnapshotIndex index = SnapshotIndex.open(folder.getRoot().toPath().resolve("Node.index"), 1);
+        for (int i = 1; i <= ENTRIES; i++) {
+            long entry = index.reserve();
+            if ((i < fromInvalid || i > toInvalid) && (i < fromTailInvalid || i > toTailInvalid)) {
+                index.write(entry, 1, i, i * 10L, i);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Checks no valid entry before the found one has the timestamp or a later one and, if exact,
+     * that the first valid entry from the found one has it
+     */
+    private static void assertFirst(SnapshotIndex index, long timestamp, boolean isExact) throws IOException {
+        long found = index.findFirst(timestamp);
+        for (long entry = 1; entry < found; entry++) {
+            SnapshotIndex.Entry skipped = index.read(entry);
+            assertTrue("timestamp=" + timestamp + ", found=" + found, skipped == null || skipped.getTimestamp() < timestamp);
+        }
+        if (!isExact) {
+            return;
+        }
+        for (long entry = found; entry < index.getNextEntry(); entry++) {
+            SnapshotIndex.Entry first = index.read(entry);
+            if (first != null) {
+                assertTrue("timestamp=" + timestamp + ", found=" + found, first.getTimestamp() >= timestamp);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package nl.tue.ds.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Round trip of snapshot records through the snapshot log, its index and archive, materialization of DELTA records
+ * and reading of the log with corrupted slots
+ */
+public class SnapshotLogTest {
+
+    private static final int SEGMENT_SIZE = SnapshotLog.RECORD_SIZE * 64;
+
+    private static final int FULL_INTERVAL = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsAppendedRecordsAfterReopening() throws IOException {
+        List<SnapshotRecord> records = createRecords(100);
+        try (SnapshotLog log = open(FULL_INTERVAL)) {
+            for (SnapshotRecord record : records) {
+                log.append(record);
+            }
+        }
+        try (SnapshotLog log = open(FULL_INTERVAL)) {
+            assertEquals(records, read(log));
+            assertEquals(records.get(42), log.materialize(records.get(42).getInitiatorId(), records.get(42).getSequence()));
+            assertNull(log.materialize(1, 1000));
+            assertEquals(98, log.getLastSequence(1));
+            assertEquals(99, log.getLastSequence(2));
+            List<SnapshotRecord> range = new ArrayList<>();
+            log.read(records.get(10).getTimestamp(), records.get(19).getTimestamp(), range::add);
+            assertEquals(records.subList(10, 20), range);
+        }
+    }
+
+    @Test
+    public void readsArchivedRecordsFollowedByRecordsOfTheLog() throws IOException {
+        List<SnapshotRecord> records = createRecords(100);
+        try (SnapshotLog log = open(FULL_INTERVAL)) {
+            for (SnapshotRecord record : records.subList(0, 70)) {
+                log.append(record);
+            }
+            assertEquals(70, log.archive(1));
+            for (SnapshotRecord record : records.subList(70, 100)) {
+                log.append(record);
+            }
+        }
+        try (SnapshotLog log = open(FULL_INTERVAL)) {
+            assertEquals(records, read(log));
+            assertEquals(records.get(5), log.materialize(records.get(5).getInitiatorId(), records.get(5).getSequence()));
+            assertEquals(records.get(85), log.materialize(records.get(85).getInitiatorId(), records.get(85).getSequence()));
+        }
+    }
+
+    @Test
+    public void skipsRecordWithCorruptedSlot() throws IOException {
+        List<SnapshotRecord> records = Arrays.asList(
+                new SnapshotRecord(1, 1, 1000, 0, 1000, Collections.emptyList()),
+                new SnapshotRecord(1, 2, 900, 100, 1001, Arrays.asList(new ChannelRecord(2, 1, 60), new ChannelRecord(3, 1, 40), new ChannelRecord(4, 0, 0))),
+                new SnapshotRecord(1, 3, 1000, 0, 1002, Collections.emptyList()));
+        try (SnapshotLog log = open(1)) {
+            for (SnapshotRecord record : records) {
+                log.append(record);
+            }
+        }
+        // second channel slot of the second record: header slot, first record, second record, first channel slot
+        corrupt(folder.getRoot().toPath().resolve("Node.snapshots"), SnapshotLog.RECORD_SIZE * 4 + 2);
+        try (SnapshotLog log = open(1)) {
+            assertEquals(Arrays.asList(records.get(0), records.get(2)), read(log));
+            assertNull(log.materialize(1, 2));
+            assertEquals(records.get(2), log.materialize(1, 3));
+        }
+    }
+
+    @Test
+    public void skipsTornRecordAtTheEnd() throws IOException {
+        List<SnapshotRecord> records = createRecords(3);
+        try (SnapshotLog log = open(1)) {
+            for (SnapshotRecord record : records) {
+                log.append(record);
+            }
+        }
+        // record slot of the last record, which follows the header slot and slots of the records without and with one channel
+        corrupt(folder.getRoot().toPath().resolve("Node.snapshots"), SnapshotLog.RECORD_SIZE * 4 + 8);
+        try (SnapshotLog log = open(1)) {
+            assertEquals(records.subList(0, 2), read(log));
+        }
+    }
+
+    private SnapshotLog open(int fullInterval) throws IOException {
+        Path root = folder.getRoot().toPath();
+        return SnapshotLog.open(root.resolve("Node.snapshots"), root.resolve("Node.index"), root.resolve("Node.archive"), SEGMENT_SIZE, fullInterval);
+    }
+
+    @Test
+    public void materializesDeltaRecordsFromTheirFullRecord() throws IOException {
+        List<SnapshotRecord> records = Arrays.asList(
+                new SnapshotRecord(1, 1, 1000, 60, 1000, Arrays.asList(new ChannelRecord(2, 1, 10), new ChannelRecord(3, 2, 20), new ChannelRecord(4, 3, 30))),
+                new SnapshotRecord(2, 1, 950, 60, 1001, Arrays.asList(new ChannelRecord(2, 1, 10), new ChannelRecord(3, 2, 20), new ChannelRecord(4, 3, 30))),
+                new SnapshotRecord(1, 2, 1200, 45, 1002, Arrays.asList(new ChannelRecord(2, 1, 10), new ChannelRecord(4, 1, 5), new ChannelRecord(5, 2, 30))));
+        try (SnapshotLog log = open(FULL_INTERVAL)) {
+            for (SnapshotRecord record : records) {
+                log.append(record);
+            }
+            for (SnapshotRecord record : records) {
+                assertEquals(record, log.materialize(record.getInitiatorId(), record.getSequence()));
+            }
+        }
+        // record slot of the FULL record, which follows the header slot, DELTA records cannot be materialized without it
+        corrupt(folder.getRoot().toPath().resolve("Node.snapshots"), SnapshotLog.RECORD_SIZE + 2);
+        try (SnapshotLog log = open(FULL_INTERVAL)) {
+            assertEquals(Collections.emptyList(), read(log));
+            assertNull(log.materialize(1, 2));
+        }
+        corrupt(folder.getRoot().toPath().resolve("Node.snapshots"), SnapshotLog.RECORD_SIZE + 2);
+        try (SnapshotLog log = open(FULL_INTERVAL)) {
+            assertEquals(records, read(log));
+            assertEquals(records.get(2), log.materialize(1, 2));
+            List<SnapshotRecord> range = new ArrayList<>();
+            log.read(records.get(2).getTimestamp(), Long.MAX_VALUE, range::add);
+            assertEquals(records.subList(2, 3), range);
+        }
+    }
+
+    @Test
+    public void losesDeltaRecordsOfCorruptedChainUntilNextFullRecord() throws IOException {
+        List<SnapshotRecord> records = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            records.add(new SnapshotRecord(1, i + 1, 1000 + i * 10, 0, 1000 + i, Collections.emptyList()));
+        }
+        try (SnapshotLog log = open(FULL_INTERVAL)) {
+            for (SnapshotRecord record : records) {
+                log.append(record);
+            }
+        }
+        // record slot of the second record, records without channels take one slot each
+        corrupt(folder.getRoot().toPath().resolve("Node.snapshots"), SnapshotLog.RECORD_SIZE * 2 + 2);
+        try (SnapshotLog log = open(FULL_INTERVAL)) {
+            List<SnapshotRecord> expected = new ArrayList<>(records);
+            expected.subList(1, FULL_INTERVAL).clear();
+            assertEquals(expected, read(log));
+            assertNull(log.materialize(1, 3));
+            assertEquals(records.get(FULL_INTERVAL), log.materialize(1, FULL_INTERVAL + 1));
+            assertEquals(records.get(9), log.materialize(1, 10));
+        }
+    }
+
+    private static List<SnapshotRecord> read(SnapshotLog log) throws IOException {
+        List<SnapshotRecord> records = new ArrayList<>();
+        log.read(records::add);
+        return records;
+    }
+
+    /**
+     * Records of two initiators with balances going up and down and up to three channels in transit
+     */
+    private static List<SnapshotRecord> createRecords(int count) {
+        List<SnapshotRecord> records = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            List<ChannelRecord> channels = new ArrayList<>();
+            for (int j = 0; j < i % 4; j++) {
+                channels.add(new ChannelRecord(j + 2, j + 1, (j + 1) * 10));
+            }
+            records.add(new SnapshotRecord(i % 2 + 1, i, (i % 3 == 0 ? -1 : 1) * (Integer.MAX_VALUE + (long) i), i % 7, 1_000_000 + i, channels));
+        }
+        return records;
+    }
+
+    /**
+     * Flips bits of one byte of the file
+     */
+    private static void corrupt(Path path, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer value = ByteBuffer.allocate(1);
+            channel.read(value, position);
+            value.put(0, (byte) ~value.get(0));
+            value.rewind();
+            channel.write(value, position);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package nl.tue.ds.storage;
+
+import nl.tue.ds.entity.Item;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Recovery of balances, pending transfers and credited batches from the transfer log of a crashed node
+ * <p>
+ * Crash is simulated by opening the log again while the previous instance is still open, so changes appended
+ * after the last sync are never written
+ */
+public class TransferLogTest {
+
+    private static final int ACCOUNTS = 4;
+
+    private static final int INITIAL_BALANCE = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void emptyLogHasNothingToRecover() throws IOException {
+        try (TransferLog log = open(1 << 20)) {
+            assertNull(log.getRecovered());
+        }
+    }
+
+    @Test
+    public void recoversSyncedChangesAndTransfersAfterCrash() throws IOException {
+        TransferLog log = open(1 << 20);
+        Item item = attach(log);
+        item.incrementBalance(0, 10);
+        assertTrue(item.withdraw(1, 1, 20, 7, 2));
+        assertTrue(item.withdraw(2, 2, 30, 8, 3));
+        assertFalse(item.withdraw(3, 3, INITIAL_BALANCE + 1, 7, 0));
+        item.sent(555, new long[]{1});
+        item.credit(9, 42, new int[]{3, 3}, new int[]{5, 6});
+        log.sync();
+        item.incrementBalance(0, 1000);
+
+        RecoveredState recovered = recover(1 << 20);
+        assertEquals(INITIAL_BALANCE + 10, recovered.getItem().getBalance(0));
+        assertEquals(INITIAL_BALANCE - 20, recovered.getItem().getBalance(1));
+        assertEquals(INITIAL_BALANCE - 30, recovered.getItem().getBalance(2));
+        assertEquals(INITIAL_BALANCE + 11, recovered.getItem().getBalance(3));
+        assertEquals(2, recovered.getLastTransferId());
+        assertEquals(Stream.of(new PendingTransfer(1, 1, 20, 7, 2, 555), new PendingTransfer(2, 2, 30, 8, 3, 0)).collect(Collectors.toSet()),
+                new HashSet<>(recovered.getPendingTransfers()));
+        assertEquals(Collections.singletonMap(9, 42L), recovered.getLastBatchIds());
+        log.close();
+    }
+
+    @Test
+    public void settledTransfersAreNoLongerPending() throws IOException {
+        TransferLog log = open(1 << 20);
+        Item item = attach(log);
+        assertTrue(item.withdraw(1, 0, 20, 7, 0));
+        assertTrue(item.withdraw(2, 1, 30, 7, 1));
+        item.sent(1, new long[]{1, 2});
+        item.completed(new long[]{1});
+        item.rollback(new long[]{2}, new int[]{1}, new int[]{30});
+        log.sync();
+
+        RecoveredState recovered = recover(1 << 20);
+        assertEquals(INITIAL_BALANCE - 20, recovered.getItem().getBalance(0));
+        assertEquals(INITIAL_BALANCE, recovered.getItem().getBalance(1));
+        assertTrue(recovered.getPendingTransfers().isEmpty());
+        log.close();
+    }
+
+    @Test
+    public void stopsReplayAtTornRecord() throws IOException {
+        TransferLog log = open(1 << 20);
+        Item item = attach(log);
+        item.incrementBalance(0, 1);
+        item.incrementBalance(0, 2);
+        item.incrementBalance(0, 4);
+        log.close();
+        Path segment = getSegments().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+
+        RecoveredState recovered = recover(1 << 20);
+        assertEquals(INITIAL_BALANCE + 3, recovered.getItem().getBalance(0));
+    }
+
+    @Test
+    public void recoversFromCheckpointAndDeletesCoveredSegments() throws IOException {
+        TransferLog log = open(TransferLog.RECORD_SIZE);
+        Item item = attach(log);
+        for (int i = 0; i < 10; i++) {
+            item.incrementBalance(i % ACCOUNTS, 1);
+            log.sync();
+        }
+        assertTrue(item.withdraw(1, 0, 50, 7, 0));
+        item.sent(77, new long[]{1});
+        item.credit(9, 42, new int[]{2}, new int[]{5});
+        log.sync();
+        assertTrue(getSegments().size() > 1);
+        assertTrue(log.checkpoint());
+        assertFalse(log.checkpoint());
+        assertEquals(1, getSegments().size());
+        item.incrementBalance(3, 1);
+        log.sync();
+
+        RecoveredState recovered = recover(TransferLog.RECORD_SIZE);
+        assertEquals(INITIAL_BALANCE + 3 - 50, recovered.getItem().getBalance(0));
+        assertEquals(INITIAL_BALANCE + 3, recovered.getItem().getBalance(1));
+        assertEquals(INITIAL_BALANCE + 2 + 5, recovered.getItem().getBalance(2));
+        assertEquals(INITIAL_BALANCE + 2 + 1, recovered.getItem().getBalance(3));
+        assertEquals(Collections.singletonList(new PendingTransfer(1, 0, 50, 7, 0, 77)), recovered.getPendingTransfers());
+        assertEquals(Collections.singletonMap(9, 42L), recovered.getLastBatchIds());
+        log.close();
+    }
+
+    @Test
+    public void deleteRemovesAllFiles() throws IOException {
+        TransferLog log = open(1 << 20);
+        Item item = attach(log);
+        item.incrementBalance(0, 1);
+        log.checkpoint();
+        log.delete();
+        try (TransferLog reopened = open(1 << 20)) {
+            assertNull(reopened.getRecovered());
+        }
+    }
+
+    private TransferLog open(int segmentSize) throws IOException {
+        return TransferLog.open(folder.getRoot().toPath(), "Node", segmentSize, false, () -> new Item(ACCOUNTS, INITIAL_BALANCE));
+    }
+
+    private RecoveredState recover(int segmentSize) throws IOException {
+        try (TransferLog log = open(segmentSize)) {
+            RecoveredState recovered = log.getRecovered();
+            assertNotNull(recovered);
+            return recovered;
+        }
+    }
+
+    private static Item attach(TransferLog log) {
+        Item item = new Item(ACCOUNTS, INITIAL_BALANCE);
+        log.attach(item);
+        return item;
+    }
+
+    private List<Path> getSegments() throws IOException {
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".transfers")).sorted().collect(Collectors.toList());
+        }
+    }
+}
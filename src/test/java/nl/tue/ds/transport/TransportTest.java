@@ -0,0 +1,53 @@
+package nl.tue.ds.transport;
+
+import nl.tue.ds.SimulatedGraph;
+import nl.tue.ds.entity.GlobalSnapshot;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.rmi.ConnectException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Graphs of nodes on localhost joining, transferring money and collecting snapshots over every transport
+ */
+public class TransportTest {
+
+    private static final int NODES = 4;
+
+    @Test
+    public void inMemoryTransport() throws Exception {
+        check(6001, new InMemoryTransport(50, 50));
+    }
+
+    @Test
+    public void nioTransport() throws Exception {
+        check(6011, new NioTransport());
+    }
+
+    @Test
+    public void rmiTransport() throws Exception {
+        check(6021, new RmiTransport());
+    }
+
+    @Test(expected = ConnectException.class)
+    public void inMemoryLookupOfUnboundNodeFails() throws Exception {
+        new InMemoryTransport(0, 0).lookup(6031, "localhost");
+    }
+
+    private static void check(int firstNodeId, @NotNull Transport transport) throws Exception {
+        try (SimulatedGraph graph = SimulatedGraph.start(firstNodeId, NODES, 0, transport)) {
+            graph.startTransfers();
+            Thread.sleep(100);
+            for (int i = 0; i < NODES; i++) {
+                GlobalSnapshot snapshot = graph.snapshot(i);
+                assertEquals(NODES, snapshot.getNodeCount());
+                assertTrue(snapshot.toString(), snapshot.isConserved());
+            }
+            graph.stopTransfers();
+            assertEquals(graph.getInitialBalance(), graph.awaitBalance(graph.getInitialBalance()));
+        }
+    }
+}
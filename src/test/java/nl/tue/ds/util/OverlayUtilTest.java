@@ -0,0 +1,107 @@
+package nl.tue.ds.util;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Symmetry, connectivity, degree and stability of the sparse overlay
+ */
+public class OverlayUtilTest {
+
+    private static final int DEGREE = 6;
+
+    @Test
+    public void smallGraphOrZeroDegreeIsFullMesh() {
+        List<Integer> nodeIds = createNodeIds(1, 6);
+        assertArrayEquals(new int[]{1, 2, 4, 5, 6}, OverlayUtil.getNeighbourIds(3, nodeIds, DEGREE));
+        assertArrayEquals(new int[]{1, 2, 4, 5, 6}, OverlayUtil.getNeighbourIds(3, nodeIds, 0));
+        assertArrayEquals(new int[0], OverlayUtil.getNeighbourIds(7, nodeIds, DEGREE));
+    }
+
+    @Test
+    public void overlayIsSymmetricConnectedAndSparse() {
+        for (int nodeCount : new int[]{10, 100, 1000}) {
+            List<Integer> nodeIds = createNodeIds(1, nodeCount);
+            Map<Integer, int[]> overlay = getOverlay(nodeIds);
+            long edges = 0;
+            for (Map.Entry<Integer, int[]> entry : overlay.entrySet()) {
+                int[] neighbourIds = entry.getValue();
+                assertTrue(neighbourIds.length > 0);
+                for (int neighbourId : neighbourIds) {
+                    assertTrue("nodeId=" + entry.getKey() + " is not a neighbour of its neighbourId=" + neighbourId,
+                            Arrays.binarySearch(overlay.get(neighbourId), entry.getKey()) >= 0);
+                }
+                edges += neighbourIds.length;
+            }
+            assertEquals(nodeCount, countReachable(overlay, nodeIds.get(0)));
+            assertTrue("nodes=" + nodeCount + ", edges=" + edges / 2, edges / 2 <= (long) nodeCount * (DEGREE / 2));
+        }
+    }
+
+    @Test
+    public void joiningNodeChangesFewLinks() {
+        List<Integer> nodeIds = createNodeIds(1, 500);
+        Map<Integer, int[]> overlay = getOverlay(nodeIds);
+        List<Integer> joinedIds = createNodeIds(1, 501);
+        Map<Integer, int[]> joinedOverlay = getOverlay(joinedIds);
+        int changedNodes = 0;
+        for (int nodeId : nodeIds) {
+            Set<Integer> neighbourIds = toSet(joinedOverlay.get(nodeId));
+            neighbourIds.remove(501);
+            if (!neighbourIds.equals(toSet(overlay.get(nodeId)))) {
+                changedNodes++;
+            }
+        }
+        assertTrue("changed nodes=" + changedNodes, changedNodes <= DEGREE * 4);
+        assertEquals(joinedIds.size(), countReachable(joinedOverlay, 501));
+    }
+
+    private static List<Integer> createNodeIds(int from, int to) {
+        List<Integer> nodeIds = IntStream.rangeClosed(from, to).boxed().collect(Collectors.toList());
+        Collections.shuffle(nodeIds);
+        return nodeIds;
+    }
+
+    /**
+     * @return Map<NodeId, Neighbour ids>
+     */
+    private static Map<Integer, int[]> getOverlay(List<Integer> nodeIds) {
+        Map<Integer, int[]> overlay = new HashMap<>();
+        for (int nodeId : nodeIds) {
+            overlay.put(nodeId, OverlayUtil.getNeighbourIds(nodeId, nodeIds, DEGREE));
+        }
+        return overlay;
+    }
+
+    private static int countReachable(Map<Integer, int[]> overlay, int fromNodeId) {
+        Set<Integer> reached = new HashSet<>(Collections.singleton(fromNodeId));
+        Queue<Integer> queue = new ArrayDeque<>(reached);
+        while (!queue.isEmpty()) {
+            for (int neighbourId : overlay.get(queue.poll())) {
+                if (reached.add(neighbourId)) {
+                    queue.add(neighbourId);
+                }
+            }
+        }
+        return reached.size();
+    }
+
+    private static Set<Integer> toSet(int[] ids) {
+        return Arrays.stream(ids).boxed().collect(Collectors.toSet());
+    }
+}